@@ -120,6 +120,8 @@ public class Agent implements HandlerFactory, IAgentControl {
     long _startupWaitDefault = 180000;
     long _startupWait = _startupWaitDefault;
     boolean _reconnectAllowed = true;
+    // set once the management server has sent binary content
+    volatile boolean _binaryContent = false;
     //For time sentitive task, e.g. PingTask
     private ThreadPoolExecutor _ugentTaskPool;
     ExecutorService _executor;
@@ -300,8 +302,11 @@ public class Agent implements HandlerFactory, IAgentControl {
         final Command[] commands = new Command[startup.length];
         for (int i = 0; i < startup.length; i++) {
             setupStartupCommand(startup[i]);
+            startup[i].setBinaryContentSupported(true);
             commands[i] = startup[i];
         }
+        // Stay with json until the management server we are connecting to sends binary content.
+        _binaryContent = false;
 
         final Request request = new Request(_id != null ? _id : -1, -1, commands, false, false);
         request.setSequence(getNextSequence());
@@ -585,6 +590,7 @@ public class Agent implements HandlerFactory, IAgentControl {
             final PingCommand ping = _resource.getCurrentStatus(getId());
             final Request request = new Request(_id, -1, ping, false);
             request.setSequence(getNextSequence());
+            request.setBinary(_binaryContent);
             if (s_logger.isDebugEnabled()) {
                 s_logger.debug("Sending ping: " + request.toString());
             }
@@ -678,6 +684,7 @@ public class Agent implements HandlerFactory, IAgentControl {
     }
 
     private void postRequest(Request request) throws AgentControlChannelException {
+        request.setBinary(_binaryContent);
         if (_link != null) {
             try {
                 _link.send(request.toBytes());
@@ -829,6 +836,9 @@ public class Agent implements HandlerFactory, IAgentControl {
                 Request request;
                 try {
                     request = Request.parse(task.getData());
+                    if (request.isBinary()) {
+                        _binaryContent = true;
+                    }
                     if (request instanceof Response) {
                         //It's for pinganswer etc, should be processed immediately.
                         processResponse((Response)request, task.getLink());
@@ -264,6 +264,9 @@ public class ApiConstants {
     public static final String NETWORK_TYPE = "networktype";
     public static final String PAGE = "page";
     public static final String PAGE_SIZE = "pagesize";
+    public static final String PAGE_TOKEN = "pagetoken";
+    public static final String NEXT_PAGE_TOKEN = "nextpagetoken";
+    public static final String SKIP_COUNT = "skipcount";
     public static final String COUNT = "count";
     public static final String TRAFFIC_TYPE = "traffictype";
     public static final String NETWORK_OFFERING_ID = "networkofferingid";
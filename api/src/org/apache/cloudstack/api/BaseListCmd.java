@@ -37,6 +37,14 @@ public abstract class BaseListCmd extends BaseCmd {
     @Parameter(name = ApiConstants.PAGE_SIZE, type = CommandType.INTEGER)
     private Integer pageSize;
 
+    @Parameter(name = ApiConstants.PAGE_TOKEN, type = CommandType.STRING, description = "the nextpagetoken of the previous response;"
+        + " lists the page after it without counting the rows before it. Can't be used with page")
+    private String pageToken;
+
+    @Parameter(name = ApiConstants.SKIP_COUNT, type = CommandType.BOOLEAN, description = "if true, the total count of the matching resources is not computed"
+        + " and count only reports the resources returned. Defaults to false")
+    private Boolean skipCount;
+
     // ///////////////////////////////////////////////////
     // ///////////////// Accessors ///////////////////////
     // ///////////////////////////////////////////////////
@@ -64,6 +72,17 @@ public abstract class BaseListCmd extends BaseCmd {
         return pageSize;
     }
 
+    public String getPageToken() {
+        if (pageToken != null && page != null) {
+            throw new InvalidParameterValueException("Can't specify both page and pagetoken parameters");
+        }
+        return pageToken;
+    }
+
+    public boolean isSkipCount() {
+        return skipCount != null && skipCount;
+    }
+
     @Override
     public void configure() {
         if (s_maxPageSize == null) {
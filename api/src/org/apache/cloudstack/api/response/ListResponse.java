@@ -24,6 +24,7 @@ import org.apache.cloudstack.api.ResponseObject;
 public class ListResponse<T extends ResponseObject> extends BaseResponse {
     List<T> responses;
     private transient Integer count;
+    private transient String nextPageToken;
 
     public List<T> getResponses() {
         return responses;
@@ -49,4 +50,15 @@ public class ListResponse<T extends ResponseObject> extends BaseResponse {
 
         return null;
     }
+
+    /**
+     * @return token to list the next page with or null if this is the last page.
+     */
+    public String getNextPageToken() {
+        return nextPageToken;
+    }
+
+    public void setNextPageToken(String nextPageToken) {
+        this.nextPageToken = nextPageToken;
+    }
 }
@@ -31,6 +31,12 @@ import com.cloud.utils.net.NetUtils;
 public class SecurityGroupRulesCmd extends Command {
     private static Logger s_logger = Logger.getLogger(SecurityGroupRulesCmd.class);
 
+    /**
+     * Host detail set by resources that can apply a delta on top of the rules
+     * they programmed last for a vm.
+     */
+    public static final String DELTA_CAPABILITY = "security.group.rules.delta";
+
     public static class IpPortAndProto {
         private String proto;
         private int startPort;
@@ -81,6 +87,12 @@ public class SecurityGroupRulesCmd extends Command {
     IpPortAndProto[] ingressRuleSet;
     IpPortAndProto[] egressRuleSet;
     private List<String> secIps;
+    // set for a delta: ingressRuleSet and egressRuleSet then only hold the added cidrs
+    // and signature is the one of the complete ruleset after the delta is applied
+    boolean delta;
+    String baseSignature;
+    IpPortAndProto[] revokedIngressRuleSet;
+    IpPortAndProto[] revokedEgressRuleSet;
 
     public SecurityGroupRulesCmd() {
         super();
@@ -259,6 +271,33 @@ public class SecurityGroupRulesCmd extends Command {
         return signature;
     }
 
+    /**
+     * Turns this command into a delta.  The resource must refuse it if the
+     * rules it has for the vm do not have the base signature.
+     */
+    public void setDelta(String baseSignature, IpPortAndProto[] revokedIngressRuleSet, IpPortAndProto[] revokedEgressRuleSet) {
+        this.delta = true;
+        this.baseSignature = baseSignature;
+        this.revokedIngressRuleSet = revokedIngressRuleSet;
+        this.revokedEgressRuleSet = revokedEgressRuleSet;
+    }
+
+    public boolean isDelta() {
+        return delta;
+    }
+
+    public String getBaseSignature() {
+        return baseSignature;
+    }
+
+    public IpPortAndProto[] getRevokedIngressRuleSet() {
+        return revokedIngressRuleSet;
+    }
+
+    public IpPortAndProto[] getRevokedEgressRuleSet() {
+        return revokedEgressRuleSet;
+    }
+
     public String getGuestMac() {
         return guestMac;
     }
@@ -283,6 +322,21 @@ public class SecurityGroupRulesCmd extends Command {
         return count;
     }
 
+    public int getTotalNumRevokedCidrs() {
+        int count = 0;
+        if (revokedIngressRuleSet != null) {
+            for (IpPortAndProto i : revokedIngressRuleSet) {
+                count += i.allowedCidrs.length;
+            }
+        }
+        if (revokedEgressRuleSet != null) {
+            for (IpPortAndProto i : revokedEgressRuleSet) {
+                count += i.allowedCidrs.length;
+            }
+        }
+        return count;
+    }
+
     public void setMsId(long msId) {
         this.msId = msId;
     }
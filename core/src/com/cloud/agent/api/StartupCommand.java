@@ -43,6 +43,7 @@ public class StartupCommand extends Command {
     String agentTag;
     String resourceName;
     String gatewayIpAddress;
+    boolean binaryContentSupported;
 
     public StartupCommand(Host.Type type) {
         this.type = type;
@@ -278,6 +279,17 @@ public class StartupCommand extends Command {
         this.gatewayIpAddress = gatewayIpAddress;
     }
 
+    /**
+     * @return true if the agent can read and write binary request content.
+     */
+    public boolean isBinaryContentSupported() {
+        return binaryContentSupported;
+    }
+
+    public void setBinaryContentSupported(boolean binaryContentSupported) {
+        this.binaryContentSupported = binaryContentSupported;
+    }
+
     @Override
     public boolean executeInSequence() {
         return false;
@@ -0,0 +1,234 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent.transport;
+
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonPrimitive;
+
+import com.cloud.agent.transport.Request.ContentOutputStream;
+
+/**
+ * BinaryContentCodec is the compact alternative to json text for the content
+ * of a Request.  It encodes the same element tree Gson builds for the commands,
+ * so every type adaptor registered in GsonHelper keeps working, but it skips
+ * the text formatting and parsing.  Each string is sent once per request and
+ * referred to by index afterwards, which removes the field names repeated by
+ * every element of an array.  Whole numbers are sent as zigzag varints.
+ *
+ * An element is a tag byte followed by:
+ *   NULL, TRUE, FALSE - nothing;
+ *   LONG - zigzag varint;
+ *   DOUBLE - 8 bytes;
+ *   DECIMAL - string of the number;
+ *   STRING - string;
+ *   ARRAY - varint count followed by the elements;
+ *   OBJECT - varint count followed by string name and element pairs.
+ * A string is a varint; 0 is followed by a varint length and the UTF-8 bytes
+ * of a new string, n refers to the (n - 1)th new string of the content.
+ */
+public class BinaryContentCodec {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final byte TAG_NULL = 0;
+    private static final byte TAG_TRUE = 1;
+    private static final byte TAG_FALSE = 2;
+    private static final byte TAG_LONG = 3;
+    private static final byte TAG_DOUBLE = 4;
+    private static final byte TAG_DECIMAL = 5;
+    private static final byte TAG_STRING = 6;
+    private static final byte TAG_ARRAY = 7;
+    private static final byte TAG_OBJECT = 8;
+
+    public static ByteBuffer encode(JsonElement element) {
+        Encoder encoder = new Encoder();
+        encoder.write(element);
+        return encoder._out.toByteBuffer();
+    }
+
+    public static JsonElement decode(ByteBuffer buffer) {
+        try {
+            return new Decoder(buffer).read();
+        } catch (RuntimeException e) {
+            throw new JsonParseException("Unable to decode binary content", e);
+        }
+    }
+
+    protected static class Encoder {
+        final ContentOutputStream _out = new ContentOutputStream(4096);
+        final Map<String, Integer> _strings = new HashMap<String, Integer>();
+        final byte[] _scratch = new byte[10];
+
+        void write(JsonElement element) {
+            if (element == null || element.isJsonNull()) {
+                _out.write(TAG_NULL);
+            } else if (element.isJsonPrimitive()) {
+                writePrimitive(element.getAsJsonPrimitive());
+            } else if (element.isJsonArray()) {
+                JsonArray array = element.getAsJsonArray();
+                _out.write(TAG_ARRAY);
+                writeVarLong(array.size());
+                for (JsonElement item : array) {
+                    write(item);
+                }
+            } else {
+                JsonObject object = element.getAsJsonObject();
+                _out.write(TAG_OBJECT);
+                writeVarLong(object.entrySet().size());
+                for (Map.Entry<String, JsonElement> entry : object.entrySet()) {
+                    writeString(entry.getKey());
+                    write(entry.getValue());
+                }
+            }
+        }
+
+        void writePrimitive(JsonPrimitive primitive) {
+            if (primitive.isBoolean()) {
+                _out.write(primitive.getAsBoolean() ? TAG_TRUE : TAG_FALSE);
+            } else if (primitive.isNumber()) {
+                Number number = primitive.getAsNumber();
+                if (number instanceof Long || number instanceof Integer || number instanceof Short || number instanceof Byte) {
+                    long value = number.longValue();
+                    _out.write(TAG_LONG);
+                    writeVarLong((value << 1) ^ (value >> 63));
+                } else if (number instanceof Double || number instanceof Float) {
+                    long bits = Double.doubleToRawLongBits(number.doubleValue());
+                    _out.write(TAG_DOUBLE);
+                    for (int i = 7; i >= 0; i--) {
+                        _out.write((int)(bits >>> (i * 8)));
+                    }
+                } else {
+                    _out.write(TAG_DECIMAL);
+                    writeString(number.toString());
+                }
+            } else {
+                _out.write(TAG_STRING);
+                writeString(primitive.getAsString());
+            }
+        }
+
+        void writeString(String value) {
+            Integer index = _strings.get(value);
+            if (index != null) {
+                writeVarLong(index);
+                return;
+            }
+            _strings.put(value, _strings.size() + 1);
+            byte[] bytes = value.getBytes(UTF8);
+            writeVarLong(0);
+            writeVarLong(bytes.length);
+            _out.write(bytes, 0, bytes.length);
+        }
+
+        void writeVarLong(long value) {
+            int length = 0;
+            while ((value & ~0x7FL) != 0) {
+                _scratch[length++] = (byte)((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            _scratch[length++] = (byte)value;
+            _out.write(_scratch, 0, length);
+        }
+    }
+
+    protected static class Decoder {
+        final ByteBuffer _in;
+        final List<String> _strings = new ArrayList<String>();
+
+        Decoder(ByteBuffer in) {
+            _in = in;
+        }
+
+        JsonElement read() {
+            byte tag = _in.get();
+            switch (tag) {
+                case TAG_NULL:
+                    return new JsonNull();
+                case TAG_TRUE:
+                    return new JsonPrimitive(Boolean.TRUE);
+                case TAG_FALSE:
+                    return new JsonPrimitive(Boolean.FALSE);
+                case TAG_LONG:
+                    long value = readVarLong();
+                    return new JsonPrimitive((value >>> 1) ^ -(value & 1));
+                case TAG_DOUBLE:
+                    return new JsonPrimitive(Double.longBitsToDouble(_in.getLong()));
+                case TAG_DECIMAL:
+                    return new JsonPrimitive(new BigDecimal(readString()));
+                case TAG_STRING:
+                    return new JsonPrimitive(readString());
+                case TAG_ARRAY:
+                    JsonArray array = new JsonArray();
+                    for (long i = readVarLong(); i > 0; i--) {
+                        array.add(read());
+                    }
+                    return array;
+                case TAG_OBJECT:
+                    JsonObject object = new JsonObject();
+                    for (long i = readVarLong(); i > 0; i--) {
+                        String name = readString();
+                        object.add(name, read());
+                    }
+                    return object;
+                default:
+                    throw new JsonParseException("Unknown tag " + tag + " at " + (_in.position() - 1));
+            }
+        }
+
+        String readString() {
+            int index = (int)readVarLong();
+            if (index > 0) {
+                return _strings.get(index - 1);
+            }
+            int length = (int)readVarLong();
+            String value;
+            if (_in.hasArray()) {
+                value = new String(_in.array(), _in.arrayOffset() + _in.position(), length, UTF8);
+                _in.position(_in.position() + length);
+            } else {
+                byte[] bytes = new byte[length];
+                _in.get(bytes);
+                value = new String(bytes, UTF8);
+            }
+            _strings.add(value);
+            return value;
+        }
+
+        long readVarLong() {
+            long value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = _in.get();
+                value |= (long)(b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return value;
+        }
+    }
+}
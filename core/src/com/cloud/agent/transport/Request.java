@@ -19,9 +19,12 @@ package com.cloud.agent.transport;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.StringReader;
+import java.io.Writer;
 import java.lang.reflect.Type;
 import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
@@ -43,7 +46,6 @@ import com.google.gson.JsonSerializationContext;
 import com.google.gson.JsonSerializer;
 import com.google.gson.stream.JsonReader;
 
-import com.cloud.agent.api.Answer;
 import com.cloud.agent.api.Command;
 import com.cloud.agent.api.SecStorageFirewallCfgCommand.PortConfig;
 import com.cloud.exception.UnsupportedVersionException;
@@ -69,6 +71,11 @@ import com.cloud.utils.exception.CloudRuntimeException;
  * 6. AgentId - 8 bytes;
  * 7. Data Package.
  *
+ * The data package is json text unless FLAG_BINARY is set, in which case it
+ * is encoded by BinaryContentCodec.  A management server only sends binary
+ * content to agents that announced support for it in their StartupCommand
+ * and an agent answers in the encoding of the request it answers.
+ *
  */
 public class Request {
     private static final Logger s_logger = Logger.getLogger(Request.class);
@@ -99,6 +106,7 @@ public class Request {
     protected static final short FLAG_FROM_SERVER = 0x20;
     protected static final short FLAG_CONTROL = 0x40;
     protected static final short FLAG_COMPRESSED = 0x80;
+    protected static final short FLAG_BINARY = 0x100;
 
     protected Version _ver;
     protected long _session;
@@ -109,6 +117,7 @@ public class Request {
     protected long _agentId;
     protected Command[] _cmds;
     protected String _content;
+    protected ByteBuffer _binaryContent;
     protected String _agentName;
 
     protected Request() {
@@ -134,6 +143,11 @@ public class Request {
         _content = content;
     }
 
+    protected Request(Version ver, long seq, long agentId, long mgmtId, long via, short flags, final ByteBuffer binaryContent) {
+        this(ver, seq, agentId, mgmtId, via, flags, (Command[])null);
+        _binaryContent = binaryContent;
+    }
+
     public Request(long agentId, long mgmtId, Command command, boolean fromServer) {
         this(agentId, mgmtId, new Command[] {command}, true, fromServer);
     }
@@ -175,6 +189,7 @@ public class Request {
         _via = that._via;
         _agentId = that._agentId;
         setFromServer(!that.isFromServer());
+        setBinary(that.isBinary());
     }
 
     private final void setStopOnError(boolean stopOnError) {
@@ -189,6 +204,21 @@ public class Request {
         _flags |= (inSequence ? FLAG_IN_SEQUENCE : 0);
     }
 
+    /**
+     * Only set this when the other end is known to understand binary content.
+     */
+    public void setBinary(boolean binary) {
+        if (binary) {
+            _flags |= FLAG_BINARY;
+        } else {
+            _flags &= ~FLAG_BINARY;
+        }
+    }
+
+    public boolean isBinary() {
+        return (_flags & FLAG_BINARY) > 0;
+    }
+
     public boolean isControl() {
         return (_flags & FLAG_CONTROL) > 0;
     }
@@ -241,10 +271,7 @@ public class Request {
     public Command[] getCommands() {
         if (_cmds == null) {
             try {
-                StringReader reader = new StringReader(_content);
-                JsonReader jsonReader = new JsonReader(reader);
-                jsonReader.setLenient(true);
-                _cmds = s_gson.fromJson(jsonReader, (Type)Command[].class);
+                _cmds = deserializeContent(Command[].class);
             } catch (RuntimeException e) {
                 s_logger.error("Caught problem with " + _content, e);
                 throw e;
@@ -253,6 +280,23 @@ public class Request {
         return _cmds;
     }
 
+    /**
+     * @return type the content is serialized as, answers for a response.
+     */
+    protected Class<? extends Command[]> getContentType() {
+        return Command[].class;
+    }
+
+    protected Command[] deserializeContent(Class<? extends Command[]> type) {
+        if (_binaryContent != null) {
+            return s_gson.fromJson(BinaryContentCodec.decode(_binaryContent.duplicate()), type);
+        }
+        StringReader reader = new StringReader(_content);
+        JsonReader jsonReader = new JsonReader(reader);
+        jsonReader.setLenient(true);
+        return s_gson.fromJson(jsonReader, (Type)type);
+    }
+
     protected String getType() {
         return "Cmd ";
     }
@@ -299,34 +343,36 @@ public class Request {
     }
 
     public static ByteBuffer doCompress(ByteBuffer buffer, int length) {
-        ByteArrayOutputStream byteOut = new ByteArrayOutputStream(length);
-        byte[] array;
-        if (buffer.hasArray()) {
-            array = buffer.array();
-        } else {
-            array = new byte[buffer.capacity()];
-            buffer.get(array);
-        }
+        ContentOutputStream byteOut = new ContentOutputStream(length);
         try {
             GZIPOutputStream out = new GZIPOutputStream(byteOut, length);
-            out.write(array);
+            if (buffer.hasArray()) {
+                out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            } else {
+                byte[] array = new byte[buffer.remaining()];
+                buffer.get(array);
+                out.write(array);
+            }
             out.finish();
             out.close();
         } catch (IOException e) {
             s_logger.error("Fail to compress the request!", e);
         }
-        return ByteBuffer.wrap(byteOut.toByteArray());
+        return byteOut.toByteBuffer();
     }
 
     public ByteBuffer[] toBytes() {
         final ByteBuffer[] buffers = new ByteBuffer[2];
         ByteBuffer tmp;
 
-        if (_content == null) {
-            _content = s_gson.toJson(_cmds, _cmds.getClass());
+        if (isBinary()) {
+            tmp = _binaryContent != null ? _binaryContent.duplicate() : BinaryContentCodec.encode(s_gson.toJsonTree(getCommands(), getContentType()));
+        } else if (_content != null) {
+            tmp = ByteBuffer.wrap(_content.getBytes());
+        } else {
+            tmp = serializeContent();
         }
-        tmp = ByteBuffer.wrap(_content.getBytes());
-        int capacity = tmp.capacity();
+        int capacity = tmp.remaining();
         /* Check if we need to compress the data */
         if (capacity >= 8192) {
             tmp = doCompress(tmp, capacity);
@@ -338,6 +384,35 @@ public class Request {
         return buffers;
     }
 
+    /**
+     * Writes the commands as json straight into a byte buffer instead of
+     * building a String first and encoding it again.
+     */
+    protected ByteBuffer serializeContent() {
+        ContentOutputStream byteOut = new ContentOutputStream(4096);
+        try {
+            Writer writer = new OutputStreamWriter(byteOut, Charset.defaultCharset());
+            s_gson.toJson(getCommands(), getContentType(), writer);
+            writer.flush();
+        } catch (IOException e) {
+            throw new CloudRuntimeException("Unable to serialize " + getType() + _seq, e);
+        }
+        return byteOut.toByteBuffer();
+    }
+
+    /**
+     * Hands out its internal array without copying it.
+     */
+    protected static class ContentOutputStream extends ByteArrayOutputStream {
+        public ContentOutputStream(int size) {
+            super(size);
+        }
+
+        public ByteBuffer toByteBuffer() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+
     public byte[] getBytes() {
         final ByteBuffer[] buffers = toBytes();
         final int len1 = buffers[0].remaining();
@@ -393,7 +468,7 @@ public class Request {
         if (logContent) {
             if (_cmds == null) {
                 try {
-                    _cmds = s_gson.fromJson(_content, this instanceof Response ? Answer[].class : Command[].class);
+                    _cmds = deserializeContent(getContentType());
                 } catch (RuntimeException e) {
                     s_logger.error("Unable to convert to json: " + _content);
                     throw e;
@@ -415,7 +490,7 @@ public class Request {
             }
         } else {
             if (_cmds == null) {
-                _cmds = s_gson.fromJson(_content, this instanceof Response ? Answer[].class : Command[].class);
+                _cmds = deserializeContent(getContentType());
             }
             content.append("{ ");
             for (Command cmd : _cmds) {
@@ -506,6 +581,15 @@ public class Request {
             buff = doDecompress(buff, size);
         }
 
+        if ((flags & FLAG_BINARY) != 0) {
+            final ByteBuffer content = buff.slice();
+            if (isRequest) {
+                return new Request(version, seq, agentId, mgmtId, via, flags, content);
+            } else {
+                return new Response(version, seq, agentId, mgmtId, via, flags, content);
+            }
+        }
+
         byte[] command = null;
         int offset = 0;
         if (buff.hasArray()) {
@@ -16,7 +16,10 @@
 // under the License.
 package com.cloud.agent.transport;
 
+import java.nio.ByteBuffer;
+
 import com.cloud.agent.api.Answer;
+import com.cloud.agent.api.Command;
 import com.cloud.exception.UnsupportedVersionException;
 
 /**
@@ -48,6 +51,10 @@ public class Response extends Request {
         super(ver, seq, agentId, mgmtId, via, flags, ans);
     }
 
+    protected Response(Version ver, long seq, long agentId, long mgmtId, long via, short flags, ByteBuffer ans) {
+        super(ver, seq, agentId, mgmtId, via, flags, ans);
+    }
+
     public Answer getAnswer() {
         Answer[] answers = getAnswers();
         return answers[0];
@@ -55,11 +62,21 @@ public class Response extends Request {
 
     public Answer[] getAnswers() {
         if (_cmds == null) {
-            _cmds = s_gson.fromJson(_content, Answer[].class);
+            _cmds = deserializeContent(Answer[].class);
         }
         return (Answer[])_cmds;
     }
 
+    @Override
+    public Command[] getCommands() {
+        return getAnswers();
+    }
+
+    @Override
+    protected Class<? extends Command[]> getContentType() {
+        return Answer[].class;
+    }
+
     @Override
     protected String getType() {
         return "Ans: ";
@@ -0,0 +1,108 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.storage.template;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * DownloadThrottle shares a budget of connections and of bandwidth among all
+ * the downloads of a secondary storage vm.  Every download runs on its own
+ * connection; the extra connections a download opens to fetch ranges in
+ * parallel come out of the connection budget.  Bytes read by any download
+ * are paced to the bandwidth budget.
+ */
+public class DownloadThrottle {
+    private final int _connectionsPerDownload;
+    private final int _maxConnections;
+    private final Semaphore _connections;
+    private final long _bytesPerSecond;
+    private long _nextFree;
+
+    private final AtomicLong _throttledNanos = new AtomicLong();
+
+    /**
+     * @param connectionsPerDownload extra connections a download may open.
+     * @param maxConnections extra connections all downloads may open together.
+     * @param bytesPerSecond bandwidth of all downloads together, 0 for no limit.
+     */
+    public DownloadThrottle(int connectionsPerDownload, int maxConnections, long bytesPerSecond) {
+        _connectionsPerDownload = Math.max(connectionsPerDownload, 0);
+        _maxConnections = Math.max(maxConnections, 0);
+        _connections = new Semaphore(_maxConnections);
+        _bytesPerSecond = Math.max(bytesPerSecond, 0);
+    }
+
+    public int getConnectionsPerDownload() {
+        return _connectionsPerDownload;
+    }
+
+    /**
+     * @return number of extra connections granted to a download, at most
+     *         wanted; each has to be given back with releaseConnection().
+     */
+    public int acquireConnections(int wanted) {
+        int granted = 0;
+        while (granted < Math.min(wanted, _connectionsPerDownload) && _connections.tryAcquire()) {
+            granted++;
+        }
+        return granted;
+    }
+
+    public void releaseConnection() {
+        _connections.release();
+    }
+
+    public int getConnectionsInUse() {
+        return _maxConnections - _connections.availablePermits();
+    }
+
+    /**
+     * Waits until the bytes just read fit in the bandwidth budget.
+     */
+    public void throttle(int bytes) throws InterruptedException {
+        if (_bytesPerSecond == 0 || bytes <= 0) {
+            return;
+        }
+        long cost = TimeUnit.SECONDS.toNanos(bytes) / _bytesPerSecond;
+        long now = System.nanoTime();
+        long wait;
+        synchronized (this) {
+            if (_nextFree - now < 0) {
+                _nextFree = now;
+            }
+            wait = _nextFree - now;
+            _nextFree += cost;
+        }
+        if (wait > 0) {
+            _throttledNanos.addAndGet(wait);
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+
+    public long getBytesPerSecond() {
+        return _bytesPerSecond;
+    }
+
+    /**
+     * @return milliseconds downloads spent waiting for bandwidth.
+     */
+    public long getThrottledTime() {
+        return TimeUnit.NANOSECONDS.toMillis(_throttledNanos.get());
+    }
+}
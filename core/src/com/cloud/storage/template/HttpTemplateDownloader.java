@@ -21,7 +21,10 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
+import java.math.BigInteger;
 import java.net.URISyntaxException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Date;
 
 import org.apache.commons.httpclient.ChunkedInputStream;
@@ -55,6 +58,11 @@ import com.cloud.utils.UriUtils;
 public class HttpTemplateDownloader extends ManagedContextRunnable implements TemplateDownloader {
     public static final Logger s_logger = Logger.getLogger(HttpTemplateDownloader.class.getName());
     private static final MultiThreadedHttpConnectionManager s_httpClientManager = new MultiThreadedHttpConnectionManager();
+    static {
+        // ranges of a template are fetched over several connections to the same host
+        s_httpClientManager.getParams().setDefaultMaxConnectionsPerHost(64);
+        s_httpClientManager.getParams().setMaxTotalConnections(256);
+    }
 
     private static final int CHUNK_SIZE = 1024 * 1024; //1M
     private String downloadUrl;
@@ -75,6 +83,10 @@ public class HttpTemplateDownloader extends ManagedContextRunnable implements Te
     private long maxTemplateSizeInBytes;
     private ResourceType resourceType = ResourceType.TEMPLATE;
     private final HttpMethodRetryHandler myretryhandler;
+    private DownloadThrottle throttle;
+    private MessageDigest digest;
+    private String checksum;
+    private volatile SegmentedHttpDownload segmentedDownload;
 
     public HttpTemplateDownloader(StorageLayer storageLayer, String downloadUrl, String toDir, DownloadCompleteCallback callback, long maxTemplateSizeInBytes,
             String user, String password, Proxy proxy, ResourceType resourceType) {
@@ -171,6 +183,9 @@ public class HttpTemplateDownloader extends ManagedContextRunnable implements Te
                 localFileSize = file.length();
                 s_logger.info("Resuming download to file (current size)=" + localFileSize);
             }
+            checksum = null;
+            // a resumed download leaves the checksum to be computed off the file afterwards
+            digest = localFileSize == 0 ? createDigest() : null;
 
             Date start = new Date();
 
@@ -228,45 +243,86 @@ public class HttpTemplateDownloader extends ManagedContextRunnable implements Te
                 remoteSize = maxTemplateSizeInBytes;
             }
 
-            InputStream in = !chunked ? new BufferedInputStream(request.getResponseBodyAsStream()) : new ChunkedInputStream(request.getResponseBodyAsStream());
-
             RandomAccessFile out = new RandomAccessFile(file, "rwd");
             out.seek(localFileSize);
 
             s_logger.info("Starting download from " + getDownloadUrl() + " to " + toFile + " remoteSize=" + remoteSize + " , max size=" + maxTemplateSizeInBytes);
 
-            byte[] block = new byte[CHUNK_SIZE];
-            long offset = 0;
-            boolean done = false;
             status = TemplateDownloader.Status.IN_PROGRESS;
-            while (!done && status != Status.ABORTED && offset <= remoteSize) {
-                if ((bytes = in.read(block, 0, CHUNK_SIZE)) > -1) {
-                    out.write(block, 0, bytes);
-                    offset += bytes;
-                    out.seek(offset);
-                    totalBytes += bytes;
-                } else {
-                    done = true;
+            int fetchers = 0;
+            if (!chunked && localFileSize == 0 && throttle != null &&
+                SegmentedHttpDownload.isSupported(request, remoteSize2, SegmentedHttpDownload.RANGE_SIZE)) {
+                fetchers = throttle.acquireConnections(throttle.getConnectionsPerDownload());
+            }
+
+            if (fetchers > 0) {
+                s_logger.info("Downloading " + getDownloadUrl() + " in ranges over " + fetchers + " more connections");
+                segmentedDownload = new SegmentedHttpDownload(client, downloadUrl, remoteSize2, SegmentedHttpDownload.RANGE_SIZE, digest, throttle);
+                try {
+                    segmentedDownload.download(request, out, fetchers, new SegmentedHttpDownload.Progress() {
+                        @Override
+                        public void written(long bytes) {
+                            totalBytes += bytes;
+                        }
+
+                        @Override
+                        public void restarted() {
+                            totalBytes = 0;
+                        }
+                    });
+                } finally {
+                    segmentedDownload = null;
+                    out.close();
                 }
+            } else {
+                InputStream in = !chunked ? new BufferedInputStream(request.getResponseBodyAsStream()) : new ChunkedInputStream(request.getResponseBodyAsStream());
+
+                byte[] block = new byte[CHUNK_SIZE];
+                long offset = 0;
+                boolean done = false;
+                while (!done && status != Status.ABORTED && offset <= remoteSize) {
+                    if ((bytes = in.read(block, 0, CHUNK_SIZE)) > -1) {
+                        if (throttle != null) {
+                            throttle.throttle(bytes);
+                        }
+                        out.write(block, 0, bytes);
+                        if (digest != null) {
+                            digest.update(block, 0, bytes);
+                        }
+                        offset += bytes;
+                        out.seek(offset);
+                        totalBytes += bytes;
+                    } else {
+                        done = true;
+                    }
+                }
+                in.close();
+                out.close();
             }
             Date finish = new Date();
             String downloaded = "(incomplete download)";
             if (totalBytes >= remoteSize) {
                 status = TemplateDownloader.Status.DOWNLOAD_FINISHED;
                 downloaded = "(download complete remote=" + remoteSize + "bytes)";
+                if (digest != null) {
+                    checksum = String.format("%032x", new BigInteger(1, digest.digest()));
+                }
             }
             errorString = "Downloaded " + totalBytes + " bytes " + downloaded;
             downloadTime += finish.getTime() - start.getTime();
-            in.close();
-            out.close();
 
             return totalBytes;
         } catch (HttpException hte) {
             status = TemplateDownloader.Status.UNRECOVERABLE_ERROR;
             errorString = hte.getMessage();
         } catch (IOException ioe) {
-            status = TemplateDownloader.Status.UNRECOVERABLE_ERROR; //probably a file write error?
+            if (status != Status.ABORTED) {
+                status = TemplateDownloader.Status.UNRECOVERABLE_ERROR; //probably a file write error?
+            }
             errorString = ioe.getMessage();
+        } catch (InterruptedException ie) {
+            status = TemplateDownloader.Status.UNRECOVERABLE_ERROR;
+            errorString = "Interrupted while downloading";
         } finally {
             if (status == Status.UNRECOVERABLE_ERROR && file.exists() && !file.isDirectory()) {
                 file.delete();
@@ -279,6 +335,26 @@ public class HttpTemplateDownloader extends ManagedContextRunnable implements Te
         return 0;
     }
 
+    private static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return md5 of the downloaded file, computed while it was written; null
+     *         if the download is not finished or the checksum is not known.
+     */
+    public String getChecksum() {
+        return checksum;
+    }
+
+    public void setDownloadThrottle(DownloadThrottle throttle) {
+        this.throttle = throttle;
+    }
+
     public String getDownloadUrl() {
         return downloadUrl;
     }
@@ -312,6 +388,10 @@ public class HttpTemplateDownloader extends ManagedContextRunnable implements Te
                 if (request != null) {
                     request.abort();
                 }
+                SegmentedHttpDownload segmented = segmentedDownload;
+                if (segmented != null) {
+                    segmented.abort();
+                }
                 status = TemplateDownloader.Status.ABORTED;
                 return true;
             case UNKNOWN:
@@ -0,0 +1,402 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.storage.template;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.log4j.Logger;
+
+import org.apache.cloudstack.managed.context.ManagedContextRunnable;
+
+import com.cloud.utils.concurrency.NamedThreadFactory;
+
+/**
+ * SegmentedHttpDownload fetches a file in ranges over several connections.
+ * The first range is read off the response that is already open, the
+ * others are fetched with range requests.  Ranges are written to the file
+ * and added to the checksum in order, so the file never has to be read
+ * back, and only a window of ranges ahead of the one being written is held
+ * in memory.  A server that advertises ranges but does not honour them
+ * has the file fetched again with a plain GET over one connection.
+ */
+public class SegmentedHttpDownload {
+    private static final Logger s_logger = Logger.getLogger(SegmentedHttpDownload.class);
+    private static final ExecutorService s_fetchers = Executors.newCachedThreadPool(new NamedThreadFactory("HttpRangeFetcher"));
+
+    public static final int RANGE_SIZE = 4 * 1024 * 1024;
+    private static final int READ_SIZE = 64 * 1024;
+    private static final int RANGE_RETRIES = 2;
+
+    private final HttpClient _client;
+    private final String _url;
+    private final long _size;
+    private final int _rangeSize;
+    private final MessageDigest _digest;
+    private final DownloadThrottle _throttle;
+    private RangeWindow _window;
+    private volatile boolean _aborted = false;
+
+    /**
+     * @param digest receives the content of the file in order, may be null.
+     * @param throttle paces the download, may be null.
+     */
+    public SegmentedHttpDownload(HttpClient client, String url, long size, int rangeSize, MessageDigest digest, DownloadThrottle throttle) {
+        _client = client;
+        _url = url;
+        _size = size;
+        _rangeSize = rangeSize;
+        _digest = digest;
+        _throttle = throttle;
+    }
+
+    /**
+     * @return whether the response advertises range support and is large
+     *         enough to be worth splitting.
+     */
+    public static boolean isSupported(HttpMethod response, long size, int rangeSize) {
+        Header acceptRanges = response.getResponseHeader("Accept-Ranges");
+        return acceptRanges != null && acceptRanges.getValue().toLowerCase().contains("bytes") && size > 2L * rangeSize;
+    }
+
+    /**
+     * Downloads the file on the calling thread and the given number of
+     * fetchers.
+     *
+     * @param first response to the request for the whole file, nothing of
+     *        it read yet; it is aborted once the first range is read.
+     * @param out file to write to, positioned at the start.
+     * @param progress told about the bytes written, may be null.
+     * @return number of bytes written.
+     */
+    public long download(HttpMethod first, RandomAccessFile out, int fetchers, Progress progress) throws IOException {
+        try {
+            return downloadRanges(first, out, fetchers, progress);
+        } catch (RangesIgnoredException e) {
+            s_logger.info("Downloading " + _url + " over one connection, " + e.getMessage());
+            return downloadWhole(out, progress);
+        }
+    }
+
+    private long downloadRanges(HttpMethod first, RandomAccessFile out, int fetchers, Progress progress) throws IOException {
+        int rangeCount = (int)((_size + _rangeSize - 1) / _rangeSize);
+        _window = new RangeWindow(rangeCount, Math.max(2 * fetchers, 2));
+        for (int i = 0; i < fetchers; i++) {
+            s_fetchers.execute(new RangeFetcher(_window));
+        }
+
+        long written = 0;
+        try {
+            byte[] block = new byte[READ_SIZE];
+            long length = getLength(0);
+            try {
+                InputStream in = first.getResponseBodyAsStream();
+                while (written < length) {
+                    checkAborted();
+                    int bytes = in.read(block, 0, (int)Math.min(block.length, length - written));
+                    if (bytes < 0) {
+                        throw new IOException("Connection closed after " + written + " of " + length + " bytes of the first range");
+                    }
+                    throttle(bytes);
+                    write(out, block, 0, bytes);
+                    written += bytes;
+                    if (progress != null) {
+                        progress.written(bytes);
+                    }
+                }
+            } finally {
+                // releasing the connection would read the rest of the file off it
+                first.abort();
+            }
+            _window.written(0);
+
+            for (int index = 1; index < rangeCount; index++) {
+                checkAborted();
+                byte[] range = _window.take(index);
+                write(out, range, 0, range.length);
+                written += range.length;
+                _window.written(index);
+                if (progress != null) {
+                    progress.written(range.length);
+                }
+            }
+        } catch (IOException e) {
+            _window.fail(e);
+            throw e;
+        } catch (InterruptedException e) {
+            IOException ioe = new IOException("Interrupted while downloading " + _url);
+            _window.fail(ioe);
+            throw ioe;
+        }
+        return written;
+    }
+
+    private long downloadWhole(RandomAccessFile out, Progress progress) throws IOException {
+        out.setLength(0);
+        out.seek(0);
+        if (_digest != null) {
+            _digest.reset();
+        }
+        if (progress != null) {
+            progress.restarted();
+        }
+
+        GetMethod request = new GetMethod(_url);
+        try {
+            int responseCode = _client.executeMethod(request);
+            if (responseCode != HttpStatus.SC_OK) {
+                throw new IOException("HTTP Server returned " + responseCode + " (expected 200 OK)");
+            }
+            long written = 0;
+            byte[] block = new byte[READ_SIZE];
+            InputStream in = request.getResponseBodyAsStream();
+            int bytes;
+            while (written < _size && (bytes = in.read(block, 0, (int)Math.min(block.length, _size - written))) >= 0) {
+                checkAborted();
+                throttle(bytes);
+                write(out, block, 0, bytes);
+                written += bytes;
+                if (progress != null) {
+                    progress.written(bytes);
+                }
+            }
+            if (written < _size) {
+                throw new IOException("Connection closed after " + written + " of " + _size + " bytes");
+            }
+            return written;
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while downloading " + _url);
+        } finally {
+            request.releaseConnection();
+        }
+    }
+
+    public void abort() {
+        _aborted = true;
+        RangeWindow window = _window;
+        if (window != null) {
+            window.fail(new IOException("Download of " + _url + " was aborted"));
+        }
+    }
+
+    private void checkAborted() throws IOException {
+        if (_aborted) {
+            throw new IOException("Download of " + _url + " was aborted");
+        }
+    }
+
+    private void write(RandomAccessFile out, byte[] data, int offset, int length) throws IOException {
+        out.write(data, offset, length);
+        if (_digest != null) {
+            _digest.update(data, offset, length);
+        }
+    }
+
+    private void throttle(int bytes) throws InterruptedException {
+        if (_throttle != null) {
+            _throttle.throttle(bytes);
+        }
+    }
+
+    private long getOffset(int index) {
+        return (long)index * _rangeSize;
+    }
+
+    private int getLength(int index) {
+        return (int)Math.min(_rangeSize, _size - getOffset(index));
+    }
+
+    protected byte[] fetchRange(int index) throws IOException, InterruptedException {
+        long offset = getOffset(index);
+        int length = getLength(index);
+        IOException failure = null;
+        for (int attempt = 0; attempt <= RANGE_RETRIES; attempt++) {
+            if (_aborted) {
+                break;
+            }
+            GetMethod request = new GetMethod(_url);
+            request.addRequestHeader("Range", "bytes=" + offset + "-" + (offset + length - 1));
+            try {
+                int responseCode = _client.executeMethod(request);
+                if (responseCode == HttpStatus.SC_OK) {
+                    // the server ignored the range, trying again will not help
+                    throw new RangesIgnoredException("server returned 200 OK for the range at " + offset);
+                }
+                if (responseCode != HttpStatus.SC_PARTIAL_CONTENT) {
+                    throw new IOException("HTTP Server returned " + responseCode + " (expected 206 Partial Content) for range at " + offset);
+                }
+                checkContentRange(request, offset, length);
+                byte[] range = new byte[length];
+                InputStream in = request.getResponseBodyAsStream();
+                int read = 0;
+                while (read < length) {
+                    int bytes = in.read(range, read, Math.min(READ_SIZE, length - read));
+                    if (bytes < 0) {
+                        break;
+                    }
+                    throttle(bytes);
+                    read += bytes;
+                }
+                if (read == length) {
+                    return range;
+                }
+                failure = new IOException("Connection closed after " + read + " of " + length + " bytes of the range at " + offset);
+            } catch (RangesIgnoredException e) {
+                // releasing the connection would read the rest of the file off it
+                request.abort();
+                throw e;
+            } catch (IOException e) {
+                failure = e;
+            } finally {
+                request.releaseConnection();
+            }
+            s_logger.debug("Retrying range at " + offset + " of " + _url + ": " + failure.getMessage());
+        }
+        throw failure != null ? failure : new IOException("Download of " + _url + " was aborted");
+    }
+
+    private void checkContentRange(HttpMethod response, long offset, int length) throws RangesIgnoredException {
+        Header contentRange = response.getResponseHeader("Content-Range");
+        String expected = "bytes " + offset + "-" + (offset + length - 1) + "/";
+        if (contentRange == null || !contentRange.getValue().startsWith(expected)) {
+            throw new RangesIgnoredException("server returned " + (contentRange == null ? "no Content-Range" : contentRange.getValue()) +
+                " for the range at " + offset);
+        }
+        String total = contentRange.getValue().substring(expected.length());
+        if (!"*".equals(total) && !total.equals(String.valueOf(_size))) {
+            throw new RangesIgnoredException("server returned " + contentRange.getValue() + " for a file of " + _size + " bytes");
+        }
+    }
+
+    /**
+     * The server answered a range request with something other than the
+     * range asked for, the file has to be fetched over one connection.
+     */
+    protected static class RangesIgnoredException extends IOException {
+        private static final long serialVersionUID = 6393425417960284236L;
+
+        RangesIgnoredException(String message) {
+            super(message);
+        }
+    }
+
+    public interface Progress {
+        void written(long bytes);
+
+        /**
+         * The bytes written so far are dropped, the download starts over.
+         */
+        void restarted();
+    }
+
+    protected class RangeFetcher extends ManagedContextRunnable {
+        private final RangeWindow _ranges;
+
+        RangeFetcher(RangeWindow ranges) {
+            _ranges = ranges;
+        }
+
+        @Override
+        protected void runInContext() {
+            try {
+                int index;
+                while ((index = _ranges.claim()) >= 0) {
+                    _ranges.complete(index, fetchRange(index));
+                }
+            } catch (IOException e) {
+                _ranges.fail(e);
+            } catch (InterruptedException e) {
+                _ranges.fail(new IOException("Interrupted while fetching a range of " + _url));
+            } finally {
+                if (_throttle != null) {
+                    _throttle.releaseConnection();
+                }
+            }
+        }
+    }
+
+    /**
+     * Hands out the ranges to the fetchers, never more than the window ahead
+     * of the range being written, and hands the fetched ranges to the writer
+     * in order.
+     */
+    protected static class RangeWindow {
+        private final int _rangeCount;
+        private final int _size;
+        private final Map<Integer, byte[]> _fetched = new HashMap<Integer, byte[]>();
+        private int _nextToFetch = 1;
+        private int _nextToWrite = 0;
+        private IOException _failure;
+
+        RangeWindow(int rangeCount, int size) {
+            _rangeCount = rangeCount;
+            _size = size;
+        }
+
+        /**
+         * @return index of the next range to fetch, -1 once there is none.
+         */
+        synchronized int claim() throws InterruptedException {
+            while (_failure == null && _nextToFetch < _rangeCount && _nextToFetch >= _nextToWrite + _size) {
+                wait();
+            }
+            if (_failure != null || _nextToFetch >= _rangeCount) {
+                return -1;
+            }
+            return _nextToFetch++;
+        }
+
+        synchronized void complete(int index, byte[] range) {
+            _fetched.put(index, range);
+            notifyAll();
+        }
+
+        synchronized byte[] take(int index) throws IOException, InterruptedException {
+            while (_failure == null && !_fetched.containsKey(index)) {
+                wait();
+            }
+            if (_failure != null) {
+                throw _failure;
+            }
+            return _fetched.remove(index);
+        }
+
+        synchronized void written(int index) {
+            _nextToWrite = index + 1;
+            notifyAll();
+        }
+
+        synchronized void fail(IOException e) {
+            if (_failure == null) {
+                _failure = e;
+            }
+            _fetched.clear();
+            notifyAll();
+        }
+    }
+}
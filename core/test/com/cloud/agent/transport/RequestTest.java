@@ -162,6 +162,84 @@ public class RequestTest extends TestCase {
         assertEquals("nfs://192.168.56.10/opt/storage/secondary", ((NfsTO)((ListTemplateCommand)creq.getCommand()).getDataStore()).getUrl());
     }
 
+    public void testSerDeserBinary() {
+        s_logger.info("Testing binary content survives serializing and deserializing");
+
+        SecStorageFirewallCfgCommand cmd1 = new SecStorageFirewallCfgCommand();
+        cmd1.addPortConfig("abc", "24", true, "eth0");
+        cmd1.addPortConfig("127.0.0.1", "44", false, "eth1");
+        GetHostStatsCommand cmd2 = new GetHostStatsCommand("hostguid", "hostname", 101);
+        NfsTO nfs = new NfsTO("nfs://192.168.56.10/opt/storage/secondary", DataStoreRole.Image);
+        ListTemplateCommand cmd3 = new ListTemplateCommand(nfs);
+        Request sreq = new Request(2, 3, new Command[] {cmd1, cmd2, cmd3}, true, true);
+        sreq.setSequence(892403719);
+
+        byte[] json = sreq.getBytes();
+        sreq.setBinary(true);
+        byte[] bytes = sreq.getBytes();
+        s_logger.info("json length: " + json.length + ", binary length: " + bytes.length);
+
+        Request creq = null;
+        try {
+            creq = Request.parse(bytes);
+        } catch (ClassNotFoundException e) {
+            s_logger.error("Unable to parse bytes: ", e);
+        } catch (UnsupportedVersionException e) {
+            s_logger.error("Unable to parse bytes: ", e);
+        }
+
+        assertNotNull(creq);
+        assertTrue(creq.isBinary());
+        compareRequest(creq, sreq);
+        assertEquals(101, ((GetHostStatsCommand)creq.getCommands()[1]).getHostId());
+        assertEquals("nfs://192.168.56.10/opt/storage/secondary", ((NfsTO)((ListTemplateCommand)creq.getCommands()[2]).getDataStore()).getUrl());
+        assertEquals(2, ((SecStorageFirewallCfgCommand)creq.getCommands()[0]).getPortConfigs().size());
+
+        Response cresp = new Response(creq, new Answer(cmd1, true, "No Problem"));
+        assertTrue(cresp.isBinary());
+
+        Response sresp = null;
+        try {
+            sresp = Response.parse(cresp.getBytes());
+        } catch (ClassNotFoundException e) {
+            s_logger.error("Unable to parse bytes: ", e);
+        } catch (UnsupportedVersionException e) {
+            s_logger.error("Unable to parse bytes: ", e);
+        }
+
+        assertNotNull(sresp);
+        assertEquals("No Problem", sresp.getAnswer().getDetails());
+        compareRequest(cresp, sresp);
+    }
+
+    public void testResponseBinaryRoundTrip() throws Exception {
+        s_logger.info("Testing a response keeps its answers when re-encoded between json and binary");
+
+        GetHostStatsCommand cmd = new GetHostStatsCommand("hostguid", "hostname", 101);
+        Request req = new Request(2, 3, cmd, true);
+        req.setSequence(892403720);
+        Response resp = new Response(req, new Answer(cmd, false, "Failed"));
+
+        // parsed off the wire, the answers are only held as json text
+        Response json = Response.parse(resp.getBytes());
+        assertFalse(json.isBinary());
+        json.setBinary(true);
+
+        Response binary = Response.parse(json.getBytes());
+        assertTrue(binary.isBinary());
+        assertEquals(Answer.class, binary.getAnswer().getClass());
+        assertFalse(binary.getAnswer().getResult());
+        assertEquals("Failed", binary.getAnswer().getDetails());
+        compareRequest(binary, resp);
+
+        // and back from the binary content
+        binary.setBinary(false);
+        Response back = Response.parse(binary.getBytes());
+        assertFalse(back.isBinary());
+        assertEquals("Failed", back.getAnswer().getDetails());
+        compareRequest(back, resp);
+    }
+
     public void testDownload() {
         s_logger.info("Testing Download answer");
         VirtualMachineTemplate template = Mockito.mock(VirtualMachineTemplate.class);
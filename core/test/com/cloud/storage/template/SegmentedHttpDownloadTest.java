@@ -0,0 +1,184 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.storage.template;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class SegmentedHttpDownloadTest {
+    private static final int SIZE = 100 * 1000 + 123;
+    private static final int RANGE_SIZE = 8 * 1000;
+
+    private final byte[] _content = new byte[SIZE];
+    private final AtomicInteger _rangeRequests = new AtomicInteger();
+    private volatile boolean _honorRanges = true;
+    private volatile boolean _misplaceRanges = false;
+    private HttpServer _server;
+    private String _url;
+    private File _file;
+
+    @Before
+    public void setUp() throws Exception {
+        new Random(42).nextBytes(_content);
+        _server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        _server.createContext("/template.vhd", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                serve(exchange);
+            }
+        });
+        _server.start();
+        _url = "http://127.0.0.1:" + _server.getAddress().getPort() + "/template.vhd";
+        _file = File.createTempFile("segmented", ".vhd");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        _server.stop(0);
+        _file.delete();
+    }
+
+    // a local stand-in for a web server hosting templates
+    private void serve(HttpExchange exchange) throws IOException {
+        int from = 0;
+        int to = SIZE - 1;
+        int code = 200;
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        if (range != null && _honorRanges) {
+            _rangeRequests.incrementAndGet();
+            String[] bounds = range.substring("bytes=".length()).split("-");
+            from = Integer.parseInt(bounds[0]);
+            to = Integer.parseInt(bounds[1]);
+            if (_misplaceRanges) {
+                to -= from;
+                from = 0;
+            }
+            code = 206;
+            exchange.getResponseHeaders().add("Content-Range", "bytes " + from + "-" + to + "/" + SIZE);
+        }
+        exchange.getResponseHeaders().add("Accept-Ranges", "bytes");
+        exchange.sendResponseHeaders(code, to - from + 1);
+        OutputStream out = exchange.getResponseBody();
+        try {
+            out.write(_content, from, to - from + 1);
+        } catch (IOException e) {
+            // the client gave up on the rest of the file
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private long download(int fetchers, MessageDigest digest) throws Exception {
+        HttpClient client = new HttpClient(new MultiThreadedHttpConnectionManager());
+        GetMethod request = new GetMethod(_url);
+        Assert.assertEquals(200, client.executeMethod(request));
+        Assert.assertTrue(SegmentedHttpDownload.isSupported(request, SIZE, RANGE_SIZE));
+
+        RandomAccessFile out = new RandomAccessFile(_file, "rw");
+        try {
+            SegmentedHttpDownload download = new SegmentedHttpDownload(client, _url, SIZE, RANGE_SIZE, digest, null);
+            return download.download(request, out, fetchers, null);
+        } finally {
+            request.releaseConnection();
+            out.close();
+        }
+    }
+
+    private byte[] readFile() throws IOException {
+        byte[] content = new byte[(int)_file.length()];
+        RandomAccessFile in = new RandomAccessFile(_file, "r");
+        try {
+            in.readFully(content);
+        } finally {
+            in.close();
+        }
+        return content;
+    }
+
+    @Test
+    public void testDownloadInRanges() throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("MD5");
+        Assert.assertEquals(SIZE, download(3, digest));
+
+        Assert.assertTrue(Arrays.equals(_content, readFile()));
+        Assert.assertTrue(Arrays.equals(MessageDigest.getInstance("MD5").digest(_content), digest.digest()));
+        // the first range comes off the request for the whole file
+        Assert.assertEquals((SIZE + RANGE_SIZE - 1) / RANGE_SIZE - 1, _rangeRequests.get());
+    }
+
+    @Test
+    public void testServerIgnoringRanges() throws Exception {
+        _honorRanges = false;
+        MessageDigest digest = MessageDigest.getInstance("MD5");
+        Assert.assertEquals(SIZE, download(2, digest));
+
+        // falls back to a plain GET of the whole file
+        Assert.assertTrue(Arrays.equals(_content, readFile()));
+        Assert.assertTrue(Arrays.equals(MessageDigest.getInstance("MD5").digest(_content), digest.digest()));
+    }
+
+    @Test
+    public void testServerReturningOtherRanges() throws Exception {
+        _misplaceRanges = true;
+        MessageDigest digest = MessageDigest.getInstance("MD5");
+        Assert.assertEquals(SIZE, download(2, digest));
+
+        Assert.assertTrue(Arrays.equals(_content, readFile()));
+        Assert.assertTrue(Arrays.equals(MessageDigest.getInstance("MD5").digest(_content), digest.digest()));
+    }
+
+    @Test
+    public void testThrottleConnections() throws Exception {
+        DownloadThrottle throttle = new DownloadThrottle(2, 3, 0);
+        Assert.assertEquals(2, throttle.acquireConnections(5));
+        Assert.assertEquals(1, throttle.acquireConnections(5));
+        Assert.assertEquals(0, throttle.acquireConnections(5));
+        Assert.assertEquals(3, throttle.getConnectionsInUse());
+        throttle.releaseConnection();
+        Assert.assertEquals(1, throttle.acquireConnections(1));
+    }
+
+    @Test
+    public void testThrottleBandwidth() throws Exception {
+        DownloadThrottle throttle = new DownloadThrottle(1, 1, 100 * 1000);
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < 5; i++) {
+            throttle.throttle(10 * 1000);
+        }
+        // the first read goes through, the other four wait 100ms each
+        Assert.assertTrue(System.currentTimeMillis() - start >= 350);
+    }
+}
@@ -16,11 +16,16 @@
 // under the License.
 package com.cloud.capacity;
 
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
 import org.apache.cloudstack.framework.config.ConfigKey;
 import org.apache.cloudstack.storage.datastore.db.StoragePoolVO;
 
 import com.cloud.host.Host;
 import com.cloud.storage.VMTemplateVO;
+import com.cloud.utils.Pair;
 import com.cloud.vm.VirtualMachine;
 
 /**
@@ -53,6 +58,10 @@ public interface CapacityManager {
             "0.85",
             "Percentage (as a value between 0 and 1) of allocated storage utilization above which allocators will disable using the pool for low allocated storage available.",
             true, ConfigKey.Scope.Zone);
+    static final ConfigKey<Integer> CapacityIndexReconcileInterval = new ConfigKey<Integer>(Integer.class, "capacity.index.reconcile.interval", "Advanced", "30",
+        "Interval in seconds at which the in memory index of host cpu and memory capacity is reconciled with the database, 0 disables the index", false);
+    static final ConfigKey<Integer> PlannedCapacityTimeout = new ConfigKey<Integer>(Integer.class, "capacity.planned.timeout", "Advanced", "600",
+        "Time in seconds the capacity of a vm planned by a batch deployment is held on its host if the vm is not started", true);
 
     public boolean releaseVmCapacity(VirtualMachine vm, boolean moveFromReserved, boolean moveToReservered, Long hostId);
 
@@ -92,6 +101,20 @@ public interface CapacityManager {
      */
     boolean checkIfHostHasCpuCapability(long hostId, Integer cpuNum, Integer cpuSpeed);
 
+    /**
+     * Same as checkIfHostHasCpuCapability(hostId, cpuNum, cpuSpeed) for a host already loaded.
+     */
+    boolean checkIfHostHasCpuCapability(Host host, Integer cpuNum, Integer cpuSpeed);
+
+    /**
+     * Screens a host for a vm with the capacity index, without reading the
+     * database.  The index may lag the database, so the host finally chosen
+     * has to be checked with checkIfHostHasCapacity().  The database is read
+     * when the index does not know the host.
+     * @return false if the host surely lacks the cpu or memory.
+     */
+    boolean checkIfHostMayHaveCapacity(long hostId, Integer cpu, long ram, float cpuOvercommitRatio, float memoryOvercommitRatio, boolean considerReservedCapacity);
+
     /**
      * Check if cluster will cross threshold if the cpu/memory requested are accomodated
      * @param clusterId the clusterId to check
@@ -102,4 +125,54 @@ public interface CapacityManager {
     boolean checkIfClusterCrossesThreshold(Long clusterId, Integer cpuRequested, long ramRequested);
 
     float getClusterOverProvisioningFactor(Long clusterId, short capacityType);
+
+    /**
+     * Lists the clusters of a zone or pod that have a host with enough free cpu and a host with enough free memory
+     * @return the cluster ids, or null if the capacity index is not available and CapacityDao has to be asked instead
+     */
+    List<Long> listClustersByHostCapacities(long id, int requiredCpu, long requiredRam, boolean isZone);
+
+    /**
+     * Orders the clusters of a zone or pod by their aggregate used capacity
+     * @return the ordered cluster ids and their used capacity ratio, or null if the capacity index is not available
+     */
+    Pair<List<Long>, Map<Long, Double>> orderClustersByAggregateCapacity(long id, short capacityType, boolean isZone);
+
+    /**
+     * Lists the pods of a zone that have a host with enough free cpu and a host with enough free memory
+     * @return the pod ids, or null if the capacity index is not available and CapacityDao has to be asked instead
+     */
+    List<Long> listPodsByHostCapacities(long zoneId, int requiredCpu, long requiredRam);
+
+    /**
+     * Orders the pods of a zone by their aggregate used capacity
+     * @return the ordered pod ids and their used capacity ratio, or null if the capacity index is not available
+     */
+    Pair<List<Long>, Map<Long, Double>> orderPodsByAggregateCapacity(long zoneId, short capacityType);
+
+    /**
+     * Locks the cpu and memory capacity of the hosts until the current
+     * transaction ends. The rows are always locked in the same order, so
+     * batches holding capacity on the same hosts from different management
+     * servers wait for each other instead of deadlocking.
+     */
+    void lockHostCapacity(Collection<Long> hostIds);
+
+    /**
+     * Holds the cpu and memory of a vm planned on a host in the reserved
+     * capacity of the host, if the host has it free. The hold is part of the
+     * current transaction, which must also save the reservation of the vm
+     * with the capacity held, so that every management server sees it and
+     * releasePlannedCapacity can give it back.
+     * @param hostId the host planned for the vm
+     * @param cpu cpu of the vm
+     * @param ram memory of the vm
+     * @return true if the capacity is held, false if the host does not have it free
+     */
+    boolean holdPlannedCapacity(long hostId, long cpu, long ram);
+
+    /**
+     * Releases the capacity held by the reservations of the vm, if any.
+     */
+    void releasePlannedCapacity(long vmId);
 }
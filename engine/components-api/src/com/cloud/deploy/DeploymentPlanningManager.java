@@ -16,6 +16,8 @@
 // under the License.
 package com.cloud.deploy;
 
+import java.util.List;
+
 import com.cloud.deploy.DeploymentPlanner.ExcludeList;
 import com.cloud.exception.AffinityConflictException;
 import com.cloud.exception.InsufficientServerCapacityException;
@@ -46,5 +48,24 @@ public interface DeploymentPlanningManager extends Manager {
             VirtualMachineProfile vmProfile, DeploymentPlan plan, ExcludeList avoids)
             throws InsufficientServerCapacityException, AffinityConflictException;
 
+    /**
+     * Plans the deployment of a batch of vms in one pass and reserves their
+     * destinations.  The planner and the allocators run once for the vms
+     * placed alike, then every vm is placed in one transaction against the
+     * capacity of the candidate hosts, locked for the whole batch.  The cpu
+     * and memory of each vm placed is held in the reserved capacity of its
+     * host until the vm starts, so the vms placed after it and the other
+     * management servers see that capacity taken.  The work job starting each
+     * vm picks its destination up from its reservation.
+     *
+     * @param vmProfiles vms to deploy
+     * @param plan deployment plan shared by the vms
+     * @param avoids resources none of the vms may be deployed to
+     * @param planner planner to use, or null to use the one of each vm's service offering
+     * @return the reservation id of each vm in the order of vmProfiles, or null for the vms that could not be placed
+     */
+    List<String> planAndReserveDeployments(List<VirtualMachineProfile> vmProfiles, DeploymentPlan plan, ExcludeList avoids, DeploymentPlanner planner)
+        throws AffinityConflictException;
+
     void cleanupVMReservations();
 }
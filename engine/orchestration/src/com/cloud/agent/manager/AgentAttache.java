@@ -18,19 +18,18 @@ package com.cloud.agent.manager;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.cloudstack.managed.context.ManagedContextRunnable;
 import org.apache.log4j.Logger;
@@ -69,44 +68,16 @@ public abstract class AgentAttache {
     private static final ScheduledExecutorService s_listenerExecutor = Executors.newScheduledThreadPool(10, new NamedThreadFactory("ListenerTimer"));
     private static final Random s_rand = new Random(System.currentTimeMillis());
 
-    protected static final Comparator<Request> s_reqComparator = new Comparator<Request>() {
-        @Override
-        public int compare(final Request o1, final Request o2) {
-            long seq1 = o1.getSequence();
-            long seq2 = o2.getSequence();
-            if (seq1 < seq2) {
-                return -1;
-            } else if (seq1 > seq2) {
-                return 1;
-            } else {
-                return 0;
-            }
-        }
-    };
-
-    protected static final Comparator<Object> s_seqComparator = new Comparator<Object>() {
-        @Override
-        public int compare(final Object o1, final Object o2) {
-            long seq1 = ((Request)o1).getSequence();
-            long seq2 = (Long)o2;
-            if (seq1 < seq2) {
-                return -1;
-            } else if (seq1 > seq2) {
-                return 1;
-            } else {
-                return 0;
-            }
-        }
-    };
-
     protected final long _id;
     protected String _name = null;
     protected final ConcurrentHashMap<Long, Listener> _waitForList;
-    protected final LinkedList<Request> _requests;
+    // requests waiting for the current sequence to finish, keyed and ordered by sequence
+    protected final ConcurrentSkipListMap<Long, Request> _requests;
     protected Long _currentSequence;
     protected Status _status = Status.Connecting;
     protected boolean _maintenance;
-    protected long _nextSequence;
+    protected volatile boolean _binaryContent;
+    protected final AtomicLong _nextSequence;
     protected AtomicInteger _outstandingTaskCount;
 
     protected AgentManagerImpl _agentMgr;
@@ -127,20 +98,31 @@ public abstract class AgentAttache {
         _waitForList = new ConcurrentHashMap<Long, Listener>();
         _currentSequence = null;
         _maintenance = maintenance;
-        _requests = new LinkedList<Request>();
+        _requests = new ConcurrentSkipListMap<Long, Request>();
         _agentMgr = agentMgr;
-        _nextSequence = new Long(s_rand.nextInt(Short.MAX_VALUE)) << 48;
+        _nextSequence = new AtomicLong(new Long(s_rand.nextInt(Short.MAX_VALUE)) << 48);
         _outstandingTaskCount = new AtomicInteger(0);
     }
 
-    public synchronized long getNextSequence() {
-        return ++_nextSequence;
+    public long getNextSequence() {
+        return _nextSequence.incrementAndGet();
     }
 
     public synchronized void setMaintenanceMode(final boolean value) {
         _maintenance = value;
     }
 
+    /**
+     * @param binaryContent true if the agent announced that it reads binary request content.
+     */
+    public void setBinaryContent(final boolean binaryContent) {
+        _binaryContent = binaryContent;
+    }
+
+    public boolean isBinaryContent() {
+        return _binaryContent;
+    }
+
     public void ready() {
         _status = Status.Up;
     }
@@ -179,10 +161,9 @@ public abstract class AgentAttache {
         }
     }
 
-    protected synchronized void addRequest(final Request req) {
-        int index = findRequest(req);
-        assert (index < 0) : "How can we get index again? " + index + ":" + req.toString();
-        _requests.add(-index - 1, req);
+    protected void addRequest(final Request req) {
+        Request existing = _requests.putIfAbsent(req.getSequence(), req);
+        assert (existing == null) : "How can we get the sequence again? " + req.toString();
     }
 
     protected void cancel(final Request req) {
@@ -190,7 +171,7 @@ public abstract class AgentAttache {
         cancel(seq);
     }
 
-    protected synchronized void cancel(final long seq) {
+    protected void cancel(final long seq) {
         if (s_logger.isDebugEnabled()) {
             s_logger.debug(log(seq, "Cancelling."));
         }
@@ -198,18 +179,11 @@ public abstract class AgentAttache {
         if (listener != null) {
             listener.processDisconnect(_id, Status.Disconnected);
         }
-        int index = findRequest(seq);
-        if (index >= 0) {
-            _requests.remove(index);
-        }
-    }
-
-    protected synchronized int findRequest(final Request req) {
-        return Collections.binarySearch(_requests, req, s_reqComparator);
+        _requests.remove(seq);
     }
 
-    protected synchronized int findRequest(final long seq) {
-        return Collections.binarySearch(_requests, seq, s_seqComparator);
+    protected Request findRequest(final long seq) {
+        return _requests.get(seq);
     }
 
     protected String log(final long seq, final String msg) {
@@ -458,14 +432,15 @@ public abstract class AgentAttache {
 
     protected synchronized void sendNext(final long seq) {
         _currentSequence = null;
-        if (_requests.isEmpty()) {
+        Map.Entry<Long, Request> next = _requests.pollFirstEntry();
+        if (next == null) {
             if (s_logger.isDebugEnabled()) {
                 s_logger.debug(log(seq, "No more commands found"));
             }
             return;
         }
 
-        Request req = _requests.pop();
+        Request req = next.getValue();
         if (s_logger.isDebugEnabled()) {
             s_logger.debug(log(req.getSequence(), "Sending now.  is current sequence."));
         }
@@ -187,6 +187,8 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
             "Default size for DirectAgentPool", false);
     protected final ConfigKey<Float> DirectAgentThreadCap = new ConfigKey<Float>(Float.class, "direct.agent.thread.cap", "Advanced", "0.1",
             "Percentage (as a value between 0 and 1) of direct.agent.pool.size to be used as upper thread cap for a single direct agent to process requests", false);
+    protected final ConfigKey<Boolean> BinaryContent = new ConfigKey<Boolean>(Boolean.class, "agent.binary.content", "Advanced", "true",
+            "Exchange commands and answers in the compact binary encoding with agents that support it; json is used otherwise", false);
 
     @Override
     public boolean configure(final String name, final Map<String, Object> params) throws ConfigurationException {
@@ -1002,6 +1004,7 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
             if (host != null) {
                 ready = new ReadyCommand(host.getDataCenterId(), host.getId());
                 attache = createAttacheForConnect(host, link);
+                attache.setBinaryContent(BinaryContent.value() && startup[0].isBinaryContentSupported());
                 attache = notifyMonitorsOfConnection(attache, startup, false);
             }
         } catch (Exception e) {
@@ -1582,7 +1585,7 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
 
     @Override
     public ConfigKey<?>[] getConfigKeys() {
-        return new ConfigKey<?>[] {Workers, Port, PingInterval, PingTimeout, Wait, AlertWait, DirectAgentLoadSize, DirectAgentPoolSize, DirectAgentThreadCap};
+        return new ConfigKey<?>[] {Workers, Port, PingInterval, PingTimeout, Wait, AlertWait, DirectAgentLoadSize, DirectAgentPoolSize, DirectAgentThreadCap, BinaryContent};
     }
 
 }
@@ -41,6 +41,9 @@ public class ConnectedAgentAttache extends AgentAttache {
     @Override
     public synchronized void send(final Request req) throws AgentUnavailableException {
         try {
+            if (_binaryContent) {
+                req.setBinary(true);
+            }
             _link.send(req.toBytes());
         } catch (ClosedChannelException e) {
             throw new AgentUnavailableException("Channel is closed", _id);
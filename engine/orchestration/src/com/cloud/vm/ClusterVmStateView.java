@@ -0,0 +1,106 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.vm;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import com.cloud.vm.VirtualMachine.State;
+
+/**
+ * ClusterVmStateView remembers, for the vms of one cluster, what the
+ * database and the hypervisor said about a vm the last time a full sync found
+ * them in agreement.  As long as neither side changes, the next full sync can
+ * skip the vm instead of reconciling it again.  A vm is forgotten as soon as
+ * reconciling it had to change something.
+ */
+public class ClusterVmStateView {
+    private final long _clusterId;
+    private final Map<Long, String> _consistent = new HashMap<Long, String>();
+
+    private Date _lastSyncTime;
+    private long _lastSyncMillis;
+    private long _maxSyncMillis;
+    private long _totalSyncMillis;
+    private long _syncCount;
+    private int _lastVmCount;
+    private int _lastReconciledCount;
+
+    public ClusterVmStateView(long clusterId) {
+        _clusterId = clusterId;
+    }
+
+    /**
+     * @return a value that changes whenever anything the reconciliation of the vm looks at changes.
+     */
+    public static String signature(VMInstanceVO vm, State reportedState, String reportedHost, String reportedPlatform) {
+        StringBuilder signature = new StringBuilder();
+        signature.append(vm.getState()).append('|').append(vm.getHostId()).append('|').append(vm.getUpdated()).append('|').append(vm.isRemoved());
+        signature.append('|').append(reportedState).append('|').append(reportedHost).append('|').append(reportedPlatform);
+        return signature.toString();
+    }
+
+    public synchronized boolean isUnchanged(long vmId, String signature) {
+        return signature.equals(_consistent.get(vmId));
+    }
+
+    /**
+     * @param signature signature of the vm if it was found consistent; null if reconciling it changed something.
+     */
+    public synchronized void update(long vmId, String signature) {
+        if (signature == null) {
+            _consistent.remove(vmId);
+        } else {
+            _consistent.put(vmId, signature);
+        }
+    }
+
+    /**
+     * Forgets the vms that are no longer in the cluster.
+     */
+    public synchronized void retain(Collection<Long> vmIds) {
+        Iterator<Long> it = _consistent.keySet().iterator();
+        while (it.hasNext()) {
+            if (!vmIds.contains(it.next())) {
+                it.remove();
+            }
+        }
+    }
+
+    public synchronized void recordSync(long millis, int vmCount, int reconciledCount) {
+        _lastSyncTime = new Date();
+        _lastSyncMillis = millis;
+        _maxSyncMillis = Math.max(_maxSyncMillis, millis);
+        _totalSyncMillis += millis;
+        _syncCount++;
+        _lastVmCount = vmCount;
+        _lastReconciledCount = reconciledCount;
+    }
+
+    public synchronized int getConsistentCount() {
+        return _consistent.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "cluster " + _clusterId + ": " + _syncCount + " full syncs, last at " + _lastSyncTime + " took " + _lastSyncMillis + " ms and reconciled " +
+            _lastReconciledCount + " of " + _lastVmCount + " vms, average " + (_syncCount == 0 ? 0 : _totalSyncMillis / _syncCount) + " ms, max " + _maxSyncMillis + " ms";
+    }
+}
@@ -22,6 +22,7 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
@@ -32,6 +33,8 @@ import java.util.Map;
 import java.util.Set;
 import java.util.TimeZone;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -193,6 +196,7 @@ import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.utils.exception.ExecutionException;
 import com.cloud.utils.fsm.NoTransitionException;
 import com.cloud.utils.fsm.StateMachine2;
+import com.cloud.utils.mgmt.JmxUtil;
 import com.cloud.vm.ItWorkVO.Step;
 import com.cloud.vm.VirtualMachine.Event;
 import com.cloud.vm.VirtualMachine.PowerState;
@@ -358,6 +362,8 @@ public class VirtualMachineManagerImpl extends ManagerBase implements VirtualMac
 
     protected long _nodeId;
 
+    protected final ConcurrentMap<Long, ClusterVmStateView> _clusterVmStateViews = new ConcurrentHashMap<Long, ClusterVmStateView>();
+
     @Override
     public void registerGuru(VirtualMachine.Type type, VirtualMachineGuru guru) {
         synchronized (_vmGurus) {
@@ -565,6 +571,12 @@ public class VirtualMachineManagerImpl extends ManagerBase implements VirtualMac
 
         // cleanup left over place holder works
         _workJobDao.expungeLeftoverWorkJobs(ManagementServerNode.getManagementServerId());
+
+        try {
+            JmxUtil.registerMBean("VirtualMachineManager", "ClusterVmStateSync", new ClusterVmStateSyncMBeanImpl(_clusterVmStateViews));
+        } catch (Exception e) {
+            s_logger.warn("Unable to register the cluster vm state sync MBean", e);
+        }
         return true;
     }
 
@@ -2559,27 +2571,62 @@ public class VirtualMachineManagerImpl extends ManagerBase implements VirtualMac
     public void fullSync(final long clusterId, Map<String, Ternary<String, State, String>> newStates) {
         if (newStates == null)
             return;
-        Map<Long, AgentVmInfo> infos = convertToInfos(newStates);
+        long syncStart = System.currentTimeMillis();
         Set<VMInstanceVO> set_vms = Collections.synchronizedSet(new HashSet<VMInstanceVO>());
         set_vms.addAll(_vmDao.listByClusterId(clusterId));
         set_vms.addAll(_vmDao.listLHByClusterId(clusterId));
+        Map<Long, AgentVmInfo> infos = convertToInfos(newStates, set_vms);
+
+        // everything the reconciliation may need is fetched once for the cluster
+        Map<String, Host> hosts = new HashMap<String, Host>();
+        for (HostVO host : _hostDao.findByClusterId(clusterId)) {
+            if (host.getGuid() != null) {
+                hosts.put(host.getGuid(), host);
+            }
+        }
+        List<Long> vmIds = new ArrayList<Long>(set_vms.size());
+        for (VMInstanceVO vm : set_vms) {
+            vmIds.add(vm.getId());
+        }
+        Set<Long> vmsWithTransientSnapshots = new HashSet<Long>();
+        if (!vmIds.isEmpty()) {
+            for (VMSnapshotVO vmSnapshot : _vmSnapshotDao.listByInstanceIds(vmIds, VMSnapshot.State.Expunging, VMSnapshot.State.Creating,
+                    VMSnapshot.State.Reverting)) {
+                vmsWithTransientSnapshots.add(vmSnapshot.getVmId());
+            }
+        }
+
+        ClusterVmStateView view = _clusterVmStateViews.get(clusterId);
+        if (view == null) {
+            _clusterVmStateViews.putIfAbsent(clusterId, new ClusterVmStateView(clusterId));
+            view = _clusterVmStateViews.get(clusterId);
+        }
+        int reconciled = 0;
 
         for (VMInstanceVO vm : set_vms) {
             AgentVmInfo info = infos.remove(vm.getId());
 
+            boolean hasTransientSnapshots = vmsWithTransientSnapshots.contains(vm.getId());
+            String signature = ClusterVmStateView.signature(vm, info == null ? null : info.state, info == null ? null : info.getHostUuid(),
+                    info == null ? null : info.getPlatform());
+            if (!hasTransientSnapshots && view.isUnchanged(vm.getId(), signature)) {
+                continue;
+            }
+            reconciled++;
+            boolean consistent = !hasTransientSnapshots;
+
             // sync VM Snapshots related transient states
-            List<VMSnapshotVO> vmSnapshotsInExpungingStates =
-                    _vmSnapshotDao.listByInstanceId(vm.getId(), VMSnapshot.State.Expunging, VMSnapshot.State.Creating, VMSnapshot.State.Reverting);
-            if (vmSnapshotsInExpungingStates.size() > 0) {
+            if (hasTransientSnapshots) {
                 s_logger.info("Found vm " + vm.getInstanceName() + " in state. " + vm.getState() + ", needs to sync VM snapshot state");
                 Long hostId = null;
                 Host host = null;
                 if (info != null && info.getHostUuid() != null) {
-                    host = _hostDao.findByGuid(info.getHostUuid());
+                    host = findHostByGuid(hosts, info.getHostUuid());
                 }
                 hostId = host == null ? (vm.getHostId() == null ? vm.getLastHostId() : vm.getHostId()) : host.getId();
                 if (!_vmSnapshotMgr.syncVMSnapshot(vm, hostId)) {
                     s_logger.warn("Failed to sync VM with transient snapshot: " + vm.getInstanceName());
+                    view.update(vm.getId(), null);
                     continue;
                 } else {
                     s_logger.info("Successfully sync VM with transient snapshot: " + vm.getInstanceName());
@@ -2590,6 +2637,7 @@ public class VirtualMachineManagerImpl extends ManagerBase implements VirtualMac
                     (info != null && (info.state == State.Running && vm.getState() == State.Starting))) {
                 s_logger.info("Found vm " + vm.getInstanceName() + " in inconsistent state. " + vm.getState() + " on CS while " + (info == null ? "Stopped" : "Running") +
                         " on agent");
+                consistent = false;
                 info = new AgentVmInfo(vm.getInstanceName(), vm, State.Stopped);
 
                 // Bug 13850- grab outstanding work item if any for this VM state so that we mark it as DONE after we change VM state, else it will remain pending
@@ -2611,7 +2659,7 @@ public class VirtualMachineManagerImpl extends ManagerBase implements VirtualMac
                 }
 
                 try {
-                    Host host = _hostDao.findByGuid(info.getHostUuid());
+                    Host host = findHostByGuid(hosts, info.getHostUuid());
                     long hostId = host == null ? (vm.getHostId() == null ? vm.getLastHostId() : vm.getHostId()) : host.getId();
                     HypervisorGuru hvGuru = _hvGuruMgr.getGuru(vm.getHypervisorType());
                     Command command = compareState(hostId, vm, info, true, hvGuru.trackVmHostChange());
@@ -2627,8 +2675,9 @@ public class VirtualMachineManagerImpl extends ManagerBase implements VirtualMac
                 }
             } else if (info != null &&
                     (vm.getState() == State.Stopped || vm.getState() == State.Stopping || vm.isRemoved() || vm.getState() == State.Destroyed || vm.getState() == State.Expunging)) {
-                Host host = _hostDao.findByGuid(info.getHostUuid());
+                Host host = findHostByGuid(hosts, info.getHostUuid());
                 if (host != null) {
+                    consistent = false;
                     s_logger.warn("Stopping a VM which is stopped/stopping/destroyed/expunging " + info.name);
                     if (vm.getState() == State.Stopped || vm.getState() == State.Stopping) {
                         vm.setState(State.Stopped); // set it as stop and clear it from host
@@ -2648,8 +2697,9 @@ public class VirtualMachineManagerImpl extends ManagerBase implements VirtualMac
                 // host id can change
                 if (info != null && vm.getState() == State.Running) {
                     // check for host id changes
-                    Host host = _hostDao.findByGuid(info.getHostUuid());
+                    Host host = findHostByGuid(hosts, info.getHostUuid());
                     if (host != null && (vm.getHostId() == null || host.getId() != vm.getHostId())) {
+                        consistent = false;
                         s_logger.info("Found vm " + vm.getInstanceName() + " with inconsistent host in db, new host is " + host.getId());
                         try {
                             stateTransitTo(vm, VirtualMachine.Event.AgentReportMigrated, host.getId());
@@ -2665,13 +2715,16 @@ public class VirtualMachineManagerImpl extends ManagerBase implements VirtualMac
                         vm.setHostId(null);
                         _vmDao.persist(vm);
                  }*/
+
+            view.update(vm.getId(), consistent ? signature : null);
         }
+        view.retain(vmIds);
 
         for (final AgentVmInfo left : infos.values()) {
             if (!VirtualMachineName.isValidVmName(left.name))
                 continue;  // if the vm doesn't follow CS naming ignore it for stopping
             try {
-                Host host = _hostDao.findByGuid(left.getHostUuid());
+                Host host = findHostByGuid(hosts, left.getHostUuid());
                 if (host != null) {
                     s_logger.warn("Stopping a VM which we do not have any record of " + left.name);
                     Answer answer = _agentMgr.send(host.getId(), cleanup(left.name));
@@ -2684,6 +2737,52 @@ public class VirtualMachineManagerImpl extends ManagerBase implements VirtualMac
             }
         }
 
+        long syncMillis = System.currentTimeMillis() - syncStart;
+        view.recordSync(syncMillis, set_vms.size(), reconciled);
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Full sync of cluster " + clusterId + " reconciled " + reconciled + " of " + set_vms.size() + " vms in " + syncMillis + " ms");
+        }
+    }
+
+    /**
+     * Looks the host up in the hosts already loaded for a full sync, the database is only asked for hosts outside of the cluster.
+     */
+    private Host findHostByGuid(Map<String, Host> hosts, String guid) {
+        if (guid == null) {
+            return null;
+        }
+        if (!hosts.containsKey(guid)) {
+            hosts.put(guid, _hostDao.findByGuid(guid));
+        }
+        return hosts.get(guid);
+    }
+
+    /**
+     * Same as convertToInfos(newStates), but vms are first looked up by name among the vms that are already loaded.
+     */
+    protected Map<Long, AgentVmInfo> convertToInfos(final Map<String, Ternary<String, State, String>> newStates, Collection<VMInstanceVO> vms) {
+        final Map<String, VMInstanceVO> vmsByName = new HashMap<String, VMInstanceVO>(vms.size());
+        for (VMInstanceVO vm : vms) {
+            vmsByName.put(vm.getInstanceName(), vm);
+        }
+
+        final HashMap<Long, AgentVmInfo> map = new HashMap<Long, AgentVmInfo>();
+        long alien_vm_count = -1;
+        for (Map.Entry<String, Ternary<String, State, String>> entry : newStates.entrySet()) {
+            String name = entry.getKey();
+            VMInstanceVO vm = vmsByName.get(name);
+            if (vm == null) {
+                vm = _vmDao.findVMByInstanceName(name);
+            }
+            if (vm != null) {
+                map.put(vm.getId(), new AgentVmInfo(entry.getKey(), vm, entry.getValue().second(), entry.getValue().first(), entry.getValue().third()));
+            } else {
+                // alien VMs
+                map.put(alien_vm_count--, new AgentVmInfo(entry.getKey(), null, entry.getValue().second(), entry.getValue().first(), entry.getValue().third()));
+                s_logger.warn("Found an alien VM " + entry.getKey());
+            }
+        }
+        return map;
     }
 
     protected Map<Long, AgentVmInfo> convertToInfos(final Map<String, Ternary<String, State, String>> newStates) {
@@ -16,6 +16,7 @@
 // under the License.
 package org.apache.cloudstack.engine.cloud.entity.api;
 
+import java.util.List;
 import java.util.Map;
 
 import org.apache.cloudstack.engine.cloud.entity.api.db.VMEntityVO;
@@ -38,6 +39,12 @@ public interface VMEntityManager {
     String reserveVirtualMachine(VMEntityVO vmEntityVO, String plannerToUse, DeploymentPlan plan, ExcludeList exclude) throws InsufficientCapacityException,
         ResourceUnavailableException;
 
+    /**
+     * Reserves deployment destinations for a batch of vms planned together.
+     * @return the reservation id of each vm in the order of vmEntityVOs, or null for the vms that could not be placed
+     */
+    List<String> reserveVirtualMachines(List<VMEntityVO> vmEntityVOs, String plannerToUse, DeploymentPlan plan, ExcludeList exclude);
+
     void deployVirtualMachine(String reservationId, VMEntityVO vmEntityVO, String caller, Map<VirtualMachineProfile.Param, Object> params)
         throws InsufficientCapacityException, ResourceUnavailableException;
 
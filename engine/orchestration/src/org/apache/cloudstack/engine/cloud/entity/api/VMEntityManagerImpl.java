@@ -16,9 +16,14 @@
 // under the License.
 package org.apache.cloudstack.engine.cloud.entity.api;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.inject.Inject;
 
@@ -57,6 +62,7 @@ import com.cloud.storage.dao.VMTemplateDao;
 import com.cloud.storage.dao.VolumeDao;
 import com.cloud.user.dao.AccountDao;
 import com.cloud.user.dao.UserDao;
+import com.cloud.utils.Pair;
 import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.vm.VMInstanceVO;
 import com.cloud.vm.VirtualMachine;
@@ -115,6 +121,25 @@ public class VMEntityManagerImpl implements VMEntityManager {
     @Inject
     protected AffinityGroupVMMapDao _affinityGroupVMMapDao;
 
+    // reservations waiting to be planned together, by the plan and planner they share
+    private final ConcurrentHashMap<List<Object>, PendingBatch> _pendingBatches = new ConcurrentHashMap<List<Object>, PendingBatch>();
+
+    private static class PendingReservation {
+        final VMEntityVO vmEntityVO;
+        boolean done;
+        String reservationId;
+        RuntimeException failure;
+
+        PendingReservation(VMEntityVO vmEntityVO) {
+            this.vmEntityVO = vmEntityVO;
+        }
+    }
+
+    private static class PendingBatch {
+        final List<PendingReservation> queue = new ArrayList<PendingReservation>();
+        boolean planning;
+    }
+
     @Override
     public VMEntityVO loadVirtualMachine(String vmId) {
         // TODO Auto-generated method stub
@@ -186,10 +211,19 @@ public class VMEntityManagerImpl implements VMEntityManager {
 
         }
 
+        if (vols.isEmpty() && plan.getHostId() == null && plan.getPoolId() == null && isEmpty(exclude)) {
+            String reservationId = reserveInBatch(vmEntityVO, plannerToUse, plan);
+            if (reservationId == null) {
+                throw new InsufficientServerCapacityException("Unable to create a deployment for " + vmProfile, DataCenter.class, plan.getDataCenterId(),
+                    areAffinityGroupsAssociated(vmProfile));
+            }
+            return reservationId;
+        }
+
         while (true) {
             DeployDestination dest = null;
             try {
-                dest = _dpMgr.planDeployment(vmProfile, plan, exclude, null);
+                dest = _dpMgr.planDeployment(vmProfile, plan, exclude, getPlanner(plannerToUse));
             } catch (AffinityConflictException e) {
                 throw new CloudRuntimeException("Unable to create deployment, affinity rules associted to the VM conflict");
             }
@@ -216,6 +250,169 @@ public class VMEntityManagerImpl implements VMEntityManager {
         }
     }
 
+    /**
+     * Plans the vm together with the other vms reserved on the same plan at
+     * the same time, as the work jobs of a mass deployment do. A job finding
+     * no batch being planned plans all the vms waiting, the jobs coming in
+     * while it plans wait for it and are planned in the next batch by one of
+     * them.
+     *
+     * @return the reservation id, or null if the vm could not be placed
+     */
+    private String reserveInBatch(VMEntityVO vmEntityVO, String plannerToUse, DeploymentPlan plan) {
+        List<Object> key = Arrays.<Object>asList(plan.getDataCenterId(), plan.getPodId(), plan.getClusterId(), plannerToUse);
+        PendingBatch batch = _pendingBatches.get(key);
+        if (batch == null) {
+            _pendingBatches.putIfAbsent(key, new PendingBatch());
+            batch = _pendingBatches.get(key);
+        }
+
+        PendingReservation reservation = new PendingReservation(vmEntityVO);
+        List<PendingReservation> toPlan;
+        synchronized (batch) {
+            batch.queue.add(reservation);
+            boolean interrupted = false;
+            while (!reservation.done && batch.planning) {
+                try {
+                    batch.wait();
+                } catch (InterruptedException e) {
+                    if (batch.queue.remove(reservation)) {
+                        Thread.currentThread().interrupt();
+                        throw new CloudRuntimeException("Interrupted while waiting to reserve a deployment for " + vmEntityVO.getUuid());
+                    }
+                    // the vm is being planned already, wait for its reservation
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (reservation.done) {
+                return getReservationId(reservation);
+            }
+            batch.planning = true;
+            toPlan = new ArrayList<PendingReservation>(batch.queue);
+            batch.queue.clear();
+        }
+
+        try {
+            List<VMEntityVO> vmEntityVOs = new ArrayList<VMEntityVO>();
+            for (PendingReservation pending : toPlan) {
+                vmEntityVOs.add(pending.vmEntityVO);
+            }
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Planning a batch of " + vmEntityVOs.size() + " vms in zone " + plan.getDataCenterId() + ", pod " + plan.getPodId());
+            }
+            List<String> reservationIds = reserveVirtualMachines(vmEntityVOs, plannerToUse, plan, new ExcludeList());
+            for (int i = 0; i < toPlan.size(); i++) {
+                toPlan.get(i).reservationId = reservationIds.get(i);
+            }
+        } catch (RuntimeException e) {
+            for (PendingReservation pending : toPlan) {
+                pending.failure = e;
+            }
+        } finally {
+            synchronized (batch) {
+                for (PendingReservation pending : toPlan) {
+                    pending.done = true;
+                }
+                batch.planning = false;
+                batch.notifyAll();
+            }
+        }
+        return getReservationId(reservation);
+    }
+
+    private static String getReservationId(PendingReservation reservation) {
+        if (reservation.failure != null) {
+            throw reservation.failure;
+        }
+        return reservation.reservationId;
+    }
+
+    private static boolean isEmpty(ExcludeList exclude) {
+        return exclude == null ||
+            (isEmpty(exclude.getDataCentersToAvoid()) && isEmpty(exclude.getPodsToAvoid()) && isEmpty(exclude.getClustersToAvoid()) &&
+                isEmpty(exclude.getHostsToAvoid()) && isEmpty(exclude.getPoolsToAvoid()));
+    }
+
+    private static boolean isEmpty(Set<Long> ids) {
+        return ids == null || ids.isEmpty();
+    }
+
+    private DeploymentPlanner getPlanner(String plannerToUse) {
+        if (plannerToUse != null && _planners != null) {
+            for (DeploymentPlanner planner : _planners) {
+                if (plannerToUse.equals(planner.getName())) {
+                    return planner;
+                }
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public List<String> reserveVirtualMachines(List<VMEntityVO> vmEntityVOs, String plannerToUse, DeploymentPlan planToDeploy, ExcludeList exclude) {
+        String[] reservationIds = new String[vmEntityVOs.size()];
+        // vms planned together, by the zone and pod they are deployed in
+        Map<Pair<Long, Long>, List<Integer>> batches = new LinkedHashMap<Pair<Long, Long>, List<Integer>>();
+        List<VirtualMachineProfile> vmProfiles = new ArrayList<VirtualMachineProfile>();
+
+        for (int i = 0; i < vmEntityVOs.size(); i++) {
+            VMInstanceVO vm = _vmDao.findByUuid(vmEntityVOs.get(i).getUuid());
+            VirtualMachineProfileImpl vmProfile = new VirtualMachineProfileImpl(vm);
+            vmProfile.setServiceOffering(_serviceOfferingDao.findByIdIncludingRemoved(vm.getId(), vm.getServiceOfferingId()));
+            vmProfiles.add(vmProfile);
+
+            if (!_volsDao.findReadyRootVolumesByInstance(vm.getId()).isEmpty()) {
+                // a ready root volume ties the vm to the cluster of its pool
+                try {
+                    ExcludeList vmExclude = exclude != null ? new ExcludeList(exclude.getDataCentersToAvoid(), exclude.getPodsToAvoid(), exclude.getClustersToAvoid(),
+                        exclude.getHostsToAvoid(), exclude.getPoolsToAvoid()) : new ExcludeList();
+                    reservationIds[i] = reserveVirtualMachine(vmEntityVOs.get(i), plannerToUse, planToDeploy, vmExclude);
+                } catch (InsufficientCapacityException e) {
+                    s_logger.debug("Unable to reserve a deployment for " + vm + ": " + e.getMessage());
+                } catch (ResourceUnavailableException e) {
+                    s_logger.debug("Unable to reserve a deployment for " + vm + ": " + e.getMessage());
+                }
+                continue;
+            }
+
+            Pair<Long, Long> key = new Pair<Long, Long>(vm.getDataCenterId(), vm.getPodIdToDeployIn());
+            List<Integer> batch = batches.get(key);
+            if (batch == null) {
+                batch = new ArrayList<Integer>();
+                batches.put(key, batch);
+            }
+            batch.add(i);
+        }
+
+        for (Map.Entry<Pair<Long, Long>, List<Integer>> entry : batches.entrySet()) {
+            DataCenterDeployment plan = new DataCenterDeployment(entry.getKey().first(), entry.getKey().second(), null, null, null, null);
+            if (planToDeploy != null && planToDeploy.getDataCenterId() != 0) {
+                plan =
+                    new DataCenterDeployment(planToDeploy.getDataCenterId(), planToDeploy.getPodId(), planToDeploy.getClusterId(), planToDeploy.getHostId(),
+                        planToDeploy.getPoolId(), planToDeploy.getPhysicalNetworkId());
+            }
+
+            List<VirtualMachineProfile> batchProfiles = new ArrayList<VirtualMachineProfile>();
+            for (Integer i : entry.getValue()) {
+                batchProfiles.add(vmProfiles.get(i));
+            }
+            List<String> batchReservationIds;
+            try {
+                batchReservationIds = _dpMgr.planAndReserveDeployments(batchProfiles, plan, exclude, getPlanner(plannerToUse));
+            } catch (AffinityConflictException e) {
+                throw new CloudRuntimeException("Unable to create deployment, affinity rules associted to the VM conflict");
+            }
+            for (int j = 0; j < batchReservationIds.size(); j++) {
+                reservationIds[entry.getValue().get(j)] = batchReservationIds.get(j);
+            }
+        }
+
+        return Arrays.asList(reservationIds);
+    }
+
     @Override
     public void deployVirtualMachine(String reservationId, VMEntityVO vmEntityVO, String caller, Map<VirtualMachineProfile.Param, Object> params)
         throws InsufficientCapacityException, ResourceUnavailableException {
@@ -41,6 +41,7 @@ import com.cloud.utils.db.TransactionLegacy;
 public class VmRulesetLogDaoImpl extends GenericDaoBase<VmRulesetLogVO, Long> implements VmRulesetLogDao {
     protected static Logger s_logger = Logger.getLogger(VmRulesetLogDaoImpl.class);
     private SearchBuilder<VmRulesetLogVO> VmIdSearch;
+    private SearchBuilder<VmRulesetLogVO> VmIdsSearch;
     private String InsertOrUpdateSQl = "INSERT INTO op_vm_ruleset_log (instance_id, created, logsequence) "
         + " VALUES(?, now(), 1) ON DUPLICATE KEY UPDATE logsequence=logsequence+1";
     private static HashMap<Integer, String> cachedPrepStmtStrings = new HashMap<Integer, String>();
@@ -69,6 +70,9 @@ public class VmRulesetLogDaoImpl extends GenericDaoBase<VmRulesetLogVO, Long> im
 
         VmIdSearch.done();
 
+        VmIdsSearch = createSearchBuilder();
+        VmIdsSearch.and("vmIds", VmIdsSearch.entity().getInstanceId(), SearchCriteria.Op.IN);
+        VmIdsSearch.done();
     }
 
     @Override
@@ -78,6 +82,17 @@ public class VmRulesetLogDaoImpl extends GenericDaoBase<VmRulesetLogVO, Long> im
         return findOneIncludingRemovedBy(sc);
     }
 
+    @Override
+    public List<VmRulesetLogVO> listByVmIds(List<Long> vmIds) {
+        List<VmRulesetLogVO> logs = new ArrayList<VmRulesetLogVO>();
+        for (int i = 0; i < vmIds.size(); i += 500) {
+            SearchCriteria<VmRulesetLogVO> sc = VmIdsSearch.create();
+            sc.setParameters("vmIds", vmIds.subList(i, Math.min(i + 500, vmIds.size())).toArray());
+            logs.addAll(listIncludingRemovedBy(sc));
+        }
+        return logs;
+    }
+
     @Override
     public int createOrUpdate(Set<Long> workItems) {
         //return createOrUpdateUsingBatch(workItems);
@@ -0,0 +1,151 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.usage;
+
+import java.util.Date;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+
+import org.apache.cloudstack.api.InternalIdentity;
+
+/**
+ * One partition of the accounts a usage job parses.  Any usage server may
+ * claim it, the usage records of its accounts are committed together with
+ * marking it processed.
+ */
+@Entity
+@Table(name = "usage_job_partition")
+public class UsageJobPartitionVO implements InternalIdentity {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @Column(name = "id")
+    private Long id;
+
+    @Column(name = "job_id")
+    private long jobId;
+
+    @Column(name = "partition_id")
+    private int partitionId;
+
+    @Column(name = "partitions")
+    private int partitions;
+
+    @Column(name = "start_millis")
+    private long startMillis;
+
+    @Column(name = "end_millis")
+    private long endMillis;
+
+    @Column(name = "resume_millis")
+    private long resumeMillis;
+
+    @Column(name = "host")
+    private String host;
+
+    @Column(name = "pid")
+    private Integer pid;
+
+    @Temporal(TemporalType.TIMESTAMP)
+    @Column(name = "heartbeat")
+    private Date heartbeat;
+
+    @Temporal(TemporalType.TIMESTAMP)
+    @Column(name = "processed")
+    private Date processed;
+
+    @Column(name = "failed")
+    private boolean failed;
+
+    public UsageJobPartitionVO() {
+    }
+
+    public UsageJobPartitionVO(long jobId, int partitionId, int partitions, long startMillis, long endMillis, long resumeMillis) {
+        this.jobId = jobId;
+        this.partitionId = partitionId;
+        this.partitions = partitions;
+        this.startMillis = startMillis;
+        this.endMillis = endMillis;
+        this.resumeMillis = resumeMillis;
+    }
+
+    @Override
+    public long getId() {
+        return id;
+    }
+
+    public long getJobId() {
+        return jobId;
+    }
+
+    public int getPartitionId() {
+        return partitionId;
+    }
+
+    public int getPartitions() {
+        return partitions;
+    }
+
+    /**
+     * @return start of the range the job parses.
+     */
+    public long getStartMillis() {
+        return startMillis;
+    }
+
+    /**
+     * @return end of the range the job parses.
+     */
+    public long getEndMillis() {
+        return endMillis;
+    }
+
+    /**
+     * @return end of the range an earlier, failed job already committed for
+     * this partition, 0 if there is none.
+     */
+    public long getResumeMillis() {
+        return resumeMillis;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public Integer getPid() {
+        return pid;
+    }
+
+    public Date getHeartbeat() {
+        return heartbeat;
+    }
+
+    public Date getProcessed() {
+        return processed;
+    }
+
+    public boolean isFailed() {
+        return failed;
+    }
+}
@@ -436,7 +436,7 @@ public class UsageDaoImpl extends GenericDaoBase<UsageVO, Long> implements Usage
                 pstmt.setString(16, DateUtil.getDateDisplayString(s_gmtTimeZone, usageRecord.getStartDate()));
                 pstmt.setString(17, DateUtil.getDateDisplayString(s_gmtTimeZone, usageRecord.getEndDate()));
                 if (usageRecord.getVirtualSize() != null) {
-                    pstmt.setLong(18, usageRecord.getSize());
+                    pstmt.setLong(18, usageRecord.getVirtualSize());
                 } else {
                     pstmt.setNull(18, Types.BIGINT);
                 }
@@ -0,0 +1,64 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.usage.dao;
+
+import java.util.Date;
+import java.util.List;
+
+import com.cloud.usage.UsageJobPartitionVO;
+import com.cloud.utils.db.GenericDao;
+
+public interface UsageJobPartitionDao extends GenericDao<UsageJobPartitionVO, Long> {
+    List<UsageJobPartitionVO> listByJob(long jobId);
+
+    /**
+     * @return the partitions that were processed by jobs whose range ends after endMillis.
+     */
+    List<UsageJobPartitionVO> listProcessedAfter(long endMillis);
+
+    /**
+     * Claims a partition that is neither processed nor failed and that nobody
+     * else claimed, or whose claim was last renewed before staleBefore.
+     * @return the claimed partition, or null if there is none to claim.
+     */
+    UsageJobPartitionVO claimPartition(String hostname, int pid, Date staleBefore);
+
+    /**
+     * Renews the claims the usage server holds on the partitions.
+     */
+    void heartbeat(List<Long> ids, String hostname, int pid);
+
+    /**
+     * Marks the partition processed in the current transaction, so that it is
+     * committed together with the usage records of the partition.
+     * @return false if the claim on the partition has been lost.
+     */
+    boolean markProcessed(long id, String hostname, int pid);
+
+    void markFailed(long id, String hostname, int pid);
+
+    /**
+     * Fails the partitions of the job and of the jobs before it that have not
+     * been processed, so that they can no longer be committed.
+     */
+    void failUnprocessed(long jobId);
+
+    /**
+     * Removes the partitions of the jobs whose range ends at or before endMillis.
+     */
+    void removeUpTo(long endMillis);
+}
@@ -0,0 +1,201 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.usage.dao;
+
+import java.sql.PreparedStatement;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+
+import javax.ejb.Local;
+
+import org.apache.log4j.Logger;
+import org.springframework.stereotype.Component;
+
+import com.cloud.usage.UsageJobPartitionVO;
+import com.cloud.utils.DateUtil;
+import com.cloud.utils.db.Filter;
+import com.cloud.utils.db.GenericDaoBase;
+import com.cloud.utils.db.SearchBuilder;
+import com.cloud.utils.db.SearchCriteria;
+import com.cloud.utils.db.TransactionLegacy;
+import com.cloud.utils.exception.CloudRuntimeException;
+
+@Component
+@Local(value = {UsageJobPartitionDao.class})
+public class UsageJobPartitionDaoImpl extends GenericDaoBase<UsageJobPartitionVO, Long> implements UsageJobPartitionDao {
+    private static final Logger s_logger = Logger.getLogger(UsageJobPartitionDaoImpl.class.getName());
+
+    private static final TimeZone s_gmtTimeZone = TimeZone.getTimeZone("GMT");
+
+    private static final String CLAIM_PARTITION = "UPDATE cloud_usage.usage_job_partition SET host = ?, pid = ?, heartbeat = ? "
+        + "WHERE id = ? AND processed IS NULL AND failed = 0 AND (host IS NULL OR heartbeat < ?)";
+    private static final String HEARTBEAT = "UPDATE cloud_usage.usage_job_partition SET heartbeat = ? "
+        + "WHERE id = ? AND host = ? AND pid = ? AND processed IS NULL AND failed = 0";
+    private static final String MARK_PROCESSED = "UPDATE cloud_usage.usage_job_partition SET processed = ? "
+        + "WHERE id = ? AND host = ? AND pid = ? AND processed IS NULL AND failed = 0";
+    private static final String MARK_FAILED = "UPDATE cloud_usage.usage_job_partition SET failed = 1 WHERE id = ? AND host = ? AND pid = ? AND processed IS NULL";
+    private static final String FAIL_UNPROCESSED = "UPDATE cloud_usage.usage_job_partition SET failed = 1 WHERE job_id <= ? AND processed IS NULL AND failed = 0";
+
+    private final SearchBuilder<UsageJobPartitionVO> JobSearch;
+    private final SearchBuilder<UsageJobPartitionVO> ProcessedSearch;
+    private final SearchBuilder<UsageJobPartitionVO> ClaimableSearch;
+    private final SearchBuilder<UsageJobPartitionVO> EndSearch;
+
+    public UsageJobPartitionDaoImpl() {
+        JobSearch = createSearchBuilder();
+        JobSearch.and("jobId", JobSearch.entity().getJobId(), SearchCriteria.Op.EQ);
+        JobSearch.done();
+
+        ProcessedSearch = createSearchBuilder();
+        ProcessedSearch.and("endMillis", ProcessedSearch.entity().getEndMillis(), SearchCriteria.Op.GT);
+        ProcessedSearch.and("processed", ProcessedSearch.entity().getProcessed(), SearchCriteria.Op.NNULL);
+        ProcessedSearch.done();
+
+        ClaimableSearch = createSearchBuilder();
+        ClaimableSearch.and("processed", ClaimableSearch.entity().getProcessed(), SearchCriteria.Op.NULL);
+        ClaimableSearch.and("failed", ClaimableSearch.entity().isFailed(), SearchCriteria.Op.EQ);
+        ClaimableSearch.and().op("host", ClaimableSearch.entity().getHost(), SearchCriteria.Op.NULL);
+        ClaimableSearch.or("heartbeat", ClaimableSearch.entity().getHeartbeat(), SearchCriteria.Op.LT);
+        ClaimableSearch.cp();
+        ClaimableSearch.done();
+
+        EndSearch = createSearchBuilder();
+        EndSearch.and("endMillis", EndSearch.entity().getEndMillis(), SearchCriteria.Op.LTEQ);
+        EndSearch.done();
+    }
+
+    @Override
+    public List<UsageJobPartitionVO> listByJob(long jobId) {
+        SearchCriteria<UsageJobPartitionVO> sc = JobSearch.create();
+        sc.setParameters("jobId", jobId);
+        return listBy(sc);
+    }
+
+    @Override
+    public List<UsageJobPartitionVO> listProcessedAfter(long endMillis) {
+        SearchCriteria<UsageJobPartitionVO> sc = ProcessedSearch.create();
+        sc.setParameters("endMillis", endMillis);
+        return listBy(sc);
+    }
+
+    @Override
+    public UsageJobPartitionVO claimPartition(String hostname, int pid, Date staleBefore) {
+        SearchCriteria<UsageJobPartitionVO> sc = ClaimableSearch.create();
+        sc.setParameters("failed", false);
+        sc.setParameters("heartbeat", staleBefore);
+        Filter filter = new Filter(UsageJobPartitionVO.class, "id", true, Long.valueOf(0), Long.valueOf(16));
+
+        // another usage server may claim the same partition at the same time, only one of the updates matches
+        for (UsageJobPartitionVO partition : listBy(sc, filter)) {
+            TransactionLegacy txn = TransactionLegacy.currentTxn();
+            try {
+                txn.start();
+                PreparedStatement pstmt = txn.prepareAutoCloseStatement(CLAIM_PARTITION);
+                pstmt.setString(1, hostname);
+                pstmt.setInt(2, pid);
+                pstmt.setString(3, DateUtil.getDateDisplayString(s_gmtTimeZone, new Date()));
+                pstmt.setLong(4, partition.getId());
+                pstmt.setString(5, DateUtil.getDateDisplayString(s_gmtTimeZone, staleBefore));
+                boolean claimed = pstmt.executeUpdate() == 1;
+                txn.commit();
+                if (claimed) {
+                    return findById(partition.getId());
+                }
+            } catch (Exception ex) {
+                txn.rollback();
+                s_logger.error("error claiming usage job partition " + partition.getId(), ex);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void heartbeat(List<Long> ids, String hostname, int pid) {
+        TransactionLegacy txn = TransactionLegacy.currentTxn();
+        String now = DateUtil.getDateDisplayString(s_gmtTimeZone, new Date());
+        try {
+            txn.start();
+            for (Long id : ids) {
+                PreparedStatement pstmt = txn.prepareAutoCloseStatement(HEARTBEAT);
+                pstmt.setString(1, now);
+                pstmt.setLong(2, id);
+                pstmt.setString(3, hostname);
+                pstmt.setInt(4, pid);
+                pstmt.executeUpdate();
+            }
+            txn.commit();
+        } catch (Exception ex) {
+            txn.rollback();
+            s_logger.error("error updating the heartbeat of usage job partitions " + ids, ex);
+        }
+    }
+
+    @Override
+    public boolean markProcessed(long id, String hostname, int pid) {
+        TransactionLegacy txn = TransactionLegacy.currentTxn();
+        try {
+            PreparedStatement pstmt = txn.prepareAutoCloseStatement(MARK_PROCESSED);
+            pstmt.setString(1, DateUtil.getDateDisplayString(s_gmtTimeZone, new Date()));
+            pstmt.setLong(2, id);
+            pstmt.setString(3, hostname);
+            pstmt.setInt(4, pid);
+            return pstmt.executeUpdate() == 1;
+        } catch (Exception ex) {
+            throw new CloudRuntimeException("Unable to mark usage job partition " + id + " processed", ex);
+        }
+    }
+
+    @Override
+    public void markFailed(long id, String hostname, int pid) {
+        TransactionLegacy txn = TransactionLegacy.currentTxn();
+        try {
+            txn.start();
+            PreparedStatement pstmt = txn.prepareAutoCloseStatement(MARK_FAILED);
+            pstmt.setLong(1, id);
+            pstmt.setString(2, hostname);
+            pstmt.setInt(3, pid);
+            pstmt.executeUpdate();
+            txn.commit();
+        } catch (Exception ex) {
+            txn.rollback();
+            s_logger.error("error marking usage job partition " + id + " failed", ex);
+        }
+    }
+
+    @Override
+    public void failUnprocessed(long jobId) {
+        TransactionLegacy txn = TransactionLegacy.currentTxn();
+        try {
+            txn.start();
+            PreparedStatement pstmt = txn.prepareAutoCloseStatement(FAIL_UNPROCESSED);
+            pstmt.setLong(1, jobId);
+            pstmt.executeUpdate();
+            txn.commit();
+        } catch (Exception ex) {
+            txn.rollback();
+            throw new CloudRuntimeException("Unable to fail the unprocessed partitions of usage job " + jobId, ex);
+        }
+    }
+
+    @Override
+    public void removeUpTo(long endMillis) {
+        SearchCriteria<UsageJobPartitionVO> sc = EndSearch.create();
+        sc.setParameters("endMillis", endMillis);
+        expunge(sc);
+    }
+}
@@ -35,6 +35,14 @@ public interface AccountDao extends GenericDao<AccountVO, Long> {
 
     List<AccountVO> findRecentlyDeletedAccounts(Long maxAccountId, Date earliestRemovedDate, Filter filter);
 
+    /**
+     * Lists the accounts whose id leaves the given remainder when divided by the number of partitions, in id order.
+     * @param afterId only accounts with a greater id are listed, the id of the last account of the previous page.
+     * @param earliestRemovedDate null to list the accounts that are not removed, else the accounts removed since then.
+     * @param limit maximum number of accounts to list.
+     */
+    List<AccountVO> listPartitionAccounts(int partitions, int partitionId, long afterId, Date earliestRemovedDate, int limit);
+
     List<AccountVO> findNewAccounts(Long minAccountId, Filter filter);
 
     List<AccountVO> findCleanupsForRemovedAccounts(Long domainId);
@@ -20,6 +20,7 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.util.Date;
 import java.util.List;
+import java.util.TimeZone;
 
 import javax.ejb.Local;
 
@@ -31,6 +32,7 @@ import com.cloud.user.Account.State;
 import com.cloud.user.AccountVO;
 import com.cloud.user.User;
 import com.cloud.user.UserVO;
+import com.cloud.utils.DateUtil;
 import com.cloud.utils.Pair;
 import com.cloud.utils.crypt.DBEncryptionUtil;
 import com.cloud.utils.db.Filter;
@@ -241,6 +243,25 @@ public class AccountDaoImpl extends GenericDaoBase<AccountVO, Long> implements A
         return listIncludingRemovedBy(sc, filter);
     }
 
+    @Override
+    public List<AccountVO> listPartitionAccounts(int partitions, int partitionId, long afterId, Date earliestRemovedDate, int limit) {
+        // the remainder cannot be expressed with a search builder, the id index still serves the seek
+        StringBuilder sql = createPartialSelectSql(null, true);
+        sql.append("account.id % ? = ? AND account.id > ? AND ");
+        if (earliestRemovedDate == null) {
+            sql.append("account.removed IS NULL");
+        } else {
+            sql.append("account.removed >= ?");
+        }
+        sql.append(" ORDER BY account.id ASC LIMIT ?");
+
+        if (earliestRemovedDate == null) {
+            return executeList(sql.toString(), partitions, partitionId, afterId, limit);
+        }
+        return executeList(sql.toString(), partitions, partitionId, afterId, DateUtil.getDateDisplayString(TimeZone.getTimeZone("GMT"), earliestRemovedDate),
+            limit);
+    }
+
     @Override
     public List<AccountVO> findNewAccounts(Long minAccountId, Filter filter) {
         if (minAccountId == null) {
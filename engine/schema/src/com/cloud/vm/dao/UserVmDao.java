@@ -33,6 +33,8 @@ public interface UserVmDao extends GenericDao<UserVmVO, Long> {
 
     List<UserVmVO> listByHostId(Long hostId);
 
+    List<UserVmVO> listByIds(List<Long> ids);
+
     List<UserVmVO> listByLastHostId(Long hostId);
 
     List<UserVmVO> listUpByHostId(Long hostId);
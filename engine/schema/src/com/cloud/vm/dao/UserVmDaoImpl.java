@@ -59,6 +59,7 @@ public class UserVmDaoImpl extends GenericDaoBase<UserVmVO, Long> implements Use
     protected SearchBuilder<UserVmVO> AccountDataCenterSearch;
     protected SearchBuilder<UserVmVO> AccountSearch;
     protected SearchBuilder<UserVmVO> HostSearch;
+    protected SearchBuilder<UserVmVO> IdsSearch;
     protected SearchBuilder<UserVmVO> LastHostSearch;
     protected SearchBuilder<UserVmVO> HostUpSearch;
     protected SearchBuilder<UserVmVO> HostRunningSearch;
@@ -122,6 +123,10 @@ public class UserVmDaoImpl extends GenericDaoBase<UserVmVO, Long> implements Use
         HostSearch.and("host", HostSearch.entity().getHostId(), SearchCriteria.Op.EQ);
         HostSearch.done();
 
+        IdsSearch = createSearchBuilder();
+        IdsSearch.and("ids", IdsSearch.entity().getId(), SearchCriteria.Op.IN);
+        IdsSearch.done();
+
         LastHostSearch = createSearchBuilder();
         LastHostSearch.and("lastHost", LastHostSearch.entity().getLastHostId(), SearchCriteria.Op.EQ);
         LastHostSearch.and("state", LastHostSearch.entity().getState(), SearchCriteria.Op.EQ);
@@ -258,6 +263,18 @@ public class UserVmDaoImpl extends GenericDaoBase<UserVmVO, Long> implements Use
         return listBy(sc);
     }
 
+    @Override
+    public List<UserVmVO> listByIds(List<Long> ids) {
+        List<UserVmVO> vms = new ArrayList<UserVmVO>();
+        // keep the IN lists to a reasonable size
+        for (int i = 0; i < ids.size(); i += 500) {
+            SearchCriteria<UserVmVO> sc = IdsSearch.create();
+            sc.setParameters("ids", ids.subList(i, Math.min(i + 500, ids.size())).toArray());
+            vms.addAll(listBy(sc));
+        }
+        return vms;
+    }
+
     @Override
     public List<UserVmVO> listByIsoId(Long isoId) {
         SearchCriteria<UserVmVO> sc = UserVmByIsoSearch.create();
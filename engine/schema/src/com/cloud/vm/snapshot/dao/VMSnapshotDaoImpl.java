@@ -17,6 +17,7 @@
 
 package com.cloud.vm.snapshot.dao;
 
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 
@@ -42,6 +43,7 @@ public class VMSnapshotDaoImpl extends GenericDaoBase<VMSnapshotVO, Long> implem
     private final SearchBuilder<VMSnapshotVO> SnapshotSearch;
     private final SearchBuilder<VMSnapshotVO> ExpungingSnapshotSearch;
     private final SearchBuilder<VMSnapshotVO> SnapshotStatusSearch;
+    private final SearchBuilder<VMSnapshotVO> SnapshotsStatusSearch;
     private final SearchBuilder<VMSnapshotVO> AllFieldsSearch;
 
     protected VMSnapshotDaoImpl() {
@@ -73,6 +75,11 @@ public class VMSnapshotDaoImpl extends GenericDaoBase<VMSnapshotVO, Long> implem
         SnapshotStatusSearch.and("vm_id", SnapshotStatusSearch.entity().getVmId(), SearchCriteria.Op.EQ);
         SnapshotStatusSearch.and("state", SnapshotStatusSearch.entity().getState(), SearchCriteria.Op.IN);
         SnapshotStatusSearch.done();
+
+        SnapshotsStatusSearch = createSearchBuilder();
+        SnapshotsStatusSearch.and("vm_id", SnapshotsStatusSearch.entity().getVmId(), SearchCriteria.Op.IN);
+        SnapshotsStatusSearch.and("state", SnapshotsStatusSearch.entity().getState(), SearchCriteria.Op.IN);
+        SnapshotsStatusSearch.done();
     }
 
     @Override
@@ -97,6 +104,19 @@ public class VMSnapshotDaoImpl extends GenericDaoBase<VMSnapshotVO, Long> implem
         return listBy(sc, null);
     }
 
+    @Override
+    public List<VMSnapshotVO> listByInstanceIds(List<Long> vmIds, State... status) {
+        List<VMSnapshotVO> snapshots = new ArrayList<VMSnapshotVO>();
+        // keep the IN lists to a reasonable size for large clusters
+        for (int i = 0; i < vmIds.size(); i += 500) {
+            SearchCriteria<VMSnapshotVO> sc = SnapshotsStatusSearch.create();
+            sc.setParameters("vm_id", vmIds.subList(i, Math.min(i + 500, vmIds.size())).toArray());
+            sc.setParameters("state", (Object[])status);
+            snapshots.addAll(listBy(sc, null));
+        }
+        return snapshots;
+    }
+
     @Override
     public VMSnapshotVO findCurrentSnapshotByVmId(Long vmId) {
         SearchCriteria<VMSnapshotVO> sc = AllFieldsSearch.create();
@@ -60,6 +60,12 @@ public class VMReservationVO implements Identity, InternalIdentity {
     @Column(name = "host_id")
     private long hostId;
 
+    @Column(name = "reserved_cpu")
+    private long reservedCpu;
+
+    @Column(name = "reserved_ram")
+    private long reservedRam;
+
     @Column(name = GenericDao.CREATED_COLUMN)
     private Date created;
 
@@ -116,6 +122,23 @@ public class VMReservationVO implements Identity, InternalIdentity {
         return hostId;
     }
 
+    public Date getCreated() {
+        return created;
+    }
+
+    public long getReservedCpu() {
+        return reservedCpu;
+    }
+
+    public long getReservedRam() {
+        return reservedRam;
+    }
+
+    public void setReservedCapacity(long reservedCpu, long reservedRam) {
+        this.reservedCpu = reservedCpu;
+        this.reservedRam = reservedRam;
+    }
+
     public Map<Long, Long> getVolumeReservation() {
         return volumeReservationMap;
     }
@@ -16,6 +16,9 @@
 // under the License.
 package org.apache.cloudstack.engine.cloud.entity.api.db.dao;
 
+import java.util.Date;
+import java.util.List;
+
 import org.apache.cloudstack.engine.cloud.entity.api.db.VMReservationVO;
 
 import com.cloud.utils.db.GenericDao;
@@ -28,4 +31,10 @@ public interface VMReservationDao extends GenericDao<VMReservationVO, Long> {
 
     VMReservationVO findByReservationId(String reservationId);
 
+    List<VMReservationVO> listHoldingCapacityByVmId(long vmId);
+
+    List<VMReservationVO> listHoldingCapacityByHostId(long hostId);
+
+    List<VMReservationVO> listHoldingCapacityCreatedBefore(Date cutoff);
+
 }
@@ -16,6 +16,7 @@
 // under the License.
 package org.apache.cloudstack.engine.cloud.entity.api.db.dao;
 
+import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -40,6 +41,7 @@ import com.cloud.utils.db.TransactionLegacy;
 public class VMReservationDaoImpl extends GenericDaoBase<VMReservationVO, Long> implements VMReservationDao {
 
     protected SearchBuilder<VMReservationVO> VmIdSearch;
+    protected SearchBuilder<VMReservationVO> HoldingCapacitySearch;
 
     @Inject
     protected VolumeReservationDao _volumeReservationDao;
@@ -52,6 +54,16 @@ public class VMReservationDaoImpl extends GenericDaoBase<VMReservationVO, Long>
         VmIdSearch = createSearchBuilder();
         VmIdSearch.and("vmId", VmIdSearch.entity().getVmId(), SearchCriteria.Op.EQ);
         VmIdSearch.done();
+
+        HoldingCapacitySearch = createSearchBuilder();
+        HoldingCapacitySearch.and("vmId", HoldingCapacitySearch.entity().getVmId(), SearchCriteria.Op.EQ);
+        HoldingCapacitySearch.and("hostId", HoldingCapacitySearch.entity().getHostId(), SearchCriteria.Op.EQ);
+        HoldingCapacitySearch.and("createdBefore", HoldingCapacitySearch.entity().getCreated(), SearchCriteria.Op.LT);
+        HoldingCapacitySearch.and()
+            .op("reservedCpu", HoldingCapacitySearch.entity().getReservedCpu(), SearchCriteria.Op.GT)
+            .or("reservedRam", HoldingCapacitySearch.entity().getReservedRam(), SearchCriteria.Op.GT)
+            .cp();
+        HoldingCapacitySearch.done();
     }
 
     @Override
@@ -107,4 +119,32 @@ public class VMReservationDaoImpl extends GenericDaoBase<VMReservationVO, Long>
         loadVolumeReservation(vmRes);
         return vmRes;
     }
+
+    @Override
+    public List<VMReservationVO> listHoldingCapacityByVmId(long vmId) {
+        SearchCriteria<VMReservationVO> sc = createHoldingCapacityCriteria();
+        sc.setParameters("vmId", vmId);
+        return listBy(sc);
+    }
+
+    @Override
+    public List<VMReservationVO> listHoldingCapacityByHostId(long hostId) {
+        SearchCriteria<VMReservationVO> sc = createHoldingCapacityCriteria();
+        sc.setParameters("hostId", hostId);
+        return listBy(sc);
+    }
+
+    @Override
+    public List<VMReservationVO> listHoldingCapacityCreatedBefore(Date cutoff) {
+        SearchCriteria<VMReservationVO> sc = createHoldingCapacityCriteria();
+        sc.setParameters("createdBefore", cutoff);
+        return listBy(sc);
+    }
+
+    private SearchCriteria<VMReservationVO> createHoldingCapacityCriteria() {
+        SearchCriteria<VMReservationVO> sc = HoldingCapacitySearch.create();
+        sc.setParameters("reservedCpu", 0);
+        sc.setParameters("reservedRam", 0);
+        return sc;
+    }
 }
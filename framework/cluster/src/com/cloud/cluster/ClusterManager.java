@@ -52,6 +52,18 @@ public interface ClusterManager extends Manager {
 
     void registerDispatcher(Dispatcher dispatcher);
 
+    /**
+     * Publish a fire-and-forget message to all other active management server nodes.
+     * Delivery is best-effort, receivers should be able to recover from a lost message.
+     * @param subject subject listeners have registered on
+     * @param message message body
+     */
+    void publishMessage(String subject, String message);
+
+    void registerMessageListener(String subject, ClusterMessageListener listener);
+
+    void unregisterMessageListener(String subject, ClusterMessageListener listener);
+
     ManagementServerHost getPeer(String peerName);
 
     String getSelfPeerName();
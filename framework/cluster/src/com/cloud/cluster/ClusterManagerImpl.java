@@ -32,6 +32,8 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
@@ -76,7 +78,8 @@ public class ClusterManagerImpl extends ManagerBase implements ClusterManager, C
     private static final int DEFAULT_OUTGOING_WORKERS = 5;
 
     private final List<ClusterManagerListener> _listeners = new ArrayList<ClusterManagerListener>();
-    private final Map<Long, ManagementServerHostVO> _activePeers = new HashMap<Long, ManagementServerHostVO>();
+    private final Map<Long, ManagementServerHostVO> _activePeers = new ConcurrentHashMap<Long, ManagementServerHostVO>();
+    private final Map<String, List<ClusterMessageListener>> _messageListeners = new ConcurrentHashMap<String, List<ClusterMessageListener>>();
 
     private final Map<String, ClusterService> _clusterPeers;
 
@@ -118,6 +121,7 @@ public class ClusterManagerImpl extends ManagerBase implements ClusterManager, C
     private final List<ClusterServicePdu> _clusterPduOutgoingQueue = new ArrayList<ClusterServicePdu>();
     private final List<ClusterServicePdu> _clusterPduIncomingQueue = new ArrayList<ClusterServicePdu>();
     private final Map<Long, ClusterServiceRequestPdu> _outgoingPdusWaitingForAck = new HashMap<Long, ClusterServiceRequestPdu>();
+    private final ConcurrentHashMap<String, ClusterPeerStats> _peerStats = new ConcurrentHashMap<String, ClusterPeerStats>();
 
     public ClusterManagerImpl() {
         _clusterPeers = new HashMap<String, ClusterService>();
@@ -244,43 +248,116 @@ public class ClusterManagerImpl extends ManagerBase implements ClusterManager, C
                 if (pdu == null)
                     continue;
 
-                ClusterService peerService = null;
-                for (int i = 0; i < 2; i++) {
-                    try {
-                        peerService = getPeerService(pdu.getDestPeer());
-                    } catch (RemoteException e) {
-                        s_logger.error("Unable to get cluster service on peer : " + pdu.getDestPeer());
+                sendClusterPdu(pdu, 0);
+            } catch (Throwable e) {
+                s_logger.error("Unexcpeted exception: ", e);
+            }
+        }
+    }
+
+    private void sendClusterPdu(final ClusterServicePdu pdu, final int firstIteration) {
+        ClusterService peerService = null;
+        for (int i = firstIteration; i < 2; i++) {
+            try {
+                peerService = getPeerService(pdu.getDestPeer());
+            } catch (RemoteException e) {
+                s_logger.error("Unable to get cluster service on peer : " + pdu.getDestPeer());
+            }
+
+            if (peerService != null) {
+                final ClusterPeerStats stats = getPeerStats(pdu.getDestPeer());
+                boolean sent = false;
+                boolean async = false;
+                final long startTick = System.currentTimeMillis();
+                stats.sending();
+                try {
+                    if (s_logger.isDebugEnabled()) {
+                        s_logger.debug("Cluster PDU " + getSelfPeerName() + " -> " + pdu.getDestPeer() + ". agent: " + pdu.getAgentId() + ", pdu seq: " +
+                            pdu.getSequenceId() + ", pdu ack seq: " + pdu.getAckSequenceId() + ", json: " + pdu.getJsonPackage());
                     }
 
-                    if (peerService != null) {
-                        try {
-                            if (s_logger.isDebugEnabled()) {
-                                s_logger.debug("Cluster PDU " + getSelfPeerName() + " -> " + pdu.getDestPeer() + ". agent: " + pdu.getAgentId() + ", pdu seq: " +
-                                    pdu.getSequenceId() + ", pdu ack seq: " + pdu.getAckSequenceId() + ", json: " + pdu.getJsonPackage());
-                            }
+                    if (peerService instanceof ClusterServiceNioImpl) {
+                        // pipelined: the worker moves on to the next PDU while the peer receives this one
+                        ((ClusterServiceNioImpl)peerService).executeAsync(pdu, new PduResultListener(pdu, i, stats, startTick));
+                        async = true;
+                        return;
+                    }
 
-                            long startTick = System.currentTimeMillis();
-                            String strResult = peerService.execute(pdu);
-                            if (s_logger.isDebugEnabled()) {
-                                s_logger.debug("Cluster PDU " + getSelfPeerName() + " -> " + pdu.getDestPeer() + " completed. time: " +
-                                    (System.currentTimeMillis() - startTick) + "ms. agent: " + pdu.getAgentId() + ", pdu seq: " + pdu.getSequenceId() +
-                                    ", pdu ack seq: " + pdu.getAckSequenceId() + ", json: " + pdu.getJsonPackage());
-                            }
+                    String strResult = peerService.execute(pdu);
+                    sent = "true".equals(strResult);
+                    if (s_logger.isDebugEnabled()) {
+                        s_logger.debug("Cluster PDU " + getSelfPeerName() + " -> " + pdu.getDestPeer() + " completed. time: " +
+                            (System.currentTimeMillis() - startTick) + "ms. agent: " + pdu.getAgentId() + ", pdu seq: " + pdu.getSequenceId() +
+                            ", pdu ack seq: " + pdu.getAckSequenceId() + ", json: " + pdu.getJsonPackage());
+                    }
 
-                            if ("true".equals(strResult))
-                                break;
+                    if (sent)
+                        return;
 
-                        } catch (RemoteException e) {
-                            invalidatePeerService(pdu.getDestPeer());
-                            if (s_logger.isInfoEnabled()) {
-                                s_logger.info("Exception on remote execution, peer: " + pdu.getDestPeer() + ", iteration: " + i + ", exception message :" +
-                                    e.getMessage());
-                            }
-                        }
+                } catch (RemoteException e) {
+                    invalidatePeerService(pdu.getDestPeer());
+                    if (s_logger.isInfoEnabled()) {
+                        s_logger.info("Exception on remote execution, peer: " + pdu.getDestPeer() + ", iteration: " + i + ", exception message :" +
+                            e.getMessage());
+                    }
+                } finally {
+                    if (!async) {
+                        stats.sent(System.currentTimeMillis() - startTick, sent);
                     }
                 }
-            } catch (Throwable e) {
-                s_logger.error("Unexcpeted exception: ", e);
+            }
+        }
+    }
+
+    /**
+     * Completes a PDU sent without waiting for the peer.  It is told on a
+     * thread of the peer connection, so a retry goes to the worker pool.
+     */
+    private class PduResultListener implements ClusterServiceNioImpl.ResultListener {
+        private final ClusterServicePdu _pdu;
+        private final int _iteration;
+        private final ClusterPeerStats _stats;
+        private final long _startTick;
+
+        PduResultListener(ClusterServicePdu pdu, int iteration, ClusterPeerStats stats, long startTick) {
+            _pdu = pdu;
+            _iteration = iteration;
+            _stats = stats;
+            _startTick = startTick;
+        }
+
+        @Override
+        public void onResult(String result) {
+            boolean sent = "true".equals(result);
+            _stats.sent(System.currentTimeMillis() - _startTick, sent);
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Cluster PDU " + getSelfPeerName() + " -> " + _pdu.getDestPeer() + " completed. time: " +
+                    (System.currentTimeMillis() - _startTick) + "ms. agent: " + _pdu.getAgentId() + ", pdu seq: " + _pdu.getSequenceId() +
+                    ", pdu ack seq: " + _pdu.getAckSequenceId() + ", json: " + _pdu.getJsonPackage());
+            }
+            if (!sent) {
+                retry();
+            }
+        }
+
+        @Override
+        public void onFailure(String reason) {
+            _stats.sent(System.currentTimeMillis() - _startTick, false);
+            invalidatePeerService(_pdu.getDestPeer());
+            if (s_logger.isInfoEnabled()) {
+                s_logger.info("Exception on remote execution, peer: " + _pdu.getDestPeer() + ", iteration: " + _iteration + ", exception message :" + reason);
+            }
+            retry();
+        }
+
+        private void retry() {
+            if (_iteration + 1 < 2) {
+                _executor.execute(new ManagedContextRunnable() {
+                    @Override
+                    protected void runInContext() {
+                        sendClusterPdu(_pdu, _iteration + 1);
+                    }
+                });
             }
         }
     }
@@ -295,7 +372,9 @@ public class ClusterManagerImpl extends ManagerBase implements ClusterManager, C
                 _executor.execute(new ManagedContextRunnable() {
                     @Override
                     protected void runInContext() {
-                        if (pdu.getPduType() == ClusterServicePdu.PDU_TYPE_RESPONSE) {
+                        if (pdu.getPduType() == ClusterServicePdu.PDU_TYPE_CLUSTER_MESSAGE) {
+                            notifyMessageListeners(pdu);
+                        } else if (pdu.getPduType() == ClusterServicePdu.PDU_TYPE_RESPONSE) {
                             ClusterServiceRequestPdu requestPdu = popRequestPdu(pdu.getAckSequenceId());
                             if (requestPdu != null) {
                                 requestPdu.setResponseResult(pdu.getJsonPackage());
@@ -367,6 +446,65 @@ public class ClusterManagerImpl extends ManagerBase implements ClusterManager, C
         }
     }
 
+    @Override
+    public void publishMessage(String subject, String message) {
+        String selfPeerName = getSelfPeerName();
+        for (ManagementServerHostVO peer : _activePeers.values()) {
+            String peerName = Long.toString(peer.getMsid());
+            if (selfPeerName.equals(peerName)) {
+                continue;
+            }
+
+            ClusterServicePdu pdu = new ClusterServicePdu();
+            pdu.setPduType(ClusterServicePdu.PDU_TYPE_CLUSTER_MESSAGE);
+            pdu.setSourcePeer(selfPeerName);
+            pdu.setDestPeer(peerName);
+            pdu.setSubject(subject);
+            pdu.setJsonPackage(message);
+            addOutgoingClusterPdu(pdu);
+        }
+    }
+
+    @Override
+    public void registerMessageListener(String subject, ClusterMessageListener listener) {
+        synchronized (_messageListeners) {
+            List<ClusterMessageListener> listeners = _messageListeners.get(subject);
+            if (listeners == null) {
+                listeners = new CopyOnWriteArrayList<ClusterMessageListener>();
+                _messageListeners.put(subject, listeners);
+            }
+            listeners.add(listener);
+        }
+    }
+
+    @Override
+    public void unregisterMessageListener(String subject, ClusterMessageListener listener) {
+        synchronized (_messageListeners) {
+            List<ClusterMessageListener> listeners = _messageListeners.get(subject);
+            if (listeners != null) {
+                listeners.remove(listener);
+            }
+        }
+    }
+
+    private void notifyMessageListeners(ClusterServicePdu pdu) {
+        List<ClusterMessageListener> listeners = pdu.getSubject() != null ? _messageListeners.get(pdu.getSubject()) : null;
+        if (listeners == null) {
+            if (s_logger.isTraceEnabled()) {
+                s_logger.trace("No listener for cluster message from " + pdu.getSourcePeer() + ", subject: " + pdu.getSubject());
+            }
+            return;
+        }
+
+        for (ClusterMessageListener listener : listeners) {
+            try {
+                listener.onClusterMessage(pdu.getSourcePeer(), pdu.getSubject(), pdu.getJsonPackage());
+            } catch (Throwable e) {
+                s_logger.warn("Unexpected exception in cluster message listener " + listener.getClass() + ", subject: " + pdu.getSubject(), e);
+            }
+        }
+    }
+
     public void executeAsync(String strPeer, long agentId, String cmds, boolean stopOnError) {
         ClusterServicePdu pdu = new ClusterServicePdu();
         pdu.setSourcePeer(getSelfPeerName());
@@ -515,6 +653,21 @@ public class ClusterManagerImpl extends ManagerBase implements ClusterManager, C
         return service;
     }
 
+    /**
+     * @return counters of the PDUs sent to the peer.
+     */
+    public ClusterPeerStats getPeerStats(String strPeer) {
+        ClusterPeerStats stats = _peerStats.get(strPeer);
+        if (stats == null) {
+            stats = new ClusterPeerStats();
+            ClusterPeerStats existing = _peerStats.putIfAbsent(strPeer, stats);
+            if (existing != null) {
+                stats = existing;
+            }
+        }
+        return stats;
+    }
+
     public void invalidatePeerService(String strPeer) {
         synchronized (_clusterPeers) {
             if (_clusterPeers.containsKey(strPeer)) {
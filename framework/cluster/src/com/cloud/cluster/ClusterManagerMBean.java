@@ -28,4 +28,14 @@ public interface ClusterManagerMBean {
     public int getHeartbeatInterval();
 
     public int getHeartbeatThreshold();
+
+    public int getPeerInFlight();
+
+    public long getPeerSentCount();
+
+    public long getPeerFailedCount();
+
+    public long getPeerAverageLatency();
+
+    public long getPeerMaxLatency();
 }
@@ -64,4 +64,33 @@ public class ClusterManagerMBeanImpl extends StandardMBean implements ClusterMan
     public int getHeartbeatThreshold() {
         return ClusterManager.HeartbeatThreshold.value();
     }
+
+    @Override
+    public int getPeerInFlight() {
+        return getPeerStats().getInFlight();
+    }
+
+    @Override
+    public long getPeerSentCount() {
+        return getPeerStats().getSentCount();
+    }
+
+    @Override
+    public long getPeerFailedCount() {
+        return getPeerStats().getFailedCount();
+    }
+
+    @Override
+    public long getPeerAverageLatency() {
+        return getPeerStats().getAverageLatency();
+    }
+
+    @Override
+    public long getPeerMaxLatency() {
+        return getPeerStats().getMaxLatency();
+    }
+
+    private ClusterPeerStats getPeerStats() {
+        return _clusterMgr.getPeerStats(String.valueOf(_mshostVo.getMsid()));
+    }
 }
@@ -0,0 +1,72 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.cluster;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ClusterPeerStats counts the PDUs sent to one peer and how long the peer
+ * took to receive them.
+ */
+public class ClusterPeerStats {
+    private final AtomicInteger _inFlight = new AtomicInteger();
+    private final AtomicLong _sentCount = new AtomicLong();
+    private final AtomicLong _failedCount = new AtomicLong();
+    private final AtomicLong _totalLatency = new AtomicLong();
+    private final AtomicLong _maxLatency = new AtomicLong();
+
+    public void sending() {
+        _inFlight.incrementAndGet();
+    }
+
+    public void sent(long latency, boolean success) {
+        _inFlight.decrementAndGet();
+        if (!success) {
+            _failedCount.incrementAndGet();
+            return;
+        }
+
+        _sentCount.incrementAndGet();
+        _totalLatency.addAndGet(latency);
+        long max = _maxLatency.get();
+        while (latency > max && !_maxLatency.compareAndSet(max, latency)) {
+            max = _maxLatency.get();
+        }
+    }
+
+    public int getInFlight() {
+        return _inFlight.get();
+    }
+
+    public long getSentCount() {
+        return _sentCount.get();
+    }
+
+    public long getFailedCount() {
+        return _failedCount.get();
+    }
+
+    public long getAverageLatency() {
+        long count = _sentCount.get();
+        return count == 0 ? 0 : _totalLatency.get() / count;
+    }
+
+    public long getMaxLatency() {
+        return _maxLatency.get();
+    }
+}
@@ -0,0 +1,165 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.cluster;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import com.cloud.utils.exception.CloudRuntimeException;
+
+/**
+ * ClusterServiceFrame is one message on a peer channel.  Every PDU and ping
+ * frame carries an id that the receiving peer echoes back in the result
+ * frame, so any number of them can be outstanding on the same channel.  The
+ * id belongs to the sending channel; a PDU keeps its own sequence id.
+ *
+ * A frame looks as follows:
+ * 1. Type - 1 byte;
+ * 2. Id - 8 bytes;
+ * 3. For a PDU, the fields of ClusterServicePdu starting with its sequence
+ *    id; for a ping, the calling peer; for a result, the result string.
+ */
+public class ClusterServiceFrame {
+    public static final byte TYPE_PDU = 1;
+    public static final byte TYPE_PING = 2;
+    public static final byte TYPE_RESULT = 3;
+
+    private final byte _type;
+    private final long _id;
+    private ClusterServicePdu _pdu;
+    private String _content;
+
+    private ClusterServiceFrame(byte type, long id) {
+        _type = type;
+        _id = id;
+    }
+
+    public static ClusterServiceFrame pdu(long id, ClusterServicePdu pdu) {
+        ClusterServiceFrame frame = new ClusterServiceFrame(TYPE_PDU, id);
+        frame._pdu = pdu;
+        return frame;
+    }
+
+    public static ClusterServiceFrame ping(long id, String callingPeer) {
+        ClusterServiceFrame frame = new ClusterServiceFrame(TYPE_PING, id);
+        frame._content = callingPeer;
+        return frame;
+    }
+
+    public static ClusterServiceFrame result(long id, String result) {
+        ClusterServiceFrame frame = new ClusterServiceFrame(TYPE_RESULT, id);
+        frame._content = result;
+        return frame;
+    }
+
+    public byte getType() {
+        return _type;
+    }
+
+    public long getId() {
+        return _id;
+    }
+
+    public ClusterServicePdu getPdu() {
+        return _pdu;
+    }
+
+    /**
+     * @return calling peer of a ping or result of a result frame.
+     */
+    public String getContent() {
+        return _content;
+    }
+
+    public byte[] toBytes() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(_pdu != null && _pdu.getJsonPackage() != null ? _pdu.getJsonPackage().length() + 128 : 64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(_type);
+            out.writeLong(_id);
+            if (_type == TYPE_PDU) {
+                out.writeLong(_pdu.getSequenceId());
+                out.writeLong(_pdu.getAckSequenceId());
+                out.writeInt(_pdu.getPduType());
+                out.writeLong(_pdu.getAgentId());
+                out.writeBoolean(_pdu.isStopOnError());
+                writeString(out, _pdu.getSourcePeer());
+                writeString(out, _pdu.getDestPeer());
+                writeString(out, _pdu.getSubject());
+                writeString(out, _pdu.getJsonPackage());
+            } else {
+                writeString(out, _content);
+            }
+            out.flush();
+        } catch (IOException e) {
+            throw new CloudRuntimeException("Unable to encode cluster frame " + _id, e);
+        }
+        return bytes.toByteArray();
+    }
+
+    public static ClusterServiceFrame parse(byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        byte type = in.readByte();
+        long id = in.readLong();
+        ClusterServiceFrame frame = new ClusterServiceFrame(type, id);
+        switch (type) {
+            case TYPE_PDU:
+                ClusterServicePdu pdu = new ClusterServicePdu();
+                pdu.setSequenceId(in.readLong());
+                pdu.setAckSequenceId(in.readLong());
+                pdu.setPduType(in.readInt());
+                pdu.setAgentId(in.readLong());
+                pdu.setStopOnError(in.readBoolean());
+                pdu.setSourcePeer(readString(in));
+                pdu.setDestPeer(readString(in));
+                pdu.setSubject(readString(in));
+                pdu.setJsonPackage(readString(in));
+                frame._pdu = pdu;
+                break;
+            case TYPE_PING:
+            case TYPE_RESULT:
+                frame._content = readString(in);
+                break;
+            default:
+                throw new IOException("Unknown cluster frame type " + type);
+        }
+        return frame;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+}
@@ -0,0 +1,159 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.cluster;
+
+import java.rmi.RemoteException;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.naming.ConfigurationException;
+
+import org.apache.log4j.Logger;
+
+import org.apache.cloudstack.framework.config.ConfigKey;
+import org.apache.cloudstack.framework.config.Configurable;
+
+import com.cloud.utils.nio.NioServer;
+
+/**
+ * ClusterServiceNioAdapter talks to peers over persistent nio connections
+ * instead of posting every PDU over http.  The nio server listens right
+ * above the cluster service port; the http servlet keeps serving the
+ * cluster service port itself, so peers running an older version still
+ * reach this one and are reached over http when they take no nio
+ * connections.  Such a peer is not tried over nio again until
+ * cluster.peer.nio.retry.interval has passed.  The connection to a peer is
+ * kept for as long as it works, so it outlives the ClusterService that
+ * ClusterManagerImpl caches and invalidates.
+ */
+public class ClusterServiceNioAdapter extends ClusterServiceServletAdapter implements Configurable {
+    private static final Logger s_logger = Logger.getLogger(ClusterServiceNioAdapter.class);
+
+    // peers listen for nio connections on their cluster service port plus this
+    public static final int NIO_PORT_OFFSET = 1;
+
+    static final ConfigKey<Integer> PeerMaxInFlight = new ConfigKey<Integer>(Integer.class, "cluster.peer.max.inflight", "Advanced", "256",
+        "Maximum number of PDUs sent to a peer management server that may wait for it to receive them before senders are held back.", false);
+    static final ConfigKey<Integer> PeerServiceWorkers = new ConfigKey<Integer>(Integer.class, "cluster.peer.service.workers", "Advanced", "5",
+        "Number of threads handling PDUs received from peer management servers.", false);
+    static final ConfigKey<Integer> PeerConnectTimeout = new ConfigKey<Integer>(Integer.class, "cluster.peer.connect.timeout", "Advanced", "5",
+        "Seconds to wait for a peer management server to take a nio connection before falling back to http.", false);
+    static final ConfigKey<Integer> PeerNioRetryInterval = new ConfigKey<Integer>(Integer.class, "cluster.peer.nio.retry.interval", "Advanced", "300",
+        "Seconds a peer management server which took no nio connection is talked to over http before nio is tried again.", false);
+
+    private NioServer _server;
+
+    private final Map<String, ClusterServiceNioImpl> _peers = new HashMap<String, ClusterServiceNioImpl>();
+    // peers which took no nio connection, with the time to try nio on them again
+    private final Map<String, Long> _httpPeers = new HashMap<String, Long>();
+
+    @Override
+    public ClusterService getPeerService(String strPeer) throws RemoteException {
+        boolean useHttp = false;
+        synchronized (_peers) {
+            ClusterServiceNioImpl service = _peers.get(strPeer);
+            if (service != null && !service.isClosed()) {
+                return service;
+            }
+            _peers.remove(strPeer);
+
+            Long retryTime = _httpPeers.get(strPeer);
+            if (retryTime != null) {
+                if (retryTime > System.currentTimeMillis()) {
+                    useHttp = true;
+                } else {
+                    _httpPeers.remove(strPeer);
+                }
+            }
+        }
+        if (useHttp) {
+            return super.getPeerService(strPeer);
+        }
+
+        ManagementServerHostVO mshost = _mshostDao.findByMsid(Long.parseLong(strPeer));
+        if (mshost == null) {
+            return null;
+        }
+
+        ClusterServiceNioImpl service = new ClusterServiceNioImpl(strPeer, mshost.getServiceIP(), mshost.getServicePort() + NIO_PORT_OFFSET,
+            PeerConnectTimeout.value() * 1000, PeerMaxInFlight.value());
+        try {
+            service.open();
+        } catch (RemoteException e) {
+            if (s_logger.isInfoEnabled()) {
+                s_logger.info("Peer " + strPeer + " takes no nio connections, using http for the next " + PeerNioRetryInterval.value() + " seconds: " +
+                    e.getMessage());
+            }
+            synchronized (_peers) {
+                _httpPeers.put(strPeer, System.currentTimeMillis() + PeerNioRetryInterval.value() * 1000L);
+            }
+            return super.getPeerService(strPeer);
+        }
+
+        synchronized (_peers) {
+            ClusterServiceNioImpl existing = _peers.get(strPeer);
+            if (existing != null && !existing.isClosed()) {
+                service.close();
+                return existing;
+            }
+            _peers.put(strPeer, service);
+        }
+        return service;
+    }
+
+    @Override
+    public boolean configure(String name, Map<String, Object> params) throws ConfigurationException {
+        super.configure(name, params);
+        if (s_logger.isInfoEnabled()) {
+            s_logger.info("Cluster nio port : " + (getServicePort() + NIO_PORT_OFFSET));
+        }
+        return true;
+    }
+
+    @Override
+    public boolean start() {
+        super.start();
+        _server = new NioServer("ClusterService", getServicePort() + NIO_PORT_OFFSET, PeerServiceWorkers.value(), new ClusterServiceNioHandler(_manager));
+        _server.start();
+        return true;
+    }
+
+    @Override
+    public boolean stop() {
+        if (_server != null) {
+            _server.stop();
+        }
+        synchronized (_peers) {
+            for (ClusterServiceNioImpl service : _peers.values()) {
+                service.close();
+            }
+            _peers.clear();
+            _httpPeers.clear();
+        }
+        return super.stop();
+    }
+
+    @Override
+    public String getConfigComponentName() {
+        return ClusterServiceNioAdapter.class.getSimpleName();
+    }
+
+    @Override
+    public ConfigKey<?>[] getConfigKeys() {
+        return new ConfigKey<?>[] {PeerMaxInFlight, PeerServiceWorkers, PeerConnectTimeout, PeerNioRetryInterval};
+    }
+}
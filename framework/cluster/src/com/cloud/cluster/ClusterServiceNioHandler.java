@@ -0,0 +1,92 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.cluster;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.nio.HandlerFactory;
+import com.cloud.utils.nio.Link;
+import com.cloud.utils.nio.Task;
+
+/**
+ * ClusterServiceNioHandler receives the frames peers send over their
+ * channels.  It is the counterpart of ClusterServiceServletHttpHandler.
+ */
+public class ClusterServiceNioHandler implements HandlerFactory {
+    private static final Logger s_logger = Logger.getLogger(ClusterServiceNioHandler.class);
+
+    private final ClusterManager _manager;
+
+    public ClusterServiceNioHandler(ClusterManager manager) {
+        _manager = manager;
+    }
+
+    @Override
+    public Task create(Task.Type type, Link link, byte[] data) {
+        return new ServerTask(type, link, data);
+    }
+
+    protected class ServerTask extends Task {
+        public ServerTask(Task.Type type, Link link, byte[] data) {
+            super(type, link, data);
+        }
+
+        @Override
+        protected void doTask(Task task) throws Exception {
+            if (task.getType() == Task.Type.CONNECT) {
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug("Peer connected from " + task.getLink().getSocketAddress());
+                }
+            } else if (task.getType() == Task.Type.DISCONNECT) {
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug("Peer disconnected from " + task.getLink().getSocketAddress());
+                }
+            } else if (task.getType() == Task.Type.DATA) {
+                ClusterServiceFrame frame;
+                try {
+                    frame = ClusterServiceFrame.parse(task.getData());
+                } catch (IOException e) {
+                    s_logger.warn("Unable to parse frame from " + task.getLink().getSocketAddress() + ", closing the connection", e);
+                    task.getLink().close();
+                    return;
+                }
+
+                String result = null;
+                if (frame.getType() == ClusterServiceFrame.TYPE_PDU) {
+                    _manager.OnReceiveClusterServicePdu(frame.getPdu());
+                    result = "true";
+                } else if (frame.getType() == ClusterServiceFrame.TYPE_PING) {
+                    if (s_logger.isDebugEnabled()) {
+                        s_logger.debug("Handle ping request from " + frame.getContent());
+                    }
+                    result = "true";
+                } else {
+                    s_logger.warn("Unexpected frame type " + frame.getType() + " from " + task.getLink().getSocketAddress());
+                }
+
+                try {
+                    task.getLink().send(ClusterServiceFrame.result(frame.getId(), result).toBytes());
+                } catch (ClosedChannelException e) {
+                    s_logger.debug("Unable to send result of " + frame.getId() + ", connection is closed");
+                }
+            }
+        }
+    }
+}
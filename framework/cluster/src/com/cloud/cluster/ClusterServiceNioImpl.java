@@ -0,0 +1,348 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.cluster;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.rmi.RemoteException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.concurrency.NamedThreadFactory;
+import com.cloud.utils.nio.HandlerFactory;
+import com.cloud.utils.nio.Link;
+import com.cloud.utils.nio.NioClient;
+import com.cloud.utils.nio.Task;
+
+/**
+ * ClusterServiceNioImpl keeps one persistent connection to a peer and
+ * pipelines PDUs over it.  PDUs can be sent without waiting for the peer
+ * to receive them, see executeAsync; callers of execute block only for the
+ * result of their own PDU.  The number of PDUs waiting for a result is
+ * bounded so a slow peer pushes back on its senders instead of queueing
+ * without limit.
+ */
+public class ClusterServiceNioImpl implements ClusterService, HandlerFactory {
+    private static final long serialVersionUID = -3468283815377962131L;
+    private static final Logger s_logger = Logger.getLogger(ClusterServiceNioImpl.class);
+
+    private static final int CLIENT_WORKERS = 2;
+
+    // frame ids are unique across all channels of this process
+    private static final AtomicLong s_nextFrameId = new AtomicLong();
+    private static final ScheduledExecutorService s_timeoutChecker = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("ClusterPeer-Timeout"));
+
+    private final String _peer;
+    private final String _host;
+    private final int _port;
+    private final int _connectTimeout;
+    private final Semaphore _inFlight;
+    private final Map<Long, PendingResult> _pending = new ConcurrentHashMap<Long, PendingResult>();
+    private final ScheduledFuture<?> _timeoutCheck;
+
+    private NioClient _client;
+    private volatile Link _link;
+    private volatile boolean _closed = false;
+    private final CountDownLatch _connected = new CountDownLatch(1);
+
+    /**
+     * Told about the result of a PDU sent with executeAsync, on a thread of
+     * the connection; it should not block.
+     */
+    public interface ResultListener {
+        void onResult(String result);
+
+        void onFailure(String reason);
+    }
+
+    /**
+     * @param connectTimeout milliseconds to wait for the peer to take the connection.
+     */
+    public ClusterServiceNioImpl(String peer, String host, int port, int connectTimeout, int maxInFlight) {
+        _peer = peer;
+        _host = host;
+        _port = port;
+        _connectTimeout = connectTimeout;
+        _inFlight = new Semaphore(maxInFlight);
+        _timeoutCheck = s_timeoutChecker.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                failTimedOut();
+            }
+        }, 1, 1, TimeUnit.SECONDS);
+    }
+
+    public String getPeer() {
+        return _peer;
+    }
+
+    public boolean isClosed() {
+        return _closed;
+    }
+
+    /**
+     * Connects to the peer ahead of the first PDU.
+     */
+    public void open() throws RemoteException {
+        connect(_connectTimeout);
+    }
+
+    @Override
+    public String execute(ClusterServicePdu pdu) throws RemoteException {
+        return call(ClusterServiceFrame.pdu(s_nextFrameId.incrementAndGet(), pdu));
+    }
+
+    /**
+     * Sends the PDU and returns without waiting for the peer to receive it.
+     * Blocks only while too many PDUs are waiting for the peer already.
+     */
+    public void executeAsync(ClusterServicePdu pdu, ResultListener listener) throws RemoteException {
+        send(ClusterServiceFrame.pdu(s_nextFrameId.incrementAndGet(), pdu), listener);
+    }
+
+    @Override
+    public boolean ping(String callingPeer) throws RemoteException {
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Ping at " + _host + ":" + _port);
+        }
+        return "true".equalsIgnoreCase(call(ClusterServiceFrame.ping(s_nextFrameId.incrementAndGet(), callingPeer)));
+    }
+
+    protected String call(ClusterServiceFrame frame) throws RemoteException {
+        BlockingResult result = new BlockingResult();
+        send(frame, result);
+        return result.get(getTimeout());
+    }
+
+    protected void send(ClusterServiceFrame frame, ResultListener listener) throws RemoteException {
+        long timeout = getTimeout();
+        Link link = connect(timeout);
+
+        try {
+            if (!_inFlight.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+                throw new RemoteException("Timed out waiting to send to peer " + _peer + ", too many PDUs in flight");
+            }
+        } catch (InterruptedException e) {
+            throw new RemoteException("Interrupted while waiting to send to peer " + _peer);
+        }
+
+        long id = frame.getId();
+        _pending.put(id, new PendingResult(listener, System.currentTimeMillis() + timeout));
+        try {
+            link.send(frame.toBytes());
+        } catch (ClosedChannelException e) {
+            finish(id);
+            close();
+            throw new RemoteException("Connection to peer " + _peer + " is closed");
+        }
+    }
+
+    private long getTimeout() {
+        return ClusterServiceAdapter.ClusterMessageTimeOut.value() * 1000L;
+    }
+
+    /**
+     * @return the PDU waiting for the result, null if it is no longer waiting.
+     */
+    private PendingResult finish(long id) {
+        PendingResult pending = _pending.remove(id);
+        if (pending != null) {
+            _inFlight.release();
+        }
+        return pending;
+    }
+
+    private void failTimedOut() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<Long, PendingResult> entry : _pending.entrySet()) {
+            if (entry.getValue().getDeadline() <= now) {
+                PendingResult pending = finish(entry.getKey());
+                if (pending != null) {
+                    pending.getListener().onFailure("Timed out waiting for peer " + _peer + " to receive " + entry.getKey());
+                }
+            }
+        }
+    }
+
+    protected Link connect(long timeout) throws RemoteException {
+        if (_closed) {
+            throw new RemoteException("Connection to peer " + _peer + " is closed");
+        }
+        Link link = _link;
+        if (link != null) {
+            return link;
+        }
+
+        synchronized (this) {
+            if (_client == null) {
+                _client = new NioClient("ClusterPeer-" + _peer, _host, _port, CLIENT_WORKERS, this);
+                _client.setConnectTimeout(_connectTimeout);
+                _client.start();
+                if (!_client.isStartup()) {
+                    close();
+                    throw new RemoteException("Unable to connect to peer " + _peer + " at " + _host + ":" + _port);
+                }
+            }
+        }
+
+        try {
+            if (!_connected.await(timeout, TimeUnit.MILLISECONDS) || _link == null) {
+                close();
+                throw new RemoteException("Timed out connecting to peer " + _peer + " at " + _host + ":" + _port);
+            }
+        } catch (InterruptedException e) {
+            throw new RemoteException("Interrupted while connecting to peer " + _peer);
+        }
+        return _link;
+    }
+
+    /**
+     * Closes the connection and fails every PDU still waiting for its result.
+     */
+    public void close() {
+        NioClient client;
+        synchronized (this) {
+            _closed = true;
+            client = _client;
+            _client = null;
+        }
+        _timeoutCheck.cancel(false);
+        Link link = _link;
+        _link = null;
+        _connected.countDown();
+
+        if (link != null) {
+            link.close();
+        }
+        if (client != null) {
+            client.stop();
+            try {
+                client.cleanUp();
+            } catch (IOException e) {
+                s_logger.debug("Unable to clean up the connection to peer " + _peer + ": " + e.getMessage());
+            }
+        }
+
+        Iterator<Long> it = _pending.keySet().iterator();
+        while (it.hasNext()) {
+            PendingResult pending = finish(it.next());
+            if (pending != null) {
+                pending.getListener().onFailure("Connection to peer " + _peer + " is closed");
+            }
+        }
+    }
+
+    @Override
+    public Task create(Task.Type type, Link link, byte[] data) {
+        return new ClientTask(type, link, data);
+    }
+
+    protected class ClientTask extends Task {
+        public ClientTask(Task.Type type, Link link, byte[] data) {
+            super(type, link, data);
+        }
+
+        @Override
+        protected void doTask(Task task) throws Exception {
+            if (task.getType() == Task.Type.CONNECT) {
+                if (s_logger.isInfoEnabled()) {
+                    s_logger.info("Connected to peer " + _peer + " at " + _host + ":" + _port);
+                }
+                _link = task.getLink();
+                _connected.countDown();
+            } else if (task.getType() == Task.Type.DATA) {
+                ClusterServiceFrame frame;
+                try {
+                    frame = ClusterServiceFrame.parse(task.getData());
+                } catch (IOException e) {
+                    s_logger.warn("Unable to parse frame from peer " + _peer, e);
+                    return;
+                }
+                PendingResult pending = finish(frame.getId());
+                if (pending != null) {
+                    pending.getListener().onResult(frame.getContent());
+                } else if (s_logger.isDebugEnabled()) {
+                    s_logger.debug("Result from peer " + _peer + " for " + frame.getId() + " arrived after its caller gave up");
+                }
+            } else if (task.getType() == Task.Type.DISCONNECT) {
+                s_logger.info("Connection to peer " + _peer + " is closed");
+                close();
+            }
+        }
+    }
+
+    protected static class PendingResult {
+        private final ResultListener _listener;
+        private final long _deadline;
+
+        PendingResult(ResultListener listener, long deadline) {
+            _listener = listener;
+            _deadline = deadline;
+        }
+
+        ResultListener getListener() {
+            return _listener;
+        }
+
+        long getDeadline() {
+            return _deadline;
+        }
+    }
+
+    protected static class BlockingResult implements ResultListener {
+        private final CountDownLatch _done = new CountDownLatch(1);
+        private volatile String _result;
+        private volatile String _failure;
+
+        @Override
+        public void onResult(String result) {
+            _result = result;
+            _done.countDown();
+        }
+
+        @Override
+        public void onFailure(String reason) {
+            _failure = reason;
+            _done.countDown();
+        }
+
+        String get(long timeout) throws RemoteException {
+            try {
+                // the timeout check fails the PDU, waiting longer only covers its delay
+                if (!_done.await(timeout + 2000, TimeUnit.MILLISECONDS)) {
+                    throw new RemoteException("Timed out waiting for a result");
+                }
+            } catch (InterruptedException e) {
+                throw new RemoteException("Interrupted while waiting for a result");
+            }
+            if (_failure != null) {
+                throw new RemoteException(_failure);
+            }
+            return _result;
+        }
+    }
+}
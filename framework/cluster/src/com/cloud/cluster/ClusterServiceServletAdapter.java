@@ -39,16 +39,17 @@ public class ClusterServiceServletAdapter extends AdapterBase implements Cluster
     private static final int DEFAULT_REQUEST_TIMEOUT = 300;            // 300 seconds
 
     @Inject
-    private ClusterManager _manager;
+    protected ClusterManager _manager;
 
     @Inject
-    private ManagementServerHostDao _mshostDao;
+    protected ManagementServerHostDao _mshostDao;
     @Inject
     protected ConfigDepot _configDepot;
 
     private ClusterServiceServletContainer _servletContainer;
 
     private int _clusterServicePort = DEFAULT_SERVICE_PORT;
+    private boolean _initialized = false;
 
     @Override
     public ClusterService getPeerService(String strPeer) throws RemoteException {
@@ -116,8 +117,9 @@ public class ClusterServiceServletAdapter extends AdapterBase implements Cluster
     }
 
     private void init() throws ConfigurationException {
-        if (_mshostDao != null)
+        if (_initialized)
             return;
+        _initialized = true;
 
         Properties dbProps = DbProperties.getDbProperties();
 
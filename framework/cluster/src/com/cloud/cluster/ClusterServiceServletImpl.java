@@ -60,6 +60,9 @@ public class ClusterServiceServletImpl implements ClusterService {
         method.addParameter("gsonPackage", pdu.getJsonPackage());
         method.addParameter("stopOnError", pdu.isStopOnError() ? "1" : "0");
         method.addParameter("pduType", Integer.toString(pdu.getPduType()));
+        if (pdu.getSubject() != null) {
+            method.addParameter("subject", pdu.getSubject());
+        }
 
         return executePostMethod(client, method);
     }
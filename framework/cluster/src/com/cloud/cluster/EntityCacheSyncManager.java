@@ -0,0 +1,34 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.cluster;
+
+import org.apache.cloudstack.framework.config.ConfigKey;
+
+import com.cloud.utils.component.Manager;
+
+/**
+ * EntityCacheSyncManager keeps the DAO entity caches of all management
+ * servers coherent by relaying invalidations through the cluster manager.
+ */
+public interface EntityCacheSyncManager extends Manager {
+    static final String INVALIDATION_SUBJECT = "entity-cache-invalidation";
+
+    final ConfigKey<Boolean> EntityCacheEnabled = new ConfigKey<Boolean>(Boolean.class, "entity.cache.enabled", "Advanced", "true",
+        "Enable the second level entity cache of the DAOs configured with a cache size", false);
+    final ConfigKey<String> EntityCacheSizes = new ConfigKey<String>(String.class, "entity.cache.sizes", "Advanced", "",
+        "Per DAO entity cache overrides as a comma separated list of <dao name>=<max entries>[:<time to live in seconds>]", false);
+}
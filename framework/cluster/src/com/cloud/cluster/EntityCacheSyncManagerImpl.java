@@ -0,0 +1,173 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.cluster;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.ejb.Local;
+import javax.inject.Inject;
+import javax.naming.ConfigurationException;
+
+import org.apache.cloudstack.framework.config.ConfigKey;
+import org.apache.cloudstack.framework.config.Configurable;
+import org.apache.cloudstack.managed.context.ManagedContextRunnable;
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.NumbersUtil;
+import com.cloud.utils.component.ManagerBase;
+import com.cloud.utils.concurrency.NamedThreadFactory;
+import com.cloud.utils.db.EntityCache;
+import com.cloud.utils.db.EntityCacheNotifier;
+
+@Local(value = {EntityCacheSyncManager.class})
+public class EntityCacheSyncManagerImpl extends ManagerBase implements EntityCacheSyncManager, EntityCacheNotifier, ClusterMessageListener, Configurable {
+    private static final Logger s_logger = Logger.getLogger(EntityCacheSyncManagerImpl.class);
+
+    // invalidations are coalesced and flushed to the peers at this interval
+    private static final int FLUSH_INTERVAL_MS = 100;
+    private static final int MAX_INVALIDATIONS_PER_MESSAGE = 500;
+
+    @Inject
+    ClusterManager _clusterMgr;
+
+    private final ConcurrentLinkedQueue<String> _pendingInvalidations = new ConcurrentLinkedQueue<String>();
+    private ScheduledExecutorService _flushScheduler;
+
+    @Override
+    public boolean configure(String name, Map<String, Object> params) throws ConfigurationException {
+        _clusterMgr.registerMessageListener(INVALIDATION_SUBJECT, this);
+        _flushScheduler = Executors.newScheduledThreadPool(1, new NamedThreadFactory("EntityCache-Sync"));
+        return true;
+    }
+
+    @Override
+    public boolean start() {
+        applyCacheSettings();
+        EntityCache.setNotifier(this);
+        _flushScheduler.scheduleWithFixedDelay(new ManagedContextRunnable() {
+            @Override
+            protected void runInContext() {
+                flushInvalidations();
+            }
+        }, FLUSH_INTERVAL_MS, FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    @Override
+    public boolean stop() {
+        EntityCache.setNotifier(null);
+        _clusterMgr.unregisterMessageListener(INVALIDATION_SUBJECT, this);
+        _flushScheduler.shutdownNow();
+        return true;
+    }
+
+    protected void applyCacheSettings() {
+        boolean enabled = EntityCacheEnabled.value();
+        for (EntityCache cache : EntityCache.getCaches()) {
+            cache.setEnabled(enabled);
+        }
+
+        String sizes = EntityCacheSizes.value();
+        if (sizes == null || sizes.trim().isEmpty()) {
+            return;
+        }
+
+        for (String entry : sizes.split(",")) {
+            String[] nameValue = entry.trim().split("=");
+            if (nameValue.length != 2) {
+                s_logger.warn("Ignoring malformed " + EntityCacheSizes.key() + " entry: " + entry);
+                continue;
+            }
+
+            EntityCache cache = EntityCache.getCache(nameValue[0].trim());
+            if (cache == null) {
+                s_logger.warn("Ignoring " + EntityCacheSizes.key() + " entry for unknown or uncached DAO: " + nameValue[0]);
+                continue;
+            }
+
+            String[] sizeTtl = nameValue[1].trim().split(":");
+            int maxElements = NumbersUtil.parseInt(sizeTtl[0], (int)cache.getMaxSize());
+            int timeToLive = sizeTtl.length > 1 ? NumbersUtil.parseInt(sizeTtl[1], (int)cache.getTimeToLiveSeconds()) : (int)cache.getTimeToLiveSeconds();
+            cache.reconfigure(maxElements, timeToLive);
+            s_logger.info("Entity cache reconfigured: " + cache);
+        }
+    }
+
+    @Override
+    public void notifyInvalidated(String cacheName, Serializable id) {
+        _pendingInvalidations.add(id != null ? cacheName + ":" + id : cacheName);
+    }
+
+    protected void flushInvalidations() {
+        while (!_pendingInvalidations.isEmpty()) {
+            StringBuilder message = new StringBuilder();
+            int count = 0;
+            String invalidation;
+            while (count < MAX_INVALIDATIONS_PER_MESSAGE && (invalidation = _pendingInvalidations.poll()) != null) {
+                if (count > 0) {
+                    message.append('\n');
+                }
+                message.append(invalidation);
+                count++;
+            }
+
+            if (count > 0) {
+                _clusterMgr.publishMessage(INVALIDATION_SUBJECT, message.toString());
+            }
+        }
+    }
+
+    @Override
+    public void onClusterMessage(String sourcePeer, String subject, String message) {
+        if (message == null) {
+            return;
+        }
+
+        List<String> unknownCaches = new ArrayList<String>();
+        for (String invalidation : message.split("\n")) {
+            int pos = invalidation.indexOf(':');
+            String cacheName = pos < 0 ? invalidation : invalidation.substring(0, pos);
+            EntityCache cache = EntityCache.getCache(cacheName);
+            if (cache == null) {
+                unknownCaches.add(cacheName);
+                continue;
+            }
+            cache.onRemoteInvalidation(pos < 0 ? null : invalidation.substring(pos + 1));
+        }
+
+        if (!unknownCaches.isEmpty() && s_logger.isTraceEnabled()) {
+            s_logger.trace("Ignoring invalidations from " + sourcePeer + " for caches not present on this node: " + unknownCaches);
+        }
+    }
+
+    @Override
+    public String getConfigComponentName() {
+        return EntityCacheSyncManager.class.getSimpleName();
+    }
+
+    @Override
+    public ConfigKey<?>[] getConfigKeys() {
+        return new ConfigKey<?>[] {EntityCacheEnabled, EntityCacheSizes};
+    }
+}
@@ -17,6 +17,7 @@
 package com.cloud.dao;
 
 import java.io.Serializable;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 
@@ -65,6 +66,12 @@ public class EntityManagerImpl extends ManagerBase implements EntityManager {
         return dao.findByUuidIncludingRemoved(uuid);
     }
 
+    @Override
+    public <T> List<? extends T> listByUuidsIncludingRemoved(Class<T> entityType, Collection<String> uuids) {
+        GenericDao<? extends T, String> dao = (GenericDao<? extends T, String>)GenericDaoBase.getDao(entityType);
+        return dao.listByUuidsIncludingRemoved(uuids);
+    }
+
     @Override
     public <T> T findByXId(Class<T> entityType, String xid) {
         return null;
@@ -0,0 +1,333 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.db;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.StandardMBean;
+
+import net.sf.ehcache.Cache;
+import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.Element;
+import net.sf.ehcache.config.CacheConfiguration;
+import net.sf.ehcache.event.CacheEventListenerAdapter;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.mgmt.JmxUtil;
+
+/**
+ * EntityCache is the second level entity cache used by GenericDaoBase.
+ *
+ * Each DAO that is configured with "cache.size" gets its own bounded cache.
+ * Invalidations made locally are handed to the registered EntityCacheNotifier
+ * so that the caches of the same DAO on the other management servers can
+ * drop their stale copies.  Invalidations drop the local copy right away and
+ * again once the current transaction commits, since a reader on another
+ * connection may cache the old row in between; peers are only told after
+ * the commit.  Hit, miss and eviction counters are published
+ * over JMX under the "EntityCache" type.
+ */
+public class EntityCache extends StandardMBean implements EntityCacheMBean {
+    private static final Logger s_logger = Logger.getLogger(EntityCache.class);
+
+    private static final Map<String, EntityCache> s_caches = new ConcurrentHashMap<String, EntityCache>();
+    private static volatile EntityCacheNotifier s_notifier;
+
+    private final String _name;
+    private final Class<?> _idType;
+    private final Cache _cache;
+    private volatile boolean _enabled = true;
+
+    private final AtomicLong _hits = new AtomicLong();
+    private final AtomicLong _misses = new AtomicLong();
+    private final AtomicLong _evictions = new AtomicLong();
+    private final AtomicLong _invalidations = new AtomicLong();
+    private final AtomicLong _remoteInvalidations = new AtomicLong();
+
+    public EntityCache(String name, Class<?> idType, int maxElements, int timeToLive, int timeToIdle) {
+        super(EntityCacheMBean.class, false);
+        _name = name;
+        _idType = idType;
+        _cache = new Cache(name, maxElements, false, timeToLive == -1, timeToLive == -1 ? Integer.MAX_VALUE : timeToLive, timeToIdle);
+        _cache.getCacheEventNotificationService().registerListener(new CacheEventListenerAdapter() {
+            @Override
+            public void notifyElementEvicted(Ehcache cache, Element element) {
+                _evictions.incrementAndGet();
+            }
+
+            @Override
+            public void notifyElementExpired(Ehcache cache, Element element) {
+                _evictions.incrementAndGet();
+            }
+        });
+    }
+
+    public static EntityCache register(EntityCache cache) {
+        CacheManager.create().addCache(cache._cache);
+        s_caches.put(cache.getName(), cache);
+        try {
+            JmxUtil.registerMBean("EntityCache", cache.getName(), cache);
+        } catch (Exception e) {
+            s_logger.warn("Unable to register mbean for entity cache " + cache.getName(), e);
+        }
+        return cache;
+    }
+
+    public static EntityCache getCache(String name) {
+        return s_caches.get(name);
+    }
+
+    public static List<EntityCache> getCaches() {
+        return new ArrayList<EntityCache>(s_caches.values());
+    }
+
+    public static void setNotifier(EntityCacheNotifier notifier) {
+        s_notifier = notifier;
+    }
+
+    public Object get(Serializable id) {
+        if (!_enabled) {
+            return null;
+        }
+
+        Element element = _cache.get(id);
+        if (element == null) {
+            _misses.incrementAndGet();
+            return null;
+        }
+        _hits.incrementAndGet();
+        return element.getObjectValue();
+    }
+
+    public void put(Serializable id, Object entity) {
+        if (_enabled && id != null) {
+            _cache.put(new Element(id, entity));
+        }
+    }
+
+    /**
+     * Drops the entity from the local cache only.
+     */
+    public void evict(Serializable id) {
+        _cache.remove(id);
+    }
+
+    /**
+     * Drops the entity locally and on the peer management servers.
+     */
+    public void invalidate(final Serializable id) {
+        _cache.remove(id);
+        _invalidations.incrementAndGet();
+        afterCommit(new Runnable() {
+            @Override
+            public void run() {
+                _cache.remove(id);
+                notifyPeers(id);
+            }
+        });
+    }
+
+    /**
+     * Drops a set of entities locally and on the peer management servers.
+     */
+    public void invalidate(Collection<? extends Serializable> ids) {
+        final List<Serializable> invalidated = new ArrayList<Serializable>(ids);
+        _cache.removeAll(invalidated);
+        _invalidations.addAndGet(invalidated.size());
+        afterCommit(new Runnable() {
+            @Override
+            public void run() {
+                _cache.removeAll(invalidated);
+                for (Serializable id : invalidated) {
+                    notifyPeers(id);
+                }
+            }
+        });
+    }
+
+    /**
+     * Drops every entity locally and on the peer management servers.  This is
+     * used for updates and removals by search criteria where the affected ids
+     * are not known.
+     */
+    public void invalidateAll() {
+        _cache.removeAll();
+        _invalidations.incrementAndGet();
+        afterCommit(new Runnable() {
+            @Override
+            public void run() {
+                _cache.removeAll();
+                notifyPeers(null);
+            }
+        });
+    }
+
+    protected void afterCommit(Runnable task) {
+        TransactionLegacy txn = TransactionLegacy.currentTxn(false);
+        if (txn != null) {
+            txn.registerPostCommitHook(task);
+        } else {
+            task.run();
+        }
+    }
+
+    /**
+     * Applies an invalidation received from a peer management server.
+     * @param id string form of the entity id or null to drop the whole cache.
+     */
+    public void onRemoteInvalidation(String id) {
+        _remoteInvalidations.incrementAndGet();
+        Serializable key = id != null ? parseId(id) : null;
+        if (key != null) {
+            _cache.remove(key);
+        } else {
+            _cache.removeAll();
+        }
+    }
+
+    public void reconfigure(int maxElements, int timeToLive) {
+        CacheConfiguration config = _cache.getCacheConfiguration();
+        config.setMaxEntriesLocalHeap(maxElements);
+        if (timeToLive == -1) {
+            config.setEternal(true);
+        } else {
+            config.setEternal(false);
+            config.setTimeToLiveSeconds(timeToLive);
+        }
+    }
+
+    public void setEnabled(boolean enabled) {
+        if (!enabled) {
+            _cache.removeAll();
+        }
+        _enabled = enabled;
+    }
+
+    protected Serializable parseId(String id) {
+        try {
+            if (_idType == Long.class || _idType == long.class) {
+                return Long.valueOf(id);
+            } else if (_idType == Integer.class || _idType == int.class) {
+                return Integer.valueOf(id);
+            } else if (_idType == Short.class || _idType == short.class) {
+                return Short.valueOf(id);
+            } else if (_idType == String.class) {
+                return id;
+            }
+        } catch (NumberFormatException e) {
+            s_logger.warn("Unable to parse id " + id + " for entity cache " + _name);
+        }
+        // Unknown id types are handled by dropping the whole cache
+        return null;
+    }
+
+    protected void notifyPeers(Serializable id) {
+        EntityCacheNotifier notifier = s_notifier;
+        if (notifier != null) {
+            try {
+                notifier.notifyInvalidated(_name, id);
+            } catch (Exception e) {
+                s_logger.warn("Unable to propagate invalidation of " + _name + " id " + id, e);
+            }
+        }
+    }
+
+    @Override
+    public String getName() {
+        return _name;
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return _enabled;
+    }
+
+    @Override
+    public int getSize() {
+        return _cache.getSize();
+    }
+
+    @Override
+    public long getMaxSize() {
+        return _cache.getCacheConfiguration().getMaxEntriesLocalHeap();
+    }
+
+    @Override
+    public long getTimeToLiveSeconds() {
+        CacheConfiguration config = _cache.getCacheConfiguration();
+        return config.isEternal() ? -1 : config.getTimeToLiveSeconds();
+    }
+
+    @Override
+    public long getHitCount() {
+        return _hits.get();
+    }
+
+    @Override
+    public long getMissCount() {
+        return _misses.get();
+    }
+
+    @Override
+    public long getEvictionCount() {
+        return _evictions.get();
+    }
+
+    @Override
+    public long getInvalidationCount() {
+        return _invalidations.get();
+    }
+
+    @Override
+    public long getRemoteInvalidationCount() {
+        return _remoteInvalidations.get();
+    }
+
+    @Override
+    public double getHitRatio() {
+        long hits = _hits.get();
+        long total = hits + _misses.get();
+        return total == 0 ? 0 : (double)hits / total;
+    }
+
+    @Override
+    public void clear() {
+        _cache.removeAll();
+    }
+
+    @Override
+    public void resetStatistics() {
+        _hits.set(0);
+        _misses.set(0);
+        _evictions.set(0);
+        _invalidations.set(0);
+        _remoteInvalidations.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "EntityCache[" + _name + ", size=" + getSize() + ", max=" + getMaxSize() + ", ttl=" + getTimeToLiveSeconds() + "]";
+    }
+}
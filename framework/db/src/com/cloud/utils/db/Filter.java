@@ -16,12 +16,19 @@
 // under the License.
 package com.cloud.utils.db;
 
+import java.io.UnsupportedEncodingException;
 import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.persistence.Column;
 
+import org.apache.commons.codec.binary.Base64;
+
 import com.cloud.utils.Pair;
 import com.cloud.utils.ReflectUtil;
+import com.cloud.utils.Ternary;
+import com.cloud.utils.exception.CloudRuntimeException;
 
 /**
  *  Try to use static initialization to help you in finding incorrect
@@ -32,11 +39,21 @@ import com.cloud.utils.ReflectUtil;
  *
  *  Filter nameFilter = new Filter(s_nameFilter);
  *
+ *  A filter can also page by key instead of by offset.  Once a seek key is
+ *  set, only the rows that sort after that key in the order by columns are
+ *  returned and the offset is ignored, so every page costs the same no
+ *  matter how deep it is.  The order by columns must identify a row uniquely,
+ *  so end them with the id.
+ *
  */
 public class Filter {
+    private static final String SEEK_TOKEN_SEPARATOR = ".";
+
     Long _offset;
     Long _limit;
     String _orderBy;
+    List<Ternary<String, String, Boolean>> _orderColumns = new ArrayList<Ternary<String, String, Boolean>>();
+    String[] _seekKey;
 
     /**
      * @param clazz the VO object type
@@ -61,6 +78,7 @@ public class Filter {
      */
     public Filter(Filter that) {
         this._orderBy = that._orderBy;
+        this._orderColumns.addAll(that._orderColumns);
         this._limit = null;
         that._limit = null;
     }
@@ -78,19 +96,82 @@ public class Filter {
         Column column = f.getAnnotation(Column.class);
         String name = column != null ? column.name() : field;
 
-        StringBuilder order = new StringBuilder();
+        String table;
         if (column == null || column.table() == null || column.table().length() == 0) {
-            order.append(DbUtil.getTableName(clazz));
+            table = DbUtil.getTableName(clazz);
         } else {
-            order.append(column.table());
+            table = column.table();
         }
-        order.append(".").append(name).append(ascending ? " ASC " : " DESC ");
+        _orderColumns.add(new Ternary<String, String, Boolean>(table, name, ascending));
+
+        StringBuilder order = new StringBuilder();
+        order.append(table).append(".").append(name).append(ascending ? " ASC " : " DESC ");
 
         if (_orderBy == null) {
             _orderBy = order.insert(0, " ORDER BY ").toString();
         } else {
-            _orderBy = order.insert(0, _orderBy).toString();
+            _orderBy = order.insert(0, ", ").insert(0, _orderBy).toString();
+        }
+    }
+
+    /**
+     * @return table, column and ascending flag of each order by column, in order.
+     */
+    public List<Ternary<String, String, Boolean>> getOrderColumns() {
+        return _orderColumns;
+    }
+
+    /**
+     * Pages by key from the position recorded in the token.
+     * @param token token created by GenericDao.createSeekToken() for the last row of the previous page; null pages by offset.
+     */
+    public void setSeekToken(String token) {
+        _seekKey = token == null ? null : decodeSeekToken(token);
+    }
+
+    public void setSeekKey(String... key) {
+        _seekKey = key;
+    }
+
+    /**
+     * @return values of the order by columns to seek after or null if this filter pages by offset.
+     */
+    public String[] getSeekKey() {
+        return _seekKey;
+    }
+
+    public boolean isSeek() {
+        return _seekKey != null;
+    }
+
+    public static String encodeSeekToken(String... key) {
+        StringBuilder token = new StringBuilder();
+        try {
+            for (String value : key) {
+                if (token.length() > 0) {
+                    token.append(SEEK_TOKEN_SEPARATOR);
+                }
+                token.append(Base64.encodeBase64URLSafeString(value.getBytes("UTF-8")));
+            }
+        } catch (UnsupportedEncodingException e) {
+            throw new CloudRuntimeException("UTF-8 is not supported", e);
+        }
+        return token.toString();
+    }
+
+    public static String[] decodeSeekToken(String token) {
+        String[] key = token.split("\\" + SEEK_TOKEN_SEPARATOR, -1);
+        try {
+            for (int i = 0; i < key.length; i++) {
+                if (!Base64.isBase64(key[i])) {
+                    throw new CloudRuntimeException("Invalid seek token " + token);
+                }
+                key[i] = new String(Base64.decodeBase64(key[i]), "UTF-8");
+            }
+        } catch (UnsupportedEncodingException e) {
+            throw new CloudRuntimeException("UTF-8 is not supported", e);
         }
+        return key;
     }
 
     public String getOrderBy() {
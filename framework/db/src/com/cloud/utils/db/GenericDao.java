@@ -17,6 +17,7 @@
 package com.cloud.utils.db;
 
 import java.io.Serializable;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 
@@ -59,6 +60,9 @@ public interface GenericDao<T, ID extends Serializable> {
     // Finds one unique VO using uuid including removed entities
     T findByUuidIncludingRemoved(String uuid);
 
+    // Lists the VOs with any of the uuids including removed entities
+    List<T> listByUuidsIncludingRemoved(Collection<String> uuids);
+
     /**
      * @return VO object ready to be used for update.  It won't have any fields filled in.
      */
@@ -199,6 +203,39 @@ public interface GenericDao<T, ID extends Serializable> {
      **/
     T persist(T entity);
 
+    /**
+     * Persist a list of new entity beans using JDBC batching, one batch per
+     * table the entity is mapped to.  The id field of each entity is updated
+     * with its new id.
+     * @param entities new entity beans to persist.
+     * @return the generated ids in the same order as the entities.
+     **/
+    List<ID> persistBatch(List<T> entities);
+
+    /**
+     * Search and hand each matching entity to the callback as it is read
+     * instead of materializing the whole result set.  The rows are streamed
+     * over a dedicated connection that is held only for the duration of the
+     * search, so the callback is free to use other DAOs.  That connection does
+     * not see changes not yet committed by the current transaction.
+     * @param sc search criteria.
+     * @param filter order by and limits.
+     * @param callback receives the entities.
+     * @return number of entities handed to the callback.
+     **/
+    int searchStream(SearchCriteria<T> sc, Filter filter, SearchStreamCallback<T> callback);
+
+    int searchStreamIncludingRemoved(SearchCriteria<T> sc, Filter filter, SearchStreamCallback<T> callback);
+
+    /**
+     * Update a list of entity beans retrieved from this DAO using JDBC
+     * batching.  Entities with the same set of changed fields share one
+     * batched statement.
+     * @param entities entity beans with pending changes.
+     * @return total number of rows updated.
+     **/
+    int updateBatch(List<T> entities);
+
     /**
      * remove the entity bean.  This will call delete automatically if
      * the entity bean does not have a removed field.
@@ -268,5 +305,20 @@ public interface GenericDao<T, ID extends Serializable> {
      */
     Pair<List<T>, Integer> searchAndCount(SearchCriteria<T> sc, Filter filter);
 
+    /**
+     * Same as searchAndCount(sc, filter) but the separate count query can be skipped.
+     * @param includeCount false to skip the count query, the count returned is then null.
+     * @return entities found and their total count.
+     */
+    Pair<List<T>, Integer> searchAndCount(SearchCriteria<T> sc, Filter filter, boolean includeCount);
+
+    /**
+     * Creates the token to get the page following an entity with Filter.setSeekToken().
+     * @param filter filter the entity was found with.
+     * @param entity last entity of the page.
+     * @return token or null if one of the order by columns of the entity is null.
+     */
+    String createSeekToken(Filter filter, T entity);
+
     Map<String, Attribute> getAllAttributes();
 }
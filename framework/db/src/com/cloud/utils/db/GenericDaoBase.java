@@ -26,6 +26,7 @@ import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
@@ -39,6 +40,7 @@ import java.util.Collections;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.TimeZone;
@@ -61,9 +63,6 @@ import net.sf.cglib.proxy.Enhancer;
 import net.sf.cglib.proxy.Factory;
 import net.sf.cglib.proxy.MethodInterceptor;
 import net.sf.cglib.proxy.NoOp;
-import net.sf.ehcache.Cache;
-import net.sf.ehcache.CacheManager;
-import net.sf.ehcache.Element;
 
 import org.apache.log4j.Logger;
 
@@ -158,6 +157,8 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
     protected static final String SHARE_MODE_CLAUSE = " LOCK IN SHARE MODE";
     protected static final String SELECT_LAST_INSERT_ID_SQL = "SELECT LAST_INSERT_ID()";
 
+    protected static final int STREAMING_FETCH_SIZE = Integer.MIN_VALUE;
+
     protected static final SequenceFetcher s_seqFetcher = SequenceFetcher.getInstance();
 
     public static <J> GenericDao<? extends J, ? extends Serializable> getDao(Class<J> entityType) {
@@ -368,10 +369,12 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
             clause = null;
         }
 
-        final StringBuilder str = createPartialSelectSql(sc, clause != null, enableQueryCache);
+        final boolean seek = filter != null && filter.isSeek();
+        final StringBuilder str = createPartialSelectSql(sc, clause != null || seek, enableQueryCache);
         if (clause != null) {
             str.append(clause);
         }
+        final List<Pair<Attribute, Object>> seekValues = addSeek(str, filter, clause != null);
 
         Collection<JoinBuilder<SearchCriteria<?>>> joins = null;
         if (sc != null) {
@@ -403,6 +406,10 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
                 }
             }
 
+            for (final Pair<Attribute, Object> value : seekValues) {
+                prepareAttribute(i++, pstmt, value.first(), value.second());
+            }
+
             if (joins != null) {
                 i = addJoinAttributes(i, pstmt, joins);
             }
@@ -428,6 +435,95 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
         }
     }
 
+    @Override
+    @DB()
+    public int searchStream(SearchCriteria<T> sc, final Filter filter, final SearchStreamCallback<T> callback) {
+        if (_removed != null) {
+            if (sc == null) {
+                sc = createSearchCriteria();
+            }
+            sc.addAnd(_removed.second().field.getName(), SearchCriteria.Op.NULL);
+        }
+        return searchStreamIncludingRemoved(sc, filter, callback);
+    }
+
+    @Override
+    public int searchStreamIncludingRemoved(SearchCriteria<T> sc, final Filter filter, final SearchStreamCallback<T> callback) {
+        String clause = sc != null ? sc.getWhereClause() : null;
+        if (clause != null && clause.length() == 0) {
+            clause = null;
+        }
+
+        final boolean seek = filter != null && filter.isSeek();
+        final StringBuilder str = createPartialSelectSql(sc, clause != null || seek);
+        if (clause != null) {
+            str.append(clause);
+        }
+        final List<Pair<Attribute, Object>> seekValues = addSeek(str, filter, clause != null);
+
+        Collection<JoinBuilder<SearchCriteria<?>>> joins = null;
+        if (sc != null) {
+            joins = sc.getJoins();
+            if (joins != null) {
+                addJoins(str, joins);
+            }
+        }
+
+        List<Object> groupByValues = addGroupBy(str, sc);
+        addFilter(str, filter);
+
+        final String sql = str.toString();
+
+        // MySQL only streams a result set on a forward only, read only statement with this fetch
+        // size and the connection can't run anything else until it is done, hence its own connection.
+        final TransactionLegacy txn = TransactionLegacy.currentTxn();
+        final Connection conn = TransactionLegacy.getStandaloneConnection(txn.getDatabaseId());
+        if (conn == null) {
+            throw new CloudRuntimeException("Unable to get a connection to stream " + sql);
+        }
+
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        int count = 0;
+        try {
+            pstmt = conn.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            pstmt.setFetchSize(STREAMING_FETCH_SIZE);
+            int i = 1;
+            if (clause != null) {
+                for (final Pair<Attribute, Object> value : sc.getValues()) {
+                    prepareAttribute(i++, pstmt, value.first(), value.second());
+                }
+            }
+
+            for (final Pair<Attribute, Object> value : seekValues) {
+                prepareAttribute(i++, pstmt, value.first(), value.second());
+            }
+
+            if (joins != null) {
+                i = addJoinAttributes(i, pstmt, joins);
+            }
+
+            if (groupByValues != null) {
+                for (Object value : groupByValues) {
+                    pstmt.setObject(i++, value);
+                }
+            }
+
+            rs = pstmt.executeQuery();
+            while (rs.next()) {
+                count++;
+                if (!callback.onEntity(toEntityBean(rs, false))) {
+                    break;
+                }
+            }
+            return count;
+        } catch (final SQLException e) {
+            throw new CloudRuntimeException("DB Exception on: " + pstmt, e);
+        } finally {
+            DbUtil.closeResources(conn, pstmt, rs);
+        }
+    }
+
     @Override
     @SuppressWarnings("unchecked")
     public <M> List<M> customSearchIncludingRemoved(SearchCriteria<M> sc, final Filter filter) {
@@ -442,10 +538,12 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
             clause = null;
         }
 
-        final StringBuilder str = createPartialSelectSql(sc, clause != null);
+        final boolean seek = filter != null && filter.isSeek();
+        final StringBuilder str = createPartialSelectSql(sc, clause != null || seek);
         if (clause != null) {
             str.append(clause);
         }
+        final List<Pair<Attribute, Object>> seekValues = addSeek(str, filter, clause != null);
 
         Collection<JoinBuilder<SearchCriteria<?>>> joins = null;
         joins = sc.getJoins();
@@ -469,6 +567,10 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
                 }
             }
 
+            for (final Pair<Attribute, Object> value : seekValues) {
+                prepareAttribute(i++, pstmt, value.first(), value.second());
+            }
+
             if (joins != null) {
                 i = addJoinAttributes(i, pstmt, joins);
             }
@@ -785,9 +887,6 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
     }
 
     protected int update(ID id, UpdateBuilder ub, T entity) {
-        if (_cache != null) {
-            _cache.remove(id);
-        }
         SearchCriteria<T> sc = createSearchCriteria();
         sc.addAnd(_idAttributes.get(_table)[0], SearchCriteria.Op.EQ, id);
         TransactionLegacy txn = TransactionLegacy.currentTxn();
@@ -801,7 +900,11 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
             throw new CloudRuntimeException("Unable to persist element collection", e);
         }
 
-        int rowsUpdated = update(ub, sc, null);
+        int rowsUpdated = executeUpdate(ub, sc, null);
+        // inside the transaction, so the entity is dropped again once the update is committed
+        if (_cache != null) {
+            _cache.invalidate(id);
+        }
 
         txn.commit();
 
@@ -809,6 +912,15 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
     }
 
     public int update(UpdateBuilder ub, final SearchCriteria<?> sc, Integer rows) {
+        int result = executeUpdate(ub, sc, rows);
+        // The rows touched by a criteria based update are not known so the whole cache goes
+        if (result > 0 && _cache != null) {
+            _cache.invalidateAll();
+        }
+        return result;
+    }
+
+    protected int executeUpdate(UpdateBuilder ub, final SearchCriteria<?> sc, Integer rows) {
         StringBuilder sql = null;
         PreparedStatement pstmt = null;
         final TransactionLegacy txn = TransactionLegacy.currentTxn();
@@ -923,12 +1035,12 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
 
     @DB()
     protected List<T> listIncludingRemovedBy(final SearchCriteria<T> sc, final Filter filter, final boolean enableQueryCache) {
-        return searchIncludingRemoved(sc, filter, null, false, enableQueryCache);
+        return searchIncludingRemoved(sc, filter, null, true, enableQueryCache);
     }
 
     @DB()
     protected List<T> listIncludingRemovedBy(final SearchCriteria<T> sc, final Filter filter) {
-        return searchIncludingRemoved(sc, filter, null, false);
+        return searchIncludingRemoved(sc, filter, null, true);
     }
 
     @DB()
@@ -941,8 +1053,8 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
     @SuppressWarnings("unchecked")
     public T findById(final ID id) {
         if (_cache != null) {
-            final Element element = _cache.get(id);
-            return element == null ? lockRow(id, null) : (T)element.getObjectValue();
+            final T entity = (T)_cache.get(id);
+            return entity == null || isRemoved(entity) ? lockRow(id, null) : entity;
         } else {
             return lockRow(id, null);
         }
@@ -964,6 +1076,17 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
         return findOneIncludingRemovedBy(sc);
     }
 
+    @Override
+    @DB()
+    public List<T> listByUuidsIncludingRemoved(final Collection<String> uuids) {
+        if (uuids.isEmpty()) {
+            return new ArrayList<T>();
+        }
+        SearchCriteria<T> sc = createSearchCriteria();
+        sc.addAnd("uuid", SearchCriteria.Op.IN, uuids.toArray());
+        return listIncludingRemovedBy(sc);
+    }
+
     @Override
     @DB()
     public T findByIdIncludingRemoved(ID id) {
@@ -978,7 +1101,7 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
         }
 
         if (_cache != null) {
-            _cache.remove(id);
+            _cache.evict(id);
         }
         return lockRow(id, null);
     }
@@ -1088,7 +1211,12 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
             if (filter.getOrderBy() != null) {
                 sql.append(filter.getOrderBy());
             }
-            if (filter.getOffset() != null) {
+            if (filter.isSeek()) {
+                // the seek condition already skipped the previous pages
+                if (filter.getLimit() != null) {
+                    sql.append(" LIMIT ").append(filter.getLimit());
+                }
+            } else if (filter.getOffset() != null) {
                 sql.append(" LIMIT ");
                 sql.append(filter.getOffset());
                 if (filter.getLimit() != null) {
@@ -1098,6 +1226,115 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
         }
     }
 
+    /**
+     * Appends the keyset condition of the filter, i.e. for order by columns c1, c2, ... and seek key v1, v2, ...
+     * (c1 > v1) OR (c1 = v1 AND c2 > v2) OR ..., with < for the descending columns.
+     * @param sql select statement ending in its where clause or in WHERE if it has no other condition.
+     * @param filter filter to page by.
+     * @param hasClause true if the select statement already has a condition to AND with.
+     * @return attributes and values to bind after the values of the search criteria.
+     */
+    @DB()
+    protected List<Pair<Attribute, Object>> addSeek(final StringBuilder sql, final Filter filter, final boolean hasClause) {
+        if (filter == null || !filter.isSeek()) {
+            return Collections.emptyList();
+        }
+
+        final List<Ternary<String, String, Boolean>> columns = filter.getOrderColumns();
+        final String[] key = filter.getSeekKey();
+        if (columns.isEmpty() || columns.size() != key.length) {
+            throw new CloudRuntimeException("Seek key " + Arrays.toString(key) + " does not match the order by columns of " + _table);
+        }
+
+        final Attribute[] attrs = new Attribute[columns.size()];
+        final Object[] values = new Object[columns.size()];
+        for (int i = 0; i < attrs.length; i++) {
+            attrs[i] = getOrderAttribute(columns.get(i));
+            values[i] = toSeekValue(attrs[i], key[i]);
+        }
+
+        final List<Pair<Attribute, Object>> bindings = new ArrayList<Pair<Attribute, Object>>();
+        if (hasClause) {
+            sql.append(" AND ");
+        }
+        sql.append("(");
+        for (int i = 0; i < attrs.length; i++) {
+            if (i > 0) {
+                sql.append(" OR ");
+            }
+            sql.append("(");
+            for (int j = 0; j < i; j++) {
+                sql.append(attrs[j].table).append(".").append(attrs[j].columnName).append(" = ? AND ");
+                bindings.add(new Pair<Attribute, Object>(attrs[j], values[j]));
+            }
+            sql.append(attrs[i].table).append(".").append(attrs[i].columnName).append(columns.get(i).third() ? " > ?" : " < ?");
+            sql.append(")");
+            bindings.add(new Pair<Attribute, Object>(attrs[i], values[i]));
+        }
+        sql.append(")");
+
+        return bindings;
+    }
+
+    protected Attribute getOrderAttribute(final Ternary<String, String, Boolean> column) {
+        final Attribute attr = _allColumns.get(new Pair<String, String>(column.first(), column.second()));
+        if (attr == null || attr.field == null) {
+            throw new CloudRuntimeException("Unable to seek on " + column.first() + "." + column.second() + " in " + _table);
+        }
+        return attr;
+    }
+
+    protected Object toSeekValue(final Attribute attr, final String value) {
+        final Class<?> type = attr.field.getType();
+        try {
+            if (type == String.class) {
+                return value;
+            } else if (type == Long.class || type == long.class) {
+                return Long.parseLong(value);
+            } else if (type == Integer.class || type == int.class) {
+                return Integer.parseInt(value);
+            } else if (type == Short.class || type == short.class) {
+                return Short.parseShort(value);
+            } else if (type == Date.class) {
+                return new Date(Long.parseLong(value));
+            } else if (type.isEnum()) {
+                for (final Enum<?> e : (Enum<?>[])type.getEnumConstants()) {
+                    if (e.name().equals(value)) {
+                        return e;
+                    }
+                }
+                throw new IllegalArgumentException("No constant " + value + " in " + type.getName());
+            }
+        } catch (final IllegalArgumentException e) {
+            throw new CloudRuntimeException("Invalid seek value " + value + " for " + attr, e);
+        }
+        throw new CloudRuntimeException("Unable to seek on " + attr + " of type " + type.getName());
+    }
+
+    @Override
+    public String createSeekToken(final Filter filter, final T entity) {
+        final List<Ternary<String, String, Boolean>> columns = filter.getOrderColumns();
+        final String[] key = new String[columns.size()];
+        try {
+            for (int i = 0; i < key.length; i++) {
+                final Object value = getOrderAttribute(columns.get(i)).field.get(entity);
+                if (value == null) {
+                    return null;
+                }
+                if (value instanceof Date) {
+                    key[i] = Long.toString(((Date)value).getTime());
+                } else if (value instanceof Enum) {
+                    key[i] = ((Enum<?>)value).name();
+                } else {
+                    key[i] = value.toString();
+                }
+            }
+        } catch (final IllegalAccessException e) {
+            throw new CloudRuntimeException("Unable to get the seek key of " + entity, e);
+        }
+        return Filter.encodeSeekToken(key);
+    }
+
     @Override
     @DB()
     public List<T> listAllIncludingRemoved(final Filter filter) {
@@ -1171,7 +1408,7 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
 
             txn.commit();
             if (_cache != null) {
-                _cache.remove(id);
+                _cache.invalidate(id);
             }
             return true;
         } catch (final SQLException e) {
@@ -1204,7 +1441,11 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
             for (final Pair<Attribute, Object> value : sc.getValues()) {
                 prepareAttribute(++i, pstmt, value.first(), value.second());
             }
-            return pstmt.executeUpdate();
+            final int result = pstmt.executeUpdate();
+            if (result > 0 && _cache != null) {
+                _cache.invalidateAll();
+            }
+            return result;
         } catch (final SQLException e) {
             throw new CloudRuntimeException("DB Exception on: " + pstmt, e);
         } catch (final Throwable e) {
@@ -1298,6 +1539,16 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
         return new Pair<List<T>, Integer>(objects, count);
     }
 
+    @Override
+    @DB()
+    public Pair<List<T>, Integer> searchAndCount(final SearchCriteria<T> sc, final Filter filter, final boolean includeCount) {
+        if (includeCount) {
+            return searchAndCount(sc, filter);
+        }
+        List<T> objects = search(sc, filter, null, false);
+        return new Pair<List<T>, Integer>(objects, null);
+    }
+
     @Override
     @DB()
     public List<T> search(final SearchCriteria<T> sc, final Filter filter, final boolean enableQueryCache) {
@@ -1408,6 +1659,163 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
         return _idField != null ? findByIdIncludingRemoved(id) : null;
     }
 
+    @Override
+    @SuppressWarnings("unchecked")
+    public List<ID> persistBatch(final List<T> entities) {
+        final List<ID> ids = new ArrayList<ID>(entities.size());
+        if (entities.isEmpty()) {
+            return ids;
+        }
+
+        final TransactionLegacy txn = TransactionLegacy.currentTxn();
+        PreparedStatement pstmt = null;
+        try {
+            txn.start();
+            // The first insert is into the primary table, which generates the ids that
+            // the inserts into the secondary tables pick up from the id field.
+            boolean primary = true;
+            for (final Pair<String, Attribute[]> pair : _insertSqls) {
+                final Attribute[] attrs = pair.second();
+
+                pstmt = txn.prepareAutoCloseStatement(pair.first(), Statement.RETURN_GENERATED_KEYS);
+                for (final T entity : entities) {
+                    assert !Enhancer.isEnhanced(entity.getClass()) : "Use updateBatch for entities retrieved from the dao";
+                    prepareAttributes(pstmt, entity, attrs, 1);
+                    pstmt.addBatch();
+                }
+                pstmt.executeBatch();
+
+                if (primary) {
+                    primary = false;
+                    final ResultSet rs = pstmt.getGeneratedKeys();
+                    for (final T entity : entities) {
+                        ID id = null;
+                        if (rs != null && rs.next()) {
+                            id = (ID)rs.getObject(1);
+                        }
+                        if (_idField != null) {
+                            if (id != null) {
+                                _idField.set(entity, id);
+                            } else {
+                                id = (ID)_idField.get(entity);
+                            }
+                        }
+                        ids.add(id);
+                    }
+                }
+            }
+
+            if (_ecAttributes != null && _ecAttributes.size() > 0) {
+                for (int i = 0; i < entities.size(); i++) {
+                    final T entity = entities.get(i);
+                    HashMap<Attribute, Object> ecAttributes = new HashMap<Attribute, Object>();
+                    for (Attribute attr : _ecAttributes) {
+                        Object ec = attr.field.get(entity);
+                        if (ec != null) {
+                            ecAttributes.put(attr, ec);
+                        }
+                    }
+
+                    insertElementCollection(entity, _idAttributes.get(_table)[0], ids.get(i), ecAttributes);
+                }
+            }
+            txn.commit();
+        } catch (final SQLException e) {
+            if (e.getSQLState().equals("23000") && e.getErrorCode() == 1062) {
+                throw new EntityExistsException("Entity already exists: ", e);
+            } else {
+                throw new CloudRuntimeException("DB Exception on: " + pstmt, e);
+            }
+        } catch (IllegalArgumentException e) {
+            throw new CloudRuntimeException("Problem with getting the ec attribute ", e);
+        } catch (IllegalAccessException e) {
+            throw new CloudRuntimeException("Problem with getting the ec attribute ", e);
+        }
+
+        return ids;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public int updateBatch(final List<T> entities) {
+        if (entities.isEmpty()) {
+            return 0;
+        }
+
+        // Entities with the same changed fields produce the same sql and share a batch
+        final Map<String, List<Pair<UpdateBuilder, SearchCriteria<T>>>> batches = new LinkedHashMap<String, List<Pair<UpdateBuilder, SearchCriteria<T>>>>();
+        final List<ID> ids = new ArrayList<ID>(entities.size());
+        final TransactionLegacy txn = TransactionLegacy.currentTxn();
+        PreparedStatement pstmt = null;
+        int rowsUpdated = 0;
+        try {
+            txn.start();
+            for (final T entity : entities) {
+                assert Enhancer.isEnhanced(entity.getClass()) : "Entity is not generated by this dao";
+
+                final UpdateBuilder ub = getUpdateBuilder(entity);
+                final ID id = (ID)_idField.get(entity);
+                ids.add(id);
+
+                if (ub.getCollectionChanges() != null) {
+                    insertElementCollection(entity, _idAttributes.get(_table)[0], id, ub.getCollectionChanges());
+                }
+
+                final StringBuilder sql = ub.toSql(_tables);
+                if (sql == null) {
+                    continue;
+                }
+
+                final SearchCriteria<T> sc = createSearchCriteria();
+                sc.addAnd(_idAttributes.get(_table)[0], SearchCriteria.Op.EQ, id);
+                sql.append(sc.getWhereClause());
+
+                List<Pair<UpdateBuilder, SearchCriteria<T>>> batch = batches.get(sql.toString());
+                if (batch == null) {
+                    batch = new ArrayList<Pair<UpdateBuilder, SearchCriteria<T>>>();
+                    batches.put(sql.toString(), batch);
+                }
+                batch.add(new Pair<UpdateBuilder, SearchCriteria<T>>(ub, sc));
+            }
+
+            for (final Map.Entry<String, List<Pair<UpdateBuilder, SearchCriteria<T>>>> batch : batches.entrySet()) {
+                pstmt = txn.prepareAutoCloseStatement(batch.getKey());
+                for (final Pair<UpdateBuilder, SearchCriteria<T>> update : batch.getValue()) {
+                    int i = 1;
+                    for (final Ternary<Attribute, Boolean, Object> value : update.first().getChanges()) {
+                        prepareAttribute(i++, pstmt, value.first(), value.third());
+                    }
+                    for (final Pair<Attribute, Object> value : update.second().getValues()) {
+                        prepareAttribute(i++, pstmt, value.first(), value.second());
+                    }
+                    pstmt.addBatch();
+                }
+
+                for (final int count : pstmt.executeBatch()) {
+                    // drivers may report Statement.SUCCESS_NO_INFO for rewritten batches
+                    rowsUpdated += count == Statement.SUCCESS_NO_INFO ? 1 : Math.max(count, 0);
+                }
+
+                for (final Pair<UpdateBuilder, SearchCriteria<T>> update : batch.getValue()) {
+                    update.first().clear();
+                }
+            }
+            txn.commit();
+        } catch (final SQLException e) {
+            if (e.getSQLState().equals("23000") && e.getErrorCode() == 1062) {
+                throw new EntityExistsException("Entity already exists ", e);
+            }
+            throw new CloudRuntimeException("DB Exception on: " + pstmt, e);
+        } catch (final IllegalAccessException e) {
+            throw new CloudRuntimeException("Unable to get the id of the entity", e);
+        }
+
+        if (_cache != null) {
+            _cache.invalidate(ids);
+        }
+        return rowsUpdated;
+    }
+
     protected void insertElementCollection(T entity, Attribute idAttribute, ID id, Map<Attribute, Object> ecAttributes) throws SQLException {
         TransactionLegacy txn = TransactionLegacy.currentTxn();
         txn.start();
@@ -1586,6 +1994,17 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
         return j;
     }
 
+    protected boolean isRemoved(final T entity) {
+        if (_removed == null) {
+            return false;
+        }
+        try {
+            return _removed.second().field.get(entity) != null;
+        } catch (final IllegalAccessException e) {
+            throw new CloudRuntimeException("Unable to get the removed date of " + entity, e);
+        }
+    }
+
     @SuppressWarnings("unchecked")
     @DB()
     protected T toEntityBean(final ResultSet result, final boolean cache) throws SQLException {
@@ -1593,9 +2012,10 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
 
         toEntityBean(result, entity);
 
-        if (cache && _cache != null) {
+        // findById() takes cache hits as not removed, so removed rows stay out of the cache
+        if (cache && _cache != null && !isRemoved(entity)) {
             try {
-                _cache.put(new Element(_idField.get(entity), entity));
+                _cache.put((Serializable)_idField.get(entity), entity);
             } catch (final Exception e) {
                 s_logger.debug("Can't put it in the cache", e);
             }
@@ -1615,9 +2035,9 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
             throw new CloudRuntimeException("Illegal Access", e1);
         }
         toEntityBean(result, entity);
-        if (cache && _cache != null) {
+        if (cache && _cache != null && !isRemoved(entity)) {
             try {
-                _cache.put(new Element(_idField.get(entity), entity));
+                _cache.put((Serializable)_idField.get(entity), entity);
             } catch (final Exception e) {
                 s_logger.debug("Can't put it in the cache", e);
             }
@@ -1774,7 +2194,7 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
             final int result = pstmt.executeUpdate();
             txn.commit();
             if (_cache != null) {
-                _cache.remove(id);
+                _cache.invalidate(id);
             }
             return result > 0;
         } catch (final SQLException e) {
@@ -1795,19 +2215,17 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
         return update(ub, sc, null);
     }
 
-    protected Cache _cache;
+    protected EntityCache _cache;
 
     @DB()
     protected void createCache(final Map<String, ? extends Object> params) {
         final String value = (String)params.get("cache.size");
 
-        if (value != null) {
-            final CacheManager cm = CacheManager.create();
+        if (value != null && _idField != null) {
             final int maxElements = NumbersUtil.parseInt(value, 0);
             final int live = NumbersUtil.parseInt((String)params.get("cache.time.to.live"), 300);
             final int idle = NumbersUtil.parseInt((String)params.get("cache.time.to.idle"), 300);
-            _cache = new Cache(getName(), maxElements, false, live == -1, live == -1 ? Integer.MAX_VALUE : live, idle);
-            cm.addCache(_cache);
+            _cache = EntityCache.register(new EntityCache(getName(), _idField.getType(), maxElements, live, idle));
             s_logger.info("Cache created: " + _cache.toString());
         } else {
             _cache = null;
@@ -24,6 +24,7 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Savepoint;
 import java.sql.Statement;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
@@ -95,6 +96,7 @@ public class TransactionLegacy {
     private long _id;
 
     private final LinkedList<Pair<String, Long>> _lockTimes = new LinkedList<Pair<String, Long>>();
+    private final List<Runnable> _postCommitHooks = new ArrayList<Runnable>();
 
     private String _name;
     private Connection _conn;
@@ -257,6 +259,25 @@ public class TransactionLegacy {
         }
     }
 
+    /**
+     * Retrieves a connection that is not associated with any transaction from
+     * the pool of the given database.  The caller is responsible for closing it.
+     */
+    public static Connection getStandaloneConnection(final short databaseId) {
+        switch (databaseId) {
+            case CLOUD_DB:
+                return getStandaloneConnection();
+            case USAGE_DB:
+                return getStandaloneUsageConnection();
+            case AWSAPI_DB:
+                return getStandaloneAwsapiConnection();
+            case SIMULATOR_DB:
+                return getStandaloneSimulatorConnection();
+            default:
+                throw new CloudRuntimeException("No connection pool for database " + databaseId);
+        }
+    }
+
     protected void attach(TransactionAttachment value) {
         _stack.push(new StackElement(ATTACHMENT, value));
     }
@@ -277,6 +298,38 @@ public class TransactionLegacy {
         return null;
     }
 
+    /**
+     * Runs the hook once the outermost transaction commits, or right away if
+     * no transaction is open.  The hook is dropped if the transaction rolls
+     * back.  Hooks run in the order they are registered.
+     */
+    public void registerPostCommitHook(Runnable hook) {
+        if (!_txn) {
+            runPostCommitHook(hook);
+            return;
+        }
+        _postCommitHooks.add(hook);
+    }
+
+    protected void runPostCommitHooks() {
+        if (_postCommitHooks.isEmpty()) {
+            return;
+        }
+        List<Runnable> hooks = new ArrayList<Runnable>(_postCommitHooks);
+        _postCommitHooks.clear();
+        for (Runnable hook : hooks) {
+            runPostCommitHook(hook);
+        }
+    }
+
+    protected void runPostCommitHook(Runnable hook) {
+        try {
+            hook.run();
+        } catch (Exception e) {
+            s_logger.warn("Post commit hook " + hook + " failed", e);
+        }
+    }
+
     public static void attachToTxn(TransactionAttachment value) {
         TransactionLegacy txn = tls.get();
         assert txn != null && txn.peekInStack(CURRENT_TXN) != null : "Come on....how can we attach something to the transaction if you haven't started it?";
@@ -656,6 +709,7 @@ public class TransactionLegacy {
         }
         _txn = false;
         _name = null;
+        _postCommitHooks.clear();
 
         closeConnection();
 
@@ -748,11 +802,13 @@ public class TransactionLegacy {
                 clearLockTimes();
                 closeConnection();
             }
-            return true;
         } catch (final SQLException e) {
+            _postCommitHooks.clear();
             rollbackTransaction();
             throw new CloudRuntimeException("Unable to commit or close the connection. ", e);
         }
+        runPostCommitHooks();
+        return true;
     }
 
     protected void closeConnection() {
@@ -857,6 +913,7 @@ public class TransactionLegacy {
         }
         assert (!hasTxnInStack()) : "Who's rolling back transaction when there's still txn in stack?";
         _txn = false;
+        _postCommitHooks.clear();
         try {
             if (_conn != null) {
                 if (s_logger.isDebugEnabled()) {
@@ -0,0 +1,60 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.db;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.cloud.utils.exception.CloudRuntimeException;
+
+public class FilterTest {
+
+    @Test
+    public void testOrderByColumns() {
+        final Filter filter = new Filter(DbTestVO.class, "fieldLong", false, 0L, 20L);
+        filter.addOrderBy(DbTestVO.class, "id", true);
+
+        assertEquals(" ORDER BY test.fld_long DESC , test.id ASC ", filter.getOrderBy());
+        assertEquals(2, filter.getOrderColumns().size());
+        assertEquals("fld_long", filter.getOrderColumns().get(0).second());
+        assertFalse(filter.getOrderColumns().get(0).third());
+        assertTrue(filter.getOrderColumns().get(1).third());
+    }
+
+    @Test
+    public void testSeekTokenRoundTrip() {
+        final String[] key = new String[] {"1388534400000", "a.b/c d", ""};
+        final Filter filter = new Filter(DbTestVO.class, "id", true, 0L, 20L);
+        assertFalse(filter.isSeek());
+
+        filter.setSeekToken(Filter.encodeSeekToken(key));
+        assertTrue(filter.isSeek());
+        assertArrayEquals(key, filter.getSeekKey());
+
+        filter.setSeekToken(null);
+        assertFalse(filter.isSeek());
+    }
+
+    @Test(expected = CloudRuntimeException.class)
+    public void testInvalidSeekToken() {
+        Filter.decodeSeekToken("not*a*token");
+    }
+}
@@ -18,6 +18,9 @@ package com.cloud.utils.db;
 
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import junit.framework.Assert;
 
@@ -27,6 +30,9 @@ import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.runners.MockitoJUnitRunner;
 
+import com.cloud.utils.Pair;
+import com.cloud.utils.exception.CloudRuntimeException;
+
 @RunWith(MockitoJUnitRunner.class)
 public class GenericDaoBaseTest {
     @Mock
@@ -131,4 +137,139 @@ public class GenericDaoBaseTest {
         Mockito.verify(resultSet).getByte(1);
     }
 
+    private static List<Object> seekValues(List<Pair<Attribute, Object>> bindings) {
+        List<Object> values = new ArrayList<Object>();
+        for (Pair<Attribute, Object> binding : bindings) {
+            values.add(binding.second());
+        }
+        return values;
+    }
+
+    @Test
+    public void addSeekMultipleColumns() {
+        DbTestDao dao = new DbTestDao();
+        Filter filter = new Filter(DbTestVO.class, "fieldLong", true, 0L, 20L);
+        filter.addOrderBy(DbTestVO.class, "id", true);
+        filter.setSeekKey("5", "7");
+
+        StringBuilder sql = new StringBuilder("SELECT * FROM test WHERE test.fld_int = ?");
+        List<Pair<Attribute, Object>> bindings = dao.addSeek(sql, filter, true);
+
+        // the rows tied on fld_long with the last row of the page are told apart by the id
+        Assert.assertEquals("SELECT * FROM test WHERE test.fld_int = ? AND ((test.fld_long > ?) OR (test.fld_long = ? AND test.id > ?))", sql.toString());
+        Assert.assertEquals(Arrays.<Object>asList(5L, 5L, 7L), seekValues(bindings));
+    }
+
+    @Test
+    public void addSeekWithoutOtherCondition() {
+        DbTestDao dao = new DbTestDao();
+        Filter filter = new Filter(DbTestVO.class, "id", true, 0L, 20L);
+        filter.setSeekKey("7");
+
+        StringBuilder sql = new StringBuilder("SELECT * FROM test WHERE ");
+        List<Pair<Attribute, Object>> bindings = dao.addSeek(sql, filter, false);
+
+        Assert.assertEquals("SELECT * FROM test WHERE ((test.id > ?))", sql.toString());
+        Assert.assertEquals(Arrays.<Object>asList(7L), seekValues(bindings));
+    }
+
+    @Test
+    public void addSeekDescending() {
+        DbTestDao dao = new DbTestDao();
+        Filter filter = new Filter(DbTestVO.class, "fieldString", false, 0L, 20L);
+        filter.addOrderBy(DbTestVO.class, "fieldInt", false);
+        filter.addOrderBy(DbTestVO.class, "id", true);
+        filter.setSeekKey("b", "3", "7");
+
+        StringBuilder sql = new StringBuilder();
+        List<Pair<Attribute, Object>> bindings = dao.addSeek(sql, filter, false);
+
+        Assert.assertEquals("((test.fld_string < ?) OR (test.fld_string = ? AND test.fld_int < ?) OR (test.fld_string = ? AND test.fld_int = ? AND test.id > ?))",
+                sql.toString());
+        Assert.assertEquals(Arrays.<Object>asList("b", "b", 3, "b", 3, 7L), seekValues(bindings));
+    }
+
+    @Test
+    public void addSeekNotPaging() {
+        DbTestDao dao = new DbTestDao();
+        StringBuilder sql = new StringBuilder("SELECT * FROM test");
+
+        Assert.assertTrue(dao.addSeek(sql, null, false).isEmpty());
+        Assert.assertTrue(dao.addSeek(sql, new Filter(DbTestVO.class, "id", true, 0L, 20L), false).isEmpty());
+        Assert.assertEquals("SELECT * FROM test", sql.toString());
+    }
+
+    @Test(expected = CloudRuntimeException.class)
+    public void addSeekKeyNotMatchingOrder() {
+        DbTestDao dao = new DbTestDao();
+        Filter filter = new Filter(DbTestVO.class, "fieldLong", true, 0L, 20L);
+        filter.addOrderBy(DbTestVO.class, "id", true);
+        filter.setSeekKey("5");
+
+        dao.addSeek(new StringBuilder(), filter, false);
+    }
+
+    @Test(expected = CloudRuntimeException.class)
+    public void addSeekInvalidValue() {
+        DbTestDao dao = new DbTestDao();
+        Filter filter = new Filter(DbTestVO.class, "id", true, 0L, 20L);
+        filter.setSeekKey("seven");
+
+        dao.addSeek(new StringBuilder(), filter, false);
+    }
+
+    @Test
+    public void addFilterSeekIgnoresOffset() {
+        DbTestDao dao = new DbTestDao();
+        Filter filter = new Filter(DbTestVO.class, "fieldLong", false, 40L, 20L);
+        filter.addOrderBy(DbTestVO.class, "id", false);
+
+        StringBuilder sql = new StringBuilder();
+        dao.addFilter(sql, filter);
+        Assert.assertEquals(" ORDER BY test.fld_long DESC , test.id DESC  LIMIT 40, 20", sql.toString());
+
+        filter.setSeekKey("5", "7");
+        sql = new StringBuilder();
+        dao.addFilter(sql, filter);
+        Assert.assertEquals(" ORDER BY test.fld_long DESC , test.id DESC  LIMIT 20", sql.toString());
+    }
+
+    @Test
+    public void seekTokenRoundTrip() {
+        DbTestDao dao = new DbTestDao();
+        Filter filter = new Filter(DbTestVO.class, "fieldString", false, 0L, 20L);
+        filter.addOrderBy(DbTestVO.class, "fieldLong", true);
+        filter.addOrderBy(DbTestVO.class, "id", true);
+
+        DbTestVO last = new DbTestVO();
+        last.id = 7;
+        last.fieldLong = 5L;
+        last.fieldString = "a.b/c d";
+        String token = dao.createSeekToken(filter, last);
+
+        // the next page is asked for with a new filter, as a list command does with its nextpagetoken
+        Filter next = new Filter(DbTestVO.class, "fieldString", false, 0L, 20L);
+        next.addOrderBy(DbTestVO.class, "fieldLong", true);
+        next.addOrderBy(DbTestVO.class, "id", true);
+        next.setSeekToken(token);
+
+        StringBuilder sql = new StringBuilder();
+        List<Pair<Attribute, Object>> bindings = dao.addSeek(sql, next, false);
+        Assert.assertEquals(
+                "((test.fld_string < ?) OR (test.fld_string = ? AND test.fld_long > ?) OR (test.fld_string = ? AND test.fld_long = ? AND test.id > ?))",
+                sql.toString());
+        Assert.assertEquals(Arrays.<Object>asList("a.b/c d", "a.b/c d", 5L, "a.b/c d", 5L, 7L), seekValues(bindings));
+    }
+
+    @Test
+    public void seekTokenNullColumn() {
+        DbTestDao dao = new DbTestDao();
+        Filter filter = new Filter(DbTestVO.class, "fieldLong", true, 0L, 20L);
+        filter.addOrderBy(DbTestVO.class, "id", true);
+
+        DbTestVO last = new DbTestVO();
+        last.id = 7;
+        Assert.assertNull(dao.createSeekToken(filter, last));
+    }
+
 }
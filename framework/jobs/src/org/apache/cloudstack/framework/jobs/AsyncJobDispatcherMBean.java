@@ -0,0 +1,60 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.framework.jobs;
+
+/**
+ * Execution statistics of the jobs run by one AsyncJobDispatcher, times are in milliseconds.
+ * The executor pool figures are shared by all the dispatchers that run on the same pool.
+ */
+public interface AsyncJobDispatcherMBean {
+    public String getDispatcher();
+
+    public long getDispatchCount();
+
+    /**
+     * @return average time from the submission of a job until it is handed to the executor.
+     */
+    public long getAverageQueueWaitTime();
+
+    public long getMaxQueueWaitTime();
+
+    /**
+     * @return average time from handing a job to the executor until it starts to run.
+     */
+    public long getAverageDispatchLatency();
+
+    public long getMaxDispatchLatency();
+
+    /**
+     * @return number of jobs that were returned to their queue or retried later because the executor pool was full.
+     */
+    public long getDeferredCount();
+
+    public String getExecutorPool();
+
+    public int getExecutorPoolSize();
+
+    public int getExecutorQueueSize();
+
+    public int getExecutorQueueDepth();
+
+    public int getExecutorActiveCount();
+
+    public long getExecutorRejectedCount();
+
+    public void resetStatistics();
+}
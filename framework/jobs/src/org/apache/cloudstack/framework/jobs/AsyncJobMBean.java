@@ -50,4 +50,16 @@ public interface AsyncJobMBean {
     public String getSyncQueueContentType();
 
     public String getSyncQueueContentId();
+
+    public String getDispatcher();
+
+    /**
+     * @return milliseconds from the submission of the job until it was handed to the executor.
+     */
+    public long getQueueWaitTime();
+
+    /**
+     * @return milliseconds from handing the job to the executor until it started to run.
+     */
+    public long getDispatchLatency();
 }
@@ -0,0 +1,142 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.framework.jobs.impl;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.StandardMBean;
+
+import org.apache.cloudstack.framework.jobs.AsyncJobDispatcherMBean;
+
+public class AsyncJobDispatcherMBeanImpl extends StandardMBean implements AsyncJobDispatcherMBean {
+    private final String _dispatcher;
+    private final AsyncJobExecutorPool _pool;
+
+    private final AtomicLong _dispatchCount = new AtomicLong();
+    private final AtomicLong _totalQueueWaitTime = new AtomicLong();
+    private final AtomicLong _maxQueueWaitTime = new AtomicLong();
+    private final AtomicLong _totalDispatchLatency = new AtomicLong();
+    private final AtomicLong _maxDispatchLatency = new AtomicLong();
+    private final AtomicLong _deferredCount = new AtomicLong();
+
+    public AsyncJobDispatcherMBeanImpl(String dispatcher, AsyncJobExecutorPool pool) {
+        super(AsyncJobDispatcherMBean.class, false);
+
+        _dispatcher = dispatcher;
+        _pool = pool;
+    }
+
+    public AsyncJobExecutorPool getPool() {
+        return _pool;
+    }
+
+    public void recordDispatch(long queueWaitTime, long dispatchLatency) {
+        _dispatchCount.incrementAndGet();
+        _totalQueueWaitTime.addAndGet(queueWaitTime);
+        _totalDispatchLatency.addAndGet(dispatchLatency);
+        updateMax(_maxQueueWaitTime, queueWaitTime);
+        updateMax(_maxDispatchLatency, dispatchLatency);
+    }
+
+    public void recordDeferral() {
+        _deferredCount.incrementAndGet();
+    }
+
+    private static void updateMax(AtomicLong max, long value) {
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    @Override
+    public String getDispatcher() {
+        return _dispatcher;
+    }
+
+    @Override
+    public long getDispatchCount() {
+        return _dispatchCount.get();
+    }
+
+    @Override
+    public long getAverageQueueWaitTime() {
+        long count = _dispatchCount.get();
+        return count > 0 ? _totalQueueWaitTime.get() / count : 0;
+    }
+
+    @Override
+    public long getMaxQueueWaitTime() {
+        return _maxQueueWaitTime.get();
+    }
+
+    @Override
+    public long getAverageDispatchLatency() {
+        long count = _dispatchCount.get();
+        return count > 0 ? _totalDispatchLatency.get() / count : 0;
+    }
+
+    @Override
+    public long getMaxDispatchLatency() {
+        return _maxDispatchLatency.get();
+    }
+
+    @Override
+    public long getDeferredCount() {
+        return _deferredCount.get();
+    }
+
+    @Override
+    public String getExecutorPool() {
+        return _pool.getName();
+    }
+
+    @Override
+    public int getExecutorPoolSize() {
+        return _pool.getPoolSize();
+    }
+
+    @Override
+    public int getExecutorQueueSize() {
+        return _pool.getQueueSize();
+    }
+
+    @Override
+    public int getExecutorQueueDepth() {
+        return _pool.getQueueDepth();
+    }
+
+    @Override
+    public int getExecutorActiveCount() {
+        return _pool.getActiveCount();
+    }
+
+    @Override
+    public long getExecutorRejectedCount() {
+        return _pool.getRejectedCount();
+    }
+
+    @Override
+    public void resetStatistics() {
+        _deferredCount.set(0);
+        _dispatchCount.set(0);
+        _totalQueueWaitTime.set(0);
+        _maxQueueWaitTime.set(0);
+        _totalDispatchLatency.set(0);
+        _maxDispatchLatency.set(0);
+    }
+}
@@ -0,0 +1,112 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.framework.jobs.impl;
+
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.cloudstack.framework.jobs.AsyncJobManager;
+
+import com.cloud.utils.concurrency.NamedThreadFactory;
+
+/**
+ * Fixed size thread pool that runs jobs with a bounded backlog.  Interactive
+ * jobs are taken from the backlog before the others, jobs of the same kind
+ * run in submission order.  Once the backlog is full further jobs are rejected
+ * so that the caller can defer them.
+ */
+public class AsyncJobExecutorPool {
+    private static final long IDLE_THREAD_KEEPALIVE_SECONDS = 60;
+
+    private final String _name;
+    private final int _queueSize;
+    private final ThreadPoolExecutor _executor;
+    private final AtomicLong _sequence = new AtomicLong();
+    private final AtomicLong _rejectedCount = new AtomicLong();
+
+    public AsyncJobExecutorPool(String name, int poolSize, int queueSize) {
+        _name = name;
+        _queueSize = queueSize;
+        _executor = new ThreadPoolExecutor(poolSize, poolSize, IDLE_THREAD_KEEPALIVE_SECONDS, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(),
+            new NamedThreadFactory(AsyncJobManager.JOB_POOL_THREAD_PREFIX + "-" + name));
+        _executor.allowCoreThreadTimeOut(true);
+    }
+
+    public void execute(Runnable task, boolean interactive) throws RejectedExecutionException {
+        if (_executor.getQueue().size() >= _queueSize) {
+            _rejectedCount.incrementAndGet();
+            throw new RejectedExecutionException("Job executor pool " + _name + " has " + _queueSize + " jobs waiting already");
+        }
+        _executor.execute(new PrioritizedTask(task, interactive, _sequence.getAndIncrement()));
+    }
+
+    public String getName() {
+        return _name;
+    }
+
+    public int getPoolSize() {
+        return _executor.getMaximumPoolSize();
+    }
+
+    public int getQueueSize() {
+        return _queueSize;
+    }
+
+    public int getQueueDepth() {
+        return _executor.getQueue().size();
+    }
+
+    public int getActiveCount() {
+        return _executor.getActiveCount();
+    }
+
+    public long getRejectedCount() {
+        return _rejectedCount.get();
+    }
+
+    public void shutdown() {
+        _executor.shutdown();
+    }
+
+    private static class PrioritizedTask implements Runnable, Comparable<PrioritizedTask> {
+        private final Runnable _task;
+        private final boolean _interactive;
+        private final long _sequence;
+
+        PrioritizedTask(Runnable task, boolean interactive, long sequence) {
+            _task = task;
+            _interactive = interactive;
+            _sequence = sequence;
+        }
+
+        @Override
+        public void run() {
+            _task.run();
+        }
+
+        @Override
+        public int compareTo(PrioritizedTask that) {
+            if (_interactive != that._interactive) {
+                return _interactive ? -1 : 1;
+            }
+            return _sequence < that._sequence ? -1 : (_sequence == that._sequence ? 0 : 1);
+        }
+    }
+}
@@ -28,11 +28,15 @@ import com.cloud.utils.DateUtil;
 
 public class AsyncJobMBeanImpl extends StandardMBean implements AsyncJobMBean {
     private final AsyncJob _job;
+    private final long _queueWaitTime;
+    private final long _dispatchLatency;
 
-    public AsyncJobMBeanImpl(AsyncJob job) {
+    public AsyncJobMBeanImpl(AsyncJob job, long queueWaitTime, long dispatchLatency) {
         super(AsyncJobMBean.class, false);
 
         _job = job;
+        _queueWaitTime = queueWaitTime;
+        _dispatchLatency = dispatchLatency;
     }
 
     @Override
@@ -162,4 +166,22 @@ public class AsyncJobMBeanImpl extends StandardMBean implements AsyncJobMBean {
         }
         return "N/A";
     }
+
+    @Override
+    public String getDispatcher() {
+        if (_job.getDispatcher() != null) {
+            return _job.getDispatcher();
+        }
+        return "N/A";
+    }
+
+    @Override
+    public long getQueueWaitTime() {
+        return _queueWaitTime;
+    }
+
+    @Override
+    public long getDispatchLatency() {
+        return _dispatchLatency;
+    }
 }
@@ -21,14 +21,18 @@ import java.io.Serializable;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
-import java.util.concurrent.ExecutorService;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.inject.Inject;
 import javax.naming.ConfigurationException;
@@ -57,9 +61,13 @@ import org.apache.cloudstack.jobs.JobInfo.Status;
 import org.apache.cloudstack.managed.context.ManagedContextRunnable;
 import org.apache.cloudstack.utils.identity.ManagementServerNode;
 
+import com.cloud.cluster.ClusterManager;
 import com.cloud.cluster.ClusterManagerListener;
+import com.cloud.cluster.ClusterMessageListener;
 import com.cloud.cluster.ManagementServerHost;
 import com.cloud.utils.DateUtil;
+import com.cloud.utils.NumbersUtil;
+import com.cloud.utils.Pair;
 import com.cloud.utils.Predicate;
 import com.cloud.utils.component.ManagerBase;
 import com.cloud.utils.concurrency.NamedThreadFactory;
@@ -75,17 +83,28 @@ import com.cloud.utils.db.SearchCriteria.Op;
 import com.cloud.utils.db.Transaction;
 import com.cloud.utils.db.TransactionCallback;
 import com.cloud.utils.db.TransactionCallbackNoReturn;
+import com.cloud.utils.db.TransactionLegacy;
 import com.cloud.utils.db.TransactionStatus;
 import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.utils.exception.ExceptionUtil;
 import com.cloud.utils.mgmt.JmxUtil;
 
-public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager, ClusterManagerListener, Configurable {
+public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager, ClusterManagerListener, ClusterMessageListener, Configurable {
     // Advanced
     private static final ConfigKey<Long> JobExpireMinutes = new ConfigKey<Long>(Long.class, "job.expire.minutes", "Advanced", "1440",
         "Time (in minutes) for async-jobs to be kept in system", true, ConfigKey.Scope.Global, 60l);
     private static final ConfigKey<Long> JobCancelThresholdMinutes = new ConfigKey<Long>(Long.class, "job.cancel.threshold.minutes", "Advanced", "60",
         "Time (in minutes) for async-jobs to be forcely cancelled if it has been in process for long", true, ConfigKey.Scope.Global, 60l);
+    private static final ConfigKey<Long> JobRecoveryScanInterval = new ConfigKey<Long>(Long.class, "job.recovery.scan.interval", "Advanced", "2000",
+        "Interval (in milliseconds) to scan sync queues and job joins for work whose wakeup signal was missed", false);
+    private static final ConfigKey<String> JobExecutorPoolSizes = new ConfigKey<String>(String.class, "job.executor.pool.sizes", "Advanced", "",
+        "Comma separated list of <dispatcher>=<threads>[:<max waiting jobs>] for the job dispatchers that get their own executor pool,"
+            + " e.g. VmWorkJobDispatcher=20:500. The other dispatchers share the default pool", false);
+    private static final ConfigKey<Integer> JobExecutorQueueSize = new ConfigKey<Integer>(Integer.class, "job.executor.queue.size", "Advanced", "1000",
+        "Maximum number of jobs waiting for a thread of an executor pool, further jobs are deferred until the pool catches up", false);
+    private static final ConfigKey<String> JobInteractiveCommands = new ConfigKey<String>(String.class, "job.interactive.commands", "Advanced",
+        "StartVMCmd,StopVMCmd,RebootVMCmd,VmWorkStart,VmWorkStop,VmWorkReboot",
+        "Comma separated list of the job commands, by class name, that are run ahead of the other jobs waiting in an executor pool", false);
 
     private static final Logger s_logger = Logger.getLogger(AsyncJobManagerImpl.class);
 
@@ -93,8 +112,14 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
     private static final int ACQUIRE_GLOBAL_LOCK_TIMEOUT_FOR_SYNC = 60;     // 60 seconds
 
     private static final int MAX_ONETIME_SCHEDULE_SIZE = 50;
-    private static final int HEARTBEAT_INTERVAL = 2000;
     private static final int GC_INTERVAL = 10000;                // 10 seconds
+    private static final int DEFERRED_EXECUTION_RETRY_INTERVAL = 1000;
+
+    private static final String DEFAULT_EXECUTOR_POOL = "Default";
+
+    // cluster message subjects, the message is the job id or the queue id
+    private static final String JOB_STATE_SUBJECT = "async-job-state";
+    private static final String QUEUE_WAKEUP_SUBJECT = "async-job-queue";
 
     @Inject
     private SyncQueueItemDao _queueItemDao;
@@ -114,11 +139,19 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
     private AsyncJobMonitor _jobMonitor;
     @Inject
     private ConfigDepot _configDepot;
+    @Inject
+    private ClusterManager _clusterMgr;
 
     private volatile long _executionRunNumber = 1;
 
     private final ScheduledExecutorService _heartbeatScheduler = Executors.newScheduledThreadPool(1, new NamedThreadFactory("AsyncJobMgr-Heartbeat"));
-    private ExecutorService _executor;
+    private int _defaultPoolSize;
+    private int _defaultQueueSize = Integer.parseInt(JobExecutorQueueSize.defaultValue());
+    private final Map<String, AsyncJobExecutorPool> _executorPools = new HashMap<String, AsyncJobExecutorPool>();
+    private volatile Map<String, Pair<Integer, Integer>> _executorPoolSizes = Collections.emptyMap();
+    private volatile Set<String> _interactiveCommands = Collections.emptySet();
+    private final AtomicBoolean _wakeupPending = new AtomicBoolean(false);
+    private final ConcurrentHashMap<String, AsyncJobDispatcherMBeanImpl> _dispatcherStats = new ConcurrentHashMap<String, AsyncJobDispatcherMBeanImpl>();
 
     @Override
     public String getConfigComponentName() {
@@ -127,7 +160,8 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
 
     @Override
     public ConfigKey<?>[] getConfigKeys() {
-        return new ConfigKey<?>[] {JobExpireMinutes, JobCancelThresholdMinutes};
+        return new ConfigKey<?>[] {JobExpireMinutes, JobCancelThresholdMinutes, JobRecoveryScanInterval, JobExecutorPoolSizes, JobExecutorQueueSize,
+            JobInteractiveCommands};
     }
 
     @Override
@@ -171,7 +205,11 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
         job.setSyncSource(null);        // no sync source originally
         dao.persist(job);
 
-        scheduleExecution(job, scheduleJobExecutionInContext);
+        if (scheduleJobExecutionInContext) {
+            scheduleExecution(job, true);
+        } else {
+            scheduleOrDeferExecution(job);
+        }
         if (s_logger.isDebugEnabled()) {
             s_logger.debug("submit async job-" + job.getId() + ", details: " + job.toString());
         }
@@ -186,7 +224,7 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
             @SuppressWarnings("rawtypes")
             final GenericDao dao = GenericDaoBase.getDao(job.getClass());
 
-            return Transaction.execute(new TransactionCallback<Long>() {
+            long jobId = Transaction.execute(new TransactionCallback<Long>() {
                 @Override
                 public Long doInTransaction(TransactionStatus status) {
                     job.setInitMsid(getMsid());
@@ -197,6 +235,8 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
                     return job.getId();
                 }
             });
+            wakeupQueues();
+            return jobId;
         } catch (Exception e) {
             String errMsg = "Unable to schedule async job for command " + job.getCmd() + ", unexpected exception.";
             s_logger.warn(errMsg, e);
@@ -260,10 +300,20 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
             // TODO, we assume that all jobs in this category is API job only
             AsyncJobVO jobToWakeup = _jobDao.findById(id);
             if (jobToWakeup != null && (jobToWakeup.getPendingSignals() & AsyncJob.Constants.SIGNAL_MASK_WAKEUP) != 0)
-                scheduleExecution(jobToWakeup, false);
+                scheduleOrDeferExecution(jobToWakeup);
         }
 
         _messageBus.publish(null, AsyncJob.Topics.JOB_STATE, PublishScope.GLOBAL, jobId);
+
+        // the joined jobs that were just released from their queues can run anywhere in the cluster,
+        // once the completion is committed if the caller runs in a transaction of its own
+        TransactionLegacy.currentTxn().registerPostCommitHook(new Runnable() {
+            @Override
+            public void run() {
+                wakeupQueues();
+                _clusterMgr.publishMessage(JOB_STATE_SUBJECT, String.valueOf(jobId));
+            }
+        });
     }
 
     @Override
@@ -369,6 +419,14 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
         queue = _queueMgr.queue(syncObjType, syncObjId, SyncQueueItem.AsyncJobContentType, job.getId(), queueSizeLimit);
         if (queue == null)
             throw new CloudRuntimeException("Unable to insert queue item into database, DB is full?");
+
+        // the queue item only becomes visible to the scan once it is committed
+        TransactionLegacy.currentTxn().registerPostCommitHook(new Runnable() {
+            @Override
+            public void run() {
+                wakeupQueues();
+            }
+        });
     }
 
     @Override
@@ -387,12 +445,101 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
     }
 
     private void scheduleExecution(final AsyncJob job, boolean executeInContext) {
-        Runnable runnable = getExecutorRunnable(job);
+        Runnable runnable = getExecutorRunnable(job, System.currentTimeMillis());
         if (executeInContext) {
             runnable.run();
         } else {
-            _executor.submit(runnable);
+            getDispatcherStats(job.getDispatcher()).getPool().execute(runnable, isInteractive(job));
+        }
+    }
+
+    /**
+     * Jobs that are not backed by a sync queue item have nowhere to return to when their executor pool is full,
+     * they are retried until the pool accepts them.
+     */
+    private void scheduleOrDeferExecution(final AsyncJob job) {
+        try {
+            scheduleExecution(job, false);
+        } catch (RejectedExecutionException e) {
+            getDispatcherStats(job.getDispatcher()).recordDeferral();
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Execution of job-" + job.getId() + " is deferred: " + e.getMessage());
+            }
+
+            try {
+                _heartbeatScheduler.schedule(new ManagedContextRunnable() {
+                    @Override
+                    protected void runInContext() {
+                        scheduleOrDeferExecution(job);
+                    }
+                }, DEFERRED_EXECUTION_RETRY_INTERVAL, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException re) {
+                s_logger.warn("Job manager is stopping, unable to defer execution of job-" + job.getId());
+            }
+        }
+    }
+
+    private boolean isInteractive(AsyncJob job) {
+        String cmd = job.getCmd();
+        if (cmd == null) {
+            return false;
+        }
+        return _interactiveCommands.contains(cmd.substring(cmd.lastIndexOf('.') + 1));
+    }
+
+    private synchronized AsyncJobExecutorPool getExecutorPool(String dispatcherName) {
+        Pair<Integer, Integer> sizes = _executorPoolSizes.get(dispatcherName);
+        String poolName = sizes != null ? dispatcherName : DEFAULT_EXECUTOR_POOL;
+
+        AsyncJobExecutorPool pool = _executorPools.get(poolName);
+        if (pool == null) {
+            int poolSize = sizes != null ? sizes.first() : _defaultPoolSize;
+            int queueSize = sizes != null && sizes.second() != null ? sizes.second() : _defaultQueueSize;
+
+            s_logger.info("Start AsyncJobManager thread pool " + poolName + " in size " + poolSize + " with up to " + queueSize + " waiting jobs");
+            pool = new AsyncJobExecutorPool(poolName, poolSize, queueSize);
+            _executorPools.put(poolName, pool);
+        }
+        return pool;
+    }
+
+    private void configureExecutorPools() {
+        _defaultQueueSize = JobExecutorQueueSize.value();
+
+        Map<String, Pair<Integer, Integer>> poolSizes = new HashMap<String, Pair<Integer, Integer>>();
+        String sizes = JobExecutorPoolSizes.value();
+        if (sizes != null) {
+            for (String entry : sizes.split(",")) {
+                String[] nameValue = entry.trim().split("=");
+                if (nameValue.length != 2) {
+                    if (!entry.trim().isEmpty()) {
+                        s_logger.warn("Ignoring invalid " + JobExecutorPoolSizes.key() + " entry: " + entry);
+                    }
+                    continue;
+                }
+
+                String[] poolQueue = nameValue[1].trim().split(":");
+                int poolSize = NumbersUtil.parseInt(poolQueue[0], 0);
+                if (poolSize <= 0) {
+                    s_logger.warn("Ignoring invalid " + JobExecutorPoolSizes.key() + " entry: " + entry);
+                    continue;
+                }
+                Integer queueSize = poolQueue.length > 1 ? NumbersUtil.parseInt(poolQueue[1], _defaultQueueSize) : null;
+                poolSizes.put(nameValue[0].trim(), new Pair<Integer, Integer>(poolSize, queueSize));
+            }
         }
+        _executorPoolSizes = poolSizes;
+
+        Set<String> interactiveCommands = new HashSet<String>();
+        String commands = JobInteractiveCommands.value();
+        if (commands != null) {
+            for (String command : commands.split(",")) {
+                if (!command.trim().isEmpty()) {
+                    interactiveCommands.add(command.trim());
+                }
+            }
+        }
+        _interactiveCommands = interactiveCommands;
     }
 
     private AsyncJobDispatcher getDispatcher(String dispatcherName) {
@@ -428,7 +575,26 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
         }
     }
 
-    private Runnable getExecutorRunnable(final AsyncJob job) {
+    private AsyncJobDispatcherMBeanImpl getDispatcherStats(String dispatcherName) {
+        String name = dispatcherName != null ? dispatcherName : "N/A";
+        AsyncJobDispatcherMBeanImpl stats = _dispatcherStats.get(name);
+        if (stats == null) {
+            stats = new AsyncJobDispatcherMBeanImpl(name, getExecutorPool(name));
+            AsyncJobDispatcherMBeanImpl existing = _dispatcherStats.putIfAbsent(name, stats);
+            if (existing != null) {
+                return existing;
+            }
+
+            try {
+                JmxUtil.registerMBean("AsyncJobManager", "Dispatcher " + name, stats);
+            } catch (Exception e) {
+                s_logger.warn("Unable to register statistics of job dispatcher " + name + " to JMX monitoring due to exception " + ExceptionUtil.toString(e));
+            }
+        }
+        return stats;
+    }
+
+    private Runnable getExecutorRunnable(final AsyncJob job, final long scheduleTick) {
         return new ManagedContextRunnable() {
 
             @Override
@@ -452,12 +618,16 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
             protected void runInContext() {
                 long runNumber = getJobRunNumber();
 
+                long dispatchLatency = System.currentTimeMillis() - scheduleTick;
+                long queueWaitTime = job.getCreated() != null ? Math.max(scheduleTick - job.getCreated().getTime(), 0) : 0;
+                getDispatcherStats(job.getDispatcher()).recordDispatch(queueWaitTime, dispatchLatency);
+
                 try {
                     //
                     // setup execution environment
                     //
                     try {
-                        JmxUtil.registerMBean("AsyncJobManager", "Active Job " + job.getId(), new AsyncJobMBeanImpl(job));
+                        JmxUtil.registerMBean("AsyncJobManager", "Active Job " + job.getId(), new AsyncJobMBeanImpl(job, queueWaitTime, dispatchLatency));
                     } catch (Exception e) {
                         // Due to co-existence of normal-dispatched-job/wakeup-dispatched-job, MBean register() call
                         // is expected to fail under situations
@@ -508,7 +678,7 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
 
                         if (job.getSyncSource() != null) {
                             _queueMgr.purgeItem(job.getSyncSource().getId());
-                            checkQueue(job.getSyncSource().getQueueId());
+                            releaseQueue(job.getSyncSource().getQueueId());
                         }
 
                         try {
@@ -560,6 +730,7 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
                 scheduleExecution(job);
             } catch (RejectedExecutionException e) {
                 s_logger.warn("Execution for job-" + job.getId() + " is rejected, return it to the queue for next turn");
+                getDispatcherStats(job.getDispatcher()).recordDeferral();
                 _queueMgr.returnItem(item.getId());
 
                 job.setExecutingMsid(null);
@@ -587,7 +758,7 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
             }
 
             _queueMgr.purgeItem(executionContext.getSyncSource().getId());
-            checkQueue(executionContext.getSyncSource().getQueueId());
+            releaseQueue(executionContext.getSyncSource().getQueueId());
         }
     }
 
@@ -634,7 +805,8 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
         return null;
     }
 
-    private void checkQueue(long queueId) {
+    private int checkQueue(long queueId) {
+        int scheduled = 0;
         while (true) {
             try {
                 SyncQueueItemVO item = _queueMgr.dequeueFromOne(queueId, getMsid());
@@ -644,6 +816,7 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
                     }
 
                     executeQueueItem(item, false);
+                    scheduled++;
                 } else {
                     break;
                 }
@@ -652,6 +825,65 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
                 break;
             }
         }
+        return scheduled;
+    }
+
+    private void releaseQueue(long queueId) {
+        if (checkQueue(queueId) == 0) {
+            // nothing for us to run, whatever else was waiting on the queue may be picked up by a peer
+            _clusterMgr.publishMessage(QUEUE_WAKEUP_SUBJECT, String.valueOf(queueId));
+        }
+    }
+
+    /**
+     * Signals that sync queue items may have become available, the queues are scanned right away instead of
+     * waiting for the recovery scan. Signals that arrive while a scan is pending are coalesced into it.
+     */
+    private void wakeupQueues() {
+        if (_wakeupPending.compareAndSet(false, true)) {
+            try {
+                _heartbeatScheduler.execute(getWakeupTask());
+            } catch (RejectedExecutionException e) {
+                _wakeupPending.set(false);
+            }
+        }
+    }
+
+    @Override
+    public void onClusterMessage(String sourcePeer, String subject, String message) {
+        if (JOB_STATE_SUBJECT.equals(subject)) {
+            // let the jobs waiting on this node for the job know about its completion
+            _messageBus.publish(null, AsyncJob.Topics.JOB_STATE, PublishScope.LOCAL, Long.parseLong(message));
+            wakeupQueues();
+        } else if (QUEUE_WAKEUP_SUBJECT.equals(subject)) {
+            wakeupQueues();
+        }
+    }
+
+    private void scheduleQueueItems() {
+        List<SyncQueueItemVO> l = _queueMgr.dequeueFromAny(getMsid(), MAX_ONETIME_SCHEDULE_SIZE);
+        if (l != null && l.size() > 0) {
+            for (SyncQueueItemVO item : l) {
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug("Execute sync-queue item: " + item.toString());
+                }
+                executeQueueItem(item, false);
+            }
+        }
+    }
+
+    private Runnable getWakeupTask() {
+        return new ManagedContextRunnable() {
+            @Override
+            protected void runInContext() {
+                _wakeupPending.set(false);
+                try {
+                    scheduleQueueItems();
+                } catch (Throwable e) {
+                    s_logger.error("Unexpected exception when trying to execute queue item, ", e);
+                }
+            }
+        };
     }
 
     private Runnable getHeartbeatTask() {
@@ -659,22 +891,14 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
             @Override
             protected void runInContext() {
                 try {
-                    List<SyncQueueItemVO> l = _queueMgr.dequeueFromAny(getMsid(), MAX_ONETIME_SCHEDULE_SIZE);
-                    if (l != null && l.size() > 0) {
-                        for (SyncQueueItemVO item : l) {
-                            if (s_logger.isDebugEnabled()) {
-                                s_logger.debug("Execute sync-queue item: " + item.toString());
-                            }
-                            executeQueueItem(item, false);
-                        }
-                    }
+                    scheduleQueueItems();
 
                     List<Long> standaloneWakeupJobs = wakeupScan();
                     for (Long jobId : standaloneWakeupJobs) {
                         // TODO, we assume that all jobs in this category is API job only
                         AsyncJobVO job = _jobDao.findById(jobId);
                         if (job != null && (job.getPendingSignals() & AsyncJob.Constants.SIGNAL_MASK_WAKEUP) != 0)
-                            scheduleExecution(job, false);
+                            scheduleOrDeferExecution(job);
                     }
                 } catch (Throwable e) {
                     s_logger.error("Unexpected exception when trying to execute queue item, ", e);
@@ -850,10 +1074,7 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
             final Properties dbProps = DbProperties.getDbProperties();
             final int cloudMaxActive = Integer.parseInt(dbProps.getProperty("db.cloud.maxActive"));
 
-            int poolSize = (cloudMaxActive * 2) / 3;
-
-            s_logger.info("Start AsyncJobManager thread pool in size " + poolSize);
-            _executor = Executors.newFixedThreadPool(poolSize, new NamedThreadFactory(AsyncJobManager.JOB_POOL_THREAD_PREFIX));
+            _defaultPoolSize = (cloudMaxActive * 2) / 3;
         } catch (final Exception e) {
             throw new ConfigurationException("Unable to load db.properties to configure AsyncJobManagerImpl");
         }
@@ -927,7 +1148,14 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
             s_logger.error("Unexpected exception " + e.getMessage(), e);
         }
 
-        _heartbeatScheduler.scheduleAtFixedRate(getHeartbeatTask(), HEARTBEAT_INTERVAL, HEARTBEAT_INTERVAL, TimeUnit.MILLISECONDS);
+        configureExecutorPools();
+
+        _clusterMgr.registerMessageListener(JOB_STATE_SUBJECT, this);
+        _clusterMgr.registerMessageListener(QUEUE_WAKEUP_SUBJECT, this);
+
+        // queues and joins are normally signalled, the periodic scan only recovers what was missed
+        long recoveryScanInterval = JobRecoveryScanInterval.value();
+        _heartbeatScheduler.scheduleAtFixedRate(getHeartbeatTask(), recoveryScanInterval, recoveryScanInterval, TimeUnit.MILLISECONDS);
         _heartbeatScheduler.scheduleAtFixedRate(getGCTask(), GC_INTERVAL, GC_INTERVAL, TimeUnit.MILLISECONDS);
 
         return true;
@@ -935,8 +1163,23 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
 
     @Override
     public boolean stop() {
+        _clusterMgr.unregisterMessageListener(JOB_STATE_SUBJECT, this);
+        _clusterMgr.unregisterMessageListener(QUEUE_WAKEUP_SUBJECT, this);
+
         _heartbeatScheduler.shutdown();
-        _executor.shutdown();
+        synchronized (this) {
+            for (AsyncJobExecutorPool pool : _executorPools.values()) {
+                pool.shutdown();
+            }
+        }
+
+        for (String dispatcherName : _dispatcherStats.keySet()) {
+            try {
+                JmxUtil.unregisterMBean("AsyncJobManager", "Dispatcher " + dispatcherName);
+            } catch (Exception e) {
+                s_logger.debug("Unable to unregister statistics of job dispatcher " + dispatcherName + " from JMX monitoring due to exception " + ExceptionUtil.toString(e));
+            }
+        }
         return true;
     }
 
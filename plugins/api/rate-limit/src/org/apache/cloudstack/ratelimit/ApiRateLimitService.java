@@ -16,6 +16,8 @@
 // under the License.
 package org.apache.cloudstack.ratelimit;
 
+import java.util.Map;
+
 import org.apache.cloudstack.api.response.ApiLimitResponse;
 
 import com.cloud.user.Account;
@@ -36,4 +38,8 @@ public interface ApiRateLimitService extends PluggableService {
     public void setMaxAllowed(int max);
 
     public void setEnabled(boolean enabled);
+
+    public void setBurst(int burst);
+
+    public void setCommandMaxAllowed(Map<String, Integer> commandMaxAllowed);
 }
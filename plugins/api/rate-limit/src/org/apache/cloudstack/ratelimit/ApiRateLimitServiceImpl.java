@@ -17,16 +17,17 @@
 package org.apache.cloudstack.ratelimit;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import javax.ejb.Local;
 import javax.inject.Inject;
 import javax.naming.ConfigurationException;
 
-import net.sf.ehcache.Cache;
-import net.sf.ehcache.CacheManager;
-
 import org.apache.log4j.Logger;
 import org.springframework.stereotype.Component;
 
@@ -35,20 +36,28 @@ import org.apache.cloudstack.api.command.admin.ratelimit.ResetApiLimitCmd;
 import org.apache.cloudstack.api.command.user.ratelimit.GetApiLimitCmd;
 import org.apache.cloudstack.api.response.ApiLimitResponse;
 import org.apache.cloudstack.framework.config.dao.ConfigurationDao;
+import org.apache.cloudstack.managed.context.ManagedContextRunnable;
 
+import com.cloud.cluster.ClusterManager;
+import com.cloud.cluster.ClusterMessageListener;
 import com.cloud.configuration.Config;
 import com.cloud.exception.PermissionDeniedException;
 import com.cloud.exception.RequestLimitException;
 import com.cloud.user.Account;
 import com.cloud.user.AccountService;
 import com.cloud.user.User;
+import com.cloud.utils.NumbersUtil;
 import com.cloud.utils.component.AdapterBase;
+import com.cloud.utils.concurrency.NamedThreadFactory;
 
 @Component
 @Local(value = APIChecker.class)
-public class ApiRateLimitServiceImpl extends AdapterBase implements APIChecker, ApiRateLimitService {
+public class ApiRateLimitServiceImpl extends AdapterBase implements APIChecker, ApiRateLimitService, ClusterMessageListener {
     private static final Logger s_logger = Logger.getLogger(ApiRateLimitServiceImpl.class);
 
+    static final String SYNC_SUBJECT = "api-limit-sync";
+    private static final String RESET_PREFIX = "!";
+
     /**
      * True if api rate limiting is enabled
      */
@@ -64,7 +73,29 @@ public class ApiRateLimitServiceImpl extends AdapterBase implements APIChecker,
      */
     private int maxAllowed = 30;
 
-    private LimitStore _store = null;
+    /**
+     * Max number of api requests an idle account can issue at once, 0 to use maxAllowed.
+     */
+    private int burst = 0;
+
+    /**
+     * Max number of requests of an api command during timeToLive duration.
+     */
+    private Map<String, Integer> commandMaxAllowed = new HashMap<String, Integer>();
+
+    /**
+     * Max number of buckets kept once they are full again.
+     */
+    private int maxElements = 10000;
+
+    /**
+     * Interval in milliseconds at which counts are exchanged with the other management servers.
+     */
+    private int syncInterval = 250;
+
+    private TokenBucketLimitStore _store = null;
+
+    private ScheduledExecutorService _syncExecutor;
 
     @Inject
     AccountService _accountService;
@@ -72,6 +103,9 @@ public class ApiRateLimitServiceImpl extends AdapterBase implements APIChecker,
     @Inject
     ConfigurationDao _configDao;
 
+    @Inject
+    ClusterManager _clusterMgr;
+
     @Override
     public boolean configure(String name, Map<String, Object> params) throws ConfigurationException {
         super.configure(name, params);
@@ -90,25 +124,117 @@ public class ApiRateLimitServiceImpl extends AdapterBase implements APIChecker,
             if (maxReqs != null) {
                 maxAllowed = Integer.parseInt(maxReqs);
             }
-            // create limit store
-            EhcacheLimitStore cacheStore = new EhcacheLimitStore();
-            int maxElements = 10000;
+            String burstReqs = _configDao.getValue(Config.ApiLimitBurst.key());
+            if (burstReqs != null) {
+                burst = Integer.parseInt(burstReqs);
+            }
+            String commandMax = _configDao.getValue(Config.ApiLimitCommandMax.key());
+            if (commandMax != null) {
+                commandMaxAllowed = parseCommandMaxAllowed(commandMax);
+            }
             String cachesize = _configDao.getValue(Config.ApiLimitCacheSize.key());
             if (cachesize != null) {
                 maxElements = Integer.parseInt(cachesize);
             }
-            CacheManager cm = CacheManager.create();
-            Cache cache = new Cache("api-limit-cache", maxElements, false, false, timeToLive, timeToLive);
-            cm.addCache(cache);
-            s_logger.info("Limit Cache created with timeToLive=" + timeToLive + ", maxAllowed=" + maxAllowed + ", maxElements=" + maxElements);
-            cacheStore.setCache(cache);
-            _store = cacheStore;
+            syncInterval = NumbersUtil.parseInt(_configDao.getValue(Config.ApiLimitSyncInterval.key()), syncInterval);
 
+            // create limit store
+            _store = new TokenBucketLimitStore(getAccountPolicy());
+            _store.setCommandPolicies(getCommandPolicies());
+            s_logger.info("Limit store created with timeToLive=" + timeToLive + ", maxAllowed=" + maxAllowed + ", burst=" + burst + ", commandMaxAllowed=" +
+                commandMaxAllowed + ", maxElements=" + maxElements);
         }
 
         return true;
     }
 
+    @Override
+    public boolean start() {
+        if (_clusterMgr != null) {
+            _clusterMgr.registerMessageListener(SYNC_SUBJECT, this);
+        }
+        _syncExecutor = Executors.newScheduledThreadPool(1, new NamedThreadFactory("ApiLimit-Sync"));
+        _syncExecutor.scheduleWithFixedDelay(new ManagedContextRunnable() {
+            @Override
+            protected void runInContext() {
+                try {
+                    syncCounters();
+                } catch (Exception e) {
+                    s_logger.warn("Unable to publish api counts", e);
+                }
+            }
+        }, syncInterval, syncInterval, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    @Override
+    public boolean stop() {
+        if (_clusterMgr != null) {
+            _clusterMgr.unregisterMessageListener(SYNC_SUBJECT, this);
+        }
+        if (_syncExecutor != null) {
+            _syncExecutor.shutdownNow();
+        }
+        return true;
+    }
+
+    protected static Map<String, Integer> parseCommandMaxAllowed(String value) {
+        Map<String, Integer> result = new HashMap<String, Integer>();
+        for (String entry : value.split(",")) {
+            String[] nameValue = entry.trim().split("=");
+            int max = nameValue.length == 2 ? NumbersUtil.parseInt(nameValue[1].trim(), -1) : -1;
+            if (max < 0) {
+                if (!entry.trim().isEmpty()) {
+                    s_logger.warn("Ignoring malformed " + Config.ApiLimitCommandMax.key() + " entry: " + entry);
+                }
+                continue;
+            }
+            result.put(nameValue[0].trim(), max);
+        }
+        return result;
+    }
+
+    private LimitPolicy getAccountPolicy() {
+        return new LimitPolicy(burst, maxAllowed, timeToLive * 1000L);
+    }
+
+    private Map<String, LimitPolicy> getCommandPolicies() {
+        Map<String, LimitPolicy> policies = new HashMap<String, LimitPolicy>();
+        for (Map.Entry<String, Integer> entry : commandMaxAllowed.entrySet()) {
+            policies.put(entry.getKey(), new LimitPolicy(entry.getValue(), entry.getValue(), timeToLive * 1000L));
+        }
+        return policies;
+    }
+
+    /**
+     * Publishes the requests taken on this management server since the last
+     * call, so the other management servers debit them from their buckets.
+     */
+    protected void syncCounters() {
+        String counts = _store.collectUnsynced();
+        if (counts != null && _clusterMgr != null) {
+            _clusterMgr.publishMessage(SYNC_SUBJECT, counts);
+        }
+        _store.evictIdle(maxElements);
+    }
+
+    @Override
+    public void onClusterMessage(String sourcePeer, String subject, String message) {
+        if (message == null) {
+            return;
+        }
+        if (message.startsWith(RESET_PREFIX)) {
+            String account = message.substring(RESET_PREFIX.length());
+            if (account.isEmpty()) {
+                _store.resetCounters();
+            } else {
+                _store.reset(Long.valueOf(account));
+            }
+            return;
+        }
+        _store.applyRemote(message);
+    }
+
     @Override
     public ApiLimitResponse searchApiLimit(Account caller) {
         ApiLimitResponse response = new ApiLimitResponse();
@@ -116,15 +242,12 @@ public class ApiRateLimitServiceImpl extends AdapterBase implements APIChecker,
         response.setAccountName(caller.getAccountName());
         StoreEntry entry = _store.get(caller.getId());
         if (entry == null) {
-
-            /* Populate the entry, thus unlocking any underlying mutex */
-            entry = _store.create(caller.getId(), timeToLive);
             response.setApiIssued(0);
-            response.setApiAllowed(maxAllowed);
-            response.setExpireAfter(timeToLive);
+            response.setApiAllowed(_store.getAccountPolicy().getBurst());
+            response.setExpireAfter(_store.getAccountPolicy().getIntervalMs());
         } else {
             response.setApiIssued(entry.getCounter());
-            response.setApiAllowed(maxAllowed - entry.getCounter());
+            response.setApiAllowed(entry.getAvailable());
             response.setExpireAfter(entry.getExpireDuration());
         }
 
@@ -134,10 +257,13 @@ public class ApiRateLimitServiceImpl extends AdapterBase implements APIChecker,
     @Override
     public boolean resetApiLimit(Long accountId) {
         if (accountId != null) {
-            _store.create(accountId, timeToLive);
+            _store.reset(accountId);
         } else {
             _store.resetCounters();
         }
+        if (_clusterMgr != null) {
+            _clusterMgr.publishMessage(SYNC_SUBJECT, RESET_PREFIX + (accountId != null ? accountId.toString() : ""));
+        }
         return true;
     }
 
@@ -153,21 +279,25 @@ public class ApiRateLimitServiceImpl extends AdapterBase implements APIChecker,
             // no API throttling on root admin
             return true;
         }
-        StoreEntry entry = _store.get(accountId);
 
-        if (entry == null) {
-
-            /* Populate the entry, thus unlocking any underlying mutex */
-            entry = _store.create(accountId, timeToLive);
+        StoreEntry commandEntry = apiCommandName != null ? _store.getOrCreate(accountId, apiCommandName) : null;
+        if (commandEntry != null && !commandEntry.tryAcquire()) {
+            String msg = "The given user has reached his/her account api limit for " + apiCommandName + ", please retry after " + commandEntry.getExpireDuration() + " ms.";
+            s_logger.warn(msg);
+            throw new RequestLimitException(msg);
         }
 
-        /* Increment the client count and see whether we have hit the maximum allowed clients yet. */
-        int current = entry.incrementAndGet();
-
-        if (current <= maxAllowed) {
-            s_logger.trace("account (" + account.getAccountId() + "," + account.getAccountName() + ") has current count = " + current);
+        StoreEntry entry = _store.getOrCreate(accountId, null);
+        if (entry.tryAcquire()) {
+            if (s_logger.isTraceEnabled()) {
+                s_logger.trace("account (" + account.getAccountId() + "," + account.getAccountName() + ") has current count = " + entry.getCounter());
+            }
             return true;
         } else {
+            if (commandEntry != null) {
+                // the request is not issued, so it should not count against the api command either
+                commandEntry.release();
+            }
             long expireAfter = entry.getExpireDuration();
             // for this exception, we can just show the same message to user and admin users.
             String msg = "The given user has reached his/her account api limit, please retry after " + expireAfter + " ms.";
@@ -187,11 +317,14 @@ public class ApiRateLimitServiceImpl extends AdapterBase implements APIChecker,
     @Override
     public void setTimeToLive(int timeToLive) {
         this.timeToLive = timeToLive;
+        _store.setAccountPolicy(getAccountPolicy());
+        _store.setCommandPolicies(getCommandPolicies());
     }
 
     @Override
     public void setMaxAllowed(int max) {
         this.maxAllowed = max;
+        _store.setAccountPolicy(getAccountPolicy());
 
     }
 
@@ -201,4 +334,16 @@ public class ApiRateLimitServiceImpl extends AdapterBase implements APIChecker,
 
     }
 
+    @Override
+    public void setBurst(int burst) {
+        this.burst = burst;
+        _store.setAccountPolicy(getAccountPolicy());
+    }
+
+    @Override
+    public void setCommandMaxAllowed(Map<String, Integer> commandMaxAllowed) {
+        this.commandMaxAllowed = new HashMap<String, Integer>(commandMaxAllowed);
+        _store.setCommandPolicies(getCommandPolicies());
+    }
+
 }
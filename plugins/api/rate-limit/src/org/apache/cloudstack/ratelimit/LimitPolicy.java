@@ -0,0 +1,52 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.ratelimit;
+
+/**
+ * Token bucket parameters of a limit.  A bucket holds at most burst tokens
+ * and gets sustained tokens back at the end of every interval; each api
+ * request takes one token.  With burst equal to sustained this is a fixed
+ * window of sustained requests per interval.
+ */
+public class LimitPolicy {
+    private final int burst;
+    private final int sustained;
+    private final long intervalMs;
+
+    public LimitPolicy(int burst, int sustained, long intervalMs) {
+        this.sustained = Math.max(sustained, 0);
+        this.burst = Math.max(burst, this.sustained);
+        this.intervalMs = Math.max(intervalMs, 1);
+    }
+
+    public int getBurst() {
+        return burst;
+    }
+
+    public int getSustained() {
+        return sustained;
+    }
+
+    public long getIntervalMs() {
+        return intervalMs;
+    }
+
+    @Override
+    public String toString() {
+        return "burst=" + burst + ", sustained=" + sustained + " per " + intervalMs + " ms";
+    }
+}
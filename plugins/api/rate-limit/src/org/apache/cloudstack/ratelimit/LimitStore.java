@@ -23,25 +23,24 @@ package org.apache.cloudstack.ratelimit;
 public interface LimitStore {
 
     /**
-     * Returns a store entry for the given account. A value of null means that there is no
-     * such entry and the calling client must call create to avoid
-     * other clients potentially being blocked without any hope of progressing. A non-null
-     * entry means that it has not expired and can be used to determine whether the current client should be allowed to
-     * proceed with the rate-limited action or not.
-     *
+     * Returns the store entry limiting all apis of the given account, or null
+     * if the account has not issued any api since it was last reset.
      */
     StoreEntry get(Long account);
 
     /**
-     * Creates a new store entry
+     * Returns the store entry for the given account, creating it when missing.
      *
      * @param account
      *            the user account, key to the store
-     * @param timeToLiveInSecs
-     *            the positive time-to-live in seconds
-     * @return a non-null entry
+     * @param apiCommandName
+     *            the api command the entry limits, or null for the entry
+     *            limiting all apis of the account
+     * @return a non-null entry, or null if there is no limit on the api command
      */
-    StoreEntry create(Long account, int timeToLiveInSecs);
+    StoreEntry getOrCreate(Long account, String apiCommandName);
+
+    void reset(Long account);
 
     void resetCounters();
 
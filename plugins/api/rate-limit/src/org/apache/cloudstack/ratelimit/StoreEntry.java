@@ -22,11 +22,21 @@ package org.apache.cloudstack.ratelimit;
  */
 public interface StoreEntry {
 
-    int getCounter();
+    /**
+     * Takes one request from the entry.
+     *
+     * @return false if the limit is reached.
+     */
+    boolean tryAcquire();
 
-    int incrementAndGet();
+    /**
+     * Gives back a request taken by tryAcquire that was not issued after all.
+     */
+    void release();
 
-    boolean isExpired();
+    int getCounter(); /* requests issued that have not been refilled yet */
 
-    long getExpireDuration(); /* seconds to reset counter */
+    int getAvailable();
+
+    long getExpireDuration(); /* milliseconds to the next refill */
 }
@@ -0,0 +1,297 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.ratelimit;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A Limit store of token buckets that never blocks.  Each bucket keeps its
+ * state in a single AtomicLong updated with compare and set, so concurrent
+ * requests of a hot account do not serialize on a lock.
+ *
+ * Requests taken locally are remembered until they are collected and
+ * published to the other management servers, which debit them from their
+ * own buckets; see collectUnsynced() and applyRemote().
+ */
+public class TokenBucketLimitStore implements LimitStore {
+    private static final Logger s_logger = Logger.getLogger(TokenBucketLimitStore.class);
+
+    private static final char COMMAND_SEPARATOR = '/';
+
+    private final ConcurrentHashMap<String, TokenBucket> buckets = new ConcurrentHashMap<String, TokenBucket>();
+
+    private volatile LimitPolicy accountPolicy;
+    private volatile Map<String, LimitPolicy> commandPolicies = Collections.emptyMap();
+
+    public TokenBucketLimitStore(LimitPolicy accountPolicy) {
+        this.accountPolicy = accountPolicy;
+    }
+
+    public void setAccountPolicy(LimitPolicy accountPolicy) {
+        this.accountPolicy = accountPolicy;
+    }
+
+    public LimitPolicy getAccountPolicy() {
+        return accountPolicy;
+    }
+
+    public void setCommandPolicies(Map<String, LimitPolicy> commandPolicies) {
+        this.commandPolicies = commandPolicies;
+    }
+
+    private static String getKey(Long account, String apiCommandName) {
+        return apiCommandName == null ? account.toString() : account.toString() + COMMAND_SEPARATOR + apiCommandName;
+    }
+
+    @Override
+    public StoreEntry get(Long account) {
+        return buckets.get(getKey(account, null));
+    }
+
+    @Override
+    public StoreEntry getOrCreate(Long account, String apiCommandName) {
+        if (apiCommandName != null && !commandPolicies.containsKey(apiCommandName)) {
+            return null;
+        }
+        return getOrCreate(getKey(account, apiCommandName), apiCommandName);
+    }
+
+    private TokenBucket getOrCreate(String key, String apiCommandName) {
+        TokenBucket bucket = buckets.get(key);
+        if (bucket == null) {
+            TokenBucket created = new TokenBucket(apiCommandName);
+            bucket = buckets.putIfAbsent(key, created);
+            if (bucket == null) {
+                bucket = created;
+            }
+        }
+        return bucket;
+    }
+
+    @Override
+    public void reset(Long account) {
+        String prefix = account.toString() + COMMAND_SEPARATOR;
+        buckets.remove(account.toString());
+        Iterator<String> it = buckets.keySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().startsWith(prefix)) {
+                it.remove();
+            }
+        }
+    }
+
+    @Override
+    public void resetCounters() {
+        buckets.clear();
+    }
+
+    public int size() {
+        return buckets.size();
+    }
+
+    /**
+     * Drops the buckets that are full again and have nothing left to publish,
+     * as long as there are more than maxBuckets of them.  A dropped bucket is
+     * recreated full, so this loses no information.
+     */
+    public void evictIdle(int maxBuckets) {
+        if (buckets.size() <= maxBuckets) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        Iterator<TokenBucket> it = buckets.values().iterator();
+        while (it.hasNext() && buckets.size() > maxBuckets) {
+            if (it.next().isIdle(now)) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Collects the requests taken locally since the last call as lines of
+     * key=count, or returns null if there were none.
+     */
+    public String collectUnsynced() {
+        StringBuilder sb = null;
+        for (Map.Entry<String, TokenBucket> entry : buckets.entrySet()) {
+            int taken = entry.getValue().drainUnsynced();
+            if (taken == 0) {
+                continue;
+            }
+            if (sb == null) {
+                sb = new StringBuilder();
+            } else {
+                sb.append('\n');
+            }
+            sb.append(entry.getKey()).append('=').append(taken);
+        }
+        return sb == null ? null : sb.toString();
+    }
+
+    /**
+     * Debits the requests another management server took, as collected by
+     * collectUnsynced().  A negative count gives back requests it released.
+     */
+    public void applyRemote(String counts) {
+        for (String line : counts.split("\n")) {
+            int pos = line.lastIndexOf('=');
+            if (pos <= 0) {
+                continue;
+            }
+            String key = line.substring(0, pos);
+            int taken;
+            try {
+                taken = Integer.parseInt(line.substring(pos + 1));
+            } catch (NumberFormatException e) {
+                s_logger.warn("Ignoring malformed api limit count: " + line);
+                continue;
+            }
+
+            int separator = key.indexOf(COMMAND_SEPARATOR);
+            String apiCommandName = separator < 0 ? null : key.substring(separator + 1);
+            if (apiCommandName != null && !commandPolicies.containsKey(apiCommandName)) {
+                continue;
+            }
+            getOrCreate(key, apiCommandName).debit(taken);
+        }
+    }
+
+    /**
+     * The state of a bucket is packed in one long: the upper 32 bits are the
+     * number of the interval the bucket was last refilled in, counted from
+     * the creation of the bucket, and the lower 32 bits are the tokens
+     * available, which go negative when peers used more than was left here.
+     */
+    protected class TokenBucket implements StoreEntry {
+        private final String apiCommandName;
+        private final long epoch;
+        private final AtomicLong state;
+        private final AtomicInteger unsynced = new AtomicInteger();
+
+        TokenBucket(String apiCommandName) {
+            this.apiCommandName = apiCommandName;
+            this.epoch = System.currentTimeMillis();
+            this.state = new AtomicLong(pack(0, getPolicy().getBurst()));
+        }
+
+        private LimitPolicy getPolicy() {
+            if (apiCommandName != null) {
+                LimitPolicy policy = commandPolicies.get(apiCommandName);
+                if (policy != null) {
+                    return policy;
+                }
+            }
+            return accountPolicy;
+        }
+
+        private long pack(long interval, long available) {
+            return (interval << 32) | (available & 0xFFFFFFFFL);
+        }
+
+        /**
+         * @return the state refilled up to the current interval.
+         */
+        private long refill(long current, LimitPolicy policy, long now) {
+            long lastInterval = current >>> 32;
+            long available = (int)current;
+            long interval = Math.max(now - epoch, 0) / policy.getIntervalMs();
+            if (interval > lastInterval) {
+                available += (interval - lastInterval) * policy.getSustained();
+            }
+            return pack(interval, Math.min(available, policy.getBurst()));
+        }
+
+        @Override
+        public boolean tryAcquire() {
+            LimitPolicy policy = getPolicy();
+            long now = System.currentTimeMillis();
+            while (true) {
+                long current = state.get();
+                long refilled = refill(current, policy, now);
+                if ((int)refilled <= 0) {
+                    if (refilled != current) {
+                        state.compareAndSet(current, refilled);
+                    }
+                    return false;
+                }
+                if (state.compareAndSet(current, refilled - 1)) {
+                    unsynced.incrementAndGet();
+                    return true;
+                }
+            }
+        }
+
+        @Override
+        public void release() {
+            LimitPolicy policy = getPolicy();
+            long now = System.currentTimeMillis();
+            while (true) {
+                long current = state.get();
+                long refilled = refill(current, policy, now);
+                long available = Math.min((long)(int)refilled + 1, policy.getBurst());
+                if (state.compareAndSet(current, pack(refilled >>> 32, available))) {
+                    unsynced.decrementAndGet();
+                    return;
+                }
+            }
+        }
+
+        void debit(int taken) {
+            LimitPolicy policy = getPolicy();
+            long now = System.currentTimeMillis();
+            while (true) {
+                long current = state.get();
+                long refilled = refill(current, policy, now);
+                long available = Math.min(Math.max((long)(int)refilled - taken, -policy.getBurst()), policy.getBurst());
+                if (state.compareAndSet(current, pack(refilled >>> 32, available))) {
+                    return;
+                }
+            }
+        }
+
+        int drainUnsynced() {
+            return unsynced.getAndSet(0);
+        }
+
+        boolean isIdle(long now) {
+            return unsynced.get() == 0 && (int)refill(state.get(), getPolicy(), now) >= getPolicy().getBurst();
+        }
+
+        @Override
+        public int getAvailable() {
+            return Math.max((int)refill(state.get(), getPolicy(), System.currentTimeMillis()), 0);
+        }
+
+        @Override
+        public int getCounter() {
+            return getPolicy().getBurst() - getAvailable();
+        }
+
+        @Override
+        public long getExpireDuration() {
+            long intervalMs = getPolicy().getIntervalMs();
+            return intervalMs - Math.max(System.currentTimeMillis() - epoch, 0) % intervalMs;
+        }
+    }
+}
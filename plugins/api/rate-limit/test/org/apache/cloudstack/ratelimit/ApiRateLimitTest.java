@@ -26,9 +26,12 @@ import java.util.Collections;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.naming.ConfigurationException;
 
+import org.apache.log4j.Logger;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -45,6 +48,7 @@ import com.cloud.user.User;
 import com.cloud.user.UserVO;
 
 public class ApiRateLimitTest {
+    private static final Logger s_logger = Logger.getLogger(ApiRateLimitTest.class);
 
     static ApiRateLimitServiceImpl s_limitService = new ApiRateLimitServiceImpl();
     static AccountService s_accountService = mock(AccountService.class);
@@ -88,8 +92,12 @@ public class ApiRateLimitTest {
     }
 
     private boolean isUnderLimit(User key) {
+        return isUnderLimit(key, null);
+    }
+
+    private boolean isUnderLimit(User key, String apiCommandName) {
         try {
-            s_limitService.checkAccess(key, null);
+            s_limitService.checkAccess(key, apiCommandName);
             return true;
         } catch (RequestLimitException ex) {
             return false;
@@ -250,4 +258,116 @@ public class ApiRateLimitTest {
 
     }
 
+    @Test
+    public void burstAllowsSavedUpRequests() throws Exception {
+        try {
+            s_limitService.setMaxAllowed(1);
+            s_limitService.setTimeToLive(1);
+            s_limitService.setBurst(3);
+
+            User key = createFakeUser();
+
+            for (int i = 0; i < 3; i++) {
+                assertTrue("An idle account should be able to burst up to 3 requests", isUnderLimit(key));
+            }
+            assertFalse("The burst is used up", isUnderLimit(key));
+
+            // only the sustained rate is given back after an interval
+            Thread.sleep(1020);
+            assertTrue("One request should be refilled after the interval", isUnderLimit(key));
+            assertFalse("Only the sustained number of requests is refilled per interval", isUnderLimit(key));
+        } finally {
+            s_limitService.setBurst(0);
+        }
+    }
+
+    @Test
+    public void commandLimitIsAppliedInAdditionToAccountLimit() throws Exception {
+        try {
+            s_limitService.setMaxAllowed(10);
+            s_limitService.setTimeToLive(1);
+            s_limitService.setCommandMaxAllowed(Collections.singletonMap("deployVirtualMachine", 2));
+
+            User key = createFakeUser();
+
+            assertTrue(isUnderLimit(key, "deployVirtualMachine"));
+            assertTrue(isUnderLimit(key, "deployVirtualMachine"));
+            assertFalse("The command limit is reached", isUnderLimit(key, "deployVirtualMachine"));
+            assertTrue("Other commands are only limited by the account limit", isUnderLimit(key, "listVirtualMachines"));
+
+            ApiLimitResponse response = s_limitService.searchApiLimit(s_testAccount);
+            assertEquals("Requests rejected by the command limit should not count against the account", 3, response.getApiIssued());
+        } finally {
+            s_limitService.setCommandMaxAllowed(Collections.<String, Integer> emptyMap());
+        }
+    }
+
+    @Test
+    public void remoteCountsAreDebited() throws Exception {
+        TokenBucketLimitStore store = new TokenBucketLimitStore(new LimitPolicy(10, 10, 1000));
+        TokenBucketLimitStore peer = new TokenBucketLimitStore(new LimitPolicy(10, 10, 1000));
+
+        for (int i = 0; i < 6; i++) {
+            assertTrue(peer.getOrCreate(5L, null).tryAcquire());
+        }
+        String counts = peer.collectUnsynced();
+        assertEquals("5=6", counts);
+        assertEquals("Counts are published only once", null, peer.collectUnsynced());
+
+        store.applyRemote(counts);
+        StoreEntry entry = store.getOrCreate(5L, null);
+        for (int i = 0; i < 4; i++) {
+            assertTrue("Requests left by the peer should be allowed", entry.tryAcquire());
+        }
+        assertFalse("The account limit is shared with the peer", entry.tryAcquire());
+    }
+
+    @Test
+    public void checkAccessThroughputUnderContention() throws Exception {
+        final int threadCount = 16;
+        final int requestsPerThread = 2500;
+        final int allowedRequests = 1000;
+        s_limitService.setMaxAllowed(allowedRequests);
+        s_limitService.setTimeToLive(60);
+
+        final User key = createFakeUser();
+        final AtomicInteger allowed = new AtomicInteger();
+        final CountDownLatch startGate = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        try {
+            for (int i = 0; i < threadCount; i++) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            startGate.await();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        for (int j = 0; j < requestsPerThread; j++) {
+                            if (isUnderLimit(key)) {
+                                allowed.incrementAndGet();
+                            }
+                        }
+                    }
+                });
+            }
+
+            long start = System.nanoTime();
+            startGate.countDown();
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(60, TimeUnit.SECONDS));
+            long elapsedNanos = Math.max(System.nanoTime() - start, 1);
+
+            long calls = (long)threadCount * requestsPerThread;
+            s_logger.info("checkAccess throughput with " + threadCount + " threads on one account: " + calls + " calls in " +
+                TimeUnit.NANOSECONDS.toMillis(elapsedNanos) + " ms, " + (calls * TimeUnit.SECONDS.toNanos(1) / elapsedNanos) + " calls per second");
+
+            assertEquals("Exactly the allowed number of requests should pass under contention", allowedRequests, allowed.get());
+        } finally {
+            executor.shutdownNow();
+            s_limitService.setTimeToLive(1);
+        }
+    }
+
 }
@@ -579,6 +579,15 @@ public class MockVmManagerImpl extends ManagerBase implements MockVmManager {
 
         Map<String, Ternary<String, Long, Long>> rules = _securityRules.get(info.getHostUuid());
 
+        if (cmd.isDelta()) {
+            Ternary<String, Long, Long> rule = rules == null ? null : rules.get(cmd.getVmName());
+            if (rule == null || !cmd.getBaseSignature().equals(rule.first())) {
+                s_logger.info("Refusing network rules delta for vm " + cmd.getVmName() + " seqno=" + cmd.getSeqNum() + ", base signature " +
+                    cmd.getBaseSignature() + " does not match curr=" + (rule == null ? null : rule.first()));
+                return new SecurityGroupRuleAnswer(cmd, false, "Base signature mismatch");
+            }
+        }
+
         if (rules == null) {
             logSecurityGroupAction(cmd, null);
             rules = new ConcurrentHashMap<String, Ternary<String, Long, Long>>();
@@ -265,6 +265,8 @@ public class FirstFitAllocator extends AdapterBase implements HostAllocator {
         }
 
         List<Host> suitableHosts = new ArrayList<Host>();
+        // the hosts mostly share a few clusters, look their overcommit ratios up once
+        Map<Long, Float[]> clusterOvercommitRatios = new HashMap<Long, Float[]>();
 
         for (Host host : hosts) {
             if (suitableHosts.size() == returnUpTo) {
@@ -288,14 +290,20 @@ public class FirstFitAllocator extends AdapterBase implements HostAllocator {
 
             int cpu_requested = offering.getCpu() * offering.getSpeed();
             long ram_requested = offering.getRamSize() * 1024L * 1024L;
-            Cluster cluster = _clusterDao.findById(host.getClusterId());
-            ClusterDetailsVO clusterDetailsCpuOvercommit = _clusterDetailsDao.findDetail(cluster.getId(), "cpuOvercommitRatio");
-            ClusterDetailsVO clusterDetailsRamOvercommmt = _clusterDetailsDao.findDetail(cluster.getId(), "memoryOvercommitRatio");
-            Float cpuOvercommitRatio = Float.parseFloat(clusterDetailsCpuOvercommit.getValue());
-            Float memoryOvercommitRatio = Float.parseFloat(clusterDetailsRamOvercommmt.getValue());
-
-            boolean hostHasCpuCapability = _capacityMgr.checkIfHostHasCpuCapability(host.getId(), offering.getCpu(), offering.getSpeed());
-            boolean hostHasCapacity = _capacityMgr.checkIfHostHasCapacity(host.getId(), cpu_requested, ram_requested, false, cpuOvercommitRatio, memoryOvercommitRatio,
+            Float[] overcommitRatios = clusterOvercommitRatios.get(host.getClusterId());
+            if (overcommitRatios == null) {
+                Cluster cluster = _clusterDao.findById(host.getClusterId());
+                ClusterDetailsVO clusterDetailsCpuOvercommit = _clusterDetailsDao.findDetail(cluster.getId(), "cpuOvercommitRatio");
+                ClusterDetailsVO clusterDetailsRamOvercommmt = _clusterDetailsDao.findDetail(cluster.getId(), "memoryOvercommitRatio");
+                overcommitRatios = new Float[] {Float.parseFloat(clusterDetailsCpuOvercommit.getValue()), Float.parseFloat(clusterDetailsRamOvercommmt.getValue())};
+                clusterOvercommitRatios.put(host.getClusterId(), overcommitRatios);
+            }
+            Float cpuOvercommitRatio = overcommitRatios[0];
+            Float memoryOvercommitRatio = overcommitRatios[1];
+
+            // screened with the capacity index, the planner checks the database for the host it chooses
+            boolean hostHasCpuCapability = _capacityMgr.checkIfHostHasCpuCapability(host, offering.getCpu(), offering.getSpeed());
+            boolean hostHasCapacity = _capacityMgr.checkIfHostMayHaveCapacity(host.getId(), cpu_requested, ram_requested, cpuOvercommitRatio, memoryOvercommitRatio,
                 considerReservedCapacity);
 
             if (hostHasCpuCapability && hostHasCapacity) {
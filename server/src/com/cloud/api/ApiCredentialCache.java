@@ -0,0 +1,132 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.api;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.cloudstack.framework.config.ConfigKey;
+
+import com.cloud.user.Account;
+import com.cloud.user.User;
+import com.cloud.utils.component.Manager;
+
+/**
+ * ApiCredentialCache keeps the ids, state and signing key looked up for an
+ * api key so that signed api requests do not have to search users by api key
+ * every time.
+ * Entries expire after a configurable time and are invalidated on every
+ * management server when the keys or the state of a user or account change.
+ */
+public interface ApiCredentialCache extends Manager {
+    static final String INVALIDATION_SUBJECT = "api-credential-invalidation";
+
+    final ConfigKey<Integer> ApiCredentialCacheSize = new ConfigKey<Integer>(Integer.class, "api.credential.cache.size", "Advanced", "10000",
+        "Maximum number of api keys whose credentials are cached for signature verification, 0 disables the cache", false);
+    final ConfigKey<Integer> ApiCredentialCacheTimeToLive = new ConfigKey<Integer>(Integer.class, "api.credential.cache.ttl", "Advanced", "60",
+        "Time in seconds the credentials of an api key are cached for signature verification", true);
+
+    /**
+     * @return cached credentials of the api key, or null if they have to be looked up.
+     */
+    Credentials get(String apiKey);
+
+    /**
+     * Looks up the credentials of the api key and caches them.
+     * @return credentials of the api key, or null if no user has the key.
+     */
+    Credentials load(String apiKey);
+
+    void invalidateUser(long userId);
+
+    void invalidateAccount(long accountId);
+
+    /**
+     * Records the time spent verifying the signature of one request.
+     */
+    void recordVerification(long nanos, boolean verified);
+
+    /**
+     * Immutable snapshot of what is needed to check the signature of a request
+     * made with an api key.  The user and account themselves are not cached,
+     * callers load them by id for every request.
+     */
+    public static class Credentials {
+        private final String _apiKey;
+        private final String _secretKey;
+        private final long _userId;
+        private final long _accountId;
+        private final Account.State _userState;
+        private final Account.State _accountState;
+        private final SecretKeySpec _keySpec;
+        private final long _expiresAt;
+
+        public Credentials(String apiKey, User user, Account account, long expiresAt) {
+            _apiKey = apiKey;
+            _secretKey = user.getSecretKey();
+            _userId = user.getId();
+            _accountId = account.getId();
+            _userState = user.getState();
+            _accountState = account.getState();
+            _keySpec = _secretKey != null ? new SecretKeySpec(_secretKey.getBytes(), "HmacSHA1") : null;
+            _expiresAt = expiresAt;
+        }
+
+        public String getApiKey() {
+            return _apiKey;
+        }
+
+        public String getSecretKey() {
+            return _secretKey;
+        }
+
+        public long getUserId() {
+            return _userId;
+        }
+
+        public long getAccountId() {
+            return _accountId;
+        }
+
+        public Account.State getUserState() {
+            return _userState;
+        }
+
+        public Account.State getAccountState() {
+            return _accountState;
+        }
+
+        /**
+         * @return key to sign requests with, or null if the user has no secret key.
+         */
+        public SecretKeySpec getKeySpec() {
+            return _keySpec;
+        }
+
+        /**
+         * @return true if the user and account still match what was cached.
+         */
+        public boolean matches(User user, Account account) {
+            return user != null && account != null && user.getId() == _userId && user.getAccountId() == _accountId && account.getId() == _accountId &&
+                _apiKey.equals(user.getApiKey()) && (_secretKey == null ? user.getSecretKey() == null : _secretKey.equals(user.getSecretKey())) &&
+                _userState == user.getState() && _accountState == account.getState();
+        }
+
+        public boolean isExpired(long now) {
+            return now >= _expiresAt;
+        }
+    }
+}
@@ -0,0 +1,255 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.api;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.ejb.Local;
+import javax.inject.Inject;
+import javax.naming.ConfigurationException;
+
+import org.apache.cloudstack.framework.config.ConfigKey;
+import org.apache.cloudstack.framework.config.Configurable;
+import org.apache.log4j.Logger;
+
+import com.cloud.cluster.ClusterManager;
+import com.cloud.cluster.ClusterMessageListener;
+import com.cloud.user.Account;
+import com.cloud.user.User;
+import com.cloud.user.dao.AccountDao;
+import com.cloud.utils.Pair;
+import com.cloud.utils.component.ManagerBase;
+import com.cloud.utils.mgmt.JmxUtil;
+
+@Local(value = {ApiCredentialCache.class})
+public class ApiCredentialCacheImpl extends ManagerBase implements ApiCredentialCache, ClusterMessageListener, Configurable {
+    private static final Logger s_logger = Logger.getLogger(ApiCredentialCacheImpl.class);
+
+    private static final String USER_PREFIX = "user:";
+    private static final String ACCOUNT_PREFIX = "account:";
+
+    @Inject
+    AccountDao _accountDao;
+    @Inject
+    ClusterManager _clusterMgr;
+
+    private int _maxSize;
+    private LinkedHashMap<String, Credentials> _credentials;
+
+    // bumped by every invalidation so that a lookup racing with one is not cached
+    private long _generation = 0;
+
+    private final AtomicLong _hitCount = new AtomicLong();
+    private final AtomicLong _missCount = new AtomicLong();
+    private final AtomicLong _expiredCount = new AtomicLong();
+    private final AtomicLong _invalidationCount = new AtomicLong();
+    private final AtomicLong _verificationCount = new AtomicLong();
+    private final AtomicLong _failedVerificationCount = new AtomicLong();
+    private final AtomicLong _verificationNanos = new AtomicLong();
+
+    @Override
+    public boolean configure(String name, Map<String, Object> params) throws ConfigurationException {
+        _maxSize = Math.max(ApiCredentialCacheSize.value(), 0);
+        _credentials = new LinkedHashMap<String, Credentials>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Credentials> eldest) {
+                return size() > _maxSize;
+            }
+        };
+        _clusterMgr.registerMessageListener(INVALIDATION_SUBJECT, this);
+        return true;
+    }
+
+    @Override
+    public boolean start() {
+        try {
+            JmxUtil.registerMBean("ApiServer", "CredentialCache", new ApiCredentialCacheMBeanImpl(this));
+        } catch (Exception e) {
+            s_logger.warn("Unable to register the api credential cache MBean", e);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean stop() {
+        _clusterMgr.unregisterMessageListener(INVALIDATION_SUBJECT, this);
+        invalidateAll();
+        return true;
+    }
+
+    @Override
+    public Credentials get(String apiKey) {
+        if (_maxSize == 0) {
+            _missCount.incrementAndGet();
+            return null;
+        }
+
+        Credentials credentials;
+        synchronized (this) {
+            credentials = _credentials.get(apiKey);
+            if (credentials != null && credentials.isExpired(System.currentTimeMillis())) {
+                _credentials.remove(apiKey);
+                _expiredCount.incrementAndGet();
+                credentials = null;
+            }
+        }
+
+        if (credentials != null) {
+            _hitCount.incrementAndGet();
+        } else {
+            _missCount.incrementAndGet();
+        }
+        return credentials;
+    }
+
+    @Override
+    public Credentials load(String apiKey) {
+        long generation;
+        synchronized (this) {
+            generation = _generation;
+        }
+
+        Pair<User, Account> userAcctPair = _accountDao.findUserAccountByApiKey(apiKey);
+        if (userAcctPair == null) {
+            return null;
+        }
+
+        Credentials credentials = new Credentials(apiKey, userAcctPair.first(), userAcctPair.second(),
+            System.currentTimeMillis() + ApiCredentialCacheTimeToLive.value() * 1000L);
+        if (_maxSize > 0) {
+            synchronized (this) {
+                if (generation == _generation) {
+                    _credentials.put(apiKey, credentials);
+                }
+            }
+        }
+        return credentials;
+    }
+
+    @Override
+    public void invalidateUser(long userId) {
+        invalidateLocal(USER_PREFIX + userId);
+        _clusterMgr.publishMessage(INVALIDATION_SUBJECT, USER_PREFIX + userId);
+    }
+
+    @Override
+    public void invalidateAccount(long accountId) {
+        invalidateLocal(ACCOUNT_PREFIX + accountId);
+        _clusterMgr.publishMessage(INVALIDATION_SUBJECT, ACCOUNT_PREFIX + accountId);
+    }
+
+    public synchronized void invalidateAll() {
+        _generation++;
+        _invalidationCount.addAndGet(_credentials.size());
+        _credentials.clear();
+    }
+
+    protected synchronized void invalidateLocal(String invalidation) {
+        _generation++;
+
+        boolean isUser = invalidation.startsWith(USER_PREFIX);
+        long id;
+        try {
+            id = Long.parseLong(invalidation.substring(isUser ? USER_PREFIX.length() : ACCOUNT_PREFIX.length()));
+        } catch (NumberFormatException e) {
+            s_logger.warn("Ignoring malformed api credential invalidation: " + invalidation);
+            return;
+        }
+
+        Iterator<Credentials> it = _credentials.values().iterator();
+        while (it.hasNext()) {
+            Credentials credentials = it.next();
+            if (isUser ? credentials.getUserId() == id : credentials.getAccountId() == id) {
+                it.remove();
+                _invalidationCount.incrementAndGet();
+            }
+        }
+    }
+
+    @Override
+    public void onClusterMessage(String sourcePeer, String subject, String message) {
+        if (message == null) {
+            return;
+        }
+        if (!message.startsWith(USER_PREFIX) && !message.startsWith(ACCOUNT_PREFIX)) {
+            s_logger.warn("Ignoring unknown api credential invalidation from " + sourcePeer + ": " + message);
+            return;
+        }
+        invalidateLocal(message);
+    }
+
+    @Override
+    public void recordVerification(long nanos, boolean verified) {
+        _verificationCount.incrementAndGet();
+        _verificationNanos.addAndGet(nanos);
+        if (!verified) {
+            _failedVerificationCount.incrementAndGet();
+        }
+    }
+
+    public synchronized int getSize() {
+        return _credentials.size();
+    }
+
+    public int getMaxSize() {
+        return _maxSize;
+    }
+
+    public long getHitCount() {
+        return _hitCount.get();
+    }
+
+    public long getMissCount() {
+        return _missCount.get();
+    }
+
+    public long getExpiredCount() {
+        return _expiredCount.get();
+    }
+
+    public long getInvalidationCount() {
+        return _invalidationCount.get();
+    }
+
+    public long getVerificationCount() {
+        return _verificationCount.get();
+    }
+
+    public long getFailedVerificationCount() {
+        return _failedVerificationCount.get();
+    }
+
+    public long getAverageVerificationMicros() {
+        long count = _verificationCount.get();
+        return count == 0 ? 0 : _verificationNanos.get() / count / 1000;
+    }
+
+    @Override
+    public String getConfigComponentName() {
+        return ApiCredentialCache.class.getSimpleName();
+    }
+
+    @Override
+    public ConfigKey<?>[] getConfigKeys() {
+        return new ConfigKey<?>[] {ApiCredentialCacheSize, ApiCredentialCacheTimeToLive};
+    }
+}
@@ -0,0 +1,78 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.api;
+
+import javax.management.StandardMBean;
+
+public class ApiCredentialCacheMBeanImpl extends StandardMBean implements ApiCredentialCacheMBean {
+    private final ApiCredentialCacheImpl _cache;
+
+    public ApiCredentialCacheMBeanImpl(ApiCredentialCacheImpl cache) {
+        super(ApiCredentialCacheMBean.class, false);
+        _cache = cache;
+    }
+
+    @Override
+    public int getSize() {
+        return _cache.getSize();
+    }
+
+    @Override
+    public int getMaxSize() {
+        return _cache.getMaxSize();
+    }
+
+    @Override
+    public long getHitCount() {
+        return _cache.getHitCount();
+    }
+
+    @Override
+    public long getMissCount() {
+        return _cache.getMissCount();
+    }
+
+    @Override
+    public long getExpiredCount() {
+        return _cache.getExpiredCount();
+    }
+
+    @Override
+    public long getInvalidationCount() {
+        return _cache.getInvalidationCount();
+    }
+
+    @Override
+    public long getVerificationCount() {
+        return _cache.getVerificationCount();
+    }
+
+    @Override
+    public long getFailedVerificationCount() {
+        return _cache.getFailedVerificationCount();
+    }
+
+    @Override
+    public long getAverageVerificationMicros() {
+        return _cache.getAverageVerificationMicros();
+    }
+
+    @Override
+    public void invalidateAll() {
+        _cache.invalidateAll();
+    }
+}
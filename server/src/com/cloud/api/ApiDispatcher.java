@@ -25,10 +25,14 @@ import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import javax.annotation.PostConstruct;
 import javax.inject.Inject;
@@ -48,6 +52,7 @@ import org.apache.cloudstack.api.BaseCmd.CommandType;
 import org.apache.cloudstack.api.BaseCustomIdCmd;
 import org.apache.cloudstack.api.BaseListCmd;
 import org.apache.cloudstack.api.EntityReference;
+import org.apache.cloudstack.api.Identity;
 import org.apache.cloudstack.api.InternalIdentity;
 import org.apache.cloudstack.api.Parameter;
 import org.apache.cloudstack.api.ServerApiException;
@@ -83,6 +88,10 @@ public class ApiDispatcher {
 
     private static ApiDispatcher s_instance;
 
+    private static final Pattern s_uuidPattern = Pattern.compile("^[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}$");
+
+    private static final ConcurrentHashMap<Class<?>, ParameterBinder> s_parameterBinders = new ConcurrentHashMap<Class<?>, ParameterBinder>();
+
     public static ApiDispatcher getInstance() {
         return s_instance;
     }
@@ -169,6 +178,42 @@ public class ApiDispatcher {
 
     }
 
+    /**
+     * Builds the parameter binder of a command class ahead of its first
+     * request.  Binders are otherwise built on first use.
+     */
+    public static void prepareParameterBinder(Class<?> cmdClass) {
+        getParameterBinder(cmdClass);
+    }
+
+    private static ParameterBinder getParameterBinder(Class<?> cmdClass) {
+        ParameterBinder binder = s_parameterBinders.get(cmdClass);
+        if (binder == null) {
+            binder = new ParameterBinder(cmdClass);
+            ParameterBinder existing = s_parameterBinders.putIfAbsent(cmdClass, binder);
+            if (existing != null) {
+                binder = existing;
+            }
+        }
+        return binder;
+    }
+
+    private static boolean isPermitted(Parameter parameterAnnotation) {
+        //TODO: Annotate @Validate on API Cmd classes, FIXME how to process Validate
+        RoleType[] allowedRoles = parameterAnnotation.authorized();
+        if (allowedRoles.length == 0) {
+            return true;
+        }
+
+        Account caller = CallContext.current().getCallingAccount();
+        for (RoleType allowedRole : allowedRoles) {
+            if (allowedRole.getValue() == caller.getType()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     @SuppressWarnings({"unchecked", "rawtypes"})
     public static void processParameters(BaseCmd cmd, Map<String, String> params) {
         Map<Object, AccessType> entitiesToAccess = new HashMap<Object, AccessType>();
@@ -190,29 +235,16 @@ public class ApiDispatcher {
             }
         }
 
-        List<Field> fields = ReflectUtil.getAllFieldsForClass(cmd.getClass(), BaseCmd.class);
+        ParameterBinder binder = getParameterBinder(cmd.getClass());
+        Map<Class<?>, Map<String, Long>> resolvedUuids = binder.resolveUuids(unpackedParams);
 
-        for (Field field : fields) {
-            Parameter parameterAnnotation = field.getAnnotation(Parameter.class);
-            if ((parameterAnnotation == null) || !parameterAnnotation.expose()) {
-                continue;
-            }
+        for (ParameterField parameter : binder.getFields()) {
+            Field field = parameter.field;
+            Parameter parameterAnnotation = parameter.annotation;
 
-            //TODO: Annotate @Validate on API Cmd classes, FIXME how to process Validate
-            RoleType[] allowedRoles = parameterAnnotation.authorized();
-            if (allowedRoles.length > 0) {
-                boolean permittedParameter = false;
-                Account caller = CallContext.current().getCallingAccount();
-                for (RoleType allowedRole : allowedRoles) {
-                    if (allowedRole.getValue() == caller.getType()) {
-                        permittedParameter = true;
-                        break;
-                    }
-                }
-                if (!permittedParameter) {
-                    s_logger.debug("Ignoring paremeter " + parameterAnnotation.name() + " as the caller is not authorized to pass it in");
-                    continue;
-                }
+            if (!isPermitted(parameterAnnotation)) {
+                s_logger.debug("Ignoring paremeter " + parameterAnnotation.name() + " as the caller is not authorized to pass it in");
+                continue;
             }
 
             Object paramObj = unpackedParams.get(parameterAnnotation.name());
@@ -226,7 +258,7 @@ public class ApiDispatcher {
 
             // marshall the parameter into the correct type and set the field value
             try {
-                setFieldValue(field, cmd, paramObj, parameterAnnotation);
+                setFieldValue(parameter, cmd, paramObj, binder.isMessageDates(), resolvedUuids);
             } catch (IllegalArgumentException argEx) {
                 if (s_logger.isDebugEnabled()) {
                     s_logger.debug("Unable to execute API command " + cmd.getCommandName() + " due to invalid value " + paramObj + " for parameter " +
@@ -256,7 +288,7 @@ public class ApiDispatcher {
 
             //check access on the resource this field points to
             try {
-                ACL checkAccess = field.getAnnotation(ACL.class);
+                ACL checkAccess = parameter.acl;
                 CommandType fieldType = parameterAnnotation.type();
 
                 if (checkAccess != null) {
@@ -268,61 +300,56 @@ public class ApiDispatcher {
                     //for maps, specify access to be checkd on key or value.
 
                     // find the controlled entity DBid by uuid
-                    if (parameterAnnotation.entityType() != null) {
-                        Class<?>[] entityList = parameterAnnotation.entityType()[0].getAnnotation(EntityReference.class).value();
-
-                        for (Class entity : entityList) {
-                            // Check if the parameter type is a single
-                            // Id or list of id's/name's
-                            switch (fieldType) {
-                                case LIST:
-                                    CommandType listType = parameterAnnotation.collectionType();
-                                    switch (listType) {
-                                        case LONG:
-                                        case UUID:
-                                            List<Long> listParam = (List<Long>)field.get(cmd);
-                                            for (Long entityId : listParam) {
-                                                Object entityObj = s_instance._entityMgr.findById(entity, entityId);
-                                                entitiesToAccess.put(entityObj, checkAccess.accessType());
-                                            }
-                                            break;
-                                        /*
-                                         * case STRING: List<String> listParam =
-                                         * new ArrayList<String>(); listParam =
-                                         * (List)field.get(cmd); for(String
-                                         * entityName: listParam){
-                                         * ControlledEntity entityObj =
-                                         * (ControlledEntity
-                                         * )daoClassInstance(entityId);
-                                         * entitiesToAccess.add(entityObj); }
-                                         * break;
-                                         */
-                                        default:
-                                            break;
-                                    }
-                                    break;
-                                case LONG:
-                                case UUID:
-                                    Object entityObj = s_instance._entityMgr.findById(entity, (Long)field.get(cmd));
-                                    entitiesToAccess.put(entityObj, checkAccess.accessType());
-                                    break;
-                                default:
-                                    break;
-                            }
-
-                            if (ControlledEntity.class.isAssignableFrom(entity)) {
-                                if (s_logger.isDebugEnabled()) {
-                                    s_logger.debug("ControlledEntity name is:" + entity.getName());
+                    for (Class entity : parameter.getEntities()) {
+                        // Check if the parameter type is a single
+                        // Id or list of id's/name's
+                        switch (fieldType) {
+                            case LIST:
+                                CommandType listType = parameterAnnotation.collectionType();
+                                switch (listType) {
+                                    case LONG:
+                                    case UUID:
+                                        List<Long> listParam = (List<Long>)field.get(cmd);
+                                        for (Long entityId : listParam) {
+                                            Object entityObj = s_instance._entityMgr.findById(entity, entityId);
+                                            entitiesToAccess.put(entityObj, checkAccess.accessType());
+                                        }
+                                        break;
+                                    /*
+                                     * case STRING: List<String> listParam =
+                                     * new ArrayList<String>(); listParam =
+                                     * (List)field.get(cmd); for(String
+                                     * entityName: listParam){
+                                     * ControlledEntity entityObj =
+                                     * (ControlledEntity
+                                     * )daoClassInstance(entityId);
+                                     * entitiesToAccess.add(entityObj); }
+                                     * break;
+                                     */
+                                    default:
+                                        break;
                                 }
-                            }
+                                break;
+                            case LONG:
+                            case UUID:
+                                Object entityObj = s_instance._entityMgr.findById(entity, (Long)field.get(cmd));
+                                entitiesToAccess.put(entityObj, checkAccess.accessType());
+                                break;
+                            default:
+                                break;
+                        }
 
-                            if (InfrastructureEntity.class.isAssignableFrom(entity)) {
-                                if (s_logger.isDebugEnabled()) {
-                                    s_logger.debug("InfrastructureEntity name is:" + entity.getName());
-                                }
+                        if (ControlledEntity.class.isAssignableFrom(entity)) {
+                            if (s_logger.isDebugEnabled()) {
+                                s_logger.debug("ControlledEntity name is:" + entity.getName());
                             }
                         }
 
+                        if (InfrastructureEntity.class.isAssignableFrom(entity)) {
+                            if (s_logger.isDebugEnabled()) {
+                                s_logger.debug("InfrastructureEntity name is:" + entity.getName());
+                            }
+                        }
                     }
 
                 }
@@ -344,17 +371,18 @@ public class ApiDispatcher {
 
     }
 
-    private static Long translateUuidToInternalId(String uuid, Parameter annotation) {
+    private static Long translateUuidToInternalId(String uuid, ParameterField parameter, Map<Class<?>, Map<String, Long>> resolvedUuids) {
         if (uuid.equals("-1")) {
             // FIXME: This is to handle a lot of hardcoded special cases where -1 is sent
             // APITODO: Find and get rid of all hardcoded params in API Cmds and service layer
             return -1L;
         }
+        Parameter annotation = parameter.annotation;
         Long internalId = null;
         // If annotation's empty, the cmd existed before 3.x try conversion to long
-        boolean isPre3x = annotation.since().isEmpty();
+        boolean isPre3x = parameter.pre3x;
         // Match against Java's UUID regex to check if input is uuid string
-        boolean isUuid = uuid.matches("^[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}$");
+        boolean isUuid = s_uuidPattern.matcher(uuid).matches();
         // Enforce that it's uuid for newly added apis from version 3.x
         if (!isPre3x && !isUuid)
             return null;
@@ -368,12 +396,16 @@ public class ApiDispatcher {
             if (internalId != null)
                 return internalId;
         }
-        // There may be multiple entities defined on the @EntityReference of a Response.class
-        // UUID CommandType would expect only one entityType, so use the first entityType
-        Class<?>[] entities = annotation.entityType()[0].getAnnotation(EntityReference.class).value();
+        // Use the id if the uuid was looked up together with the other uuids of the request
+        Map<String, Long> resolved = resolvedUuids.get(parameter.getEntityType());
+        if (resolved != null) {
+            internalId = resolved.get(uuid);
+            if (internalId != null)
+                return internalId;
+        }
         // Go through each entity which is an interface to a VO class and get a VO object
         // Try to getId() for the object using reflection, break on first non-null value
-        for (Class<?> entity : entities) {
+        for (Class<?> entity : parameter.getEntities()) {
             // For backward compatibility, we search within removed entities and let service layer deal
             // with removed ones, return empty response or error
             Object objVO = s_instance._entityMgr.findByUuidIncludingRemoved(entity, uuid);
@@ -401,9 +433,11 @@ public class ApiDispatcher {
     }
 
     @SuppressWarnings({"unchecked", "rawtypes"})
-    private static void setFieldValue(Field field, BaseCmd cmdObj, Object paramObj, Parameter annotation) throws IllegalArgumentException, ParseException {
+    private static void setFieldValue(ParameterField parameter, BaseCmd cmdObj, Object paramObj, boolean messageDates, Map<Class<?>, Map<String, Long>> resolvedUuids)
+        throws IllegalArgumentException, ParseException {
+        Field field = parameter.field;
+        Parameter annotation = parameter.annotation;
         try {
-            field.setAccessible(true);
             CommandType fieldType = annotation.type();
             switch (fieldType) {
                 case BOOLEAN:
@@ -413,8 +447,7 @@ public class ApiDispatcher {
                     // This piece of code is for maintaining backward compatibility
                     // and support both the date formats(Bug 9724)
                     // Do the date messaging for ListEventsCmd only
-                    if (cmdObj instanceof ListEventsCmd || cmdObj instanceof DeleteEventsCmd || cmdObj instanceof ArchiveEventsCmd ||
-                        cmdObj instanceof ArchiveAlertsCmd || cmdObj instanceof DeleteAlertsCmd) {
+                    if (messageDates) {
                         boolean isObjInNewDateFormat = isObjInNewDateFormat(paramObj.toString());
                         if (isObjInNewDateFormat) {
                             DateFormat newFormat = BaseCmd.NEW_INPUT_FORMAT;
@@ -470,7 +503,7 @@ public class ApiDispatcher {
                             case UUID:
                                 if (token.isEmpty())
                                     break;
-                                Long internalId = translateUuidToInternalId(token, annotation);
+                                Long internalId = translateUuidToInternalId(token, parameter, resolvedUuids);
                                 listParam.add(internalId);
                                 break;
                             case LONG: {
@@ -489,7 +522,7 @@ public class ApiDispatcher {
                 case UUID:
                     if (paramObj.toString().isEmpty())
                         break;
-                    Long internalId = translateUuidToInternalId(paramObj.toString(), annotation);
+                    Long internalId = translateUuidToInternalId(paramObj.toString(), parameter, resolvedUuids);
                     field.set(cmdObj, internalId);
                     break;
                 case LONG:
@@ -554,4 +587,143 @@ public class ApiDispatcher {
             throw new CloudRuntimeException("Internal error at plugService for command " + cmd.getCommandName() + " [field " + field.getName() + " is not accessible]");
         }
     }
+
+    /**
+     * ParameterField is what processParameters needs to know about one exposed
+     * @Parameter field of a command class.
+     */
+    private static class ParameterField {
+        final Field field;
+        final Parameter annotation;
+        final ACL acl;
+        // If annotation's empty, the cmd existed before 3.x
+        final boolean pre3x;
+        // entities of the @EntityReference on the first entityType, null if there is none
+        private final Class<?>[] _entities;
+
+        ParameterField(Field field, Parameter annotation) {
+            field.setAccessible(true);
+            this.field = field;
+            this.annotation = annotation;
+            acl = field.getAnnotation(ACL.class);
+            pre3x = annotation.since().isEmpty();
+
+            EntityReference reference = annotation.entityType().length > 0 ? annotation.entityType()[0].getAnnotation(EntityReference.class) : null;
+            _entities = reference != null ? reference.value() : null;
+        }
+
+        boolean isUuid() {
+            return annotation.type() == CommandType.UUID || (annotation.type() == CommandType.LIST && annotation.collectionType() == CommandType.UUID);
+        }
+
+        Class<?> getEntityType() {
+            return annotation.entityType()[0];
+        }
+
+        // There may be multiple entities defined on the @EntityReference of a Response.class
+        // UUID CommandType would expect only one entityType, so use the first entityType
+        Class<?>[] getEntities() {
+            if (_entities == null) {
+                throw new CloudRuntimeException("Parameter " + annotation.name() + " of " + field.getDeclaringClass().getSimpleName() + " does not refer to an entity");
+            }
+            return _entities;
+        }
+    }
+
+    /**
+     * ParameterBinder holds the exposed parameters of a command class, so the
+     * class is only reflected on once.  It also looks up the uuids of a
+     * request that refer to the same entity type together.
+     */
+    private static class ParameterBinder {
+        private final List<ParameterField> _fields = new ArrayList<ParameterField>();
+        private final List<ParameterField> _uuidFields = new ArrayList<ParameterField>();
+        private final boolean _messageDates;
+
+        ParameterBinder(Class<?> cmdClass) {
+            for (Field field : ReflectUtil.getAllFieldsForClass(cmdClass, BaseCmd.class)) {
+                Parameter parameterAnnotation = field.getAnnotation(Parameter.class);
+                if ((parameterAnnotation == null) || !parameterAnnotation.expose()) {
+                    continue;
+                }
+
+                ParameterField parameter = new ParameterField(field, parameterAnnotation);
+                _fields.add(parameter);
+                if (parameter.isUuid() && parameter._entities != null) {
+                    _uuidFields.add(parameter);
+                }
+            }
+
+            _messageDates = ListEventsCmd.class.isAssignableFrom(cmdClass) || DeleteEventsCmd.class.isAssignableFrom(cmdClass) ||
+                ArchiveEventsCmd.class.isAssignableFrom(cmdClass) || ArchiveAlertsCmd.class.isAssignableFrom(cmdClass) || DeleteAlertsCmd.class.isAssignableFrom(cmdClass);
+        }
+
+        List<ParameterField> getFields() {
+            return _fields;
+        }
+
+        boolean isMessageDates() {
+            return _messageDates;
+        }
+
+        /**
+         * @return ids of the uuids passed in the request, by entity type, for
+         *         the entity types that more than one uuid refers to.
+         */
+        Map<Class<?>, Map<String, Long>> resolveUuids(Map<String, Object> unpackedParams) {
+            Map<Class<?>, Set<String>> uuidsByType = new HashMap<Class<?>, Set<String>>();
+            Map<Class<?>, ParameterField> fieldsByType = new HashMap<Class<?>, ParameterField>();
+            for (ParameterField parameter : _uuidFields) {
+                Object paramObj = unpackedParams.get(parameter.annotation.name());
+                if (paramObj == null || !isPermitted(parameter.annotation)) {
+                    continue;
+                }
+
+                Set<String> uuids = uuidsByType.get(parameter.getEntityType());
+                if (uuids == null) {
+                    uuids = new HashSet<String>();
+                    uuidsByType.put(parameter.getEntityType(), uuids);
+                    fieldsByType.put(parameter.getEntityType(), parameter);
+                }
+                if (parameter.annotation.type() == CommandType.LIST) {
+                    StringTokenizer st = new StringTokenizer(paramObj.toString(), ",");
+                    while (st.hasMoreTokens()) {
+                        addUuid(uuids, st.nextToken());
+                    }
+                } else {
+                    addUuid(uuids, paramObj.toString());
+                }
+            }
+
+            Map<Class<?>, Map<String, Long>> resolved = new HashMap<Class<?>, Map<String, Long>>();
+            for (Map.Entry<Class<?>, Set<String>> entry : uuidsByType.entrySet()) {
+                // a single uuid is looked up when its field is set, as before
+                if (entry.getValue().size() < 2) {
+                    continue;
+                }
+
+                Set<String> pending = entry.getValue();
+                Map<String, Long> ids = new HashMap<String, Long>();
+                for (Class<?> entity : fieldsByType.get(entry.getKey()).getEntities()) {
+                    for (Object objVO : s_instance._entityMgr.listByUuidsIncludingRemoved(entity, pending)) {
+                        if (objVO instanceof Identity && objVO instanceof InternalIdentity) {
+                            ids.put(((Identity)objVO).getUuid(), ((InternalIdentity)objVO).getId());
+                        }
+                    }
+                    pending.removeAll(ids.keySet());
+                    if (pending.isEmpty()) {
+                        break;
+                    }
+                }
+                resolved.put(entry.getKey(), ids);
+            }
+            return resolved;
+        }
+
+        private static void addUuid(Set<String> uuids, String uuid) {
+            if (s_uuidPattern.matcher(uuid).matches()) {
+                uuids.add(uuid);
+            }
+        }
+    }
 }
@@ -18,19 +18,18 @@ package com.cloud.api;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InterruptedIOException;
+import java.io.Writer;
 import java.net.InetAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -39,10 +38,6 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TimeZone;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -54,7 +49,6 @@ import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
 
 import org.apache.commons.codec.binary.Base64;
-import org.apache.http.ConnectionClosedException;
 import org.apache.http.HttpException;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
@@ -63,24 +57,9 @@ import org.apache.http.HttpStatus;
 import org.apache.http.NameValuePair;
 import org.apache.http.client.utils.URLEncodedUtils;
 import org.apache.http.entity.BasicHttpEntity;
-import org.apache.http.impl.DefaultHttpResponseFactory;
-import org.apache.http.impl.DefaultHttpServerConnection;
-import org.apache.http.impl.NoConnectionReuseStrategy;
 import org.apache.http.impl.SocketHttpServerConnection;
-import org.apache.http.params.BasicHttpParams;
-import org.apache.http.params.CoreConnectionPNames;
-import org.apache.http.params.CoreProtocolPNames;
-import org.apache.http.params.HttpParams;
-import org.apache.http.protocol.BasicHttpContext;
-import org.apache.http.protocol.BasicHttpProcessor;
 import org.apache.http.protocol.HttpContext;
 import org.apache.http.protocol.HttpRequestHandler;
-import org.apache.http.protocol.HttpRequestHandlerRegistry;
-import org.apache.http.protocol.HttpService;
-import org.apache.http.protocol.ResponseConnControl;
-import org.apache.http.protocol.ResponseContent;
-import org.apache.http.protocol.ResponseDate;
-import org.apache.http.protocol.ResponseServer;
 import org.apache.log4j.Logger;
 import org.springframework.stereotype.Component;
 
@@ -120,7 +99,6 @@ import org.apache.cloudstack.framework.config.impl.ConfigurationVO;
 import org.apache.cloudstack.framework.jobs.AsyncJob;
 import org.apache.cloudstack.framework.jobs.AsyncJobManager;
 import org.apache.cloudstack.framework.jobs.impl.AsyncJobVO;
-import org.apache.cloudstack.managed.context.ManagedContextRunnable;
 
 import com.cloud.api.response.ApiResponseSerializer;
 import com.cloud.configuration.Config;
@@ -147,12 +125,11 @@ import com.cloud.utils.StringUtils;
 import com.cloud.utils.component.ComponentContext;
 import com.cloud.utils.component.ManagerBase;
 import com.cloud.utils.component.PluggableService;
-import com.cloud.utils.concurrency.NamedThreadFactory;
 import com.cloud.utils.db.EntityManager;
 import com.cloud.utils.db.SearchCriteria;
-import com.cloud.utils.db.TransactionLegacy;
 import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.utils.exception.ExceptionProxyObject;
+import com.cloud.utils.mgmt.JmxUtil;
 
 @Component
 public class ApiServer extends ManagerBase implements HttpRequestHandler, ApiServerService {
@@ -160,6 +137,7 @@ public class ApiServer extends ManagerBase implements HttpRequestHandler, ApiSer
     private static final Logger s_accessLogger = Logger.getLogger("apiserver." + ApiServer.class.getName());
 
     private static boolean encodeApiResponse = false;
+    private static boolean compressApiResponse = false;
     private static String jsonContentType = "text/javascript";
     private static String controlCharacters = "[\000-\011\013-\014\016-\037\177]"; // Non-printable ASCII characters - numbers 0 to 31 and 127 decimal
     @Inject ApiDispatcher _dispatcher;
@@ -174,18 +152,32 @@ public class ApiServer extends ManagerBase implements HttpRequestHandler, ApiSer
     private ConfigurationDao _configDao;
     @Inject
     private EntityManager _entityMgr;
+    @Inject
+    private ApiCredentialCache _credentialCache;
 
     List<PluggableService> _pluggableServices;
     List<APIChecker> _apiAccessCheckers;
 
     @Inject
     protected ApiAsyncJobDispatcher _asyncDispatcher;
-    private static int s_workerCount = 0;
     private static final DateFormat DateFormatToUse = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ");
     private static Map<String, Class<?>> s_apiNameCmdClassMap = new HashMap<String, Class<?>>();
 
-    private static ExecutorService s_executor = new ThreadPoolExecutor(10, 150, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory(
-        "ApiServer"));
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final ThreadLocal<Mac> s_mac = new ThreadLocal<Mac>() {
+        @Override
+        protected Mac initialValue() {
+            try {
+                return Mac.getInstance("HmacSHA1");
+            } catch (NoSuchAlgorithmException e) {
+                throw new CloudRuntimeException("HmacSHA1 is not available", e);
+            }
+        }
+    };
+
+    private ApiServerListener _listener;
 
     public ApiServer() {
     }
@@ -238,22 +230,41 @@ public class ApiServer extends ManagerBase implements HttpRequestHandler, ApiSer
                 continue;
             }
             s_apiNameCmdClassMap.put(apiName, cmdClass);
+            ApiDispatcher.prepareParameterBinder(cmdClass);
         }
 
         setEncodeApiResponse(Boolean.valueOf(_configDao.getValue(Config.EncodeApiResponse.key())));
+        compressApiResponse = Boolean.valueOf(_configDao.getValue(Config.CompressApiResponse.key()));
         String jsonType = _configDao.getValue(Config.JavaScriptDefaultContentType.key());
         if (jsonType != null) {
             jsonContentType = jsonType;
         }
 
         if (apiPort != null) {
-            ListenerThread listenerThread = new ListenerThread(this, apiPort);
-            listenerThread.start();
+            int queueSize = NumbersUtil.parseInt(configs.get(Config.IntegrationAPIQueueSize.key()), 500);
+            int keepAliveTimeout = NumbersUtil.parseInt(configs.get(Config.IntegrationAPIKeepAliveTimeout.key()), 15);
+            _listener = new ApiServerListener(this, apiPort, queueSize, keepAliveTimeout);
+            if (_listener.open()) {
+                _listener.start();
+                try {
+                    JmxUtil.registerMBean("ApiServer", "IntegrationApiListener", new ApiServerListenerMBeanImpl(_listener));
+                } catch (Exception e) {
+                    s_logger.error("Failed to register MBean", e);
+                }
+            }
         }
 
         return true;
     }
 
+    @Override
+    public boolean stop() {
+        if (_listener != null) {
+            _listener.shutdown();
+        }
+        return true;
+    }
+
     // NOTE: handle() only handles over the wire (OTW) requests from integration.api.port 8096
     // If integration api port is not configured, actual OTW requests will be received by ApiServlet
     @SuppressWarnings({"unchecked", "rawtypes"})
@@ -326,6 +337,12 @@ public class ApiServer extends ManagerBase implements HttpRequestHandler, ApiSer
     @Override
     @SuppressWarnings("rawtypes")
     public String handleRequest(Map params, String responseType, StringBuffer auditTrailSb) throws ServerApiException {
+        return handleRequest(params, responseType, auditTrailSb, null);
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public String handleRequest(Map params, String responseType, StringBuffer auditTrailSb, Writer out) throws ServerApiException {
         String response = null;
         String[] command = null;
 
@@ -381,14 +398,22 @@ public class ApiServer extends ManagerBase implements HttpRequestHandler, ApiSer
                     cmdObj.setHttpMethod(paramMap.get("httpmethod").toString());
 
                     // This is where the command is either serialized, or directly dispatched
-                    response = queueCommand(cmdObj, paramMap);
-                    if (annotation.responseHasSensitiveInfo())
-                    {
-                        buildAuditTrail(auditTrailSb, command[0],
-                                StringUtils.cleanString(response));
+                    ResponseObject responseObj = queueCommand(cmdObj, paramMap);
+                    if (out != null && responseObj instanceof ListResponse) {
+                        // list responses can be large, write them out as they are serialized
+                        ApiResponseSerializer.serialize(responseObj, responseType, out);
+                        List<?> responses = ((ListResponse<?>)responseObj).getResponses();
+                        auditTrailSb.append(" " + HttpServletResponse.SC_OK + " " + (responses == null ? 0 : responses.size()) + " " + command[0] + " responses");
+                    } else {
+                        response = ApiResponseSerializer.toSerializedString(responseObj, responseType);
+                        if (annotation.responseHasSensitiveInfo())
+                        {
+                            buildAuditTrail(auditTrailSb, command[0],
+                                    StringUtils.cleanString(response));
+                        }
+                        else
+                            buildAuditTrail(auditTrailSb, command[0], response);
                     }
-                    else
-                        buildAuditTrail(auditTrailSb, command[0], response);
                 } else {
                     if (!command[0].equalsIgnoreCase("login") && !command[0].equalsIgnoreCase("logout")) {
                         String errorString = "Unknown API command: " + command[0];
@@ -441,6 +466,10 @@ public class ApiServer extends ManagerBase implements HttpRequestHandler, ApiSer
                 errorMsg = BaseCmd.USER_ERROR_MESSAGE;
             }
             throw new ServerApiException(ApiErrorCode.RESOURCE_UNAVAILABLE_ERROR, errorMsg, ex);
+        } catch (IOException ex) {
+            // the client went away while a streamed response was written
+            s_logger.info("Unable to write the response of api command " + command[0] + ": " + ex.getMessage());
+            throw new ServerApiException(ApiErrorCode.INTERNAL_ERROR, ex.getMessage(), ex);
         } catch (ServerApiException ex) {
             s_logger.info(ex.getDescription());
             throw ex;
@@ -457,25 +486,25 @@ public class ApiServer extends ManagerBase implements HttpRequestHandler, ApiSer
         return response;
     }
 
-    private String getBaseAsyncResponse(long jobId, BaseAsyncCmd cmd) {
+    private ResponseObject getBaseAsyncResponse(long jobId, BaseAsyncCmd cmd) {
         AsyncJobResponse response = new AsyncJobResponse();
 
         AsyncJob job = _entityMgr.findById(AsyncJob.class, jobId);
         response.setJobId(job.getUuid());
         response.setResponseName(cmd.getCommandName());
-        return ApiResponseSerializer.toSerializedString(response, cmd.getResponseType());
+        return response;
     }
 
-    private String getBaseAsyncCreateResponse(long jobId, BaseAsyncCreateCmd cmd, String objectUuid) {
+    private ResponseObject getBaseAsyncCreateResponse(long jobId, BaseAsyncCreateCmd cmd, String objectUuid) {
         CreateCmdResponse response = new CreateCmdResponse();
         AsyncJob job = _entityMgr.findById(AsyncJob.class, jobId);
         response.setJobId(job.getUuid());
         response.setId(objectUuid);
         response.setResponseName(cmd.getCommandName());
-        return ApiResponseSerializer.toSerializedString(response, cmd.getResponseType());
+        return response;
     }
 
-    private String queueCommand(BaseCmd cmdObj, Map<String, String> params) throws Exception {
+    private ResponseObject queueCommand(BaseCmd cmdObj, Map<String, String> params) throws Exception {
         CallContext ctx = CallContext.current();
         Long callerUserId = ctx.getCallingUserId();
         Account caller = ctx.getCallingAccount();
@@ -558,7 +587,7 @@ public class ApiServer extends ManagerBase implements HttpRequestHandler, ApiSer
             }
 
             SerializationContext.current().setUuidTranslation(true);
-            return ApiResponseSerializer.toSerializedString((ResponseObject)cmdObj.getResponseObject(), cmdObj.getResponseType());
+            return (ResponseObject)cmdObj.getResponseObject();
         }
     }
 
@@ -614,9 +643,7 @@ public class ApiServer extends ManagerBase implements HttpRequestHandler, ApiSer
     public boolean verifyRequest(Map<String, Object[]> requestParameters, Long userId) throws ServerApiException {
         try {
             String apiKey = null;
-            String secretKey = null;
             String signature = null;
-            String unsignedRequest = null;
 
             String[] command = (String[])requestParameters.get("command");
             if (command == null) {
@@ -650,13 +677,8 @@ public class ApiServer extends ManagerBase implements HttpRequestHandler, ApiSer
 
             // - build a request string with sorted params, make sure it's all lowercase
             // - sign the request, verify the signature is the same
-            List<String> parameterNames = new ArrayList<String>();
-
-            for (Object paramNameObj : requestParameters.keySet()) {
-                parameterNames.add((String)paramNameObj); // put the name in a list that we'll sort later
-            }
-
-            Collections.sort(parameterNames);
+            String[] parameterNames = requestParameters.keySet().toArray(new String[requestParameters.size()]);
+            Arrays.sort(parameterNames);
 
             String signatureVersion = null;
             String expires = null;
@@ -667,20 +689,12 @@ public class ApiServer extends ManagerBase implements HttpRequestHandler, ApiSer
 
                 if ("signature".equalsIgnoreCase(paramName)) {
                     signature = paramValue;
-                } else {
-                    if ("apikey".equalsIgnoreCase(paramName)) {
-                        apiKey = paramValue;
-                    } else if ("signatureversion".equalsIgnoreCase(paramName)) {
-                        signatureVersion = paramValue;
-                    } else if ("expires".equalsIgnoreCase(paramName)) {
-                        expires = paramValue;
-                    }
-
-                    if (unsignedRequest == null) {
-                        unsignedRequest = paramName + "=" + URLEncoder.encode(paramValue, "UTF-8").replaceAll("\\+", "%20");
-                    } else {
-                        unsignedRequest = unsignedRequest + "&" + paramName + "=" + URLEncoder.encode(paramValue, "UTF-8").replaceAll("\\+", "%20");
-                    }
+                } else if ("apikey".equalsIgnoreCase(paramName)) {
+                    apiKey = paramValue;
+                } else if ("signatureversion".equalsIgnoreCase(paramName)) {
+                    signatureVersion = paramValue;
+                } else if ("expires".equalsIgnoreCase(paramName)) {
+                    expires = paramValue;
                 }
             }
 
@@ -713,18 +727,36 @@ public class ApiServer extends ManagerBase implements HttpRequestHandler, ApiSer
                 }
             }
 
-            TransactionLegacy txn = TransactionLegacy.open(TransactionLegacy.CLOUD_DB);
-            txn.close();
-            User user = null;
+            long startNanos = System.nanoTime();
+
             // verify there is a user with this api key
-            Pair<User, Account> userAcctPair = _accountMgr.findUserByApiKey(apiKey);
-            if (userAcctPair == null) {
+            ApiCredentialCache.Credentials credentials = _credentialCache.get(apiKey);
+            if (credentials == null) {
+                credentials = _credentialCache.load(apiKey);
+            }
+            if (credentials == null) {
                 s_logger.debug("apiKey does not map to a valid user -- ignoring request, apiKey: " + apiKey);
                 return false;
             }
 
-            user = userAcctPair.first();
-            Account account = userAcctPair.second();
+            // the cache only holds ids and keys, the user and account are read for every request
+            User user = _accountMgr.getActiveUser(credentials.getUserId());
+            Account account = _accountMgr.getActiveAccountById(credentials.getAccountId());
+            if (!credentials.matches(user, account)) {
+                // changed without going through the invalidation paths, look the api key up again
+                _credentialCache.invalidateUser(credentials.getUserId());
+                credentials = _credentialCache.load(apiKey);
+                if (credentials == null) {
+                    s_logger.debug("apiKey does not map to a valid user -- ignoring request, apiKey: " + apiKey);
+                    return false;
+                }
+                user = _accountMgr.getActiveUser(credentials.getUserId());
+                account = _accountMgr.getActiveAccountById(credentials.getAccountId());
+                if (!credentials.matches(user, account)) {
+                    s_logger.debug("apiKey changed while verifying the request -- ignoring request, apiKey: " + apiKey);
+                    return false;
+                }
+            }
 
             if (user.getState() != Account.State.enabled || !account.getState().equals(Account.State.enabled)) {
                 s_logger.info("disabled or locked user accessing the api, userid = " + user.getId() + "; name = " + user.getUsername() + "; state: " + user.getState() +
@@ -744,21 +776,20 @@ public class ApiServer extends ManagerBase implements HttpRequestHandler, ApiSer
             }
 
             // verify secret key exists
-            secretKey = user.getSecretKey();
-            if (secretKey == null) {
+            SecretKeySpec keySpec = credentials.getKeySpec();
+            if (keySpec == null) {
                 s_logger.info("User does not have a secret key associated with the account -- ignoring request, username: " + user.getUsername());
                 return false;
             }
 
-            unsignedRequest = unsignedRequest.toLowerCase();
+            String unsignedRequest = buildUnsignedRequest(parameterNames, requestParameters);
 
-            Mac mac = Mac.getInstance("HmacSHA1");
-            SecretKeySpec keySpec = new SecretKeySpec(secretKey.getBytes(), "HmacSHA1");
+            Mac mac = s_mac.get();
             mac.init(keySpec);
-            mac.update(unsignedRequest.getBytes());
-            byte[] encryptedBytes = mac.doFinal();
+            byte[] encryptedBytes = mac.doFinal(unsignedRequest.getBytes());
             String computedSignature = Base64.encodeBase64String(encryptedBytes);
             boolean equalSig = signature.equals(computedSignature);
+            _credentialCache.recordVerification(System.nanoTime() - startNanos, equalSig);
             if (!equalSig) {
                 s_logger.info("User signature: " + signature + " is not equaled to computed signature: " + computedSignature);
             } else {
@@ -773,6 +804,61 @@ public class ApiServer extends ManagerBase implements HttpRequestHandler, ApiSer
         return false;
     }
 
+    /**
+     * Builds the string the client signed: the sorted parameters other than the
+     * signature joined as name=value pairs, with the values url encoded with %20
+     * for spaces and the whole string in lower case.  This produces the same
+     * string as encoding every value with URLEncoder and lower casing the result,
+     * in a single pass.
+     */
+    static String buildUnsignedRequest(String[] sortedNames, Map<String, Object[]> requestParameters) {
+        StringBuilder sb = new StringBuilder(256);
+        for (String paramName : sortedNames) {
+            if ("signature".equalsIgnoreCase(paramName)) {
+                continue;
+            }
+            if (sb.length() > 0) {
+                sb.append('&');
+            }
+            for (int i = 0; i < paramName.length(); i++) {
+                sb.append(Character.toLowerCase(paramName.charAt(i)));
+            }
+            sb.append('=');
+            appendEncodedLowerCase(sb, ((String[])requestParameters.get(paramName))[0]);
+        }
+        return sb.toString();
+    }
+
+    private static void appendEncodedLowerCase(StringBuilder sb, String value) {
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if ((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '.' || c == '-' || c == '*' || c == '_') {
+                sb.append(c);
+            } else if (c >= 'A' && c <= 'Z') {
+                sb.append((char)(c + ('a' - 'A')));
+            } else if (c == ' ') {
+                sb.append("%20");
+            } else if (c < 0x80) {
+                appendEscaped(sb, (byte)c);
+            } else {
+                // encode the whole run of non ascii characters at once so surrogate pairs stay together
+                int end = i + 1;
+                while (end < length && value.charAt(end) >= 0x80) {
+                    end++;
+                }
+                for (byte b : value.substring(i, end).getBytes(UTF8)) {
+                    appendEscaped(sb, b);
+                }
+                i = end - 1;
+            }
+        }
+    }
+
+    private static void appendEscaped(StringBuilder sb, byte b) {
+        sb.append('%').append(HEX_DIGITS[(b >> 4) & 0xF]).append(HEX_DIGITS[b & 0xF]);
+    }
+
     @Override
     public Long fetchDomainId(String domainUUID) {
         Domain domain = _domainMgr.getDomain(domainUUID);
@@ -923,106 +1009,6 @@ public class ApiServer extends ManagerBase implements HttpRequestHandler, ApiSer
         }
     }
 
-    // FIXME: the following two threads are copied from
-    // http://svn.apache.org/repos/asf/httpcomponents/httpcore/trunk/httpcore/src/examples/org/apache/http/examples/ElementalHttpServer.java
-    // we have to cite a license if we are using this code directly, so we need to add the appropriate citation or
-    // modify the
-    // code to be very specific to our needs
-    static class ListenerThread extends Thread {
-        private HttpService _httpService = null;
-        private ServerSocket _serverSocket = null;
-        private HttpParams _params = null;
-
-        public ListenerThread(ApiServer requestHandler, int port) {
-            try {
-                _serverSocket = new ServerSocket(port);
-            } catch (IOException ioex) {
-                s_logger.error("error initializing api server", ioex);
-                return;
-            }
-
-            _params = new BasicHttpParams();
-            _params.setIntParameter(CoreConnectionPNames.SO_TIMEOUT, 30000)
-                .setIntParameter(CoreConnectionPNames.SOCKET_BUFFER_SIZE, 8 * 1024)
-                .setBooleanParameter(CoreConnectionPNames.STALE_CONNECTION_CHECK, false)
-                .setBooleanParameter(CoreConnectionPNames.TCP_NODELAY, true)
-                .setParameter(CoreProtocolPNames.ORIGIN_SERVER, "HttpComponents/1.1");
-
-            // Set up the HTTP protocol processor
-            BasicHttpProcessor httpproc = new BasicHttpProcessor();
-            httpproc.addInterceptor(new ResponseDate());
-            httpproc.addInterceptor(new ResponseServer());
-            httpproc.addInterceptor(new ResponseContent());
-            httpproc.addInterceptor(new ResponseConnControl());
-
-            // Set up request handlers
-            HttpRequestHandlerRegistry reqistry = new HttpRequestHandlerRegistry();
-            reqistry.register("*", requestHandler);
-
-            // Set up the HTTP service
-            _httpService = new HttpService(httpproc, new NoConnectionReuseStrategy(), new DefaultHttpResponseFactory());
-            _httpService.setParams(_params);
-            _httpService.setHandlerResolver(reqistry);
-        }
-
-        @Override
-        public void run() {
-            s_logger.info("ApiServer listening on port " + _serverSocket.getLocalPort());
-            while (!Thread.interrupted()) {
-                try {
-                    // Set up HTTP connection
-                    Socket socket = _serverSocket.accept();
-                    DefaultHttpServerConnection conn = new DefaultHttpServerConnection();
-                    conn.bind(socket, _params);
-
-                    // Execute a new worker task to handle the request
-                    s_executor.execute(new WorkerTask(_httpService, conn, s_workerCount++));
-                } catch (InterruptedIOException ex) {
-                    break;
-                } catch (IOException e) {
-                    s_logger.error("I/O error initializing connection thread", e);
-                    break;
-                }
-            }
-        }
-    }
-
-    static class WorkerTask extends ManagedContextRunnable {
-        private final HttpService _httpService;
-        private final HttpServerConnection _conn;
-
-        public WorkerTask(final HttpService httpService, final HttpServerConnection conn, final int count) {
-            _httpService = httpService;
-            _conn = conn;
-        }
-
-        @Override
-        protected void runInContext() {
-            HttpContext context = new BasicHttpContext(null);
-            try {
-                while (!Thread.interrupted() && _conn.isOpen()) {
-                    _httpService.handleRequest(_conn, context);
-                    _conn.close();
-                }
-            } catch (ConnectionClosedException ex) {
-                if (s_logger.isTraceEnabled()) {
-                    s_logger.trace("ApiServer:  Client closed connection");
-                }
-            } catch (IOException ex) {
-                if (s_logger.isTraceEnabled()) {
-                    s_logger.trace("ApiServer:  IOException - " + ex);
-                }
-            } catch (HttpException ex) {
-                s_logger.warn("ApiServer:  Unrecoverable HTTP protocol violation" + ex);
-            } finally {
-                try {
-                    _conn.shutdown();
-                } catch (IOException ignore) {
-                }
-            }
-        }
-    }
-
     @Override
     public String getSerializedApiError(int errorCode, String errorText, Map<String, Object[]> apiCommandParams, String responseType) {
         String responseName = null;
@@ -1134,6 +1120,10 @@ public class ApiServer extends ManagerBase implements HttpRequestHandler, ApiSer
         ApiServer.encodeApiResponse = encodeApiResponse;
     }
 
+    public static boolean isCompressApiResponse() {
+        return compressApiResponse;
+    }
+
     public static String getJsonContentType() {
         return jsonContentType;
     }
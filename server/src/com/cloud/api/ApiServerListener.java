@@ -0,0 +1,486 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.api;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import org.apache.http.ConnectionClosedException;
+import org.apache.http.HttpException;
+import org.apache.http.impl.DefaultConnectionReuseStrategy;
+import org.apache.http.impl.DefaultHttpResponseFactory;
+import org.apache.http.impl.DefaultHttpServerConnection;
+import org.apache.http.io.BufferInfo;
+import org.apache.http.io.SessionInputBuffer;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.CoreConnectionPNames;
+import org.apache.http.params.CoreProtocolPNames;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.BasicHttpProcessor;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.apache.http.protocol.HttpRequestHandlerRegistry;
+import org.apache.http.protocol.HttpService;
+import org.apache.http.protocol.ResponseConnControl;
+import org.apache.http.protocol.ResponseContent;
+import org.apache.http.protocol.ResponseDate;
+import org.apache.http.protocol.ResponseServer;
+
+import org.apache.cloudstack.managed.context.ManagedContextRunnable;
+
+import com.cloud.utils.concurrency.NamedThreadFactory;
+
+/**
+ * ApiServerListener serves the integration api port.  A selector thread
+ * accepts connections and watches the idle ones; a connection is only handed
+ * to a worker once a request is waiting on it, so persistent connections do
+ * not hold on to worker threads between requests.  Pipelined requests that
+ * are already buffered are handled by the same worker.
+ *
+ * The worker queue is bounded.  A request that arrives while every worker is
+ * busy and the queue is full is answered with 503 and a Retry-After header.
+ */
+public class ApiServerListener extends Thread {
+    private static final Logger s_logger = Logger.getLogger(ApiServerListener.class);
+
+    private static final int CORE_WORKERS = 10;
+    private static final int MAX_WORKERS = 150;
+    private static final int RETRY_AFTER_SECONDS = 5;
+    private static final long SELECT_TIMEOUT = 1000;
+
+    // upper bounds of the latency histogram buckets in milliseconds, the last bucket is unbounded
+    static final long[] LATENCY_BUCKETS = new long[] {10, 50, 100, 500, 1000, 5000, 30000};
+
+    private static final byte[] SERVICE_UNAVAILABLE = ("HTTP/1.1 503 Service Unavailable\r\n" + "Retry-After: " + RETRY_AFTER_SECONDS + "\r\n" +
+        "Content-Length: 0\r\n" + "Connection: close\r\n\r\n").getBytes();
+
+    private final int _port;
+    private final long _keepAliveTimeout;
+    private final HttpParams _params;
+    private final HttpService _httpService;
+    private final ThreadPoolExecutor _executor;
+
+    private ServerSocketChannel _serverChannel;
+    private Selector _selector;
+    private final ConcurrentLinkedQueue<ApiConnection> _returning = new ConcurrentLinkedQueue<ApiConnection>();
+
+    private final AtomicInteger _openConnections = new AtomicInteger();
+    private final AtomicLong _requestCount = new AtomicLong();
+    private final AtomicLong _shedCount = new AtomicLong();
+    private final AtomicLong _totalLatency = new AtomicLong();
+    private final AtomicLong _dispatchCount = new AtomicLong();
+    private final AtomicLong _totalQueueWait = new AtomicLong();
+    private final AtomicLong[] _latencyHistogram = new AtomicLong[LATENCY_BUCKETS.length + 1];
+
+    /**
+     * @param queueSize number of requests that may wait for a worker.
+     * @param keepAliveTimeout seconds an idle persistent connection is kept open.
+     */
+    public ApiServerListener(HttpRequestHandler requestHandler, int port, int queueSize, int keepAliveTimeout) {
+        super("ApiServer-Listener");
+        setDaemon(true);
+        _port = port;
+        _keepAliveTimeout = keepAliveTimeout * 1000L;
+        for (int i = 0; i < _latencyHistogram.length; i++) {
+            _latencyHistogram[i] = new AtomicLong();
+        }
+
+        _params = new BasicHttpParams();
+        _params.setIntParameter(CoreConnectionPNames.SO_TIMEOUT, 30000)
+            .setIntParameter(CoreConnectionPNames.SOCKET_BUFFER_SIZE, 8 * 1024)
+            .setBooleanParameter(CoreConnectionPNames.STALE_CONNECTION_CHECK, false)
+            .setBooleanParameter(CoreConnectionPNames.TCP_NODELAY, true)
+            .setParameter(CoreProtocolPNames.ORIGIN_SERVER, "HttpComponents/1.1");
+
+        // Set up the HTTP protocol processor
+        BasicHttpProcessor httpproc = new BasicHttpProcessor();
+        httpproc.addInterceptor(new ResponseDate());
+        httpproc.addInterceptor(new ResponseServer());
+        httpproc.addInterceptor(new ResponseContent());
+        httpproc.addInterceptor(new ResponseConnControl());
+
+        // Set up request handlers
+        HttpRequestHandlerRegistry reqistry = new HttpRequestHandlerRegistry();
+        reqistry.register("*", requestHandler);
+
+        // Set up the HTTP service, connections are kept open unless the client or the response says otherwise
+        _httpService = new HttpService(httpproc, new DefaultConnectionReuseStrategy(), new DefaultHttpResponseFactory());
+        _httpService.setParams(_params);
+        _httpService.setHandlerResolver(reqistry);
+
+        _executor = new ThreadPoolExecutor(CORE_WORKERS, MAX_WORKERS, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(Math.max(queueSize, 1)),
+            new NamedThreadFactory("ApiServer"));
+    }
+
+    /**
+     * @return false if the port could not be opened.
+     */
+    public boolean open() {
+        try {
+            _selector = Selector.open();
+            _serverChannel = ServerSocketChannel.open();
+            _serverChannel.configureBlocking(false);
+            _serverChannel.socket().setReuseAddress(true);
+            _serverChannel.socket().bind(new InetSocketAddress(_port));
+            _serverChannel.register(_selector, SelectionKey.OP_ACCEPT);
+            return true;
+        } catch (IOException ioex) {
+            s_logger.error("error initializing api server", ioex);
+            return false;
+        }
+    }
+
+    @Override
+    public void run() {
+        s_logger.info("ApiServer listening on port " + _port);
+        try {
+            while (!Thread.interrupted()) {
+                _selector.select(SELECT_TIMEOUT);
+                registerReturning();
+
+                List<ApiConnection> ready = new ArrayList<ApiConnection>();
+                Iterator<SelectionKey> it = _selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else if (key.isReadable()) {
+                        key.cancel();
+                        ready.add((ApiConnection)key.attachment());
+                    }
+                }
+
+                if (!ready.isEmpty()) {
+                    // flush the cancelled keys so the channels can be switched to blocking mode
+                    _selector.selectNow();
+                    for (ApiConnection conn : ready) {
+                        dispatch(conn);
+                    }
+                }
+
+                closeIdle();
+            }
+        } catch (ClosedSelectorException e) {
+            // stopped
+        } catch (IOException e) {
+            s_logger.error("I/O error in api server listener", e);
+        } finally {
+            close();
+        }
+    }
+
+    public void shutdown() {
+        interrupt();
+        _executor.shutdownNow();
+        if (_selector != null) {
+            _selector.wakeup();
+        }
+    }
+
+    private void close() {
+        try {
+            if (_selector != null) {
+                for (SelectionKey key : _selector.keys()) {
+                    if (key.attachment() instanceof ApiConnection) {
+                        ((ApiConnection)key.attachment()).shutdown();
+                    }
+                }
+                _selector.close();
+            }
+            if (_serverChannel != null) {
+                _serverChannel.close();
+            }
+        } catch (IOException e) {
+            s_logger.debug("Unable to close api server listener: " + e.getMessage());
+        }
+    }
+
+    private void accept() {
+        SocketChannel channel = null;
+        try {
+            channel = _serverChannel.accept();
+            if (channel == null) {
+                return;
+            }
+            ApiConnection conn = new ApiConnection(channel);
+            conn.bind(channel.socket(), _params);
+            _openConnections.incrementAndGet();
+            channel.configureBlocking(false);
+            channel.register(_selector, SelectionKey.OP_READ, conn);
+        } catch (IOException e) {
+            s_logger.warn("Unable to accept api connection: " + e.getMessage());
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ignore) {
+                }
+            }
+        }
+    }
+
+    private void registerReturning() {
+        ApiConnection conn;
+        while ((conn = _returning.poll()) != null) {
+            try {
+                conn.getChannel().configureBlocking(false);
+                conn.getChannel().register(_selector, SelectionKey.OP_READ, conn);
+            } catch (IOException e) {
+                conn.shutdown();
+            }
+        }
+    }
+
+    private void closeIdle() {
+        long now = System.currentTimeMillis();
+        for (SelectionKey key : _selector.keys()) {
+            if (key.attachment() instanceof ApiConnection) {
+                ApiConnection conn = (ApiConnection)key.attachment();
+                if (now - conn.getLastActive() > _keepAliveTimeout) {
+                    key.cancel();
+                    conn.shutdown();
+                }
+            }
+        }
+    }
+
+    private void dispatch(ApiConnection conn) {
+        try {
+            conn.getChannel().configureBlocking(true);
+        } catch (IOException e) {
+            conn.shutdown();
+            return;
+        }
+
+        try {
+            _executor.execute(new WorkerTask(conn, System.currentTimeMillis()));
+        } catch (RejectedExecutionException e) {
+            shed(conn);
+        }
+    }
+
+    private void shed(ApiConnection conn) {
+        _shedCount.incrementAndGet();
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("ApiServer is busy, rejecting request from " + conn.getChannel().socket().getRemoteSocketAddress());
+        }
+        try {
+            SocketChannel channel = conn.getChannel();
+            // read what has arrived of the request so closing the connection does not reset it
+            channel.configureBlocking(false);
+            ByteBuffer discard = ByteBuffer.allocate(8 * 1024);
+            while (channel.read(discard) > 0) {
+                discard.clear();
+            }
+            channel.write(ByteBuffer.wrap(SERVICE_UNAVAILABLE));
+        } catch (IOException e) {
+            if (s_logger.isTraceEnabled()) {
+                s_logger.trace("ApiServer:  IOException - " + e);
+            }
+        } finally {
+            conn.shutdown();
+        }
+    }
+
+    private void requestHandled(long latency) {
+        _requestCount.incrementAndGet();
+        _totalLatency.addAndGet(latency);
+        int bucket = 0;
+        while (bucket < LATENCY_BUCKETS.length && latency > LATENCY_BUCKETS[bucket]) {
+            bucket++;
+        }
+        _latencyHistogram[bucket].incrementAndGet();
+    }
+
+    public int getQueueDepth() {
+        return _executor.getQueue().size();
+    }
+
+    public int getQueueCapacity() {
+        return _executor.getQueue().size() + _executor.getQueue().remainingCapacity();
+    }
+
+    public int getActiveWorkers() {
+        return _executor.getActiveCount();
+    }
+
+    public int getOpenConnections() {
+        return _openConnections.get();
+    }
+
+    public long getRequestCount() {
+        return _requestCount.get();
+    }
+
+    public long getShedCount() {
+        return _shedCount.get();
+    }
+
+    public long getTotalLatency() {
+        return _totalLatency.get();
+    }
+
+    public long getDispatchCount() {
+        return _dispatchCount.get();
+    }
+
+    public long getTotalQueueWait() {
+        return _totalQueueWait.get();
+    }
+
+    /**
+     * @return request counts of each latency bucket, see LATENCY_BUCKETS.
+     */
+    public long[] getLatencyHistogram() {
+        long[] histogram = new long[_latencyHistogram.length];
+        for (int i = 0; i < histogram.length; i++) {
+            histogram[i] = _latencyHistogram[i].get();
+        }
+        return histogram;
+    }
+
+    /**
+     * ApiConnection is an http connection over a socket channel that is
+     * switched to blocking mode while a worker serves it.
+     */
+    protected class ApiConnection extends DefaultHttpServerConnection {
+        private final SocketChannel _channel;
+        private final HttpContext _context = new BasicHttpContext(null);
+        private SessionInputBuffer _inbuffer;
+        private volatile long _lastActive = System.currentTimeMillis();
+        private boolean _closed = false;
+
+        public ApiConnection(SocketChannel channel) {
+            _channel = channel;
+        }
+
+        @Override
+        protected SessionInputBuffer createSessionInputBuffer(Socket socket, int buffersize, HttpParams params) throws IOException {
+            _inbuffer = super.createSessionInputBuffer(socket, buffersize, params);
+            return _inbuffer;
+        }
+
+        public SocketChannel getChannel() {
+            return _channel;
+        }
+
+        public HttpContext getContext() {
+            return _context;
+        }
+
+        public long getLastActive() {
+            return _lastActive;
+        }
+
+        public void touch() {
+            _lastActive = System.currentTimeMillis();
+        }
+
+        /**
+         * @return true if pipelined requests are already buffered.
+         */
+        public boolean hasBufferedInput() {
+            return _inbuffer instanceof BufferInfo && ((BufferInfo)_inbuffer).length() > 0;
+        }
+
+        @Override
+        public void shutdown() {
+            synchronized (this) {
+                if (_closed) {
+                    return;
+                }
+                _closed = true;
+            }
+            _openConnections.decrementAndGet();
+            try {
+                super.shutdown();
+            } catch (IOException ignore) {
+            }
+            try {
+                _channel.close();
+            } catch (IOException ignore) {
+            }
+        }
+    }
+
+    protected class WorkerTask extends ManagedContextRunnable {
+        private final ApiConnection _conn;
+        private final long _queuedAt;
+
+        public WorkerTask(ApiConnection conn, long queuedAt) {
+            _conn = conn;
+            _queuedAt = queuedAt;
+        }
+
+        @Override
+        protected void runInContext() {
+            boolean keepAlive = false;
+            _dispatchCount.incrementAndGet();
+            _totalQueueWait.addAndGet(System.currentTimeMillis() - _queuedAt);
+            try {
+                do {
+                    long start = System.currentTimeMillis();
+                    _httpService.handleRequest(_conn, _conn.getContext());
+                    requestHandled(System.currentTimeMillis() - start);
+                } while (!Thread.interrupted() && _conn.isOpen() && _conn.hasBufferedInput());
+                keepAlive = _conn.isOpen();
+            } catch (ConnectionClosedException ex) {
+                if (s_logger.isTraceEnabled()) {
+                    s_logger.trace("ApiServer:  Client closed connection");
+                }
+            } catch (IOException ex) {
+                if (s_logger.isTraceEnabled()) {
+                    s_logger.trace("ApiServer:  IOException - " + ex);
+                }
+            } catch (HttpException ex) {
+                s_logger.warn("ApiServer:  Unrecoverable HTTP protocol violation" + ex);
+            } finally {
+                if (keepAlive) {
+                    // wait for the next request on the selector
+                    _conn.touch();
+                    _returning.add(_conn);
+                    _selector.wakeup();
+                } else {
+                    _conn.shutdown();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,88 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.api;
+
+import javax.management.StandardMBean;
+
+public class ApiServerListenerMBeanImpl extends StandardMBean implements ApiServerListenerMBean {
+    private final ApiServerListener _listener;
+
+    public ApiServerListenerMBeanImpl(ApiServerListener listener) {
+        super(ApiServerListenerMBean.class, false);
+        _listener = listener;
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return _listener.getQueueDepth();
+    }
+
+    @Override
+    public int getQueueCapacity() {
+        return _listener.getQueueCapacity();
+    }
+
+    @Override
+    public int getActiveWorkers() {
+        return _listener.getActiveWorkers();
+    }
+
+    @Override
+    public int getOpenConnections() {
+        return _listener.getOpenConnections();
+    }
+
+    @Override
+    public long getRequestCount() {
+        return _listener.getRequestCount();
+    }
+
+    @Override
+    public long getShedCount() {
+        return _listener.getShedCount();
+    }
+
+    @Override
+    public long getAverageLatency() {
+        long count = _listener.getRequestCount();
+        return count == 0 ? 0 : _listener.getTotalLatency() / count;
+    }
+
+    @Override
+    public long getAverageQueueWait() {
+        long count = _listener.getDispatchCount();
+        return count == 0 ? 0 : _listener.getTotalQueueWait() / count;
+    }
+
+    @Override
+    public String getLatencyHistogram() {
+        long[] histogram = _listener.getLatencyHistogram();
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < histogram.length; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            if (i < ApiServerListener.LATENCY_BUCKETS.length) {
+                sb.append("<=").append(ApiServerListener.LATENCY_BUCKETS[i]).append("ms: ");
+            } else {
+                sb.append(">").append(ApiServerListener.LATENCY_BUCKETS[i - 1]).append("ms: ");
+            }
+            sb.append(histogram[i]);
+        }
+        return sb.toString();
+    }
+}
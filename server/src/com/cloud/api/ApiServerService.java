@@ -16,6 +16,7 @@
 // under the License.
 package com.cloud.api;
 
+import java.io.Writer;
 import java.util.Map;
 
 import javax.servlet.http.HttpSession;
@@ -41,4 +42,12 @@ public interface ApiServerService {
     public String getSerializedApiError(ServerApiException ex, Map<String, Object[]> apiCommandParams, String responseType);
 
     public String handleRequest(Map params, String responseType, StringBuffer auditTrailSb) throws ServerApiException;
+
+    /**
+     * Same as handleRequest(params, responseType, auditTrailSb), except that
+     * list responses are serialized straight to out instead of being returned.
+     *
+     * @return the serialized response, or null if it was written to out.
+     */
+    public String handleRequest(Map params, String responseType, StringBuffer auditTrailSb, Writer out) throws ServerApiException;
 }
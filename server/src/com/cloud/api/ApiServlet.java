@@ -17,11 +17,14 @@
 package com.cloud.api;
 
 import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.net.URLDecoder;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.zip.GZIPOutputStream;
 
 import javax.inject.Inject;
 import javax.servlet.ServletConfig;
@@ -47,6 +50,7 @@ import com.cloud.user.AccountService;
 import com.cloud.user.User;
 import com.cloud.utils.StringUtils;
 import com.cloud.utils.db.EntityManager;
+import com.cloud.utils.exception.CloudRuntimeException;
 
 @Component("apiServlet")
 @SuppressWarnings("serial")
@@ -141,12 +145,16 @@ public class ApiServlet extends HttpServlet {
             s_logger.debug("===START=== " + reqStr);
         }
 
+        Object[] responseTypeParam = params.get("response");
+        if (responseTypeParam != null) {
+            responseType = (String)responseTypeParam[0];
+        }
+
+        // every response of this request, errors included, goes through the same writer and stream
+        ResponseWriter out = new ResponseWriter(resp, responseType, ApiServer.isCompressApiResponse() && acceptsGzip(req));
+
         try {
             HttpSession session = req.getSession(false);
-            Object[] responseTypeParam = params.get("response");
-            if (responseTypeParam != null) {
-                responseType = (String)responseTypeParam[0];
-            }
 
             Object[] commandObj = params.get("command");
             if (commandObj != null) {
@@ -171,7 +179,7 @@ public class ApiServlet extends HttpServlet {
                     }
                     auditTrailSb.append("command=logout");
                     auditTrailSb.append(" " + HttpServletResponse.SC_OK);
-                    writeResponse(resp, getLogoutSuccessResponse(responseType), HttpServletResponse.SC_OK, responseType);
+                    writeResponse(out, getLogoutSuccessResponse(responseType), HttpServletResponse.SC_OK);
                     return;
                 } else if ("login".equalsIgnoreCase(command)) {
                     auditTrailSb.append("command=login");
@@ -206,7 +214,7 @@ public class ApiServlet extends HttpServlet {
                             String serializedResponse =
                                 _apiServer.getSerializedApiError(HttpServletResponse.SC_UNAUTHORIZED, "Invalid domain id entered, please enter a valid one", params,
                                     responseType);
-                            writeResponse(resp, serializedResponse, HttpServletResponse.SC_UNAUTHORIZED, responseType);
+                            writeResponse(out, serializedResponse, HttpServletResponse.SC_UNAUTHORIZED);
                         }
                     }
                     String domain = null;
@@ -231,7 +239,7 @@ public class ApiServlet extends HttpServlet {
                             auditTrailSb.insert(0, "(userId=" + session.getAttribute("userid") + " accountId=" + ((Account)session.getAttribute("accountobj")).getId() +
                                 " sessionId=" + session.getId() + ")");
                             String loginResponse = getLoginSuccessResponse(session, responseType);
-                            writeResponse(resp, loginResponse, HttpServletResponse.SC_OK, responseType);
+                            writeResponse(out, loginResponse, HttpServletResponse.SC_OK);
                             return;
                         } catch (CloudAuthenticationException ex) {
                             // TODO: fall through to API key, or just fail here w/ auth error? (HTTP 401)
@@ -245,7 +253,7 @@ public class ApiServlet extends HttpServlet {
                             String serializedResponse =
                                 _apiServer.getSerializedApiError(ApiErrorCode.ACCOUNT_ERROR.getHttpCode(), ex.getMessage() != null ? ex.getMessage()
                                     : "failed to authenticate user, check if username/password are correct", params, responseType);
-                            writeResponse(resp, serializedResponse, ApiErrorCode.ACCOUNT_ERROR.getHttpCode(), responseType);
+                            writeResponse(out, serializedResponse, ApiErrorCode.ACCOUNT_ERROR.getHttpCode());
                             return;
                         }
                     }
@@ -273,7 +281,7 @@ public class ApiServlet extends HttpServlet {
                     auditTrailSb.append(" " + HttpServletResponse.SC_UNAUTHORIZED + " " + "unable to verify user credentials");
                     String serializedResponse =
                         _apiServer.getSerializedApiError(HttpServletResponse.SC_UNAUTHORIZED, "unable to verify user credentials", params, responseType);
-                    writeResponse(resp, serializedResponse, HttpServletResponse.SC_UNAUTHORIZED, responseType);
+                    writeResponse(out, serializedResponse, HttpServletResponse.SC_UNAUTHORIZED);
                     return;
                 }
 
@@ -284,7 +292,7 @@ public class ApiServlet extends HttpServlet {
                         s_logger.info("missing command, ignoring request...");
                         auditTrailSb.append(" " + HttpServletResponse.SC_BAD_REQUEST + " " + "no command specified");
                         String serializedResponse = _apiServer.getSerializedApiError(HttpServletResponse.SC_BAD_REQUEST, "no command specified", params, responseType);
-                        writeResponse(resp, serializedResponse, HttpServletResponse.SC_BAD_REQUEST, responseType);
+                        writeResponse(out, serializedResponse, HttpServletResponse.SC_BAD_REQUEST);
                         return;
                     }
                     User user = _entityMgr.findById(User.class, userId);
@@ -300,7 +308,7 @@ public class ApiServlet extends HttpServlet {
                     auditTrailSb.append(" " + HttpServletResponse.SC_UNAUTHORIZED + " " + "unable to verify user credentials");
                     String serializedResponse =
                         _apiServer.getSerializedApiError(HttpServletResponse.SC_UNAUTHORIZED, "unable to verify user credentials", params, responseType);
-                    writeResponse(resp, serializedResponse, HttpServletResponse.SC_UNAUTHORIZED, responseType);
+                    writeResponse(out, serializedResponse, HttpServletResponse.SC_UNAUTHORIZED);
                     return;
                 }
             } else {
@@ -326,8 +334,17 @@ public class ApiServlet extends HttpServlet {
 
                 // Add the HTTP method (GET/POST/PUT/DELETE) as well into the params map.
                 params.put("httpmethod", new String[] {req.getMethod()});
-                String response = _apiServer.handleRequest(params, responseType, auditTrailSb);
-                writeResponse(resp, response != null ? response : "", HttpServletResponse.SC_OK, responseType);
+                String response = _apiServer.handleRequest(params, responseType, auditTrailSb, out);
+                try {
+                    if (response != null) {
+                        out.write(response);
+                    }
+                    out.close();
+                } catch (IOException ioex) {
+                    if (s_logger.isTraceEnabled()) {
+                        s_logger.trace("exception writing response: " + ioex);
+                    }
+                }
             } else {
                 if (session != null) {
                     try {
@@ -340,17 +357,26 @@ public class ApiServlet extends HttpServlet {
                 String serializedResponse =
                     _apiServer.getSerializedApiError(HttpServletResponse.SC_UNAUTHORIZED, "unable to verify user credentials and/or request signature", params,
                         responseType);
-                writeResponse(resp, serializedResponse, HttpServletResponse.SC_UNAUTHORIZED, responseType);
+                writeResponse(out, serializedResponse, HttpServletResponse.SC_UNAUTHORIZED);
 
             }
         } catch (ServerApiException se) {
+            auditTrailSb.append(" " + se.getErrorCode() + " " + se.getDescription());
+            if (!out.reset()) {
+                // part of a streamed response already went out, appending an error to it would
+                // only produce a malformed response that looks complete
+                s_logger.warn("Aborting api response that failed after it was committed: " + se.getDescription());
+                throw new CloudRuntimeException("Aborted api response after it was committed", se);
+            }
             String serializedResponseText = _apiServer.getSerializedApiError(se, params, responseType);
             resp.setHeader("X-Description", se.getDescription());
-            writeResponse(resp, serializedResponseText, se.getErrorCode().getHttpCode(), responseType);
-            auditTrailSb.append(" " + se.getErrorCode() + " " + se.getDescription());
+            writeResponse(out, serializedResponseText, se.getErrorCode().getHttpCode());
         } catch (Exception ex) {
             s_logger.error("unknown exception writing api response", ex);
             auditTrailSb.append(" unknown exception writing api response");
+            if (!out.reset()) {
+                throw new CloudRuntimeException("Aborted api response after it was committed", ex);
+            }
         } finally {
             s_accessLogger.info(auditTrailSb.toString());
             if (s_logger.isDebugEnabled()) {
@@ -372,16 +398,11 @@ public class ApiServlet extends HttpServlet {
      */
 
     // FIXME: rather than isError, we might was to pass in the status code to give more flexibility
-    private void writeResponse(HttpServletResponse resp, String response, int responseCode, String responseType) {
+    private void writeResponse(ResponseWriter out, String response, int responseCode) {
         try {
-            if (BaseCmd.RESPONSE_TYPE_JSON.equalsIgnoreCase(responseType)) {
-                resp.setContentType(ApiServer.getJsonContentType() + "; charset=UTF-8");
-            } else {
-                resp.setContentType("text/xml; charset=UTF-8");
-            }
-
-            resp.setStatus(responseCode);
-            resp.getWriter().print(response);
+            out.setStatus(responseCode);
+            out.write(response);
+            out.close();
         } catch (IOException ioex) {
             if (s_logger.isTraceEnabled()) {
                 s_logger.trace("exception writing response: " + ioex);
@@ -393,6 +414,104 @@ public class ApiServlet extends HttpServlet {
         }
     }
 
+    private static boolean acceptsGzip(HttpServletRequest req) {
+        String acceptEncoding = req.getHeader("Accept-Encoding");
+        return acceptEncoding != null && acceptEncoding.toLowerCase().contains("gzip");
+    }
+
+    /**
+     * ResponseWriter sets up the http response the first time something is
+     * written to it.  All responses of a request, errors included, are written
+     * through it so that they use the same stream and encoding; a request that
+     * fails before anything was committed can be reset and answered with an
+     * error instead.  Since the length of the response is not known up front,
+     * the servlet container sends it chunked.
+     */
+    private static class ResponseWriter extends Writer {
+        private final HttpServletResponse _resp;
+        private final String _responseType;
+        private final boolean _gzip;
+        private int _status = HttpServletResponse.SC_OK;
+        private Writer _out;
+
+        public ResponseWriter(HttpServletResponse resp, String responseType, boolean gzip) {
+            _resp = resp;
+            _responseType = responseType;
+            _gzip = gzip;
+        }
+
+        private Writer getOut() throws IOException {
+            if (_out == null) {
+                if (BaseCmd.RESPONSE_TYPE_JSON.equalsIgnoreCase(_responseType)) {
+                    _resp.setContentType(ApiServer.getJsonContentType() + "; charset=UTF-8");
+                } else {
+                    _resp.setContentType("text/xml; charset=UTF-8");
+                }
+                _resp.setStatus(_status);
+
+                if (_gzip) {
+                    _resp.setHeader("Content-Encoding", "gzip");
+                    _out = new OutputStreamWriter(new GZIPOutputStream(_resp.getOutputStream(), 8192), "UTF-8");
+                } else {
+                    _out = _resp.getWriter();
+                }
+            }
+            return _out;
+        }
+
+        /**
+         * Sets the status of the response, which must not have been started.
+         */
+        public void setStatus(int status) {
+            if (_out != null) {
+                throw new IllegalStateException("Response has already been started");
+            }
+            _status = status;
+        }
+
+        /**
+         * Discards whatever was written so far so that another response can be
+         * written instead.
+         * @return false if part of the response has already been sent, in which
+         * case the connection has to be aborted.
+         */
+        public boolean reset() {
+            if (_resp.isCommitted()) {
+                return false;
+            }
+            if (_out != null) {
+                // nothing of it reached the client, drop the buffered output along with any gzip header
+                _resp.resetBuffer();
+                _out = null;
+            }
+            _status = HttpServletResponse.SC_OK;
+            return true;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            getOut().write(cbuf, off, len);
+        }
+
+        @Override
+        public void write(String str, int off, int len) throws IOException {
+            getOut().write(str, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (_out != null) {
+                _out.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            // an empty response still needs its headers, as writeResponse() would set them
+            getOut().close();
+        }
+    }
+
     @SuppressWarnings("rawtypes")
     private String getLoginSuccessResponse(HttpSession session, String responseType) {
         StringBuffer sb = new StringBuffer();
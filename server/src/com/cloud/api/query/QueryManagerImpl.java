@@ -190,6 +190,7 @@ import com.cloud.utils.db.SearchBuilder;
 import com.cloud.utils.db.SearchCriteria;
 import com.cloud.utils.db.SearchCriteria.Func;
 import com.cloud.utils.db.SearchCriteria.Op;
+import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.vm.DomainRouterVO;
 import com.cloud.vm.UserVmVO;
 import com.cloud.vm.VirtualMachine;
@@ -463,14 +464,15 @@ public class QueryManagerImpl extends ManagerBase implements QueryService {
 
     @Override
     public ListResponse<EventResponse> searchForEvents(ListEventsCmd cmd) {
-        Pair<List<EventJoinVO>, Integer> result = searchForEventsInternal(cmd);
+        Ternary<List<EventJoinVO>, Integer, String> result = searchForEventsInternal(cmd);
         ListResponse<EventResponse> response = new ListResponse<EventResponse>();
         List<EventResponse> eventResponses = ViewResponseHelper.createEventResponse(result.first().toArray(new EventJoinVO[result.first().size()]));
         response.setResponses(eventResponses, result.second());
+        response.setNextPageToken(result.third());
         return response;
     }
 
-    private Pair<List<EventJoinVO>, Integer> searchForEventsInternal(ListEventsCmd cmd) {
+    private Ternary<List<EventJoinVO>, Integer, String> searchForEventsInternal(ListEventsCmd cmd) {
         Account caller = CallContext.current().getCallingAccount();
         List<Long> permittedAccounts = new ArrayList<Long>();
 
@@ -491,6 +493,8 @@ public class QueryManagerImpl extends ManagerBase implements QueryService {
         ListProjectResourcesCriteria listProjectResourcesCriteria = domainIdRecursiveListProject.third();
 
         Filter searchFilter = new Filter(EventJoinVO.class, "createDate", false, cmd.getStartIndex(), cmd.getPageSizeVal());
+        searchFilter.addOrderBy(EventJoinVO.class, "id", false);
+        setPageToken(searchFilter, cmd.getPageToken());
         SearchBuilder<EventJoinVO> sb = _eventJoinDao.createSearchBuilder();
         _accountMgr.buildACLViewSearchBuilder(sb, domainId, isRecursive, permittedAccounts, listProjectResourcesCriteria);
 
@@ -540,7 +544,7 @@ public class QueryManagerImpl extends ManagerBase implements QueryService {
 
         sc.setParameters("archived", false);
 
-        Pair<List<EventJoinVO>, Integer> eventPair = null;
+        Ternary<List<EventJoinVO>, Integer, String> eventPair = null;
         // event_view will not have duplicate rows for each event, so
         // searchAndCount should be good enough.
         if ((entryTime != null) && (duration != null)) {
@@ -565,7 +569,13 @@ public class QueryManagerImpl extends ManagerBase implements QueryService {
              * == null) { pendingEvents.add(event); } } return pendingEvents;
              */
         } else {
-            eventPair = _eventJoinDao.searchAndCount(sc, searchFilter);
+            Pair<List<EventJoinVO>, Integer> events = _eventJoinDao.searchAndCount(sc, searchFilter, !cmd.isSkipCount());
+            List<EventJoinVO> page = events.first();
+            String nextPageToken = null;
+            if (isFullPage(searchFilter, page)) {
+                nextPageToken = _eventJoinDao.createSeekToken(searchFilter, page.get(page.size() - 1));
+            }
+            eventPair = new Ternary<List<EventJoinVO>, Integer, String>(page, events.second(), nextPageToken);
         }
         return eventPair;
 
@@ -697,15 +707,16 @@ public class QueryManagerImpl extends ManagerBase implements QueryService {
 
     @Override
     public ListResponse<UserVmResponse> searchForUserVMs(ListVMsCmd cmd) {
-        Pair<List<UserVmJoinVO>, Integer> result = searchForUserVMsInternal(cmd);
+        Ternary<List<UserVmJoinVO>, Integer, String> result = searchForUserVMsInternal(cmd);
         ListResponse<UserVmResponse> response = new ListResponse<UserVmResponse>();
         List<UserVmResponse> vmResponses =
             ViewResponseHelper.createUserVmResponse("virtualmachine", cmd.getDetails(), result.first().toArray(new UserVmJoinVO[result.first().size()]));
         response.setResponses(vmResponses, result.second());
+        response.setNextPageToken(result.third());
         return response;
     }
 
-    private Pair<List<UserVmJoinVO>, Integer> searchForUserVMsInternal(ListVMsCmd cmd) {
+    private Ternary<List<UserVmJoinVO>, Integer, String> searchForUserVMsInternal(ListVMsCmd cmd) {
         Account caller = CallContext.current().getCallingAccount();
         List<Long> permittedAccounts = new ArrayList<Long>();
         String hypervisor = cmd.getHypervisor();
@@ -736,6 +747,8 @@ public class QueryManagerImpl extends ManagerBase implements QueryService {
         c.addCriteria(Criteria.VPC_ID, cmd.getVpcId());
         c.addCriteria(Criteria.AFFINITY_GROUP_ID, cmd.getAffinityGroupId());
         c.addCriteria(Criteria.SERVICE_OFFERING_ID, cmd.getServiceOfferingId());
+        c.addCriteria(Criteria.PAGE_TOKEN, cmd.getPageToken());
+        c.addCriteria(Criteria.SKIP_COUNT, cmd.isSkipCount());
 
         if (domainId != null) {
             c.addCriteria(Criteria.DOMAINID, domainId);
@@ -762,9 +775,11 @@ public class QueryManagerImpl extends ManagerBase implements QueryService {
         return searchForUserVMsByCriteria(c, caller, domainId, isRecursive, permittedAccounts, listAll, listProjectResourcesCriteria, tags);
     }
 
-    private Pair<List<UserVmJoinVO>, Integer> searchForUserVMsByCriteria(Criteria c, Account caller, Long domainId, boolean isRecursive, List<Long> permittedAccounts,
-        boolean listAll, ListProjectResourcesCriteria listProjectResourcesCriteria, Map<String, String> tags) {
+    private Ternary<List<UserVmJoinVO>, Integer, String> searchForUserVMsByCriteria(Criteria c, Account caller, Long domainId, boolean isRecursive,
+        List<Long> permittedAccounts, boolean listAll, ListProjectResourcesCriteria listProjectResourcesCriteria, Map<String, String> tags) {
         Filter searchFilter = new Filter(UserVmJoinVO.class, c.getOrderBy(), c.getAscending(), c.getOffset(), c.getLimit());
+        setPageToken(searchFilter, (String)c.getCriteria(Criteria.PAGE_TOKEN));
+        boolean skipCount = Boolean.TRUE.equals(c.getCriteria(Criteria.SKIP_COUNT));
         boolean isRootAdmin = _accountMgr.isRootAdmin(caller.getType());
 
         // first search distinct vm id by using query criteria and pagination
@@ -949,20 +964,25 @@ public class QueryManagerImpl extends ManagerBase implements QueryService {
             sc.setParameters("displayVm", 1);
         }
         // search vm details by ids
-        Pair<List<UserVmJoinVO>, Integer> uniqueVmPair = _userVmJoinDao.searchAndCount(sc, searchFilter);
+        Pair<List<UserVmJoinVO>, Integer> uniqueVmPair = _userVmJoinDao.searchAndCount(sc, searchFilter, !skipCount);
         Integer count = uniqueVmPair.second();
-        if (count.intValue() == 0) {
+        List<UserVmJoinVO> uniqueVms = uniqueVmPair.first();
+        if (uniqueVms.isEmpty()) {
             // handle empty result cases
-            return uniqueVmPair;
+            return new Ternary<List<UserVmJoinVO>, Integer, String>(uniqueVms, count, null);
         }
-        List<UserVmJoinVO> uniqueVms = uniqueVmPair.first();
         Long[] vmIds = new Long[uniqueVms.size()];
         int i = 0;
         for (UserVmJoinVO v : uniqueVms) {
             vmIds[i++] = v.getId();
         }
         List<UserVmJoinVO> vms = _userVmJoinDao.searchByIds(vmIds);
-        return new Pair<List<UserVmJoinVO>, Integer>(vms, count);
+        String nextPageToken = null;
+        if (isFullPage(searchFilter, uniqueVms)) {
+            // the page is ordered by id only, which the distinct ids carry
+            nextPageToken = _userVmJoinDao.createSeekToken(searchFilter, uniqueVms.get(uniqueVms.size() - 1));
+        }
+        return new Ternary<List<UserVmJoinVO>, Integer, String>(vms, count, nextPageToken);
     }
 
     @Override
@@ -1601,15 +1621,16 @@ public class QueryManagerImpl extends ManagerBase implements QueryService {
 
     @Override
     public ListResponse<VolumeResponse> searchForVolumes(ListVolumesCmd cmd) {
-        Pair<List<VolumeJoinVO>, Integer> result = searchForVolumesInternal(cmd);
+        Ternary<List<VolumeJoinVO>, Integer, String> result = searchForVolumesInternal(cmd);
         ListResponse<VolumeResponse> response = new ListResponse<VolumeResponse>();
 
         List<VolumeResponse> volumeResponses = ViewResponseHelper.createVolumeResponse(result.first().toArray(new VolumeJoinVO[result.first().size()]));
         response.setResponses(volumeResponses, result.second());
+        response.setNextPageToken(result.third());
         return response;
     }
 
-    private Pair<List<VolumeJoinVO>, Integer> searchForVolumesInternal(ListVolumesCmd cmd) {
+    private Ternary<List<VolumeJoinVO>, Integer, String> searchForVolumesInternal(ListVolumesCmd cmd) {
 
         Account caller = CallContext.current().getCallingAccount();
         List<Long> permittedAccounts = new ArrayList<Long>();
@@ -1637,6 +1658,8 @@ public class QueryManagerImpl extends ManagerBase implements QueryService {
         Boolean isRecursive = domainIdRecursiveListProject.second();
         ListProjectResourcesCriteria listProjectResourcesCriteria = domainIdRecursiveListProject.third();
         Filter searchFilter = new Filter(VolumeJoinVO.class, "created", false, cmd.getStartIndex(), cmd.getPageSizeVal());
+        searchFilter.addOrderBy(VolumeJoinVO.class, "id", false);
+        setPageToken(searchFilter, cmd.getPageToken());
 
         // hack for now, this should be done better but due to needing a join I
         // opted to
@@ -1733,20 +1756,43 @@ public class QueryManagerImpl extends ManagerBase implements QueryService {
         sc.setParameters("state", Volume.State.Destroy);
 
         // search Volume details by ids
-        Pair<List<VolumeJoinVO>, Integer> uniqueVolPair = _volumeJoinDao.searchAndCount(sc, searchFilter);
+        Pair<List<VolumeJoinVO>, Integer> uniqueVolPair = _volumeJoinDao.searchAndCount(sc, searchFilter, !cmd.isSkipCount());
         Integer count = uniqueVolPair.second();
-        if (count.intValue() == 0) {
+        List<VolumeJoinVO> uniqueVols = uniqueVolPair.first();
+        if (uniqueVols.isEmpty()) {
             // empty result
-            return uniqueVolPair;
+            return new Ternary<List<VolumeJoinVO>, Integer, String>(uniqueVols, count, null);
         }
-        List<VolumeJoinVO> uniqueVols = uniqueVolPair.first();
         Long[] vrIds = new Long[uniqueVols.size()];
         int i = 0;
         for (VolumeJoinVO v : uniqueVols) {
             vrIds[i++] = v.getId();
         }
         List<VolumeJoinVO> vrs = _volumeJoinDao.searchByIds(vrIds);
-        return new Pair<List<VolumeJoinVO>, Integer>(vrs, count);
+        String nextPageToken = null;
+        if (isFullPage(searchFilter, uniqueVols)) {
+            // the distinct ids don't carry the created date, take it from the details of the last one
+            long lastId = uniqueVols.get(uniqueVols.size() - 1).getId();
+            for (VolumeJoinVO vr : vrs) {
+                if (vr.getId() == lastId) {
+                    nextPageToken = _volumeJoinDao.createSeekToken(searchFilter, vr);
+                    break;
+                }
+            }
+        }
+        return new Ternary<List<VolumeJoinVO>, Integer, String>(vrs, count, nextPageToken);
+    }
+
+    private void setPageToken(Filter searchFilter, String pageToken) {
+        try {
+            searchFilter.setSeekToken(pageToken);
+        } catch (CloudRuntimeException e) {
+            throw new InvalidParameterValueException("Invalid page token " + pageToken);
+        }
+    }
+
+    private boolean isFullPage(Filter searchFilter, List<?> page) {
+        return searchFilter.getLimit() != null && !page.isEmpty() && page.size() >= searchFilter.getLimit();
     }
 
     @Override
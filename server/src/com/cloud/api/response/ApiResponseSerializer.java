@@ -16,6 +16,9 @@
 // under the License.
 package com.cloud.api.response;
 
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
 import java.util.ArrayList;
@@ -23,8 +26,7 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.cloudstack.acl.RoleType;
 import org.apache.cloudstack.api.ApiConstants;
@@ -49,9 +51,21 @@ import com.cloud.utils.exception.ExceptionProxyObject;
 import com.google.gson.Gson;
 import com.google.gson.annotations.SerializedName;
 
+/**
+ * ApiResponseSerializer writes api responses as json or xml.  The serialize()
+ * methods write straight to the given writer, one response object at a time,
+ * so a list response is never held in memory as a single string; the
+ * toSerializedString() methods are built on top of them for callers that need
+ * the text.
+ */
 public class ApiResponseSerializer {
     private static final Logger s_logger = Logger.getLogger(ApiResponseSerializer.class.getName());
 
+    private static final Gson s_gson = ApiResponseGsonHelper.getBuilder().excludeFieldsWithModifiers(Modifier.TRANSIENT).create();
+
+    // serialized fields of each response class, in the order getFlattenFields() returns them
+    private static final ConcurrentHashMap<Class<?>, ResponseField[]> s_responseFields = new ConcurrentHashMap<Class<?>, ResponseField[]>();
+
     public static String toSerializedString(ResponseObject result, String responseType) {
         s_logger.trace("===Serializing Response===");
         if (BaseCmd.RESPONSE_TYPE_JSON.equalsIgnoreCase(responseType)) {
@@ -61,114 +75,181 @@ public class ApiResponseSerializer {
         }
     }
 
-    private static final Pattern s_unicodeEscapePattern = Pattern.compile("\\\\u([0-9A-Fa-f]{4})");
+    /**
+     * Writes the response to out in the given response type.  Nothing is
+     * written for a null json response, same as toSerializedString().
+     */
+    public static void serialize(ResponseObject result, String responseType, Writer out) throws IOException {
+        s_logger.trace("===Serializing Response===");
+        if (BaseCmd.RESPONSE_TYPE_JSON.equalsIgnoreCase(responseType)) {
+            serializeJSON(result, out);
+        } else {
+            serializeXML(result, out);
+        }
+    }
 
     public static String unescape(String escaped) {
-        String str = escaped;
-        Matcher matcher = s_unicodeEscapePattern.matcher(str);
-        while (matcher.find()) {
-            str = str.replaceAll("\\" + matcher.group(0), Character.toString((char)Integer.parseInt(matcher.group(1), 16)));
+        StringBuilder sb = new StringBuilder(escaped.length());
+        try {
+            appendUnescaped(sb, escaped);
+        } catch (IOException e) {
+            throw new CloudRuntimeException("StringBuilder does not throw", e);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Appends escaped to out with every unicode escape replaced by the
+     * character it stands for.
+     */
+    private static void appendUnescaped(Appendable out, String escaped) throws IOException {
+        int length = escaped.length();
+        int copied = 0;
+        int i = escaped.indexOf("\\u");
+        while (i >= 0 && i + 6 <= length) {
+            int value = parseHex(escaped, i + 2);
+            if (value >= 0) {
+                out.append(escaped, copied, i);
+                out.append((char)value);
+                copied = i + 6;
+                i = escaped.indexOf("\\u", copied);
+            } else {
+                i = escaped.indexOf("\\u", i + 1);
+            }
+        }
+        out.append(escaped, copied, length);
+    }
+
+    private static int parseHex(String str, int start) {
+        int value = 0;
+        for (int i = start; i < start + 4; i++) {
+            int digit = Character.digit(str.charAt(i), 16);
+            if (digit < 0) {
+                return -1;
+            }
+            value = (value << 4) | digit;
         }
-        return str;
+        return value;
     }
 
     public static String toJSONSerializedString(ResponseObject result) {
         if (result != null) {
-            Gson gson = ApiResponseGsonHelper.getBuilder().excludeFieldsWithModifiers(Modifier.TRANSIENT).create();
+            StringWriter out = new StringWriter();
+            try {
+                serializeJSON(result, out);
+            } catch (IOException e) {
+                throw new CloudRuntimeException("StringWriter does not throw", e);
+            }
+            return out.toString();
+        }
+        return null;
+    }
 
-            StringBuilder sb = new StringBuilder();
+    private static void serializeJSON(ResponseObject result, Writer out) throws IOException {
+        if (result == null) {
+            return;
+        }
 
-            sb.append("{ \"").append(result.getResponseName()).append("\" : ");
-            if (result instanceof ListResponse) {
-                List<? extends ResponseObject> responses = ((ListResponse)result).getResponses();
-                Integer count = ((ListResponse)result).getCount();
-                boolean nonZeroCount = (count != null && count.longValue() != 0);
-                if (nonZeroCount) {
-                    sb.append("{ \"").append(ApiConstants.COUNT).append("\":").append(count);
+        out.append("{ \"").append(result.getResponseName()).append("\" : ");
+        if (result instanceof ListResponse) {
+            List<? extends ResponseObject> responses = ((ListResponse)result).getResponses();
+            Integer count = ((ListResponse)result).getCount();
+            boolean nonZeroCount = (count != null && count.longValue() != 0);
+            if (nonZeroCount) {
+                out.append("{ \"").append(ApiConstants.COUNT).append("\":").append(String.valueOf(count));
+                String nextPageToken = ((ListResponse)result).getNextPageToken();
+                if (nextPageToken != null) {
+                    out.append(" ,\"").append(ApiConstants.NEXT_PAGE_TOKEN).append("\":\"").append(nextPageToken).append("\"");
                 }
+            }
 
-                if ((responses != null) && !responses.isEmpty()) {
-                    String jsonStr = gson.toJson(responses.get(0));
-                    jsonStr = unescape(jsonStr);
-
-                    if (nonZeroCount) {
-                        sb.append(" ,\"").append(responses.get(0).getObjectName()).append("\" : [  ").append(jsonStr);
-                    }
-
-                    for (int i = 1; i < ((ListResponse)result).getResponses().size(); i++) {
-                        jsonStr = gson.toJson(responses.get(i));
-                        jsonStr = unescape(jsonStr);
-                        sb.append(", ").append(jsonStr);
-                    }
-                    sb.append(" ] }");
-                } else {
-                    if (!nonZeroCount) {
-                        sb.append("{");
-                    }
+            if ((responses != null) && !responses.isEmpty()) {
+                if (nonZeroCount) {
+                    out.append(" ,\"").append(responses.get(0).getObjectName()).append("\" : [  ");
+                    appendUnescaped(out, s_gson.toJson(responses.get(0)));
+                }
 
-                    sb.append(" }");
+                for (int i = 1; i < responses.size(); i++) {
+                    out.append(", ");
+                    appendUnescaped(out, s_gson.toJson(responses.get(i)));
                 }
-            } else if (result instanceof SuccessResponse) {
-                sb.append("{ \"success\" : \"").append(((SuccessResponse)result).getSuccess()).append("\"} ");
-            } else if (result instanceof ExceptionResponse) {
-                String jsonErrorText = gson.toJson(result);
-                jsonErrorText = unescape(jsonErrorText);
-                sb.append(jsonErrorText);
+                out.append(" ] }");
             } else {
-                String jsonStr = gson.toJson(result);
-                if ((jsonStr != null) && !"".equals(jsonStr)) {
-                    jsonStr = unescape(jsonStr);
-                    if (result instanceof AsyncJobResponse || result instanceof CreateCmdResponse) {
-                        sb.append(jsonStr);
-                    } else {
-                        sb.append(" { \"").append(result.getObjectName()).append("\" : ").append(jsonStr).append(" } ");
-                    }
+                if (!nonZeroCount) {
+                    out.append("{");
+                }
+
+                out.append(" }");
+            }
+        } else if (result instanceof SuccessResponse) {
+            out.append("{ \"success\" : \"").append(String.valueOf(((SuccessResponse)result).getSuccess())).append("\"} ");
+        } else if (result instanceof ExceptionResponse) {
+            appendUnescaped(out, s_gson.toJson(result));
+        } else {
+            String jsonStr = s_gson.toJson(result);
+            if ((jsonStr != null) && !"".equals(jsonStr)) {
+                if (result instanceof AsyncJobResponse || result instanceof CreateCmdResponse) {
+                    appendUnescaped(out, jsonStr);
                 } else {
-                    sb.append("{ }");
+                    out.append(" { \"").append(result.getObjectName()).append("\" : ");
+                    appendUnescaped(out, jsonStr);
+                    out.append(" } ");
                 }
+            } else {
+                out.append("{ }");
             }
-            sb.append(" }");
-            return sb.toString();
         }
-        return null;
+        out.append(" }");
     }
 
     private static String toXMLSerializedString(ResponseObject result) {
-        StringBuilder sb = new StringBuilder();
-        sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
-        sb.append("<").append(result.getResponseName()).append(" cloud-stack-version=\"").append(ApiDBUtils.getVersion()).append("\">");
+        StringWriter out = new StringWriter();
+        try {
+            serializeXML(result, out);
+        } catch (IOException e) {
+            throw new CloudRuntimeException("StringWriter does not throw", e);
+        }
+        return out.toString();
+    }
+
+    private static void serializeXML(ResponseObject result, Writer out) throws IOException {
+        out.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+        out.append("<").append(result.getResponseName()).append(" cloud-stack-version=\"").append(ApiDBUtils.getVersion()).append("\">");
 
         if (result instanceof ListResponse) {
             Integer count = ((ListResponse)result).getCount();
 
             if (count != null && count != 0) {
-                sb.append("<").append(ApiConstants.COUNT).append(">").append(((ListResponse)result).getCount()).append("</").append(ApiConstants.COUNT).append(">");
+                out.append("<").append(ApiConstants.COUNT).append(">").append(String.valueOf(count)).append("</").append(ApiConstants.COUNT).append(">");
+                String nextPageToken = ((ListResponse)result).getNextPageToken();
+                if (nextPageToken != null) {
+                    out.append("<").append(ApiConstants.NEXT_PAGE_TOKEN).append(">").append(nextPageToken).append("</").append(ApiConstants.NEXT_PAGE_TOKEN).append(">");
+                }
             }
             List<? extends ResponseObject> responses = ((ListResponse)result).getResponses();
             if ((responses != null) && !responses.isEmpty()) {
                 for (ResponseObject obj : responses) {
-                    serializeResponseObjXML(sb, obj);
+                    serializeResponseObjXML(out, obj);
                 }
             }
         } else {
             if (result instanceof CreateCmdResponse || result instanceof AsyncJobResponse) {
-                serializeResponseObjFieldsXML(sb, result);
+                serializeResponseObjFieldsXML(out, result);
             } else {
-                serializeResponseObjXML(sb, result);
+                serializeResponseObjXML(out, result);
             }
         }
 
-        sb.append("</").append(result.getResponseName()).append(">");
-        return sb.toString();
+        out.append("</").append(result.getResponseName()).append(">");
     }
 
-    private static void serializeResponseObjXML(StringBuilder sb, ResponseObject obj) {
+    private static void serializeResponseObjXML(Writer out, ResponseObject obj) throws IOException {
         if (!(obj instanceof SuccessResponse) && !(obj instanceof ExceptionResponse)) {
-            sb.append("<").append(obj.getObjectName()).append(">");
+            out.append("<").append(obj.getObjectName()).append(">");
         }
-        serializeResponseObjFieldsXML(sb, obj);
+        serializeResponseObjFieldsXML(out, obj);
         if (!(obj instanceof SuccessResponse) && !(obj instanceof ExceptionResponse)) {
-            sb.append("</").append(obj.getObjectName()).append(">");
+            out.append("</").append(obj.getObjectName()).append(">");
         }
     }
 
@@ -181,25 +262,43 @@ public class ApiResponseSerializer {
         return fields.toArray(new Field[] {});
     }
 
-    private static void serializeResponseObjFieldsXML(StringBuilder sb, ResponseObject obj) {
-        boolean isAsync = false;
-        if (obj instanceof AsyncJobResponse)
-            isAsync = true;
+    /**
+     * @return the non transient fields of clz that have a serialized name,
+     *         looked up once per class.
+     */
+    private static ResponseField[] getResponseFields(Class<?> clz) {
+        ResponseField[] fields = s_responseFields.get(clz);
+        if (fields != null) {
+            return fields;
+        }
 
-        //Field[] fields = obj.getClass().getDeclaredFields();
-        Field[] fields = getFlattenFields(obj.getClass());
-        for (Field field : fields) {
+        List<ResponseField> responseFields = new ArrayList<ResponseField>();
+        for (Field field : getFlattenFields(clz)) {
             if ((field.getModifiers() & Modifier.TRANSIENT) != 0) {
                 continue; // skip transient fields
             }
 
-
             SerializedName serializedName = field.getAnnotation(SerializedName.class);
             if (serializedName == null) {
                 continue; // skip fields w/o serialized name
             }
 
-            Param param = field.getAnnotation(Param.class);
+            field.setAccessible(true);
+            responseFields.add(new ResponseField(field, serializedName.value(), field.getAnnotation(Param.class)));
+        }
+
+        fields = responseFields.toArray(new ResponseField[responseFields.size()]);
+        s_responseFields.putIfAbsent(clz, fields);
+        return fields;
+    }
+
+    private static void serializeResponseObjFieldsXML(Writer out, ResponseObject obj) throws IOException {
+        boolean isAsync = false;
+        if (obj instanceof AsyncJobResponse)
+            isAsync = true;
+
+        for (ResponseField responseField : getResponseFields(obj.getClass())) {
+            Param param = responseField.param;
             if (param != null) {
                 RoleType[] allowedRoles = param.authorized();
                 if (allowedRoles.length > 0) {
@@ -218,10 +317,10 @@ public class ApiResponseSerializer {
                 }
             }
 
-            field.setAccessible(true);
+            String serializedName = responseField.serializedName;
             Object fieldValue = null;
             try {
-                fieldValue = field.get(obj);
+                fieldValue = responseField.field.get(obj);
             } catch (IllegalArgumentException e) {
                 throw new CloudRuntimeException("how illegal is it?", e);
             } catch (IllegalAccessException e) {
@@ -231,11 +330,11 @@ public class ApiResponseSerializer {
                 if (fieldValue instanceof ResponseObject) {
                     ResponseObject subObj = (ResponseObject)fieldValue;
                     if (isAsync) {
-                        sb.append("<jobresult>");
+                        out.append("<jobresult>");
                     }
-                    serializeResponseObjXML(sb, subObj);
+                    serializeResponseObjXML(out, subObj);
                     if (isAsync) {
-                        sb.append("</jobresult>");
+                        out.append("</jobresult>");
                     }
                 } else if (fieldValue instanceof Collection<?>) {
                     Collection<?> subResponseList = (Collection<?>)fieldValue;
@@ -243,10 +342,8 @@ public class ApiResponseSerializer {
                     for (Object value : subResponseList) {
                         if (value instanceof ResponseObject) {
                             ResponseObject subObj = (ResponseObject)value;
-                            if (serializedName != null) {
-                                subObj.setObjectName(serializedName.value());
-                            }
-                            serializeResponseObjXML(sb, subObj);
+                            subObj.setObjectName(serializedName);
+                            serializeResponseObjXML(out, subObj);
                         } else if (value instanceof ExceptionProxyObject) {
                             // Only exception reponses carry a list of
                             // ExceptionProxyObject objects.
@@ -254,30 +351,30 @@ public class ApiResponseSerializer {
                             // If this is the first IdentityProxy field
                             // encountered, put in a uuidList tag.
                             if (!usedUuidList) {
-                                sb.append("<" + serializedName.value() + ">");
+                                out.append("<").append(serializedName).append(">");
                                 usedUuidList = true;
                             }
-                            sb.append("<" + "uuid" + ">" + idProxy.getUuid() + "</" + "uuid" + ">");
+                            out.append("<uuid>").append(idProxy.getUuid()).append("</uuid>");
                             // Append the new descriptive property also.
                             String idFieldName = idProxy.getDescription();
                             if (idFieldName != null) {
-                                sb.append("<" + "uuidProperty" + ">" + idFieldName + "</" + "uuidProperty" + ">");
+                                out.append("<uuidProperty>").append(idFieldName).append("</uuidProperty>");
                             }
                         } else if (value instanceof String) {
-                            sb.append("<").append(serializedName.value()).append(">").append(value).append("</").append(serializedName.value()).append(">");
+                            out.append("<").append(serializedName).append(">").append((String)value).append("</").append(serializedName).append(">");
                         }
                     }
                     if (usedUuidList) {
                         // close the uuidList.
-                        sb.append("</").append(serializedName.value()).append(">");
+                        out.append("</").append(serializedName).append(">");
                     }
                 } else if (fieldValue instanceof Date) {
-                    sb.append("<")
-                        .append(serializedName.value())
+                    out.append("<")
+                        .append(serializedName)
                         .append(">")
                         .append(BaseCmd.getDateString((Date)fieldValue))
                         .append("</")
-                        .append(serializedName.value())
+                        .append(serializedName)
                         .append(">");
                 } else {
                     String resultString = escapeSpecialXmlChars(fieldValue.toString());
@@ -285,7 +382,7 @@ public class ApiResponseSerializer {
                         resultString = encodeParam(resultString);
                     }
 
-                    sb.append("<").append(serializedName.value()).append(">").append(resultString).append("</").append(serializedName.value()).append(">");
+                    out.append("<").append(serializedName).append(">").append(resultString).append("</").append(serializedName).append(">");
                 }
             }
         }
@@ -326,4 +423,15 @@ public class ApiResponseSerializer {
         return value;
     }
 
+    private static class ResponseField {
+        final Field field;
+        final String serializedName;
+        final Param param;
+
+        ResponseField(Field field, String serializedName, Param param) {
+            this.field = field;
+            this.serializedName = serializedName;
+            this.param = param;
+        }
+    }
 }
@@ -17,11 +17,17 @@
 package com.cloud.capacity;
 
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import javax.ejb.Local;
 import javax.inject.Inject;
@@ -29,6 +35,8 @@ import javax.naming.ConfigurationException;
 
 import org.apache.log4j.Logger;
 
+import org.apache.cloudstack.engine.cloud.entity.api.db.VMReservationVO;
+import org.apache.cloudstack.engine.cloud.entity.api.db.dao.VMReservationDao;
 import org.apache.cloudstack.engine.subsystem.api.storage.DataStoreDriver;
 import org.apache.cloudstack.engine.subsystem.api.storage.DataStoreProvider;
 import org.apache.cloudstack.engine.subsystem.api.storage.DataStoreProviderManager;
@@ -39,6 +47,7 @@ import org.apache.cloudstack.framework.config.Configurable;
 import org.apache.cloudstack.framework.config.dao.ConfigurationDao;
 import org.apache.cloudstack.framework.messagebus.MessageBus;
 import org.apache.cloudstack.framework.messagebus.PublishScope;
+import org.apache.cloudstack.managed.context.ManagedContextRunnable;
 import org.apache.cloudstack.storage.datastore.db.StoragePoolVO;
 
 import com.cloud.agent.AgentManager;
@@ -85,9 +94,11 @@ import com.cloud.utils.Pair;
 import com.cloud.utils.component.ManagerBase;
 import com.cloud.utils.concurrency.NamedThreadFactory;
 import com.cloud.utils.db.DB;
+import com.cloud.utils.db.Filter;
 import com.cloud.utils.db.SearchCriteria;
 import com.cloud.utils.db.Transaction;
 import com.cloud.utils.db.TransactionCallbackNoReturn;
+import com.cloud.utils.db.TransactionLegacy;
 import com.cloud.utils.db.TransactionStatus;
 import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.utils.fsm.StateListener;
@@ -146,17 +157,25 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
     @Inject
     ClusterDetailsDao _clusterDetailsDao;
     private int _vmCapacityReleaseInterval;
+    private int _capacityIndexReconcileInterval;
+    // seconds between two checks for capacity held by vms which did not start in time
+    private static final int PLANNED_CAPACITY_RELEASE_INTERVAL = 60;
     private ScheduledExecutorService _executor;
+    protected final HostCapacityIndex _capacityIndex = new HostCapacityIndex();
     long _extraBytesPerVolume = 0;
 
     @Inject
     MessageBus _messageBus;
 
+    @Inject
+    VMReservationDao _reservationDao;
+
     private static final String MESSAGE_RESERVED_CAPACITY_FREED_FLAG = "Message.ReservedCapacityFreed.Flag";
 
     @Override
     public boolean configure(String name, Map<String, Object> params) throws ConfigurationException {
         _vmCapacityReleaseInterval = NumbersUtil.parseInt(_configDao.getValue(Config.CapacitySkipcountingHours.key()), 3600);
+        _capacityIndexReconcileInterval = CapacityIndexReconcileInterval.value();
 
         _executor = Executors.newScheduledThreadPool(1, new NamedThreadFactory("HostCapacity-Checker"));
         VirtualMachine.State.getStateMachine().registerListener(this);
@@ -170,9 +189,112 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
     public boolean start() {
         _resourceMgr.registerResourceEvent(ResourceListener.EVENT_PREPARE_MAINTENANCE_AFTER, this);
         _resourceMgr.registerResourceEvent(ResourceListener.EVENT_CANCEL_MAINTENANCE_AFTER, this);
+        if (_capacityIndexReconcileInterval > 0) {
+            _executor.scheduleWithFixedDelay(new CapacityIndexReconcileTask(), 0, _capacityIndexReconcileInterval, TimeUnit.SECONDS);
+        }
+        _executor.scheduleWithFixedDelay(new PlannedCapacityReleaseTask(), PLANNED_CAPACITY_RELEASE_INTERVAL, PLANNED_CAPACITY_RELEASE_INTERVAL, TimeUnit.SECONDS);
         return true;
     }
 
+    protected class PlannedCapacityReleaseTask extends ManagedContextRunnable {
+        @Override
+        protected void runInContext() {
+            try {
+                Date cutoff = new Date(DateUtil.currentGMTTime().getTime() - PlannedCapacityTimeout.value() * 1000L);
+                for (VMReservationVO reservation : _reservationDao.listHoldingCapacityCreatedBefore(cutoff)) {
+                    s_logger.debug("Releasing the capacity held for vm " + reservation.getVmId() + " which did not start in time");
+                    releasePlannedCapacity(reservation);
+                }
+            } catch (Exception e) {
+                s_logger.warn("Unable to release the capacity held for the vms which did not start in time", e);
+            }
+        }
+    }
+
+    protected class CapacityIndexReconcileTask extends ManagedContextRunnable {
+        @Override
+        protected void runInContext() {
+            try {
+                reconcileCapacityIndex();
+            } catch (Exception e) {
+                s_logger.warn("Unable to reconcile the host capacity index with the database", e);
+            }
+        }
+    }
+
+    /**
+     * Reloads the host capacity index from op_host_capacity and the cluster
+     * overcommit ratios, picking up the changes made outside this manager and
+     * by the other management servers.
+     */
+    protected void reconcileCapacityIndex() {
+        long startVersion = _capacityIndex.beginReconcile();
+
+        SearchCriteria<CapacityVO> sc = _capacityDao.createSearchCriteria();
+        sc.addAnd("capacityType", SearchCriteria.Op.IN, Capacity.CAPACITY_TYPE_CPU, Capacity.CAPACITY_TYPE_MEMORY);
+        List<CapacityVO> rows = _capacityDao.search(sc, null);
+
+        Set<Long> clusterIds = new HashSet<Long>();
+        for (ClusterVO cluster : _clusterDao.listAll()) {
+            clusterIds.add(cluster.getId());
+        }
+        SearchCriteria<ClusterDetailsVO> detailSc = _clusterDetailsDao.createSearchCriteria();
+        detailSc.addAnd("name", SearchCriteria.Op.IN, "cpuOvercommitRatio", "memoryOvercommitRatio");
+        Map<Long, double[]> clusterRatios = new HashMap<Long, double[]>();
+        for (ClusterDetailsVO detail : _clusterDetailsDao.search(detailSc, null)) {
+            if (!clusterIds.contains(detail.getClusterId())) {
+                continue;
+            }
+            double[] ratios = clusterRatios.get(detail.getClusterId());
+            if (ratios == null) {
+                ratios = new double[] {Double.NaN, Double.NaN};
+                clusterRatios.put(detail.getClusterId(), ratios);
+            }
+            try {
+                ratios["cpuOvercommitRatio".equals(detail.getName()) ? 0 : 1] = Double.parseDouble(detail.getValue());
+            } catch (NumberFormatException e) {
+                s_logger.warn("Ignoring invalid " + detail.getName() + " of cluster " + detail.getClusterId() + ": " + detail.getValue());
+            }
+        }
+
+        int drift = _capacityIndex.reconcile(startVersion, rows, clusterRatios);
+        if (drift > 0 && s_logger.isDebugEnabled()) {
+            s_logger.debug("Reconciled the host capacity index with the database, " + drift + " of " + _capacityIndex.size() + " hosts were updated");
+        }
+    }
+
+    private boolean isCapacityIndexLoaded() {
+        return _capacityIndexReconcileInterval > 0 && _capacityIndex.isLoaded();
+    }
+
+    // written once the rows are committed, so that the index never holds capacity another transaction cannot see yet
+    private void updateCapacityIndex(final CapacityVO... capacities) {
+        if (_capacityIndexReconcileInterval <= 0) {
+            return;
+        }
+        TransactionLegacy.currentTxn().registerPostCommitHook(new Runnable() {
+            @Override
+            public void run() {
+                for (CapacityVO capacity : capacities) {
+                    if (capacity != null) {
+                        _capacityIndex.update(capacity);
+                    }
+                }
+            }
+        });
+    }
+
+    private void updateCapacityIndex(long clusterId, String cpuOvercommitRatio, String memoryOvercommitRatio) {
+        if (_capacityIndexReconcileInterval <= 0) {
+            return;
+        }
+        try {
+            _capacityIndex.setClusterRatios(clusterId, Double.parseDouble(cpuOvercommitRatio), Double.parseDouble(memoryOvercommitRatio));
+        } catch (NumberFormatException e) {
+            s_logger.warn("Ignoring invalid overcommit ratios of cluster " + clusterId);
+        }
+    }
+
     @Override
     public boolean stop() {
         _executor.shutdownNow();
@@ -198,6 +320,7 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
             final Long clusterIdFinal = clusterId;
             final long capacityCpuId = capacityCpu.getId();
             final long capacityMemoryId = capacityMemory.getId();
+            final CapacityVO[] updated = new CapacityVO[2];
             Transaction.execute(new TransactionCallbackNoReturn() {
                 @Override
                 public void doInTransactionWithoutResult(TransactionStatus status) {
@@ -257,8 +380,11 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
 
                     _capacityDao.update(capacityCpu.getId(), capacityCpu);
                     _capacityDao.update(capacityMemory.getId(), capacityMemory);
+                    updated[0] = capacityCpu;
+                    updated[1] = capacityMemory;
                 }
             });
+            updateCapacityIndex(updated);
 
             return true;
         } catch (Exception e) {
@@ -270,8 +396,17 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
     @DB
     @Override
     public void allocateVmCapacity(VirtualMachine vm, final boolean fromLastHost) {
-
+        final long vmId = vm.getId();
         final long hostId = vm.getHostId();
+
+        // the vm is counted as used capacity from now on, the capacity held for it on this host is turned
+        // into used capacity below and the capacity held on the other hosts is given back
+        for (VMReservationVO reservation : _reservationDao.listHoldingCapacityByVmId(vmId)) {
+            if (reservation.getHostId() == null || reservation.getHostId() != hostId) {
+                releasePlannedCapacity(reservation);
+            }
+        }
+
         HostVO host = _hostDao.findById(hostId);
         final long clusterId = host.getClusterId();
         final float cpuOvercommitRatio = Float.parseFloat(_clusterDetailsDao.findDetail(clusterId, "cpuOvercommitRatio").getValue());
@@ -283,6 +418,7 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
         CapacityVO capacityMem = _capacityDao.findByHostIdType(hostId, Capacity.CAPACITY_TYPE_MEMORY);
 
         if (capacityCpu == null || capacityMem == null || svo == null) {
+            releasePlannedCapacity(vmId);
             return;
         }
 
@@ -292,12 +428,25 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
         try {
             final long capacityCpuId = capacityCpu.getId();
             final long capacityMemId = capacityMem.getId();
+            final CapacityVO[] updated = new CapacityVO[2];
 
             Transaction.execute(new TransactionCallbackNoReturn() {
                 @Override
                 public void doInTransactionWithoutResult(TransactionStatus status) {
+                    // reservation rows are locked ahead of the capacity rows, as releasePlannedCapacity() does
+                    List<VMReservationVO> holds = new ArrayList<VMReservationVO>();
+                    for (VMReservationVO reservation : _reservationDao.listHoldingCapacityByVmId(vmId)) {
+                        VMReservationVO locked = _reservationDao.lockRow(reservation.getId(), true);
+                        if (locked != null && locked.getHostId() != null && locked.getHostId() == hostId) {
+                            holds.add(locked);
+                        }
+                    }
+
                     CapacityVO capacityCpu = _capacityDao.lockRow(capacityCpuId, true);
                     CapacityVO capacityMem = _capacityDao.lockRow(capacityMemId, true);
+                    for (VMReservationVO hold : holds) {
+                        releaseHold(hold, capacityCpu, capacityMem);
+                    }
 
                     long usedCpu = capacityCpu.getUsedCapacity();
                     long usedMem = capacityMem.getUsedCapacity();
@@ -353,8 +502,11 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
 
                     _capacityDao.update(capacityCpu.getId(), capacityCpu);
                     _capacityDao.update(capacityMem.getId(), capacityMem);
+                    updated[0] = capacityCpu;
+                    updated[1] = capacityMem;
                 }
             });
+            updateCapacityIndex(updated);
         } catch (Exception e) {
             s_logger.error("Exception allocating VM capacity", e);
             return;
@@ -363,9 +515,14 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
 
     @Override
     public boolean checkIfHostHasCpuCapability(long hostId, Integer cpuNum, Integer cpuSpeed) {
+        return checkIfHostHasCpuCapability(_hostDao.findById(hostId), cpuNum, cpuSpeed);
+    }
+
+    @Override
+    public boolean checkIfHostHasCpuCapability(Host host, Integer cpuNum, Integer cpuSpeed) {
+        long hostId = host.getId();
 
         // Check host can support the Cpu Number and Speed.
-        Host host = _hostDao.findById(hostId);
         boolean isCpuNumGood = host.getCpus().intValue() >= cpuNum;
         boolean isCpuSpeedGood = host.getSpeed().intValue() >= cpuSpeed;
         if (isCpuNumGood && isCpuSpeedGood) {
@@ -383,6 +540,32 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
         }
     }
 
+    @Override
+    public boolean checkIfHostMayHaveCapacity(long hostId, Integer cpu, long ram, float cpuOvercommitRatio, float memoryOvercommitRatio,
+        boolean considerReservedCapacity) {
+        HostCapacityIndex.Usage capacityCpu = null;
+        HostCapacityIndex.Usage capacityMem = null;
+        if (isCapacityIndexLoaded()) {
+            capacityCpu = _capacityIndex.getUsage(hostId, Capacity.CAPACITY_TYPE_CPU);
+            capacityMem = _capacityIndex.getUsage(hostId, Capacity.CAPACITY_TYPE_MEMORY);
+        }
+        if (capacityCpu == null || capacityMem == null) {
+            return checkIfHostHasCapacity(hostId, cpu, ram, false, cpuOvercommitRatio, memoryOvercommitRatio, considerReservedCapacity);
+        }
+
+        long reservedCpu = considerReservedCapacity ? capacityCpu.getReserved() : 0;
+        long reservedMem = considerReservedCapacity ? capacityMem.getReserved() : 0;
+        long totalCpu = (long)(capacityCpu.getTotal() * cpuOvercommitRatio);
+        long totalMem = (long)(capacityMem.getTotal() * memoryOvercommitRatio);
+        boolean mayHaveCapacity = capacityCpu.getUsed() + reservedCpu + cpu <= totalCpu && capacityMem.getUsed() + reservedMem + ram <= totalMem;
+        if (!mayHaveCapacity && s_logger.isDebugEnabled()) {
+            s_logger.debug("Host: " + hostId + " lacks capacity according to the capacity index, used CPU: " + capacityCpu.getUsed() + ", reserved CPU: " +
+                reservedCpu + ", total CPU: " + totalCpu + ", requested CPU: " + cpu + ", used RAM: " + capacityMem.getUsed() + ", reserved RAM: " + reservedMem +
+                ", total RAM: " + totalMem + ", requested RAM: " + ram);
+        }
+        return mayHaveCapacity;
+    }
+
     @Override
     public boolean checkIfHostHasCapacity(long hostId, Integer cpu, long ram, boolean checkFromReservedCapacity, float cpuOvercommitRatio, float memoryOvercommitRatio,
         boolean considerReservedCapacity) {
@@ -393,6 +576,7 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
                 " , cpuOverprovisioningFactor: " + cpuOvercommitRatio);
         }
 
+        // the capacity index only ranks the candidates, the decision is made on the rows themselves
         CapacityVO capacityCpu = _capacityDao.findByHostIdType(hostId, Capacity.CAPACITY_TYPE_CPU);
         CapacityVO capacityMem = _capacityDao.findByHostIdType(hostId, Capacity.CAPACITY_TYPE_MEMORY);
 
@@ -597,6 +781,7 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
         ClusterDetailsVO clusterDetailRam = _clusterDetailsDao.findDetail(cluster.getId(), "memoryOvercommitRatio");
         Float clusterCpuOvercommitRatio = Float.parseFloat(clusterDetailCpu.getValue());
         Float clusterRamOvercommitRatio = Float.parseFloat(clusterDetailRam.getValue());
+        updateCapacityIndex(cluster.getId(), clusterDetailCpu.getValue(), clusterDetailRam.getValue());
         Float cpuOvercommitRatio = 1f;
         Float ramOvercommitRatio = 1f;
         for (VMInstanceVO vm : vms) {
@@ -656,6 +841,12 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
             }
         }
 
+        // capacity held for the vms planned on the host but not started yet
+        for (VMReservationVO reservation : _reservationDao.listHoldingCapacityByHostId(host.getId())) {
+            reservedCpu += reservation.getReservedCpu();
+            reservedMemory += reservation.getReservedRam();
+        }
+
         CapacityVO cpuCap = _capacityDao.findByHostIdType(host.getId(), Capacity.CAPACITY_TYPE_CPU);
         CapacityVO memCap = _capacityDao.findByHostIdType(host.getId(), Capacity.CAPACITY_TYPE_MEMORY);
         if (cpuCap != null && memCap != null) {
@@ -715,6 +906,7 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
             try {
                 _capacityDao.update(cpuCap.getId(), cpuCap);
                 _capacityDao.update(memCap.getId(), memCap);
+                updateCapacityIndex(cpuCap, memCap);
             } catch (Exception e) {
                 s_logger.error("Caught exception while updating cpu/memory capacity for the host " + host.getId(), e);
             }
@@ -723,6 +915,7 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
             final long reservedMemoryFinal = reservedMemory;
             final long usedCpuFinal = usedCpu;
             final long reservedCpuFinal = reservedCpu;
+            final CapacityVO[] created = new CapacityVO[2];
             Transaction.execute(new TransactionCallbackNoReturn() {
                 @Override
                 public void doInTransactionWithoutResult(TransactionStatus status) {
@@ -738,16 +931,17 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
                             capacity.setCapacityState(capacityState);
                         }
                     }
-                    _capacityDao.persist(capacity);
+                    created[0] = _capacityDao.persist(capacity);
 
                     capacity =
                         new CapacityVO(host.getId(), host.getDataCenterId(), host.getPodId(), host.getClusterId(), usedCpuFinal, host.getCpus().longValue() *
                             host.getSpeed().longValue(), Capacity.CAPACITY_TYPE_CPU);
                     capacity.setReservedCapacity(reservedCpuFinal);
                     capacity.setCapacityState(capacityState);
-                    _capacityDao.persist(capacity);
+                    created[1] = _capacityDao.persist(capacity);
                 }
             });
+            updateCapacityIndex(created);
 
         }
 
@@ -801,6 +995,7 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
             }
         } else if (oldState == State.Stopped) {
             if (event == Event.DestroyRequested || event == Event.ExpungeOperation) {
+                releasePlannedCapacity(vm.getId());
                 releaseVmCapacity(vm, true, false, vm.getLastHostId());
             } else if (event == Event.AgentReportMigrated) {
                 releaseVmCapacity(vm, false, false, oldHostId);
@@ -1030,6 +1225,7 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
     public void processPrepareMaintenaceEventAfter(Long hostId) {
         _capacityDao.removeBy(Capacity.CAPACITY_TYPE_MEMORY, null, null, null, hostId);
         _capacityDao.removeBy(Capacity.CAPACITY_TYPE_CPU, null, null, null, hostId);
+        _capacityIndex.removeHost(hostId);
     }
 
     @Override
@@ -1054,6 +1250,128 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
         return false;
     }
 
+    @Override
+    public List<Long> listClustersByHostCapacities(long id, int requiredCpu, long requiredRam, boolean isZone) {
+        return isCapacityIndexLoaded() ? _capacityIndex.listClustersByHostCapacities(id, requiredCpu, requiredRam, isZone) : null;
+    }
+
+    @Override
+    public Pair<List<Long>, Map<Long, Double>> orderClustersByAggregateCapacity(long id, short capacityType, boolean isZone) {
+        return isCapacityIndexLoaded() ? _capacityIndex.orderClustersByAggregateCapacity(id, capacityType, isZone) : null;
+    }
+
+    @Override
+    public List<Long> listPodsByHostCapacities(long zoneId, int requiredCpu, long requiredRam) {
+        return isCapacityIndexLoaded() ? _capacityIndex.listPodsByHostCapacities(zoneId, requiredCpu, requiredRam) : null;
+    }
+
+    @Override
+    public Pair<List<Long>, Map<Long, Double>> orderPodsByAggregateCapacity(long zoneId, short capacityType) {
+        return isCapacityIndexLoaded() ? _capacityIndex.orderPodsByAggregateCapacity(zoneId, capacityType) : null;
+    }
+
+    @Override
+    public void lockHostCapacity(Collection<Long> hostIds) {
+        if (hostIds.isEmpty()) {
+            return;
+        }
+        SearchCriteria<CapacityVO> sc = _capacityDao.createSearchCriteria();
+        sc.addAnd("hostOrPoolId", SearchCriteria.Op.IN, hostIds.toArray(new Object[hostIds.size()]));
+        sc.addAnd("capacityType", SearchCriteria.Op.IN, Capacity.CAPACITY_TYPE_CPU, Capacity.CAPACITY_TYPE_MEMORY);
+        _capacityDao.lockRows(sc, new Filter(CapacityVO.class, "id", true, null, null), true);
+    }
+
+    @Override
+    public boolean holdPlannedCapacity(long hostId, long cpu, long ram) {
+        CapacityVO capacityCpu = _capacityDao.findByHostIdType(hostId, Capacity.CAPACITY_TYPE_CPU);
+        CapacityVO capacityMem = _capacityDao.findByHostIdType(hostId, Capacity.CAPACITY_TYPE_MEMORY);
+        HostVO host = _hostDao.findById(hostId);
+        if (capacityCpu == null || capacityMem == null || host == null) {
+            return false;
+        }
+        float cpuOvercommitRatio = Float.parseFloat(_clusterDetailsDao.findDetail(host.getClusterId(), "cpuOvercommitRatio").getValue());
+        float memoryOvercommitRatio = Float.parseFloat(_clusterDetailsDao.findDetail(host.getClusterId(), "memoryOvercommitRatio").getValue());
+
+        capacityCpu = _capacityDao.lockRow(capacityCpu.getId(), true);
+        capacityMem = _capacityDao.lockRow(capacityMem.getId(), true);
+        long totalCpu = (long)(capacityCpu.getTotalCapacity() * cpuOvercommitRatio);
+        long totalMem = (long)(capacityMem.getTotalCapacity() * memoryOvercommitRatio);
+        if (capacityCpu.getUsedCapacity() + capacityCpu.getReservedCapacity() + cpu > totalCpu ||
+            capacityMem.getUsedCapacity() + capacityMem.getReservedCapacity() + ram > totalMem) {
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Unable to hold CPU: " + cpu + " and RAM: " + ram + " on host: " + hostId + ", used CPU: " + capacityCpu.getUsedCapacity() +
+                    ", reserved CPU: " + capacityCpu.getReservedCapacity() + ", total CPU: " + totalCpu + ", used RAM: " + capacityMem.getUsedCapacity() +
+                    ", reserved RAM: " + capacityMem.getReservedCapacity() + ", total RAM: " + totalMem);
+            }
+            return false;
+        }
+
+        capacityCpu.setReservedCapacity(capacityCpu.getReservedCapacity() + cpu);
+        capacityMem.setReservedCapacity(capacityMem.getReservedCapacity() + ram);
+        _capacityDao.update(capacityCpu.getId(), capacityCpu);
+        _capacityDao.update(capacityMem.getId(), capacityMem);
+        updateCapacityIndex(capacityCpu, capacityMem);
+        return true;
+    }
+
+    @Override
+    public void releasePlannedCapacity(long vmId) {
+        for (VMReservationVO reservation : _reservationDao.listHoldingCapacityByVmId(vmId)) {
+            releasePlannedCapacity(reservation);
+        }
+    }
+
+    @DB
+    private void releasePlannedCapacity(final VMReservationVO reservation) {
+        final CapacityVO capacityCpu = _capacityDao.findByHostIdType(reservation.getHostId(), Capacity.CAPACITY_TYPE_CPU);
+        final CapacityVO capacityMem = _capacityDao.findByHostIdType(reservation.getHostId(), Capacity.CAPACITY_TYPE_MEMORY);
+
+        Transaction.execute(new TransactionCallbackNoReturn() {
+            @Override
+            public void doInTransactionWithoutResult(TransactionStatus status) {
+                // the reservation row decides who gives the capacity back when several management servers release it
+                VMReservationVO locked = _reservationDao.lockRow(reservation.getId(), true);
+                if (locked == null || (locked.getReservedCpu() == 0 && locked.getReservedRam() == 0)) {
+                    return;
+                }
+
+                if (capacityCpu != null && capacityMem != null) {
+                    CapacityVO lockedCpu = _capacityDao.lockRow(capacityCpu.getId(), true);
+                    CapacityVO lockedMem = _capacityDao.lockRow(capacityMem.getId(), true);
+                    releaseHold(locked, lockedCpu, lockedMem);
+                    updateCapacityIndex(lockedCpu, lockedMem);
+                } else {
+                    releaseHold(locked, null, null);
+                }
+            }
+        });
+    }
+
+    /**
+     * Gives the capacity held by a reservation back to the capacity rows of its host.
+     * @param reservation locked reservation row.
+     * @param capacityCpu locked cpu capacity row of the host, null if it has none.
+     * @param capacityMem locked memory capacity row of the host, null if it has none.
+     */
+    private void releaseHold(VMReservationVO reservation, CapacityVO capacityCpu, CapacityVO capacityMem) {
+        if (reservation.getReservedCpu() == 0 && reservation.getReservedRam() == 0) {
+            return;
+        }
+        if (capacityCpu != null && capacityMem != null) {
+            capacityCpu.setReservedCapacity(Math.max(capacityCpu.getReservedCapacity() - reservation.getReservedCpu(), 0));
+            capacityMem.setReservedCapacity(Math.max(capacityMem.getReservedCapacity() - reservation.getReservedRam(), 0));
+            _capacityDao.update(capacityCpu.getId(), capacityCpu);
+            _capacityDao.update(capacityMem.getId(), capacityMem);
+        }
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Released CPU: " + reservation.getReservedCpu() + " and RAM: " + reservation.getReservedRam() + " held for vm " +
+                reservation.getVmId() + " on host: " + reservation.getHostId());
+        }
+
+        reservation.setReservedCapacity(0, 0);
+        _reservationDao.update(reservation.getId(), reservation);
+    }
+
     @Override
     public String getConfigComponentName() {
         return CapacityManager.class.getSimpleName();
@@ -1062,6 +1380,6 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
     @Override
     public ConfigKey<?>[] getConfigKeys() {
         return new ConfigKey<?>[] {CpuOverprovisioningFactor, MemOverprovisioningFactor, StorageCapacityDisableThreshold, StorageOverprovisioningFactor,
-            StorageAllocatedCapacityDisableThreshold};
+            StorageAllocatedCapacityDisableThreshold, CapacityIndexReconcileInterval, PlannedCapacityTimeout};
     }
 }
@@ -0,0 +1,386 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.capacity;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.cloud.utils.Pair;
+
+/**
+ * HostCapacityIndex keeps the cpu and memory rows of op_host_capacity, and the
+ * overcommit ratios of their clusters, in memory so that the allocators and
+ * planners can look up host, cluster and pod capacity without going to the
+ * database.  The capacity manager writes every change it makes to the
+ * database through to the index, and periodically reconciles the index with
+ * the database, which stays the source of truth and picks up the changes made
+ * by other management servers.
+ *
+ * The cluster and pod queries return the same answers as their SQL
+ * counterparts in CapacityDaoImpl.  The index may lag the database by up to
+ * one reconciliation, so it is only used to screen and order the candidates;
+ * whether the host finally chosen has room is checked against the database.
+ */
+public class HostCapacityIndex {
+
+    public static class Usage {
+        private final long total;
+        private final long used;
+        private final long reserved;
+
+        public Usage(long total, long used, long reserved) {
+            this.total = total;
+            this.used = used;
+            this.reserved = reserved;
+        }
+
+        public long getTotal() {
+            return total;
+        }
+
+        public long getUsed() {
+            return used;
+        }
+
+        public long getReserved() {
+            return reserved;
+        }
+    }
+
+    /**
+     * Immutable snapshot of the capacity of a host.  A snapshot without cpu
+     * and memory usage marks a host removed since the last reconciliation.
+     */
+    protected static class HostCapacity {
+        final long hostId;
+        final long dataCenterId;
+        final Long podId;
+        final Long clusterId;
+        final Usage cpu;
+        final Usage memory;
+        final long version;
+
+        HostCapacity(long hostId, long dataCenterId, Long podId, Long clusterId, Usage cpu, Usage memory, long version) {
+            this.hostId = hostId;
+            this.dataCenterId = dataCenterId;
+            this.podId = podId;
+            this.clusterId = clusterId;
+            this.cpu = cpu;
+            this.memory = memory;
+            this.version = version;
+        }
+
+        boolean isComplete() {
+            return cpu != null && memory != null;
+        }
+
+        Usage getUsage(short capacityType) {
+            return capacityType == Capacity.CAPACITY_TYPE_CPU ? cpu : memory;
+        }
+    }
+
+    private final ConcurrentHashMap<Long, HostCapacity> _hosts = new ConcurrentHashMap<Long, HostCapacity>();
+    // cpu and memory overcommit ratio of each cluster
+    private final ConcurrentHashMap<Long, double[]> _clusterRatios = new ConcurrentHashMap<Long, double[]>();
+    private final AtomicLong _version = new AtomicLong();
+    private volatile boolean _loaded = false;
+
+    /**
+     * @return true once the index has been reconciled with the database.
+     */
+    public boolean isLoaded() {
+        return _loaded;
+    }
+
+    public void invalidate() {
+        _loaded = false;
+    }
+
+    public int size() {
+        return _hosts.size();
+    }
+
+    private static boolean isHostCapacity(CapacityVO capacity) {
+        return (capacity.getCapacityType() == Capacity.CAPACITY_TYPE_CPU || capacity.getCapacityType() == Capacity.CAPACITY_TYPE_MEMORY) &&
+            capacity.getHostOrPoolId() != null && capacity.getDataCenterId() != null;
+    }
+
+    /**
+     * Writes a cpu or memory row of op_host_capacity through to the index.
+     */
+    public synchronized void update(CapacityVO capacity) {
+        if (!isHostCapacity(capacity)) {
+            return;
+        }
+
+        long hostId = capacity.getHostOrPoolId();
+        Usage usage = new Usage(capacity.getTotalCapacity(), capacity.getUsedCapacity(), capacity.getReservedCapacity());
+        HostCapacity existing = _hosts.get(hostId);
+        Usage cpu = existing != null ? existing.cpu : null;
+        Usage memory = existing != null ? existing.memory : null;
+        if (capacity.getCapacityType() == Capacity.CAPACITY_TYPE_CPU) {
+            cpu = usage;
+        } else {
+            memory = usage;
+        }
+        _hosts.put(hostId, new HostCapacity(hostId, capacity.getDataCenterId(), capacity.getPodId(), capacity.getClusterId(), cpu, memory, _version.incrementAndGet()));
+    }
+
+    public synchronized void removeHost(long hostId) {
+        HostCapacity existing = _hosts.get(hostId);
+        if (existing != null) {
+            _hosts.put(hostId, new HostCapacity(hostId, existing.dataCenterId, existing.podId, existing.clusterId, null, null, _version.incrementAndGet()));
+        }
+    }
+
+    /**
+     * @return the version to pass to reconcile() for the rows read from the database after this call.
+     */
+    public long beginReconcile() {
+        return _version.get();
+    }
+
+    /**
+     * Replaces the content of the index with the rows read from the database,
+     * except for the hosts written through after beginReconcile() returned
+     * startVersion, as the rows read may predate those writes.
+     *
+     * @param rows cpu and memory rows of op_host_capacity
+     * @param clusterRatios cpu and memory overcommit ratio of every cluster
+     * @return number of hosts whose capacity differed from the database.
+     */
+    public synchronized int reconcile(long startVersion, List<CapacityVO> rows, Map<Long, double[]> clusterRatios) {
+        Map<Long, HostCapacity> loaded = new HashMap<Long, HostCapacity>();
+        for (CapacityVO row : rows) {
+            if (!isHostCapacity(row)) {
+                continue;
+            }
+            long hostId = row.getHostOrPoolId();
+            HostCapacity host = loaded.get(hostId);
+            Usage usage = new Usage(row.getTotalCapacity(), row.getUsedCapacity(), row.getReservedCapacity());
+            Usage cpu = host != null ? host.cpu : null;
+            Usage memory = host != null ? host.memory : null;
+            if (row.getCapacityType() == Capacity.CAPACITY_TYPE_CPU) {
+                cpu = usage;
+            } else {
+                memory = usage;
+            }
+            loaded.put(hostId, new HostCapacity(hostId, row.getDataCenterId(), row.getPodId(), row.getClusterId(), cpu, memory, startVersion));
+        }
+
+        int drift = 0;
+        for (HostCapacity host : loaded.values()) {
+            HostCapacity existing = _hosts.get(host.hostId);
+            if (existing != null && existing.version > startVersion) {
+                continue;
+            }
+            if (existing == null || !isSame(existing, host)) {
+                drift++;
+            }
+            _hosts.put(host.hostId, host);
+        }
+
+        Iterator<HostCapacity> it = _hosts.values().iterator();
+        while (it.hasNext()) {
+            HostCapacity host = it.next();
+            if (!loaded.containsKey(host.hostId) && host.version <= startVersion) {
+                if (host.isComplete()) {
+                    drift++;
+                }
+                it.remove();
+            }
+        }
+
+        _clusterRatios.keySet().retainAll(clusterRatios.keySet());
+        _clusterRatios.putAll(clusterRatios);
+        _loaded = true;
+        return drift;
+    }
+
+    private static boolean isSame(HostCapacity a, HostCapacity b) {
+        return isSame(a.cpu, b.cpu) && isSame(a.memory, b.memory) && a.dataCenterId == b.dataCenterId && equals(a.podId, b.podId) && equals(a.clusterId, b.clusterId);
+    }
+
+    private static boolean isSame(Usage a, Usage b) {
+        if (a == null || b == null) {
+            return a == b;
+        }
+        return a.total == b.total && a.used == b.used && a.reserved == b.reserved;
+    }
+
+    private static boolean equals(Long a, Long b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    public void setClusterRatios(long clusterId, double cpuOvercommitRatio, double memoryOvercommitRatio) {
+        _clusterRatios.put(clusterId, new double[] {cpuOvercommitRatio, memoryOvercommitRatio});
+    }
+
+    /**
+     * @return the cpu and memory overcommit ratio of the cluster, or null if not known.
+     */
+    public double[] getClusterRatios(long clusterId) {
+        return _clusterRatios.get(clusterId);
+    }
+
+    /**
+     * @return the cpu or memory usage of the host, or null if not known.
+     */
+    public Usage getUsage(long hostId, short capacityType) {
+        HostCapacity host = _hosts.get(hostId);
+        return host != null && host.isComplete() ? host.getUsage(capacityType) : null;
+    }
+
+    private double getRatio(HostCapacity host, short capacityType) {
+        double[] ratios = host.clusterId != null ? _clusterRatios.get(host.clusterId) : null;
+        if (ratios == null) {
+            return Double.NaN;
+        }
+        return capacityType == Capacity.CAPACITY_TYPE_CPU ? ratios[0] : ratios[1];
+    }
+
+    private boolean hasFreeCapacity(HostCapacity host, short capacityType, long required) {
+        double ratio = getRatio(host, capacityType);
+        if (Double.isNaN(ratio)) {
+            return false;
+        }
+        Usage usage = host.getUsage(capacityType);
+        // same expression as the SQL queries, which add the reserved capacity to the free capacity
+        return usage.total * ratio - usage.used + usage.reserved >= required;
+    }
+
+    /**
+     * @see com.cloud.capacity.dao.CapacityDao#listClustersInZoneOrPodByHostCapacities
+     */
+    public List<Long> listClustersByHostCapacities(long id, int requiredCpu, long requiredRam, boolean isZone) {
+        Set<Long> withCpu = new HashSet<Long>();
+        Set<Long> withRam = new HashSet<Long>();
+        for (HostCapacity host : _hosts.values()) {
+            if (!host.isComplete() || host.clusterId == null || !isIn(host, id, isZone)) {
+                continue;
+            }
+            if (hasFreeCapacity(host, Capacity.CAPACITY_TYPE_CPU, requiredCpu)) {
+                withCpu.add(host.clusterId);
+            }
+            if (hasFreeCapacity(host, Capacity.CAPACITY_TYPE_MEMORY, requiredRam)) {
+                withRam.add(host.clusterId);
+            }
+        }
+        withCpu.retainAll(withRam);
+        return new ArrayList<Long>(withCpu);
+    }
+
+    /**
+     * @see com.cloud.capacity.dao.CapacityDao#listPodsByHostCapacities
+     */
+    public List<Long> listPodsByHostCapacities(long zoneId, int requiredCpu, long requiredRam) {
+        Set<Long> withCpu = new HashSet<Long>();
+        Set<Long> withRam = new HashSet<Long>();
+        for (HostCapacity host : _hosts.values()) {
+            if (!host.isComplete() || host.podId == null || host.dataCenterId != zoneId) {
+                continue;
+            }
+            if (hasFreeCapacity(host, Capacity.CAPACITY_TYPE_CPU, requiredCpu)) {
+                withCpu.add(host.podId);
+            }
+            if (hasFreeCapacity(host, Capacity.CAPACITY_TYPE_MEMORY, requiredRam)) {
+                withRam.add(host.podId);
+            }
+        }
+        withCpu.retainAll(withRam);
+        return new ArrayList<Long>(withCpu);
+    }
+
+    /**
+     * @see com.cloud.capacity.dao.CapacityDao#orderClustersByAggregateCapacity
+     * @return null for capacity types other than cpu and memory.
+     */
+    public Pair<List<Long>, Map<Long, Double>> orderClustersByAggregateCapacity(long id, short capacityType, boolean isZone) {
+        if (capacityType != Capacity.CAPACITY_TYPE_CPU && capacityType != Capacity.CAPACITY_TYPE_MEMORY) {
+            return null;
+        }
+        Map<Long, double[]> sums = new HashMap<Long, double[]>();
+        for (HostCapacity host : _hosts.values()) {
+            if (host.isComplete() && host.clusterId != null && isIn(host, id, isZone)) {
+                addToSum(sums, host.clusterId, host, capacityType);
+            }
+        }
+        return orderBySums(sums);
+    }
+
+    /**
+     * @see com.cloud.capacity.dao.CapacityDao#orderPodsByAggregateCapacity
+     * @return null for capacity types other than cpu and memory.
+     */
+    public Pair<List<Long>, Map<Long, Double>> orderPodsByAggregateCapacity(long zoneId, short capacityType) {
+        if (capacityType != Capacity.CAPACITY_TYPE_CPU && capacityType != Capacity.CAPACITY_TYPE_MEMORY) {
+            return null;
+        }
+        Map<Long, double[]> sums = new HashMap<Long, double[]>();
+        for (HostCapacity host : _hosts.values()) {
+            if (host.isComplete() && host.podId != null && host.dataCenterId == zoneId) {
+                addToSum(sums, host.podId, host, capacityType);
+            }
+        }
+        return orderBySums(sums);
+    }
+
+    private static boolean isIn(HostCapacity host, long id, boolean isZone) {
+        return isZone ? host.dataCenterId == id : host.podId != null && host.podId == id;
+    }
+
+    private void addToSum(Map<Long, double[]> sums, Long key, HostCapacity host, short capacityType) {
+        double ratio = getRatio(host, capacityType);
+        if (Double.isNaN(ratio)) {
+            return;
+        }
+        Usage usage = host.getUsage(capacityType);
+        double[] sum = sums.get(key);
+        if (sum == null) {
+            sum = new double[2];
+            sums.put(key, sum);
+        }
+        sum[0] += usage.used + usage.reserved;
+        sum[1] += usage.total * ratio;
+    }
+
+    private static Pair<List<Long>, Map<Long, Double>> orderBySums(Map<Long, double[]> sums) {
+        final Map<Long, Double> capacityMap = new HashMap<Long, Double>();
+        for (Map.Entry<Long, double[]> entry : sums.entrySet()) {
+            double[] sum = entry.getValue();
+            capacityMap.put(entry.getKey(), sum[1] == 0 ? 0 : sum[0] / sum[1]);
+        }
+        List<Long> ordered = new ArrayList<Long>(capacityMap.keySet());
+        Collections.sort(ordered, new Comparator<Long>() {
+            @Override
+            public int compare(Long a, Long b) {
+                int result = Double.compare(capacityMap.get(a), capacityMap.get(b));
+                return result != 0 ? result : a.compareTo(b);
+            }
+        });
+        return new Pair<List<Long>, Map<Long, Double>>(ordered, capacityMap);
+    }
+}
@@ -18,6 +18,7 @@ package com.cloud.deploy;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -268,20 +269,7 @@ public class DeploymentPlanningManagerImpl extends ManagerBase implements Deploy
 
         ServiceOffering offering = vmProfile.getServiceOffering();
         if(planner == null){
-            String plannerName = offering.getDeploymentPlanner();
-            if (plannerName == null) {
-                if (vm.getHypervisorType() == HypervisorType.BareMetal) {
-                    plannerName = "BareMetalPlanner";
-                } else {
-                    plannerName = _configDao.getValue(Config.VmDeploymentPlanner.key());
-                }
-            }
-            for (DeploymentPlanner plannerInList : _planners) {
-                if (plannerName.equals(plannerInList.getName())) {
-                    planner = plannerInList;
-                    break;
-                }
-            }
+            planner = findPlanner(vmProfile);
         }
 
         int cpu_requested = offering.getCpu() * offering.getSpeed();
@@ -856,10 +844,12 @@ public class DeploymentPlanningManagerImpl extends ManagerBase implements Deploy
                     continue;
                 } else {
                     // delete reservation
+                    _capacityMgr.releasePlannedCapacity(reserv.getVmId());
                     _reservationDao.remove(reserv.getId());
                 }
             } else {
                 // delete reservation
+                _capacityMgr.releasePlannedCapacity(reserv.getVmId());
                 _reservationDao.remove(reserv.getId());
             }
         }
@@ -907,7 +897,7 @@ public class DeploymentPlanningManagerImpl extends ManagerBase implements Deploy
 
                 // choose the potential host and pool for the VM
                 if (!suitableVolumeStoragePools.isEmpty()) {
-                    Pair<Host, Map<Volume, StoragePool>> potentialResources = findPotentialDeploymentResources(
+                    Pair<Host, Map<Volume, StoragePool>> potentialResources = findPotentialDeploymentResources(vmProfile,
                         suitableHosts, suitableVolumeStoragePools, avoid, resourceUsageRequired,
                         readyAndReusedVolumes);
 
@@ -1036,6 +1026,16 @@ public class DeploymentPlanningManagerImpl extends ManagerBase implements Deploy
 
     protected Pair<Host, Map<Volume, StoragePool>> findPotentialDeploymentResources(List<Host> suitableHosts, Map<Volume, List<StoragePool>> suitableVolumeStoragePools,
         ExcludeList avoid, DeploymentPlanner.PlannerResourceUsage resourceUsageRequired, List<Volume> readyAndReusedVolumes) {
+        return findPotentialDeploymentResources(null, suitableHosts, suitableVolumeStoragePools, avoid, resourceUsageRequired, readyAndReusedVolumes);
+    }
+
+    /**
+     * @param vmProfile vm to check the capacity of the host found for against the database, null if the
+     * caller checked the capacity of the hosts already.
+     */
+    protected Pair<Host, Map<Volume, StoragePool>> findPotentialDeploymentResources(VirtualMachineProfile vmProfile, List<Host> suitableHosts,
+        Map<Volume, List<StoragePool>> suitableVolumeStoragePools, ExcludeList avoid, DeploymentPlanner.PlannerResourceUsage resourceUsageRequired,
+        List<Volume> readyAndReusedVolumes) {
         s_logger.debug("Trying to find a potenial host and associated storage pools from the suitable host/pool lists for this VM");
 
         boolean hostCanAccessPool = false;
@@ -1091,7 +1091,8 @@ public class DeploymentPlanningManagerImpl extends ManagerBase implements Deploy
                     break;
                 }
             }
-            if (hostCanAccessPool && haveEnoughSpace && checkIfHostFitsPlannerUsage(potentialHost.getId(), resourceUsageRequired)) {
+            if (hostCanAccessPool && haveEnoughSpace && checkIfHostFitsPlannerUsage(potentialHost.getId(), resourceUsageRequired) &&
+                (vmProfile == null || checkIfHostHasCapacity(vmProfile, potentialHost))) {
                 s_logger.debug("Found a potential host " + "id: " + potentialHost.getId() + " name: " + potentialHost.getName() +
                     " and associated storage pools for this VM");
                 return new Pair<Host, Map<Volume, StoragePool>>(potentialHost, storage);
@@ -1103,6 +1104,18 @@ public class DeploymentPlanningManagerImpl extends ManagerBase implements Deploy
         return null;
     }
 
+    /**
+     * The host allocators screen the hosts with the capacity index, which may lag the database,
+     * so the host chosen is checked against its capacity rows.
+     */
+    private boolean checkIfHostHasCapacity(VirtualMachineProfile vmProfile, Host host) {
+        ServiceOffering offering = vmProfile.getServiceOffering();
+        ClusterDetailsVO clusterDetailsCpu = _clusterDetailsDao.findDetail(host.getClusterId(), "cpuOvercommitRatio");
+        ClusterDetailsVO clusterDetailsRam = _clusterDetailsDao.findDetail(host.getClusterId(), "memoryOvercommitRatio");
+        return _capacityMgr.checkIfHostHasCapacity(host.getId(), offering.getCpu() * offering.getSpeed(), offering.getRamSize() * 1024L * 1024L, false,
+            Float.parseFloat(clusterDetailsCpu.getValue()), Float.parseFloat(clusterDetailsRam.getValue()), true);
+    }
+
     protected boolean hostCanAccessSPool(Host host, StoragePool pool) {
         boolean hostCanAccessSPool = false;
 
@@ -1331,6 +1344,24 @@ public class DeploymentPlanningManagerImpl extends ManagerBase implements Deploy
         return false;
     }
 
+    private DeploymentPlanner findPlanner(VirtualMachineProfile vmProfile) {
+        VirtualMachine vm = vmProfile.getVirtualMachine();
+        String plannerName = vmProfile.getServiceOffering().getDeploymentPlanner();
+        if (plannerName == null) {
+            if (vm.getHypervisorType() == HypervisorType.BareMetal) {
+                plannerName = "BareMetalPlanner";
+            } else {
+                plannerName = _configDao.getValue(Config.VmDeploymentPlanner.key());
+            }
+        }
+        for (DeploymentPlanner plannerInList : _planners) {
+            if (plannerName.equals(plannerInList.getName())) {
+                return plannerInList;
+            }
+        }
+        return null;
+    }
+
     @DB
     @Override
     public String finalizeReservation(final DeployDestination plannedDestination, final VirtualMachineProfile vmProfile, DeploymentPlan plan, ExcludeList avoids)
@@ -1342,41 +1373,380 @@ public class DeploymentPlanningManagerImpl extends ManagerBase implements Deploy
         return Transaction.execute(new TransactionCallback<String>() {
             @Override
             public String doInTransaction(TransactionStatus status) {
-                boolean saveReservation = true;
-
                 if (vmGroupCount > 0) {
-                    List<Long> groupIds = _affinityGroupVMMapDao.listAffinityGroupIdsByVmId(vm.getId());
-                    SearchCriteria<AffinityGroupVO> criteria = _affinityGroupDao.createSearchCriteria();
-                    criteria.addAnd("id", SearchCriteria.Op.IN, groupIds.toArray(new Object[groupIds.size()]));
-                    List<AffinityGroupVO> groups = _affinityGroupDao.lockRows(criteria, null, true);
-
-                    for (AffinityGroupProcessor processor : _affinityProcessors) {
-                        if (!processor.check(vmProfile, plannedDestination)) {
-                            saveReservation = false;
-                            break;
-                        }
+                    lockAffinityGroups(_affinityGroupVMMapDao.listAffinityGroupIdsByVmId(vm.getId()));
+                    if (!checkAffinityGroups(vmProfile, plannedDestination)) {
+                        return null;
                     }
                 }
+                return saveReservation(plannedDestination, vmProfile, 0, 0);
+            }
+        });
+    }
+
+    private void lockAffinityGroups(Collection<Long> groupIds) {
+        SearchCriteria<AffinityGroupVO> criteria = _affinityGroupDao.createSearchCriteria();
+        criteria.addAnd("id", SearchCriteria.Op.IN, groupIds.toArray(new Object[groupIds.size()]));
+        _affinityGroupDao.lockRows(criteria, null, true);
+    }
 
-                if (saveReservation) {
-                    VMReservationVO vmReservation =
-                        new VMReservationVO(vm.getId(), plannedDestination.getDataCenter().getId(), plannedDestination.getPod().getId(), plannedDestination.getCluster()
-                            .getId(), plannedDestination.getHost().getId());
-                    Map<Long, Long> volumeReservationMap = new HashMap<Long, Long>();
+    /**
+     * Checks the planned destination against the affinity groups of the vm,
+     * which must be locked by the caller.
+     */
+    private boolean checkAffinityGroups(VirtualMachineProfile vmProfile, DeployDestination plannedDestination) {
+        for (AffinityGroupProcessor processor : _affinityProcessors) {
+            if (!processor.check(vmProfile, plannedDestination)) {
+                return false;
+            }
+        }
+        return true;
+    }
 
-                    if (vm.getHypervisorType() != HypervisorType.BareMetal) {
-                        for (Volume vo : plannedDestination.getStorageForDisks().keySet()) {
-                            volumeReservationMap.put(vo.getId(), plannedDestination.getStorageForDisks().get(vo).getId());
-                        }
-                        vmReservation.setVolumeReservation(volumeReservationMap);
+    /**
+     * Saves the reservation of the planned destination, along with the cpu
+     * and memory held for the vm on the host.
+     *
+     * @return the reservation id
+     */
+    private String saveReservation(DeployDestination plannedDestination, VirtualMachineProfile vmProfile, long reservedCpu, long reservedRam) {
+        VirtualMachine vm = vmProfile.getVirtualMachine();
+        VMReservationVO vmReservation =
+            new VMReservationVO(vm.getId(), plannedDestination.getDataCenter().getId(), plannedDestination.getPod().getId(), plannedDestination.getCluster()
+                .getId(), plannedDestination.getHost().getId());
+        vmReservation.setReservedCapacity(reservedCpu, reservedRam);
+        Map<Long, Long> volumeReservationMap = new HashMap<Long, Long>();
+
+        if (vm.getHypervisorType() != HypervisorType.BareMetal) {
+            for (Volume vo : plannedDestination.getStorageForDisks().keySet()) {
+                volumeReservationMap.put(vo.getId(), plannedDestination.getStorageForDisks().get(vo).getId());
+            }
+            vmReservation.setVolumeReservation(volumeReservationMap);
+        }
+        _reservationDao.persist(vmReservation);
+        return vmReservation.getUuid();
+    }
+
+    /**
+     * Where the vms of a batch placed alike may go, looked up once for all of
+     * them: the hosts in the order the planner ranks them and, for the cluster
+     * of each host, the pools for each volume of the vms.
+     */
+    private static class BatchPlacement {
+        final DataCenter dc;
+        PlannerResourceUsage resourceUsage = PlannerResourceUsage.Shared;
+        final List<Host> hosts = new ArrayList<Host>();
+        final Map<Long, Pod> pods = new HashMap<Long, Pod>();
+        final Map<Long, Cluster> clusters = new HashMap<Long, Cluster>();
+        final Map<Long, List<List<StoragePool>>> pools = new HashMap<Long, List<List<StoragePool>>>();
+        // hosts that passed the planner usage check, and hosts none of the vms can use any more
+        final Set<Long> usableHosts = new HashSet<Long>();
+        final Set<Long> skippedHosts = new HashSet<Long>();
+        // destination of a vm planned on its own
+        DeployDestination dest;
+
+        BatchPlacement(DataCenter dc) {
+            this.dc = dc;
+        }
+    }
+
+    @DB
+    @Override
+    public List<String> planAndReserveDeployments(final List<VirtualMachineProfile> vmProfiles, DeploymentPlan plan, ExcludeList avoids, DeploymentPlanner planner)
+        throws AffinityConflictException {
+        final int count = vmProfiles.size();
+        final BatchPlacement[] placements = new BatchPlacement[count];
+        final List<List<VolumeVO>> volumes = new ArrayList<List<VolumeVO>>();
+        final Set<Long> groupIds = new TreeSet<Long>();
+        final Set<Long> hostIds = new TreeSet<Long>();
+        Map<List<Object>, BatchPlacement> placementsByKey = new HashMap<List<Object>, BatchPlacement>();
+
+        // the planner, the host allocators and the storage pool allocators run once for the vms placed alike
+        for (int i = 0; i < count; i++) {
+            VirtualMachineProfile vmProfile = vmProfiles.get(i);
+            List<Long> vmGroupIds = _affinityGroupVMMapDao.listAffinityGroupIdsByVmId(vmProfile.getId());
+            List<VolumeVO> vmVolumes = _volsDao.findUsableVolumesForInstance(vmProfile.getId());
+            groupIds.addAll(vmGroupIds);
+            volumes.add(vmVolumes);
+
+            List<Object> key = getPlacementKey(vmProfile, plan, vmGroupIds, vmVolumes);
+            if (key != null && !placementsByKey.containsKey(key)) {
+                placementsByKey.put(key, findBatchPlacement(vmProfile, plan, copyOf(avoids), planner, vmVolumes));
+            }
+            placements[i] = key != null ? placementsByKey.get(key) : null;
+            if (placements[i] == null) {
+                placements[i] = planSinglePlacement(vmProfile, plan, copyOf(avoids), planner);
+            }
+            for (Host host : placements[i].hosts) {
+                hostIds.add(host.getId());
+            }
+        }
+
+        List<String> reservationIds = Transaction.execute(new TransactionCallback<List<String>>() {
+            @Override
+            public List<String> doInTransaction(TransactionStatus status) {
+                // lock the affinity groups and the host capacity of the whole batch at once, in the same order as any other batch,
+                // so the capacity rows read from now on are the snapshot the batch is placed against
+                if (!groupIds.isEmpty()) {
+                    lockAffinityGroups(groupIds);
+                }
+                _capacityMgr.lockHostCapacity(hostIds);
+
+                String[] reservationIds = new String[count];
+                // volumes of the batch placed on each pool so far
+                Map<Long, List<Volume>> plannedVolumes = new HashMap<Long, List<Volume>>();
+                Map<Pair<Long, Long>, Boolean> hostPoolAccess = new HashMap<Pair<Long, Long>, Boolean>();
+                for (int i = 0; i < count; i++) {
+                    reservationIds[i] = reserveBatchPlacement(vmProfiles.get(i), volumes.get(i), placements[i], plannedVolumes, hostPoolAccess);
+                }
+                return Arrays.asList(reservationIds);
+            }
+        });
+
+        if (s_logger.isDebugEnabled()) {
+            int reserved = 0;
+            for (String reservationId : reservationIds) {
+                if (reservationId != null) {
+                    reserved++;
+                }
+            }
+            s_logger.debug("Reserved " + reserved + " of the " + count + " vms of the batch in " + placementsByKey.size() + " placements");
+        }
+        return reservationIds;
+    }
+
+    /**
+     * @return what decides where the vm may go, the vms with the same key are
+     * placed alike, or null if the vm has to be planned on its own
+     */
+    private List<Object> getPlacementKey(VirtualMachineProfile vmProfile, DeploymentPlan plan, List<Long> groupIds, List<VolumeVO> volumes) {
+        VirtualMachine vm = vmProfile.getVirtualMachine();
+        if (vm.getType() != VirtualMachine.Type.User || vm.getHypervisorType() == HypervisorType.BareMetal || vm.getLastHostId() != null ||
+            plan.getHostId() != null || plan.getPoolId() != null || vmProfile.getParameter(VirtualMachineProfile.Param.HaTag) != null) {
+            return null;
+        }
+
+        List<Object> key = new ArrayList<Object>();
+        key.add(vm.getAccountId());
+        key.add(vm.getServiceOfferingId());
+        key.add(vm.getTemplateId());
+        key.add(vm.getHypervisorType());
+        key.add(new TreeSet<Long>(groupIds));
+        for (VolumeVO volume : volumes) {
+            key.add(Arrays.<Object>asList(volume.getVolumeType(), volume.getDiskOfferingId(), volume.getSize(), volume.getState()));
+        }
+        return key;
+    }
+
+    /**
+     * Finds where the vms placed alike to the given one may go: the hosts the
+     * host allocators pick for it in each cluster, in the order the planner
+     * ranks the clusters, and the pools the storage pool allocators pick for
+     * each of its volumes in these clusters.
+     *
+     * @return the placement, or null if the vm has to be planned on its own
+     */
+    private BatchPlacement findBatchPlacement(VirtualMachineProfile vmProfile, DeploymentPlan plan, ExcludeList avoids, DeploymentPlanner planner,
+        List<VolumeVO> volumes) throws AffinityConflictException {
+        VirtualMachine vm = vmProfile.getVirtualMachine();
+        DataCenter dc = _dcDao.findById(vm.getDataCenterId());
+
+        if (_affinityGroupVMMapDao.countAffinityGroupsForVm(vm.getId()) > 0) {
+            for (AffinityGroupProcessor processor : _affinityProcessors) {
+                processor.process(vmProfile, plan, avoids);
+            }
+        }
+        checkForNonDedicatedResources(vmProfile, dc, avoids);
+
+        if (planner == null) {
+            planner = findPlanner(vmProfile);
+        }
+        if (!(planner instanceof DeploymentClusterPlanner) || !planner.canHandle(vmProfile, plan, avoids)) {
+            return null;
+        }
+
+        BatchPlacement placement = new BatchPlacement(dc);
+        if (avoids.shouldAvoid(dc)) {
+            return placement;
+        }
+
+        List<Long> clusterList;
+        try {
+            placement.resourceUsage = getPlannerUsage(planner, vmProfile, plan, avoids);
+            clusterList = ((DeploymentClusterPlanner)planner).orderClusters(vmProfile, plan, avoids);
+        } catch (InsufficientServerCapacityException e) {
+            s_logger.debug("Could not find a deployment destination for the vms placed like " + vmProfile + ": " + e.getMessage());
+            return placement;
+        }
+        if (clusterList == null) {
+            return placement;
+        }
+
+        for (Long clusterId : clusterList) {
+            ClusterVO cluster = _clusterDao.findById(clusterId);
+            if (cluster.getHypervisorType() != vmProfile.getHypervisorType()) {
+                continue;
+            }
+
+            DataCenterDeployment potentialPlan =
+                new DataCenterDeployment(plan.getDataCenterId(), cluster.getPodId(), cluster.getId(), null, null, null, plan.getReservationContext());
+            List<Host> hosts = findSuitableHosts(vmProfile, potentialPlan, avoids, HostAllocator.RETURN_UPTO_ALL);
+            if (hosts == null || hosts.isEmpty()) {
+                continue;
+            }
+            Pair<Map<Volume, List<StoragePool>>, List<Volume>> result =
+                findSuitablePoolsForVolumes(vmProfile, potentialPlan, avoids, StoragePoolAllocator.RETURN_UPTO_ALL);
+            if (result.first().isEmpty()) {
+                s_logger.debug("No suitable storagePools found under this Cluster: " + clusterId);
+                continue;
+            }
+
+            // the pools of each volume, in the order of the volumes of the vms
+            List<List<StoragePool>> pools = new ArrayList<List<StoragePool>>();
+            for (VolumeVO volume : volumes) {
+                List<StoragePool> volumePools = result.first().get(volume);
+                pools.add(volumePools != null ? volumePools : new ArrayList<StoragePool>());
+            }
+            placement.hosts.addAll(hosts);
+            placement.pods.put(cluster.getId(), _podDao.findById(cluster.getPodId()));
+            placement.clusters.put(cluster.getId(), cluster);
+            placement.pools.put(cluster.getId(), pools);
+        }
+        return placement;
+    }
+
+    /**
+     * Plans a vm that can not be placed like the other vms of its batch on its own.
+     */
+    private BatchPlacement planSinglePlacement(VirtualMachineProfile vmProfile, DeploymentPlan plan, ExcludeList avoids, DeploymentPlanner planner)
+        throws AffinityConflictException {
+        BatchPlacement placement = new BatchPlacement(null);
+        try {
+            placement.dest = planDeployment(vmProfile, plan, avoids, planner);
+        } catch (InsufficientServerCapacityException e) {
+            s_logger.debug("Could not find a deployment destination for " + vmProfile + ": " + e.getMessage());
+        }
+        if (placement.dest != null) {
+            placement.hosts.add(placement.dest.getHost());
+        }
+        return placement;
+    }
+
+    /**
+     * Reserves for the vm the first host of its placement it fits on and holds
+     * its cpu and memory there. Runs in the transaction of the batch, with the
+     * affinity groups and the host capacity of the batch locked.
+     *
+     * @return the reservation id, or null if the vm fits none of the hosts
+     */
+    private String reserveBatchPlacement(VirtualMachineProfile vmProfile, List<VolumeVO> volumes, BatchPlacement placement, Map<Long, List<Volume>> plannedVolumes,
+        Map<Pair<Long, Long>, Boolean> hostPoolAccess) {
+        ServiceOffering offering = vmProfile.getServiceOffering();
+        long cpu = offering.getCpu() * offering.getSpeed();
+        long ram = offering.getRamSize() * 1024L * 1024L;
+        boolean checkAffinityGroups = _affinityGroupVMMapDao.countAffinityGroupsForVm(vmProfile.getId()) > 0;
+
+        for (Host host : placement.hosts) {
+            if (placement.skippedHosts.contains(host.getId())) {
+                continue;
+            }
+
+            DeployDestination dest = placement.dest;
+            if (dest == null) {
+                if (!placement.usableHosts.contains(host.getId())) {
+                    if (!checkIfHostFitsPlannerUsage(host.getId(), placement.resourceUsage)) {
+                        placement.skippedHosts.add(host.getId());
+                        continue;
+                    }
+                    placement.usableHosts.add(host.getId());
+                }
+                Map<Volume, StoragePool> storage = findBatchStorage(host, volumes, placement.pools.get(host.getClusterId()), plannedVolumes, hostPoolAccess);
+                if (storage == null) {
+                    continue;
+                }
+                dest = new DeployDestination(placement.dc, placement.pods.get(host.getClusterId()), placement.clusters.get(host.getClusterId()), host, storage);
+            }
+
+            if (checkAffinityGroups && !checkAffinityGroups(vmProfile, dest)) {
+                continue;
+            }
+            if (!_capacityMgr.holdPlannedCapacity(host.getId(), cpu, ram)) {
+                // the vms of a placement share their service offering, none of them fits on the host any more
+                placement.skippedHosts.add(host.getId());
+                continue;
+            }
+
+            if (dest.getStorageForDisks() != null) {
+                for (Map.Entry<Volume, StoragePool> entry : dest.getStorageForDisks().entrySet()) {
+                    List<Volume> poolVolumes = plannedVolumes.get(entry.getValue().getId());
+                    if (poolVolumes == null) {
+                        poolVolumes = new ArrayList<Volume>();
+                        plannedVolumes.put(entry.getValue().getId(), poolVolumes);
                     }
-                    _reservationDao.persist(vmReservation);
-                    return vmReservation.getUuid();
+                    poolVolumes.add(entry.getKey());
+                }
+            }
+            return saveReservation(dest, vmProfile, cpu, ram);
+        }
+
+        s_logger.debug("Could not find a deployment destination for " + vmProfile + " of the batch");
+        return null;
+    }
+
+    /**
+     * Picks a pool the host can access for each volume of the vm, among the
+     * pools found for the cluster of the host, on top of the volumes the batch
+     * already placed on the pools.
+     *
+     * @return the pool of each volume, or null if a volume fits none of them
+     */
+    private Map<Volume, StoragePool> findBatchStorage(Host host, List<VolumeVO> volumes, List<List<StoragePool>> pools, Map<Long, List<Volume>> plannedVolumes,
+        Map<Pair<Long, Long>, Boolean> hostPoolAccess) {
+        if (pools == null) {
+            return null;
+        }
+
+        Map<Volume, StoragePool> storage = new HashMap<Volume, StoragePool>();
+        for (int i = 0; i < volumes.size(); i++) {
+            Volume volume = volumes.get(i);
+            StoragePool chosenPool = null;
+            for (StoragePool pool : pools.get(i)) {
+                Pair<Long, Long> access = new Pair<Long, Long>(host.getId(), pool.getId());
+                if (!hostPoolAccess.containsKey(access)) {
+                    hostPoolAccess.put(access, hostCanAccessSPool(host, pool));
+                }
+                if (!hostPoolAccess.get(access)) {
+                    continue;
                 }
 
+                List<Volume> planned = new ArrayList<Volume>();
+                if (plannedVolumes.containsKey(pool.getId())) {
+                    planned.addAll(plannedVolumes.get(pool.getId()));
+                }
+                for (Map.Entry<Volume, StoragePool> entry : storage.entrySet()) {
+                    if (entry.getValue().getId() == pool.getId()) {
+                        planned.add(entry.getKey());
+                    }
+                }
+                if (_storageMgr.storagePoolHasEnoughSpace(Arrays.asList(volume), planned, pool)) {
+                    chosenPool = pool;
+                    break;
+                }
+            }
+            if (chosenPool == null) {
                 return null;
             }
-        });
+            storage.put(volume, chosenPool);
+        }
+        return storage;
+    }
+
+    private static ExcludeList copyOf(ExcludeList avoids) {
+        if (avoids == null) {
+            return new ExcludeList();
+        }
+        return new ExcludeList(avoids.getDataCentersToAvoid(), avoids.getPodsToAvoid(), avoids.getClustersToAvoid(), avoids.getHostsToAvoid(),
+            avoids.getPoolsToAvoid());
     }
 
     @Override
@@ -412,11 +412,18 @@ public class FirstFitPlanner extends PlannerBase implements DeploymentClusterPla
             capacityType = Capacity.CAPACITY_TYPE_MEMORY;
         }
 
-        List<Long> clusterIdswithEnoughCapacity = _capacityDao.listClustersInZoneOrPodByHostCapacities(id, requiredCpu, requiredRam, capacityType, isZone);
+        // answer from the in-memory capacity index when it is loaded, the database otherwise
+        List<Long> clusterIdswithEnoughCapacity;
+        Pair<List<Long>, Map<Long, Double>> result = _capacityMgr.orderClustersByAggregateCapacity(id, capacityType, isZone);
+        if (result != null) {
+            clusterIdswithEnoughCapacity = _capacityMgr.listClustersByHostCapacities(id, requiredCpu, requiredRam, isZone);
+        } else {
+            clusterIdswithEnoughCapacity = _capacityDao.listClustersInZoneOrPodByHostCapacities(id, requiredCpu, requiredRam, capacityType, isZone);
+            result = _capacityDao.orderClustersByAggregateCapacity(id, capacityType, isZone);
+        }
         if (s_logger.isTraceEnabled()) {
             s_logger.trace("ClusterId List having enough CPU and RAM capacity: " + clusterIdswithEnoughCapacity);
         }
-        Pair<List<Long>, Map<Long, Double>> result = _capacityDao.orderClustersByAggregateCapacity(id, capacityType, isZone);
         List<Long> clusterIdsOrderedByAggregateCapacity = result.first();
         //only keep the clusters that have enough capacity to host this VM
         if (s_logger.isTraceEnabled()) {
@@ -446,11 +453,18 @@ public class FirstFitPlanner extends PlannerBase implements DeploymentClusterPla
             capacityType = Capacity.CAPACITY_TYPE_MEMORY;
         }
 
-        List<Long> podIdswithEnoughCapacity = _capacityDao.listPodsByHostCapacities(zoneId, requiredCpu, requiredRam, capacityType);
+        // answer from the in-memory capacity index when it is loaded, the database otherwise
+        List<Long> podIdswithEnoughCapacity;
+        Pair<List<Long>, Map<Long, Double>> result = _capacityMgr.orderPodsByAggregateCapacity(zoneId, capacityType);
+        if (result != null) {
+            podIdswithEnoughCapacity = _capacityMgr.listPodsByHostCapacities(zoneId, requiredCpu, requiredRam);
+        } else {
+            podIdswithEnoughCapacity = _capacityDao.listPodsByHostCapacities(zoneId, requiredCpu, requiredRam, capacityType);
+            result = _capacityDao.orderPodsByAggregateCapacity(zoneId, capacityType);
+        }
         if (s_logger.isTraceEnabled()) {
             s_logger.trace("PodId List having enough CPU and RAM capacity: " + podIdswithEnoughCapacity);
         }
-        Pair<List<Long>, Map<Long, Double>> result = _capacityDao.orderPodsByAggregateCapacity(zoneId, capacityType);
         List<Long> podIdsOrderedByAggregateCapacity = result.first();
         //only keep the clusters that have enough capacity to host this VM
         if (s_logger.isTraceEnabled()) {
@@ -0,0 +1,177 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.ha;
+
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import com.cloud.ha.HighAvailabilityManager.WorkType;
+import com.cloud.vm.VirtualMachine;
+
+/**
+ * HaWorkQueue dispatches the HA work items of op_ha_work to the HA workers
+ * of this management server.  Items become ready at their time to try and
+ * ready items are handed out by priority, so restarting the vms of a failed
+ * host goes ahead of stops, migrations and destroys, and system vms go ahead
+ * of user vms.  The queue only tells the workers which item to look at; the
+ * item still has to be taken in the database, which may fail if another
+ * management server got to it first.
+ */
+public class HaWorkQueue {
+
+    protected static class Item {
+        final long workId;
+        final long timeToTry;
+        final int priority;
+
+        Item(long workId, long timeToTry, int priority) {
+            this.workId = workId;
+            this.timeToTry = timeToTry;
+            this.priority = priority;
+        }
+    }
+
+    private static final Comparator<Item> BY_TIME = new Comparator<Item>() {
+        @Override
+        public int compare(Item a, Item b) {
+            if (a.timeToTry != b.timeToTry) {
+                return a.timeToTry < b.timeToTry ? -1 : 1;
+            }
+            return a.workId < b.workId ? -1 : (a.workId == b.workId ? 0 : 1);
+        }
+    };
+
+    private static final Comparator<Item> BY_PRIORITY = new Comparator<Item>() {
+        @Override
+        public int compare(Item a, Item b) {
+            if (a.priority != b.priority) {
+                return a.priority < b.priority ? -1 : 1;
+            }
+            return BY_TIME.compare(a, b);
+        }
+    };
+
+    private final PriorityQueue<Item> _delayed = new PriorityQueue<Item>(64, BY_TIME);
+    private final PriorityQueue<Item> _ready = new PriorityQueue<Item>(64, BY_PRIORITY);
+    private final Set<Long> _queued = new HashSet<Long>();
+    private long _dispatchedCount;
+
+    /**
+     * @return the priority of a work item, lower values are dispatched first.
+     */
+    public static int getPriority(WorkType workType, VirtualMachine.Type vmType) {
+        int priority;
+        if (workType == WorkType.HA) {
+            priority = 0;
+        } else if (workType == WorkType.ForceStop || workType == WorkType.Stop || workType == WorkType.CheckStop) {
+            priority = 10;
+        } else if (workType == WorkType.Migration) {
+            priority = 20;
+        } else {
+            priority = 30;
+        }
+
+        // the vms other vms depend on come back first
+        if (vmType == VirtualMachine.Type.DomainRouter) {
+            priority += 0;
+        } else if (vmType == VirtualMachine.Type.SecondaryStorageVm || vmType == VirtualMachine.Type.ConsoleProxy) {
+            priority += 1;
+        } else if (vmType == VirtualMachine.Type.User) {
+            priority += 3;
+        } else {
+            priority += 2;
+        }
+        return priority;
+    }
+
+    public static int getPriority(HaWorkVO work) {
+        return getPriority(work.getWorkType(), work.getType());
+    }
+
+    /**
+     * Queues a work item, unless it is queued already.
+     *
+     * @param timeToTry time in milliseconds at which the item becomes ready.
+     */
+    public synchronized void offer(long workId, long timeToTry, int priority) {
+        if (!_queued.add(workId)) {
+            return;
+        }
+        _delayed.add(new Item(workId, timeToTry, priority));
+        notifyAll();
+    }
+
+    public void offer(HaWorkVO work) {
+        offer(work.getId(), work.getTimeToTry() << 10, getPriority(work));
+    }
+
+    /**
+     * Waits for the next ready work item.
+     *
+     * @param maxWait time in milliseconds to wait at most.
+     * @return the id of the work item, or null if none became ready in time or wakeupAll() was called.
+     */
+    public synchronized Long take(long maxWait) throws InterruptedException {
+        long now = System.currentTimeMillis();
+        Item item = poll(now);
+        if (item == null) {
+            long wait = maxWait;
+            if (!_delayed.isEmpty()) {
+                wait = Math.min(wait, _delayed.peek().timeToTry - now);
+            }
+            if (wait > 0) {
+                wait(wait);
+            }
+            item = poll(System.currentTimeMillis());
+        }
+
+        if (item == null) {
+            return null;
+        }
+        _queued.remove(item.workId);
+        _dispatchedCount++;
+        return item.workId;
+    }
+
+    private Item poll(long now) {
+        while (!_delayed.isEmpty() && _delayed.peek().timeToTry <= now) {
+            _ready.add(_delayed.poll());
+        }
+        return _ready.poll();
+    }
+
+    /**
+     * Wakes up every worker waiting in take(), e.g. to let them see the manager is stopping.
+     */
+    public synchronized void wakeupAll() {
+        notifyAll();
+    }
+
+    public synchronized int size() {
+        return _queued.size();
+    }
+
+    public synchronized int getReadyCount() {
+        return _ready.size();
+    }
+
+    public synchronized long getDispatchedCount() {
+        return _dispatchedCount;
+    }
+}
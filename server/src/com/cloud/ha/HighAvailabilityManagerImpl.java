@@ -19,11 +19,13 @@ package com.cloud.ha;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.ejb.Local;
 import javax.inject.Inject;
@@ -39,7 +41,9 @@ import org.apache.cloudstack.managed.context.ManagedContextRunnable;
 
 import com.cloud.agent.AgentManager;
 import com.cloud.alert.AlertManager;
+import com.cloud.cluster.ClusterManager;
 import com.cloud.cluster.ClusterManagerListener;
+import com.cloud.cluster.ClusterMessageListener;
 import com.cloud.cluster.ManagementServerHost;
 import com.cloud.configuration.Config;
 import com.cloud.dc.ClusterDetailsDao;
@@ -71,8 +75,10 @@ import com.cloud.user.AccountManager;
 import com.cloud.utils.NumbersUtil;
 import com.cloud.utils.component.ManagerBase;
 import com.cloud.utils.concurrency.NamedThreadFactory;
+import com.cloud.utils.db.TransactionLegacy;
 import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.utils.fsm.StateListener;
+import com.cloud.utils.mgmt.JmxUtil;
 import com.cloud.vm.VMInstanceVO;
 import com.cloud.vm.VirtualMachine;
 import com.cloud.vm.VirtualMachine.State;
@@ -83,7 +89,8 @@ import com.cloud.vm.dao.VMInstanceDao;
 /**
  * HighAvailabilityManagerImpl coordinates the HA process. VMs are registered with the HA Manager for HA. The request is stored
  * within a database backed work queue. HAManager has a number of workers that pick up these work items to perform HA on the
- * VMs.
+ * VMs. The workers are handed the work items through an in-memory HaWorkQueue, which is fed when work is scheduled here or on
+ * another management server and by a periodic scan of the database that recovers work nobody has queued.
  *
  * The HA process goes as follows: 1. Check with the list of Investigators to determine that the VM is no longer running. If a
  * Investigator finds the VM is still alive, the HA process is stopped and the state of the VM reverts back to its previous
@@ -95,7 +102,7 @@ import com.cloud.vm.dao.VMInstanceDao;
  * the VM.
  *
  * @config {@table || Param Name | Description | Values | Default || || workers | number of worker threads to spin off to do the
- *         processing | int | 1 || || time.to.sleep | Time to sleep if no work items are found | seconds | 60 || || max.retries
+ *         processing | int | 1 || || time.to.sleep | Time between scans of the database for work items that are not queued | seconds | 60 || || max.retries
  *         | number of times to retry start | int | 5 || || time.between.failure | Time elapsed between failures before we
  *         consider it as another retry | seconds | 3600 || || time.between.cleanup | Time to wait before the cleanup thread
  *         runs | seconds | 86400 || || force.ha | Force HA to happen even if the VM says no | boolean | false || ||
@@ -103,11 +110,26 @@ import com.cloud.vm.dao.VMInstanceDao;
  *         before retrying the stop | seconds | 120 || * }
  **/
 @Local(value = { HighAvailabilityManager.class })
-public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvailabilityManager, ClusterManagerListener,
+public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvailabilityManager, ClusterManagerListener, ClusterMessageListener,
         StateListener<State, VirtualMachine.Event, VirtualMachine> {
 
     protected static final Logger s_logger = Logger.getLogger(HighAvailabilityManagerImpl.class);
+
+    // a queued work item is published to the other management servers as "<work id>:<time to try in ms>:<priority>"
+    protected static final String WORK_SUBJECT = "ha-work";
+    private static final int MAX_HOST_FAILURES = 50;
+
     WorkerThread[] _workers;
+    final HaWorkQueue _workQueue = new HaWorkQueue();
+    final AtomicLong _claimMissCount = new AtomicLong();
+    final Map<Long, HostFailure> _hostFailures = new LinkedHashMap<Long, HostFailure>() {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, HostFailure> eldest) {
+            return size() > MAX_HOST_FAILURES;
+        }
+    };
     boolean _stopped;
     long _timeToSleep;
     @Inject
@@ -182,6 +204,8 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvai
     @Inject
     ConfigurationDao _configDao;
     @Inject
+    ClusterManager _clusterMgr;
+    @Inject
     VolumeOrchestrationService volumeMgr;
 
     String _instance;
@@ -289,13 +313,27 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvai
         if (s_logger.isDebugEnabled()) {
             s_logger.debug("Scheduled " + work);
         }
-        wakeupWorkers();
+        queueWork(work);
     }
 
-    protected void wakeupWorkers() {
-        for (WorkerThread worker : _workers) {
-            worker.wakup();
-        }
+    /**
+     * Hands the work item to the workers of this and of the other management servers.  Whoever takes it in the database
+     * first gets to work on it, so it is handed over once the caller's transaction has committed it.
+     */
+    protected void queueWork(final HaWorkVO work) {
+        final int priority = HaWorkQueue.getPriority(work);
+        final long timeToTry = work.getTimeToTry() << 10;
+        TransactionLegacy.currentTxn().registerPostCommitHook(new Runnable() {
+            @Override
+            public void run() {
+                _workQueue.offer(work.getId(), timeToTry, priority);
+                try {
+                    _clusterMgr.publishMessage(WORK_SUBJECT, work.getId() + ":" + timeToTry + ":" + priority);
+                } catch (Exception e) {
+                    s_logger.warn("Unable to publish " + work + " to the other management servers, they'll find it on their next scan", e);
+                }
+            }
+        });
     }
 
     @Override
@@ -303,7 +341,7 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvai
         if (vm.getHostId() != null) {
             final HaWorkVO work = new HaWorkVO(vm.getId(), vm.getType(), WorkType.Migration, Step.Scheduled, vm.getHostId(), vm.getState(), 0, vm.getUpdated());
             _haDao.persist(work);
-            wakeupWorkers();
+            queueWork(work);
         }
         return true;
     }
@@ -394,7 +432,7 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvai
             s_logger.info("Schedule vm for HA:  " + vm);
         }
 
-        wakeupWorkers();
+        queueWork(work);
 
     }
 
@@ -580,6 +618,7 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvai
             VMInstanceVO started = _instanceDao.findById(vm.getId());
             if (started != null && started.getState() == VirtualMachine.State.Running) {
                 s_logger.info("VM is now restarted: " + vmId + " on " + started.getHostId());
+                recordRestart(work);
                 return null;
             }
 
@@ -635,7 +674,7 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvai
         if (s_logger.isDebugEnabled()) {
             s_logger.debug("Scheduled " + work.toString());
         }
-        wakeupWorkers();
+        queueWork(work);
     }
 
     @Override
@@ -794,6 +833,7 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvai
 
         _executor = Executors.newScheduledThreadPool(count, new NamedThreadFactory("HA"));
         VirtualMachine.State.getStateMachine().registerListener(this);
+        _clusterMgr.registerMessageListener(WORK_SUBJECT, this);
 
         return true;
     }
@@ -807,6 +847,13 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvai
         }
 
         _executor.scheduleAtFixedRate(new CleanupTask(), _timeBetweenCleanups, _timeBetweenCleanups, TimeUnit.SECONDS);
+        _executor.scheduleWithFixedDelay(new WorkRecoveryTask(), 0, _timeToSleep, TimeUnit.MILLISECONDS);
+
+        try {
+            JmxUtil.registerMBean("HighAvailability", "WorkQueue", new HighAvailabilityManagerMBeanImpl(this));
+        } catch (Exception e) {
+            s_logger.warn("Unable to register the HA work queue MBean", e);
+        }
 
         return true;
     }
@@ -815,13 +862,129 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvai
     public boolean stop() {
         _stopped = true;
 
-        wakeupWorkers();
+        _clusterMgr.unregisterMessageListener(WORK_SUBJECT, this);
+        _workQueue.wakeupAll();
 
         _executor.shutdown();
 
         return true;
     }
 
+    @Override
+    public void onClusterMessage(String sourcePeer, String subject, String message) {
+        String[] parts = message == null ? new String[0] : message.split(":");
+        if (parts.length != 3) {
+            s_logger.warn("Ignoring unknown HA work message from " + sourcePeer + ": " + message);
+            return;
+        }
+        try {
+            _workQueue.offer(Long.parseLong(parts[0]), Long.parseLong(parts[1]), Integer.parseInt(parts[2]));
+        } catch (NumberFormatException e) {
+            s_logger.warn("Ignoring unknown HA work message from " + sourcePeer + ": " + message);
+        }
+    }
+
+    /**
+     * Records how long it took to restart a vm after its host failed.  Work items created within time.between.failures
+     * of the first one for a host are counted as the same failure.
+     */
+    protected void recordRestart(HaWorkVO work) {
+        Long hostId = work.getHostId();
+        if (hostId == null || work.getCreated() == null) {
+            return;
+        }
+        long failedAt = work.getCreated().getTime();
+        long timeToRestart = System.currentTimeMillis() - failedAt;
+        synchronized (_hostFailures) {
+            HostFailure failure = _hostFailures.get(hostId);
+            if (failure == null || failedAt - failure.failedAt > _timeBetweenFailures) {
+                failure = new HostFailure(hostId, failedAt);
+                _hostFailures.remove(hostId);
+                _hostFailures.put(hostId, failure);
+            }
+            failure.restarted(failedAt, timeToRestart);
+        }
+    }
+
+    public int getQueueSize() {
+        return _workQueue.size();
+    }
+
+    public int getReadyCount() {
+        return _workQueue.getReadyCount();
+    }
+
+    public long getDispatchedCount() {
+        return _workQueue.getDispatchedCount();
+    }
+
+    public long getClaimMissCount() {
+        return _claimMissCount.get();
+    }
+
+    public String[] getHostFailureRestartTimes() {
+        synchronized (_hostFailures) {
+            List<String> failures = new ArrayList<String>(_hostFailures.size());
+            for (HostFailure failure : _hostFailures.values()) {
+                failures.add(failure.toString());
+            }
+            return failures.toArray(new String[failures.size()]);
+        }
+    }
+
+    protected static class HostFailure {
+        final long hostId;
+        long failedAt;
+        int restartedCount;
+        long firstRestartMillis;
+        long lastRestartMillis;
+        long totalRestartMillis;
+
+        HostFailure(long hostId, long failedAt) {
+            this.hostId = hostId;
+            this.failedAt = failedAt;
+        }
+
+        void restarted(long workCreated, long timeToRestart) {
+            if (workCreated < failedAt) {
+                failedAt = workCreated;
+            }
+            if (restartedCount == 0 || timeToRestart < firstRestartMillis) {
+                firstRestartMillis = timeToRestart;
+            }
+            lastRestartMillis = Math.max(lastRestartMillis, timeToRestart);
+            totalRestartMillis += timeToRestart;
+            restartedCount++;
+        }
+
+        @Override
+        public String toString() {
+            return "host " + hostId + " failed at " + new Date(failedAt) + ": " + restartedCount + " vms restarted, first after " + firstRestartMillis +
+                " ms, last after " + lastRestartMillis + " ms, average " + (totalRestartMillis / restartedCount) + " ms";
+        }
+    }
+
+    /**
+     * Queues the work items in the database that are waiting to be taken.  This catches up on work scheduled while this
+     * management server was down, released by a management server that left and work whose message got lost.
+     */
+    protected class WorkRecoveryTask extends ManagedContextRunnable {
+        @Override
+        protected void runInContext() {
+            try {
+                List<HaWorkVO> works = _haDao.listUntakenWork();
+                for (HaWorkVO work : works) {
+                    _workQueue.offer(work);
+                }
+                if (s_logger.isTraceEnabled()) {
+                    s_logger.trace("Found " + works.size() + " HA work items waiting to be taken");
+                }
+            } catch (Exception e) {
+                s_logger.warn("Error while recovering HA work items", e);
+            }
+        }
+    }
+
     protected class CleanupTask extends ManagedContextRunnable {
         @Override
         protected void runInContext() {
@@ -857,18 +1020,24 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvai
         private void runWithContext() {
             HaWorkVO work = null;
             try {
-                s_logger.trace("Checking the database");
-                work = _haDao.take(_serverId);
+                Long workId;
+                try {
+                    workId = _workQueue.take(_timeToSleep);
+                } catch (final InterruptedException e) {
+                    s_logger.info("Interrupted");
+                    return;
+                }
+                if (workId == null) {
+                    return;
+                }
+
+                work = _haDao.take(workId, _serverId);
                 if (work == null) {
-                    try {
-                        synchronized (this) {
-                            wait(_timeToSleep);
-                        }
-                        return;
-                    } catch (final InterruptedException e) {
-                        s_logger.info("Interrupted");
-                        return;
+                    _claimMissCount.incrementAndGet();
+                    if (s_logger.isTraceEnabled()) {
+                        s_logger.trace("Work " + workId + " is no longer available");
                     }
+                    return;
                 }
 
                 NDC.push("work-" + work.getId());
@@ -904,6 +1073,9 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvai
                     work.setStep(Step.Error);
                 }
                 _haDao.update(work.getId(), work);
+                if (work.getServerId() == null) {
+                    queueWork(work);
+                }
             } catch (final Throwable th) {
                 s_logger.error("Caught this throwable, ", th);
             } finally {
@@ -912,10 +1084,6 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvai
                 }
             }
         }
-
-        public synchronized void wakup() {
-            notifyAll();
-        }
     }
 
     @Override
@@ -927,6 +1095,7 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvai
         for (ManagementServerHost node : nodeList) {
             _haDao.releaseWorkItems(node.getMsid());
         }
+        _executor.execute(new WorkRecoveryTask());
     }
 
     @Override
@@ -14,46 +14,40 @@
 // KIND, either express or implied.  See the License for the
 // specific language governing permissions and limitations
 // under the License.
-package org.apache.cloudstack.ratelimit;
+package com.cloud.ha;
 
-import java.util.concurrent.atomic.AtomicInteger;
+import javax.management.StandardMBean;
 
-/**
- * Implementation of limit store entry.
- *
- */
-public class StoreEntryImpl implements StoreEntry {
+public class HighAvailabilityManagerMBeanImpl extends StandardMBean implements HighAvailabilityManagerMBean {
+    private final HighAvailabilityManagerImpl _haMgr;
 
-    private final long expiry;
-
-    private final AtomicInteger counter;
+    public HighAvailabilityManagerMBeanImpl(HighAvailabilityManagerImpl haMgr) {
+        super(HighAvailabilityManagerMBean.class, false);
+        _haMgr = haMgr;
+    }
 
-    StoreEntryImpl(int timeToLive) {
-        this.expiry = System.currentTimeMillis() + timeToLive * 1000;
-        this.counter = new AtomicInteger(0);
+    @Override
+    public int getQueueSize() {
+        return _haMgr.getQueueSize();
     }
 
     @Override
-    public boolean isExpired() {
-        return System.currentTimeMillis() > expiry;
+    public int getReadyCount() {
+        return _haMgr.getReadyCount();
     }
 
     @Override
-    public long getExpireDuration() {
-        if (isExpired())
-            return 0; // already expired
-        else {
-            return expiry - System.currentTimeMillis();
-        }
+    public long getDispatchedCount() {
+        return _haMgr.getDispatchedCount();
     }
 
     @Override
-    public int incrementAndGet() {
-        return this.counter.incrementAndGet();
+    public long getClaimMissCount() {
+        return _haMgr.getClaimMissCount();
     }
 
     @Override
-    public int getCounter() {
-        return this.counter.get();
+    public String[] getHostFailureRestartTimes() {
+        return _haMgr.getHostFailureRestartTimes();
     }
 }
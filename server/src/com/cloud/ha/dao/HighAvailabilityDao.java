@@ -32,6 +32,22 @@ public interface HighAvailabilityDao extends GenericDao<HaWorkVO, Long> {
      */
     HaWorkVO take(long serverId);
 
+    /**
+     * Takes a specific HA work item if it is still available.
+     *
+     * @param workId work item to take.
+     * @param serverId server that is taking this.
+     * @return WorkVO if it was taken; null if it was taken by someone else already or is not due yet.
+     */
+    HaWorkVO take(long workId, long serverId);
+
+    /**
+     * Lists the work items that are waiting to be taken, due or not.
+     *
+     * @return list of WorkVO or empty list.
+     */
+    List<HaWorkVO> listUntakenWork();
+
     /**
      * Finds all the work items related to this instance.
      *
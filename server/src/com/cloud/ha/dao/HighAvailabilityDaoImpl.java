@@ -41,6 +41,8 @@ public class HighAvailabilityDaoImpl extends GenericDaoBase<HaWorkVO, Long> impl
     private static final Logger s_logger = Logger.getLogger(HighAvailabilityDaoImpl.class);
 
     private final SearchBuilder<HaWorkVO> TBASearch;
+    private final SearchBuilder<HaWorkVO> TBAWorkSearch;
+    private final SearchBuilder<HaWorkVO> UntakenSearch;
     private final SearchBuilder<HaWorkVO> PreviousInstanceSearch;
     private final SearchBuilder<HaWorkVO> UntakenMigrationSearch;
     private final SearchBuilder<HaWorkVO> CleanupSearch;
@@ -64,6 +66,19 @@ public class HighAvailabilityDaoImpl extends GenericDaoBase<HaWorkVO, Long> impl
         TBASearch.and("time", TBASearch.entity().getTimeToTry(), Op.LTEQ);
         TBASearch.done();
 
+        TBAWorkSearch = createSearchBuilder();
+        TBAWorkSearch.and("id", TBAWorkSearch.entity().getId(), Op.EQ);
+        TBAWorkSearch.and("server", TBAWorkSearch.entity().getServerId(), Op.NULL);
+        TBAWorkSearch.and("taken", TBAWorkSearch.entity().getDateTaken(), Op.NULL);
+        TBAWorkSearch.and("time", TBAWorkSearch.entity().getTimeToTry(), Op.LTEQ);
+        TBAWorkSearch.done();
+
+        UntakenSearch = createSearchBuilder();
+        UntakenSearch.and("server", UntakenSearch.entity().getServerId(), Op.NULL);
+        UntakenSearch.and("taken", UntakenSearch.entity().getDateTaken(), Op.NULL);
+        UntakenSearch.and("step", UntakenSearch.entity().getStep(), Op.NIN);
+        UntakenSearch.done();
+
         PreviousInstanceSearch = createSearchBuilder();
         PreviousInstanceSearch.and("instance", PreviousInstanceSearch.entity().getInstanceId(), Op.EQ);
         PreviousInstanceSearch.done();
@@ -159,6 +174,43 @@ public class HighAvailabilityDaoImpl extends GenericDaoBase<HaWorkVO, Long> impl
         }
     }
 
+    @Override
+    public HaWorkVO take(final long workId, final long serverId) {
+        final TransactionLegacy txn = TransactionLegacy.currentTxn();
+        try {
+            final SearchCriteria<HaWorkVO> sc = TBAWorkSearch.create();
+            sc.setParameters("id", workId);
+            sc.setParameters("time", System.currentTimeMillis() >> 10);
+
+            txn.start();
+            final List<HaWorkVO> vos = lockRows(sc, null, true);
+            if (vos.size() == 0) {
+                txn.commit();
+                return null;
+            }
+
+            final HaWorkVO work = vos.get(0);
+            work.setServerId(serverId);
+            work.setDateTaken(new Date());
+
+            update(work.getId(), work);
+
+            txn.commit();
+
+            return work;
+
+        } catch (final Throwable e) {
+            throw new CloudRuntimeException("Unable to execute take of " + workId, e);
+        }
+    }
+
+    @Override
+    public List<HaWorkVO> listUntakenWork() {
+        final SearchCriteria<HaWorkVO> sc = UntakenSearch.create();
+        sc.setParameters("step", Step.Done, Step.Cancelled, Step.Error);
+        return listBy(sc);
+    }
+
     @Override
     public List<HaWorkVO> findPreviousHA(final long instanceId) {
         final SearchCriteria<HaWorkVO> sc = PreviousInstanceSearch.create();
@@ -17,11 +17,14 @@
 package com.cloud.network.security;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.TreeSet;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -32,21 +35,35 @@ import com.cloud.network.security.SecurityGroupWork.Step;
 /**
  * Security Group Work Queue that is not shared with other management servers
  *
+ * Work is kept per host, so that a worker can take everything pending for a
+ * host and send it in one go.  Hosts with priority work, i.e. work for vms
+ * whose ruleset changed, are served before hosts that only have background
+ * work such as resyncs and retries.
  */
 public class LocalSecurityGroupWorkQueue implements SecurityGroupWorkQueue {
     protected static Logger s_logger = Logger.getLogger(LocalSecurityGroupWorkQueue.class);
 
-    //protected Set<SecurityGroupWork> _currentWork = new HashSet<SecurityGroupWork>();
-    protected Set<SecurityGroupWork> _currentWork = new TreeSet<SecurityGroupWork>();
+    // shard of the vms whose host is not known
+    public static final long NO_HOST = -1L;
+
+    private final Map<Long, LocalSecurityGroupWork> _currentWork = new HashMap<Long, LocalSecurityGroupWork>();
+    private final Map<Long, HostWork> _hostWork = new HashMap<Long, HostWork>();
+    // hosts with pending work in the order they are served
+    private final Set<Long> _priorityHosts = new LinkedHashSet<Long>();
+    private final Set<Long> _backgroundHosts = new LinkedHashSet<Long>();
 
     private final ReentrantLock _lock = new ReentrantLock();
     private final Condition _notEmpty = _lock.newCondition();
     private final AtomicInteger _count = new AtomicInteger(0);
+    private final AtomicLong _coalesced = new AtomicLong(0);
 
     public static class LocalSecurityGroupWork implements SecurityGroupWork, Comparable<LocalSecurityGroupWork> {
         Long _logSequenceNumber;
         Long _instanceId;
         Step _step;
+        long _hostId = NO_HOST;
+        boolean _priority;
+        long _queuedTime = System.currentTimeMillis();
 
         public LocalSecurityGroupWork(Long instanceId, Long logSequence, Step step) {
             this._instanceId = instanceId;
@@ -80,6 +97,22 @@ public class LocalSecurityGroupWorkQueue implements SecurityGroupWorkQueue {
 
         }
 
+        public long getHostId() {
+            return _hostId;
+        }
+
+        public boolean isPriority() {
+            return _priority;
+        }
+
+        /**
+         * @return when the work was first submitted; resubmissions of queued
+         *         work do not change it.
+         */
+        public long getQueuedTime() {
+            return _queuedTime;
+        }
+
         @Override
         public int compareTo(LocalSecurityGroupWork o) {
             //return this._instanceId.compareTo(o.getInstanceId());
@@ -103,14 +136,21 @@ public class LocalSecurityGroupWorkQueue implements SecurityGroupWorkQueue {
 
     }
 
+    protected static class HostWork {
+        final Set<Long> _priority = new LinkedHashSet<Long>();
+        final Set<Long> _background = new LinkedHashSet<Long>();
+
+        int size() {
+            return _priority.size() + _background.size();
+        }
+    }
+
     @Override
     public void submitWorkForVm(long vmId, long sequenceNumber) {
         _lock.lock();
         try {
-            SecurityGroupWork work = new LocalSecurityGroupWork(vmId, sequenceNumber, Step.Scheduled);
-            boolean added = _currentWork.add(work);
-            if (added)
-                _count.incrementAndGet();
+            LocalSecurityGroupWork work = new LocalSecurityGroupWork(vmId, sequenceNumber, Step.Scheduled);
+            add(work, null, false);
         } finally {
             _lock.unlock();
         }
@@ -120,14 +160,21 @@ public class LocalSecurityGroupWorkQueue implements SecurityGroupWorkQueue {
 
     @Override
     public int submitWorkForVms(Set<Long> vmIds) {
+        Map<Long, Long> vmHostIds = new HashMap<Long, Long>();
+        for (Long vmId : vmIds) {
+            vmHostIds.put(vmId, null);
+        }
+        return submitWorkForVms(vmHostIds, false);
+    }
+
+    @Override
+    public int submitWorkForVms(Map<Long, Long> vmHostIds, boolean priority) {
         _lock.lock();
         int newWork = _count.get();
         try {
-            for (Long vmId : vmIds) {
-                SecurityGroupWork work = new LocalSecurityGroupWork(vmId, null, SecurityGroupWork.Step.Scheduled);
-                boolean added = _currentWork.add(work);
-                if (added)
-                    _count.incrementAndGet();
+            for (Map.Entry<Long, Long> entry : vmHostIds.entrySet()) {
+                LocalSecurityGroupWork work = new LocalSecurityGroupWork(entry.getKey(), null, SecurityGroupWork.Step.Scheduled);
+                add(work, entry.getValue(), priority);
             }
         } finally {
             newWork = _count.get() - newWork;
@@ -137,27 +184,124 @@ public class LocalSecurityGroupWorkQueue implements SecurityGroupWorkQueue {
         return newWork;
     }
 
+    /*
+     * Queues the work or merges it into the work already queued for the vm.
+     * Must hold the lock.
+     */
+    private void add(LocalSecurityGroupWork work, Long hostId, boolean priority) {
+        LocalSecurityGroupWork queued = _currentWork.get(work.getInstanceId());
+        if (queued != null) {
+            _coalesced.incrementAndGet();
+            boolean moved = hostId != null && hostId.longValue() != queued._hostId;
+            if (!moved && (!priority || queued._priority)) {
+                return;
+            }
+            // the vm moved to another host or became urgent
+            remove(queued);
+            work = queued;
+        } else {
+            _currentWork.put(work.getInstanceId(), work);
+            _count.incrementAndGet();
+        }
+
+        if (hostId != null) {
+            work._hostId = hostId;
+        }
+        work._priority = work._priority || priority;
+
+        HostWork hostWork = _hostWork.get(work._hostId);
+        if (hostWork == null) {
+            hostWork = new HostWork();
+            _hostWork.put(work._hostId, hostWork);
+        }
+        if (work._priority) {
+            hostWork._priority.add(work.getInstanceId());
+            _backgroundHosts.remove(work._hostId);
+            _priorityHosts.add(work._hostId);
+        } else {
+            hostWork._background.add(work.getInstanceId());
+            if (!_priorityHosts.contains(work._hostId)) {
+                _backgroundHosts.add(work._hostId);
+            }
+        }
+    }
+
+    /*
+     * Takes the work out of its host shard, leaving it in _currentWork.
+     * Must hold the lock.
+     */
+    private void remove(LocalSecurityGroupWork work) {
+        HostWork hostWork = _hostWork.get(work._hostId);
+        hostWork._priority.remove(work.getInstanceId());
+        hostWork._background.remove(work.getInstanceId());
+        updateHost(work._hostId, hostWork);
+    }
+
+    /*
+     * Must hold the lock.
+     */
+    private void updateHost(long hostId, HostWork hostWork) {
+        if (hostWork.size() == 0) {
+            _hostWork.remove(hostId);
+            _priorityHosts.remove(hostId);
+            _backgroundHosts.remove(hostId);
+        } else if (hostWork._priority.size() == 0 && _priorityHosts.remove(hostId)) {
+            _backgroundHosts.add(hostId);
+        }
+    }
+
+    /*
+     * Takes up to max work items of the host, priority work first. Must hold the lock.
+     */
+    private void take(long hostId, int max, List<SecurityGroupWork> result) {
+        HostWork hostWork = _hostWork.get(hostId);
+        take(hostWork._priority, max, result);
+        take(hostWork._background, max, result);
+        updateHost(hostId, hostWork);
+        if (hostWork.size() > 0) {
+            // let the other hosts with the same priority go first
+            Set<Long> hosts = hostWork._priority.size() > 0 ? _priorityHosts : _backgroundHosts;
+            hosts.remove(hostId);
+            hosts.add(hostId);
+        }
+    }
+
+    private void take(Set<Long> vmIds, int max, List<SecurityGroupWork> result) {
+        Iterator<Long> it = vmIds.iterator();
+        while (result.size() < max && it.hasNext()) {
+            LocalSecurityGroupWork work = _currentWork.remove(it.next());
+            it.remove();
+            work.setStep(Step.Processing);
+            result.add(work);
+            _count.decrementAndGet();
+        }
+    }
+
+    private Long nextHost() {
+        if (_priorityHosts.size() > 0) {
+            return _priorityHosts.iterator().next();
+        }
+        if (_backgroundHosts.size() > 0) {
+            return _backgroundHosts.iterator().next();
+        }
+        return null;
+    }
+
     @Override
     public List<SecurityGroupWork> getWork(int numberOfWorkItems) throws InterruptedException {
         List<SecurityGroupWork> work = new ArrayList<SecurityGroupWork>(numberOfWorkItems);
         _lock.lock();
-        int i = 0;
         try {
             while (_count.get() == 0) {
                 _notEmpty.await();
             }
-            int n = Math.min(numberOfWorkItems, _count.get());
-            Iterator<SecurityGroupWork> iter = _currentWork.iterator();
-            while (i < n) {
-                SecurityGroupWork w = iter.next();
-                w.setStep(Step.Processing);
-                work.add(w);
-                iter.remove();
-                ++i;
+            Long hostId = nextHost();
+            while (work.size() < numberOfWorkItems && hostId != null) {
+                take(hostId, numberOfWorkItems, work);
+                hostId = nextHost();
             }
         } finally {
-            int c = _count.addAndGet(-i);
-            if (c > 0)
+            if (_count.get() > 0)
                 _notEmpty.signal();
             _lock.unlock();
         }
@@ -165,6 +309,23 @@ public class LocalSecurityGroupWorkQueue implements SecurityGroupWorkQueue {
 
     }
 
+    @Override
+    public List<SecurityGroupWork> getWorkForHost(int maxWorkItems) throws InterruptedException {
+        List<SecurityGroupWork> work = new ArrayList<SecurityGroupWork>();
+        _lock.lock();
+        try {
+            while (_count.get() == 0) {
+                _notEmpty.await();
+            }
+            take(nextHost(), maxWorkItems, work);
+        } finally {
+            if (_count.get() > 0)
+                _notEmpty.signal();
+            _lock.unlock();
+        }
+        return work;
+    }
+
     private void signalNotEmpty() {
         _lock.lock();
         try {
@@ -184,6 +345,9 @@ public class LocalSecurityGroupWorkQueue implements SecurityGroupWorkQueue {
         _lock.lock();
         try {
             _currentWork.clear();
+            _hostWork.clear();
+            _priorityHosts.clear();
+            _backgroundHosts.clear();
             _count.set(0);
         } finally {
             _lock.unlock();
@@ -191,15 +355,31 @@ public class LocalSecurityGroupWorkQueue implements SecurityGroupWorkQueue {
 
     }
 
+    @Override
+    public long getCoalescedCount() {
+        return _coalesced.get();
+    }
+
+    @Override
+    public Map<Long, Integer> getQueueSizePerHost() {
+        Map<Long, Integer> sizes = new HashMap<Long, Integer>();
+        _lock.lock();
+        try {
+            for (Map.Entry<Long, HostWork> entry : _hostWork.entrySet()) {
+                sizes.put(entry.getKey(), entry.getValue().size());
+            }
+        } finally {
+            _lock.unlock();
+        }
+        return sizes;
+    }
+
     @Override
     public List<Long> getVmsInQueue() {
         List<Long> vmIds = new ArrayList<Long>();
         _lock.lock();
         try {
-            Iterator<SecurityGroupWork> iter = _currentWork.iterator();
-            while (iter.hasNext()) {
-                vmIds.add(iter.next().getInstanceId());
-            }
+            vmIds.addAll(_currentWork.keySet());
         } finally {
             _lock.unlock();
         }
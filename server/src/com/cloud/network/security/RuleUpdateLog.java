@@ -27,4 +27,6 @@ public interface RuleUpdateLog {
 
     void logUpdateDetails(Long vmId, Long seqno);
 
+    void logSkippedDetails(Long vmId, Long seqno);
+
 }
@@ -60,6 +60,7 @@ public class SecurityGroupListener implements Listener {
     Map<Long, Integer> _vmFailureCounts = new ConcurrentHashMap<Long, Integer>();
 
     private SecurityGroupWorkTracker _workTracker;
+    private SecurityGroupRulesetTracker _rulesetTracker;
 
     public SecurityGroupListener(SecurityGroupManagerImpl securityGroupManager, AgentManager agentMgr, SecurityGroupWorkDao workDao) {
         super();
@@ -85,6 +86,9 @@ public class SecurityGroupListener implements Listener {
         for (Answer ans : answers) {
             if (ans instanceof SecurityGroupRuleAnswer) {
                 SecurityGroupRuleAnswer ruleAnswer = (SecurityGroupRuleAnswer)ans;
+                if (_rulesetTracker != null) {
+                    _rulesetTracker.recordAnswer(ruleAnswer.getVmId(), ruleAnswer.getLogSequenceNumber(), ans.getResult());
+                }
                 if (ans.getResult()) {
                     s_logger.debug("Successfully programmed rule " + ruleAnswer.toString() + " into host " + agentId);
                     _workDao.updateStep(ruleAnswer.getVmId(), ruleAnswer.getLogSequenceNumber(), Step.Done);
@@ -107,10 +111,12 @@ public class SecurityGroupListener implements Listener {
                     }
                 }
                 commandNum++;
-                if (_workTracker != null)
-                    _workTracker.processAnswers(agentId, seq, answers);
             }
         }
+        // one message carries the answers for a whole batch of vms
+        if (commandNum > 0 && _workTracker != null) {
+            _workTracker.processAnswers(agentId, seq, answers);
+        }
 
         if (affectedVms.size() > 0) {
             _securityGroupManager.scheduleRulesetUpdateToHosts(affectedVms, false, new Long(10 * 1000l));
@@ -172,6 +178,9 @@ public class SecurityGroupListener implements Listener {
             if (_workTracker != null) {
                 _workTracker.processConnect(host.getId());
             }
+            if (_rulesetTracker != null) {
+                _rulesetTracker.forgetHost(host.getId());
+            }
         }
     }
 
@@ -185,6 +194,9 @@ public class SecurityGroupListener implements Listener {
         if (_workTracker != null) {
             _workTracker.processDisconnect(agentId);
         }
+        if (_rulesetTracker != null) {
+            _rulesetTracker.forgetHost(agentId);
+        }
         return true;
     }
 
@@ -193,10 +205,18 @@ public class SecurityGroupListener implements Listener {
         if (_workTracker != null) {
             _workTracker.processTimeout(agentId, seq);
         }
+        if (_rulesetTracker != null) {
+            // the update that timed out is not known here
+            _rulesetTracker.forgetHost(agentId);
+        }
         return true;
     }
 
     public void setWorkDispatcher(SecurityGroupWorkTracker workDispatcher) {
         this._workTracker = workDispatcher;
     }
+
+    public void setRulesetTracker(SecurityGroupRulesetTracker rulesetTracker) {
+        this._rulesetTracker = rulesetTracker;
+    }
 }
@@ -16,7 +16,9 @@
 // under the License.
 package com.cloud.network.security;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -30,18 +32,26 @@ import javax.naming.ConfigurationException;
 
 import org.apache.cloudstack.managed.context.ManagedContext;
 
+import com.cloud.agent.api.Command.OnError;
 import com.cloud.agent.api.SecurityGroupRulesCmd;
 import com.cloud.agent.manager.Commands;
 import com.cloud.configuration.Config;
 import com.cloud.exception.AgentUnavailableException;
+import com.cloud.host.DetailVO;
+import com.cloud.host.dao.HostDetailsDao;
+import com.cloud.network.security.LocalSecurityGroupWorkQueue.LocalSecurityGroupWork;
+import com.cloud.network.security.SecurityGroupRulesetTracker.RulesetDelta;
 import com.cloud.network.security.SecurityGroupWork.Step;
 import com.cloud.network.security.SecurityRule.SecurityRuleType;
 import com.cloud.uservm.UserVm;
 import com.cloud.utils.NumbersUtil;
+import com.cloud.utils.Pair;
 import com.cloud.utils.Profiler;
 import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.utils.mgmt.JmxUtil;
 import com.cloud.vm.NicVO;
+import com.cloud.vm.UserVmVO;
+import com.cloud.vm.VMInstanceVO;
 import com.cloud.vm.VirtualMachine.State;
 
 /**
@@ -52,12 +62,16 @@ import com.cloud.vm.VirtualMachine.State;
 public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl {
     SecurityGroupWorkQueue _workQueue = new LocalSecurityGroupWorkQueue();
     SecurityGroupWorkTracker _workTracker;
+    SecurityGroupRulesetTracker _rulesetTracker = new SecurityGroupRulesetTracker();
     SecurityManagerMBeanImpl _mBean;
 
     @Inject
     ManagedContext _managedContext;
+    @Inject
+    HostDetailsDao _hostDetailsDao;
 
     WorkerThread[] _workers;
+    int _batchSize = 100;
     private Set<Long> _disabledVms = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
     private boolean _schedulerDisabled = false;
 
@@ -120,7 +134,8 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl {
                 throw new CloudRuntimeException("Failed to create ruleset log entries");
             }
         }
-        int newJobs = _workQueue.submitWorkForVms(workItems);
+        // vms whose rules changed go before resyncs and retries
+        int newJobs = _workQueue.submitWorkForVms(getHostIds(workItems), updateSeqno);
         _mBean.logScheduledDetails(workItems);
         p.stop();
         if (s_logger.isDebugEnabled()) {
@@ -129,6 +144,17 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl {
         }
     }
 
+    protected Map<Long, Long> getHostIds(Set<Long> vmIds) {
+        Map<Long, Long> vmHostIds = new HashMap<Long, Long>();
+        for (Long vmId : vmIds) {
+            vmHostIds.put(vmId, null);
+        }
+        for (UserVmVO vm : _userVMDao.listByIds(new ArrayList<Long>(vmIds))) {
+            vmHostIds.put(vm.getId(), vm.getHostId());
+        }
+        return vmHostIds;
+    }
+
     @Override
     public boolean start() {
         for (final WorkerThread thread : _workers) {
@@ -142,35 +168,120 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl {
         s_logger.trace("Checking the work queue");
         List<SecurityGroupWork> workItems;
         try {
-            workItems = _workQueue.getWork(1);
+            workItems = _workQueue.getWorkForHost(_batchSize);
+            List<Long> vmIds = new ArrayList<Long>(workItems.size());
             for (SecurityGroupWork work : workItems) {
-                if (s_logger.isTraceEnabled()) {
-                    s_logger.trace("Processing " + work.getInstanceId());
-                }
+                vmIds.add(work.getInstanceId());
+            }
+            Map<Long, Long> seqnos = new HashMap<Long, Long>();
+            for (VmRulesetLogVO rulesetLog : _rulesetLogDao.listByVmIds(vmIds)) {
+                seqnos.put(rulesetLog.getInstanceId(), rulesetLog.getLogsequence());
+            }
 
-                try {
-                    VmRulesetLogVO rulesetLog = _rulesetLogDao.findByVmId(work.getInstanceId());
-                    if (rulesetLog == null) {
-                        s_logger.warn("Could not find ruleset log for vm " + work.getInstanceId());
-                        continue;
-                    }
-                    work.setLogsequenceNumber(rulesetLog.getLogsequence());
-                    sendRulesetUpdates(work);
-                    _mBean.logUpdateDetails(work.getInstanceId(), work.getLogsequenceNumber());
-                } catch (Exception e) {
-                    s_logger.error("Problem during SG work " + work, e);
-                    work.setStep(Step.Error);
+            List<SecurityGroupWork> found = new ArrayList<SecurityGroupWork>(workItems.size());
+            for (SecurityGroupWork work : workItems) {
+                Long seqno = seqnos.get(work.getInstanceId());
+                if (seqno == null) {
+                    s_logger.warn("Could not find ruleset log for vm " + work.getInstanceId());
+                    continue;
                 }
+                work.setLogsequenceNumber(seqno);
+                found.add(work);
             }
+            sendRulesetUpdates(found);
         } catch (InterruptedException e1) {
             s_logger.warn("SG work: caught InterruptException", e1);
         }
     }
 
     public void sendRulesetUpdates(SecurityGroupWork work) {
-        Long userVmId = work.getInstanceId();
-        UserVm vm = _userVMDao.findById(userVmId);
+        List<SecurityGroupWork> workItems = new ArrayList<SecurityGroupWork>(1);
+        workItems.add(work);
+        sendRulesetUpdates(workItems);
+    }
+
+    /**
+     * Sends the rulesets of the vms, one batch of commands per host.
+     */
+    public void sendRulesetUpdates(List<SecurityGroupWork> workItems) {
+        if (workItems.isEmpty()) {
+            return;
+        }
+        List<Long> vmIds = new ArrayList<Long>(workItems.size());
+        for (SecurityGroupWork work : workItems) {
+            vmIds.add(work.getInstanceId());
+        }
+        Map<Long, UserVmVO> vms = new HashMap<Long, UserVmVO>();
+        for (UserVmVO vm : _userVMDao.listByIds(vmIds)) {
+            vms.put(vm.getId(), vm);
+        }
+
+        Map<Long, List<SecurityGroupRulesCmd>> batches = new HashMap<Long, List<SecurityGroupRulesCmd>>();
+        Map<Long, Long> queuedTimes = new HashMap<Long, Long>();
+        for (SecurityGroupWork work : workItems) {
+            if (s_logger.isTraceEnabled()) {
+                s_logger.trace("Processing " + work.getInstanceId());
+            }
+            try {
+                UserVm vm = vms.get(work.getInstanceId());
+                SecurityGroupRulesCmd cmd = generateRulesetUpdate(vm, work);
+                if (cmd == null) {
+                    continue;
+                }
+                List<SecurityGroupRulesCmd> batch = batches.get(vm.getHostId());
+                if (batch == null) {
+                    batch = new ArrayList<SecurityGroupRulesCmd>();
+                    batches.put(vm.getHostId(), batch);
+                }
+                batch.add(cmd);
+                queuedTimes.put(vm.getId(), work instanceof LocalSecurityGroupWork ? ((LocalSecurityGroupWork)work).getQueuedTime() : System.currentTimeMillis());
+            } catch (Exception e) {
+                s_logger.error("Problem during SG work " + work, e);
+                work.setStep(Step.Error);
+            }
+        }
+
+        for (Map.Entry<Long, List<SecurityGroupRulesCmd>> entry : batches.entrySet()) {
+            Long agentId = entry.getKey();
+            List<SecurityGroupRulesCmd> batch = entry.getValue();
+            // every vm gets its own answer, a vm that fails does not hold up the others
+            Commands cmds = new Commands(OnError.Continue);
+            for (SecurityGroupRulesCmd cmd : batch) {
+                cmds.addCommand(cmd);
+                // remembered before sending, the answer may arrive before send() returns
+                _workTracker.recordDispatched(cmd.getVmId(), agentId, queuedTimes.get(cmd.getVmId()));
+            }
+            try {
+                _agentMgr.send(agentId, cmds, _answerListener);
+                for (SecurityGroupRulesCmd cmd : batch) {
+                    if (cmd.isDelta()) {
+                        _rulesetTracker.recordDeltaUpdate(cmd.getTotalNumCidrs() + cmd.getTotalNumRevokedCidrs(), _rulesetTracker.getNumCidrs(cmd.getVmId()));
+                    } else {
+                        _rulesetTracker.recordFullUpdate(cmd.getTotalNumCidrs());
+                    }
+                    _mBean.logUpdateDetails(cmd.getVmId(), cmd.getSeqNum());
+                }
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug("SecurityGroupManager v2: sent ruleset updates for " + batch.size() + " vms to host " + agentId + " curr queue size=" +
+                        _workQueue.size());
+                }
+            } catch (AgentUnavailableException e) {
+                s_logger.debug("Unable to send updates for " + batch.size() + " vms (agentid=" + agentId + ")");
+                for (SecurityGroupRulesCmd cmd : batch) {
+                    _rulesetTracker.forget(cmd.getVmId());
+                    _workTracker.forgetDispatched(cmd.getVmId());
+                }
+                _workTracker.handleException(agentId);
+            }
+        }
+    }
 
+    /**
+     * @return the command that brings the rules of the vm up to date, or null
+     *         if there is nothing to send.
+     */
+    protected SecurityGroupRulesCmd generateRulesetUpdate(UserVm vm, SecurityGroupWork work) {
+        Long userVmId = work.getInstanceId();
         if (vm != null && vm.getState() == State.Running) {
             if (s_logger.isTraceEnabled()) {
                 s_logger.trace("SecurityGroupManager v2: found vm, " + userVmId + " state=" + vm.getState());
@@ -193,21 +304,34 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl {
                     generateRulesetCmd(vm.getInstanceName(), vm.getPrivateIpAddress(), vm.getPrivateMacAddress(), vm.getId(), null, work.getLogsequenceNumber(),
                         ingressRules, egressRules, nicSecIps);
                 cmd.setMsId(_serverId);
-                if (s_logger.isDebugEnabled()) {
-                    s_logger.debug("SecurityGroupManager v2: sending ruleset update for vm " + vm.getInstanceName() + ":ingress num rules=" +
-                        cmd.getIngressRuleSet().length + ":egress num rules=" + cmd.getEgressRuleSet().length + " num cidrs=" + cmd.getTotalNumCidrs() + " sig=" +
-                        cmd.getSignature());
+                String signature = cmd.getSignature();
+                String nicSignature = cmd.getGuestIp() + ":" + cmd.getGuestMac() + ":" + cmd.getSecIpsString();
+                int numCidrs = cmd.getTotalNumCidrs();
+                if (_rulesetTracker.isUnchanged(userVmId, agentId, signature, nicSignature)) {
+                    _rulesetTracker.recordSkippedUpdate(numCidrs);
+                    _mBean.logSkippedDetails(userVmId, work.getLogsequenceNumber());
+                    if (s_logger.isDebugEnabled()) {
+                        s_logger.debug("SecurityGroupManager v2: ruleset of vm " + vm.getInstanceName() + " is unchanged, skipping update with seqno " +
+                            work.getLogsequenceNumber() + " sig=" + signature);
+                    }
+                    return null;
                 }
-                Commands cmds = new Commands(cmd);
-                try {
-                    _agentMgr.send(agentId, cmds, _answerListener);
-                    if (s_logger.isTraceEnabled()) {
-                        s_logger.trace("SecurityGroupManager v2: sent ruleset updates for " + vm.getInstanceName() + " curr queue size=" + _workQueue.size());
+                if (supportsDelta(agentId)) {
+                    RulesetDelta delta = _rulesetTracker.getDelta(userVmId, agentId, nicSignature, ingressRules, egressRules);
+                    if (delta != null && delta.getNumCidrs() < numCidrs) {
+                        cmd = generateRulesetCmd(vm.getInstanceName(), vm.getPrivateIpAddress(), vm.getPrivateMacAddress(), vm.getId(), signature,
+                            work.getLogsequenceNumber(), delta.getAddedIngress(), delta.getAddedEgress(), nicSecIps);
+                        cmd.setDelta(delta.getBaseSignature(), toRuleSet(delta.getRevokedIngress()), toRuleSet(delta.getRevokedEgress()));
+                        cmd.setMsId(_serverId);
                     }
-                } catch (AgentUnavailableException e) {
-                    s_logger.debug("Unable to send updates for vm: " + userVmId + "(agentid=" + agentId + ")");
-                    _workTracker.handleException(agentId);
                 }
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug("SecurityGroupManager v2: sending ruleset " + (cmd.isDelta() ? "delta" : "update") + " for vm " + vm.getInstanceName() +
+                        ":ingress num rules=" + cmd.getIngressRuleSet().length + ":egress num rules=" + cmd.getEgressRuleSet().length + " num cidrs=" +
+                        cmd.getTotalNumCidrs() + " num revoked cidrs=" + cmd.getTotalNumRevokedCidrs() + " sig=" + cmd.getSignature());
+                }
+                _rulesetTracker.recordSent(userVmId, agentId, work.getLogsequenceNumber(), signature, nicSignature, ingressRules, egressRules);
+                return cmd;
             }
         } else {
             if (s_logger.isDebugEnabled()) {
@@ -217,6 +341,48 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl {
                     s_logger.debug("Could not find vm: No rules sent to vm " + userVmId);
             }
         }
+        return null;
+    }
+
+    protected boolean supportsDelta(long hostId) {
+        Boolean supported = _rulesetTracker.supportsDelta(hostId);
+        if (supported == null) {
+            DetailVO detail = _hostDetailsDao.findDetail(hostId, SecurityGroupRulesCmd.DELTA_CAPABILITY);
+            supported = detail != null && Boolean.parseBoolean(detail.getValue());
+            _rulesetTracker.setSupportsDelta(hostId, supported);
+        }
+        return supported;
+    }
+
+    @Override
+    public void handleVmStarted(VMInstanceVO vm) {
+        // whatever was programmed for the vm before is gone
+        _rulesetTracker.forget(vm.getId());
+        super.handleVmStarted(vm);
+    }
+
+    @Override
+    protected void handleVmStopped(VMInstanceVO vm) {
+        _rulesetTracker.forget(vm.getId());
+        super.handleVmStopped(vm);
+    }
+
+    /*
+     * Updates that did not change the ruleset of a vm are not sent, so the host keeps
+     * reporting the seqno of the last update that did. Such vms are in sync.
+     */
+    @Override
+    public void fullSync(long agentId, HashMap<String, Pair<Long, Long>> newGroupStates) {
+        HashMap<String, Pair<Long, Long>> unknownStates = new HashMap<String, Pair<Long, Long>>();
+        for (Map.Entry<String, Pair<Long, Long>> entry : newGroupStates.entrySet()) {
+            Pair<Long, Long> state = entry.getValue();
+            if (!_rulesetTracker.isInSync(state.first(), state.second())) {
+                unknownStates.put(entry.getKey(), state);
+            }
+        }
+        if (unknownStates.size() > 0) {
+            super.fullSync(agentId, unknownStates);
+        }
     }
 
     @Override
@@ -273,6 +439,14 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl {
         return _workQueue;
     }
 
+    public SecurityGroupRulesetTracker getRulesetTracker() {
+        return _rulesetTracker;
+    }
+
+    public SecurityGroupWorkTracker getWorkTracker() {
+        return _workTracker;
+    }
+
     @Override
     public boolean configure(String name, Map<String, Object> params) throws ConfigurationException {
         _mBean = new SecurityManagerMBeanImpl(this);
@@ -284,8 +458,10 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl {
         boolean result = super.configure(name, params);
         Map<String, String> configs = _configDao.getConfiguration("Network", params);
         int bufferLength = NumbersUtil.parseInt(configs.get(Config.SecurityGroupWorkPerAgentMaxQueueSize.key()), 100);
+        _batchSize = NumbersUtil.parseInt(configs.get(Config.SecurityGroupWorkPerAgentBatchSize.key()), 100);
         _workTracker = new SecurityGroupWorkTracker(_agentMgr, _answerListener, bufferLength);
         _answerListener.setWorkDispatcher(_workTracker);
+        _answerListener.setRulesetTracker(_rulesetTracker);
         return result;
     }
 
@@ -320,6 +496,7 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl {
 
     public void clearWorkQueue() {
         _workQueue.clear();
+        _rulesetTracker.clear();
         s_logger.warn("Cleared the work queue (possible JMX operation)");
     }
 
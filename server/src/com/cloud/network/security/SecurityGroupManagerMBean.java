@@ -39,8 +39,12 @@ public interface SecurityGroupManagerMBean {
 
     Map<Long, Date> getLastUpdateSentTimestamps();
 
+    Map<Long, Date> getLastUpdateSkippedTimestamps();
+
     int getQueueSize();
 
+    Map<Long, Integer> getQueueSizePerHost();
+
     List<Long> getVmsInQueue();
 
     void scheduleRulesetUpdateForVm(Long vmId);
@@ -54,4 +58,26 @@ public interface SecurityGroupManagerMBean {
     boolean isSchedulerDisabledEntirely();
 
     void clearSchedulerQueueVeryDangerous();
+
+    long getCoalescedWorkCount();
+
+    long getFullRulesetUpdateCount();
+
+    long getDeltaRulesetUpdateCount();
+
+    long getSkippedRulesetUpdateCount();
+
+    long getCidrsSent();
+
+    long getCidrsSaved();
+
+    int getTrackedVmCount();
+
+    int getDistinctRulesetCount();
+
+    long getAppliedRulesetCount();
+
+    long getAverageTimeToApply();
+
+    long getMaxTimeToApply();
 }
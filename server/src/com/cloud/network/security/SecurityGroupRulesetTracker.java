@@ -0,0 +1,300 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.network.security;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.cloud.network.security.SecurityGroupManagerImpl.CidrComparator;
+import com.cloud.network.security.SecurityGroupManagerImpl.PortAndProto;
+
+/**
+ * Remembers the ruleset last sent to the host of every vm, so that an update
+ * that does not change it can be skipped and one that does can be sent as the
+ * cidrs added and revoked.  Vms with the same ruleset, such as the members of
+ * a flat security group, share one copy of it.
+ *
+ * What the host has programmed is only known as long as the host stays
+ * connected and answers the updates, so a failed update, a disconnect or a
+ * restart of the vm drops what is remembered and the next update is sent in
+ * full.
+ */
+public class SecurityGroupRulesetTracker {
+    protected static class Ruleset {
+        final String _signature;
+        final Map<PortAndProto, Set<String>> _ingress;
+        final Map<PortAndProto, Set<String>> _egress;
+        final int _numCidrs;
+        int _refs;
+
+        Ruleset(String signature, Map<PortAndProto, Set<String>> ingress, Map<PortAndProto, Set<String>> egress) {
+            _signature = signature;
+            _ingress = ingress;
+            _egress = egress;
+            _numCidrs = countCidrs(ingress) + countCidrs(egress);
+        }
+    }
+
+    protected static class SentRuleset {
+        final long _hostId;
+        final long _seqno;
+        final String _nicSignature;
+        final Ruleset _ruleset;
+        boolean _acked;
+
+        SentRuleset(long hostId, long seqno, String nicSignature, Ruleset ruleset) {
+            _hostId = hostId;
+            _seqno = seqno;
+            _nicSignature = nicSignature;
+            _ruleset = ruleset;
+        }
+    }
+
+    /**
+     * Cidrs to add and to revoke to get from the ruleset last sent to a vm to
+     * the current one.
+     */
+    public static class RulesetDelta {
+        final String _baseSignature;
+        final Map<PortAndProto, Set<String>> _addedIngress = new TreeMap<PortAndProto, Set<String>>();
+        final Map<PortAndProto, Set<String>> _addedEgress = new TreeMap<PortAndProto, Set<String>>();
+        final Map<PortAndProto, Set<String>> _revokedIngress = new TreeMap<PortAndProto, Set<String>>();
+        final Map<PortAndProto, Set<String>> _revokedEgress = new TreeMap<PortAndProto, Set<String>>();
+
+        RulesetDelta(String baseSignature) {
+            _baseSignature = baseSignature;
+        }
+
+        public String getBaseSignature() {
+            return _baseSignature;
+        }
+
+        public Map<PortAndProto, Set<String>> getAddedIngress() {
+            return _addedIngress;
+        }
+
+        public Map<PortAndProto, Set<String>> getAddedEgress() {
+            return _addedEgress;
+        }
+
+        public Map<PortAndProto, Set<String>> getRevokedIngress() {
+            return _revokedIngress;
+        }
+
+        public Map<PortAndProto, Set<String>> getRevokedEgress() {
+            return _revokedEgress;
+        }
+
+        public int getNumCidrs() {
+            return countCidrs(_addedIngress) + countCidrs(_addedEgress) + countCidrs(_revokedIngress) + countCidrs(_revokedEgress);
+        }
+    }
+
+    private final Map<Long, SentRuleset> _sent = new HashMap<Long, SentRuleset>();
+    private final Map<String, Ruleset> _rulesets = new HashMap<String, Ruleset>();
+    private final Map<Long, Boolean> _deltaHosts = new ConcurrentHashMap<Long, Boolean>();
+
+    private final AtomicLong _fullCount = new AtomicLong();
+    private final AtomicLong _deltaCount = new AtomicLong();
+    private final AtomicLong _skippedCount = new AtomicLong();
+    private final AtomicLong _cidrsSent = new AtomicLong();
+    private final AtomicLong _cidrsSaved = new AtomicLong();
+
+    static int countCidrs(Map<PortAndProto, Set<String>> rules) {
+        int count = 0;
+        for (Set<String> cidrs : rules.values()) {
+            count += cidrs.size();
+        }
+        return count;
+    }
+
+    /**
+     * @return true if the host of the vm has been sent this very ruleset and
+     *         has not failed to program it.
+     */
+    public synchronized boolean isUnchanged(long vmId, long hostId, String signature, String nicSignature) {
+        SentRuleset sent = _sent.get(vmId);
+        return sent != null && sent._hostId == hostId && sent._ruleset._signature.equals(signature) && sent._nicSignature.equals(nicSignature);
+    }
+
+    /**
+     * @return the delta to the ruleset last sent to the vm on this host, or
+     *         null if there is nothing to base a delta on.
+     */
+    public synchronized RulesetDelta getDelta(long vmId, long hostId, String nicSignature, Map<PortAndProto, Set<String>> ingress,
+        Map<PortAndProto, Set<String>> egress) {
+        SentRuleset sent = _sent.get(vmId);
+        if (sent == null || sent._hostId != hostId || !sent._nicSignature.equals(nicSignature)) {
+            return null;
+        }
+        RulesetDelta delta = new RulesetDelta(sent._ruleset._signature);
+        diff(sent._ruleset._ingress, ingress, delta._addedIngress);
+        diff(ingress, sent._ruleset._ingress, delta._revokedIngress);
+        diff(sent._ruleset._egress, egress, delta._addedEgress);
+        diff(egress, sent._ruleset._egress, delta._revokedEgress);
+        return delta;
+    }
+
+    /**
+     * Puts the cidrs of to that are not in from into result.
+     */
+    private static void diff(Map<PortAndProto, Set<String>> from, Map<PortAndProto, Set<String>> to, Map<PortAndProto, Set<String>> result) {
+        for (Map.Entry<PortAndProto, Set<String>> entry : to.entrySet()) {
+            Set<String> existing = from.get(entry.getKey());
+            Set<String> cidrs = new TreeSet<String>(new CidrComparator());
+            for (String cidr : entry.getValue()) {
+                if (existing == null || !existing.contains(cidr)) {
+                    cidrs.add(cidr);
+                }
+            }
+            if (cidrs.size() > 0) {
+                result.put(entry.getKey(), cidrs);
+            }
+        }
+    }
+
+    public synchronized void recordSent(long vmId, long hostId, long seqno, String signature, String nicSignature, Map<PortAndProto, Set<String>> ingress,
+        Map<PortAndProto, Set<String>> egress) {
+        Ruleset ruleset = _rulesets.get(signature);
+        if (ruleset == null) {
+            ruleset = new Ruleset(signature, ingress, egress);
+            _rulesets.put(signature, ruleset);
+        }
+        ruleset._refs++;
+        release(_sent.put(vmId, new SentRuleset(hostId, seqno, nicSignature, ruleset)));
+    }
+
+    /**
+     * Records the answer of the host.  A failed update leaves the rules on the
+     * host unknown, so the vm is forgotten.
+     */
+    public synchronized void recordAnswer(long vmId, long seqno, boolean success) {
+        SentRuleset sent = _sent.get(vmId);
+        if (sent == null) {
+            return;
+        }
+        if (!success) {
+            release(_sent.remove(vmId));
+        } else if (sent._seqno == seqno) {
+            sent._acked = true;
+        }
+    }
+
+    /**
+     * @return true if the host reports the seqno of the last ruleset sent to
+     *         the vm and has programmed it, even if updates sent with a later
+     *         seqno were skipped.
+     */
+    public synchronized boolean isInSync(long vmId, long seqno) {
+        SentRuleset sent = _sent.get(vmId);
+        return sent != null && sent._acked && sent._seqno == seqno;
+    }
+
+    /**
+     * @return number of cidrs of the ruleset last sent to the vm.
+     */
+    public synchronized int getNumCidrs(long vmId) {
+        SentRuleset sent = _sent.get(vmId);
+        return sent == null ? 0 : sent._ruleset._numCidrs;
+    }
+
+    public synchronized void forget(long vmId) {
+        release(_sent.remove(vmId));
+    }
+
+    public synchronized void forgetHost(long hostId) {
+        _deltaHosts.remove(hostId);
+        Iterator<SentRuleset> it = _sent.values().iterator();
+        while (it.hasNext()) {
+            SentRuleset sent = it.next();
+            if (sent._hostId == hostId) {
+                it.remove();
+                release(sent);
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        _sent.clear();
+        _rulesets.clear();
+        _deltaHosts.clear();
+    }
+
+    private void release(SentRuleset sent) {
+        if (sent != null && --sent._ruleset._refs == 0) {
+            _rulesets.remove(sent._ruleset._signature);
+        }
+    }
+
+    public Boolean supportsDelta(long hostId) {
+        return _deltaHosts.get(hostId);
+    }
+
+    public void setSupportsDelta(long hostId, boolean supported) {
+        _deltaHosts.put(hostId, supported);
+    }
+
+    public void recordFullUpdate(int numCidrs) {
+        _fullCount.incrementAndGet();
+        _cidrsSent.addAndGet(numCidrs);
+    }
+
+    public void recordDeltaUpdate(int numCidrs, int numFullCidrs) {
+        _deltaCount.incrementAndGet();
+        _cidrsSent.addAndGet(numCidrs);
+        _cidrsSaved.addAndGet(Math.max(numFullCidrs - numCidrs, 0));
+    }
+
+    public void recordSkippedUpdate(int numFullCidrs) {
+        _skippedCount.incrementAndGet();
+        _cidrsSaved.addAndGet(numFullCidrs);
+    }
+
+    public long getFullUpdateCount() {
+        return _fullCount.get();
+    }
+
+    public long getDeltaUpdateCount() {
+        return _deltaCount.get();
+    }
+
+    public long getSkippedUpdateCount() {
+        return _skippedCount.get();
+    }
+
+    public long getCidrsSent() {
+        return _cidrsSent.get();
+    }
+
+    public long getCidrsSaved() {
+        return _cidrsSaved.get();
+    }
+
+    public synchronized int getTrackedVmCount() {
+        return _sent.size();
+    }
+
+    public synchronized int getDistinctRulesetCount() {
+        return _rulesets.size();
+    }
+}
@@ -17,6 +17,7 @@
 package com.cloud.network.security;
 
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -30,11 +31,31 @@ public interface SecurityGroupWorkQueue {
 
     int submitWorkForVms(Set<Long> vmIds);
 
+    /**
+     * @param vmHostIds host of each vm, null if not known.
+     * @param priority true for work that has to go before background work.
+     * @return number of vms that were not queued yet.
+     */
+    int submitWorkForVms(Map<Long, Long> vmHostIds, boolean priority);
+
     List<SecurityGroupWork> getWork(int numberOfWorkItems) throws InterruptedException;
 
+    /**
+     * Blocks until there is work and takes up to maxWorkItems of the work
+     * queued for a single host.
+     */
+    List<SecurityGroupWork> getWorkForHost(int maxWorkItems) throws InterruptedException;
+
     int size();
 
     void clear();
 
     List<Long> getVmsInQueue();
+
+    /**
+     * @return number of submissions for vms that were already queued.
+     */
+    long getCoalescedCount();
+
+    Map<Long, Integer> getQueueSizePerHost();
 }
@@ -16,6 +16,7 @@
 // under the License.
 package com.cloud.network.security;
 
+import java.util.Iterator;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicLong;
@@ -25,6 +26,7 @@ import org.apache.log4j.Logger;
 import com.cloud.agent.AgentManager;
 import com.cloud.agent.Listener;
 import com.cloud.agent.api.Answer;
+import com.cloud.agent.api.SecurityGroupRuleAnswer;
 
 public class SecurityGroupWorkTracker {
     protected static final Logger s_logger = Logger.getLogger(SecurityGroupWorkTracker.class);
@@ -35,6 +37,22 @@ public class SecurityGroupWorkTracker {
 
     Map<Long, Integer> _unackedMessages = new ConcurrentHashMap<Long, Integer>();
 
+    // work sent to the hosts, by vm id, for measuring the time it took to apply it
+    Map<Long, DispatchedWork> _dispatchedWork = new ConcurrentHashMap<Long, DispatchedWork>();
+    protected AtomicLong _appliedCount = new AtomicLong(0);
+    protected AtomicLong _totalTimeToApply = new AtomicLong(0);
+    protected volatile long _maxTimeToApply = 0;
+
+    protected static class DispatchedWork {
+        final long _agentId;
+        final long _queuedTime;
+
+        DispatchedWork(long agentId, long queuedTime) {
+            _agentId = agentId;
+            _queuedTime = queuedTime;
+        }
+    }
+
     public SecurityGroupWorkTracker(AgentManager agentMgr, Listener answerListener, int bufferLength) {
         super();
         assert (bufferLength >= 1) : "SecurityGroupWorkTracker: Cannot have a zero length buffer";
@@ -79,6 +97,45 @@ public class SecurityGroupWorkTracker {
                 _unackedMessages.put(agentId, --outstanding);
             }
         }
+        long now = System.currentTimeMillis();
+        for (Answer answer : answers) {
+            if (answer instanceof SecurityGroupRuleAnswer) {
+                DispatchedWork work = _dispatchedWork.remove(((SecurityGroupRuleAnswer)answer).getVmId());
+                if (work != null && answer.getResult()) {
+                    recordTimeToApply(now - work._queuedTime);
+                }
+            }
+        }
+    }
+
+    protected void recordTimeToApply(long timeToApply) {
+        _appliedCount.incrementAndGet();
+        _totalTimeToApply.addAndGet(timeToApply);
+        synchronized (this) {
+            if (timeToApply > _maxTimeToApply) {
+                _maxTimeToApply = timeToApply;
+            }
+        }
+    }
+
+    /**
+     * @param queuedTime when the work for the vm was first queued.
+     */
+    public void recordDispatched(long vmId, long agentId, long queuedTime) {
+        _dispatchedWork.put(vmId, new DispatchedWork(agentId, queuedTime));
+    }
+
+    public void forgetDispatched(long vmId) {
+        _dispatchedWork.remove(vmId);
+    }
+
+    private void forgetDispatchedToAgent(long agentId) {
+        Iterator<DispatchedWork> it = _dispatchedWork.values().iterator();
+        while (it.hasNext()) {
+            if (it.next()._agentId == agentId) {
+                it.remove();
+            }
+        }
     }
 
     public void processTimeout(long agentId, long seq) {
@@ -94,6 +151,7 @@ public class SecurityGroupWorkTracker {
         synchronized (this) {
             _unackedMessages.put(agentId, 0);
         }
+        forgetDispatchedToAgent(agentId);
     }
 
     public void processConnect(long agentId) {
@@ -114,4 +172,17 @@ public class SecurityGroupWorkTracker {
         return outstanding.intValue();
     }
 
+    public long getAppliedCount() {
+        return _appliedCount.get();
+    }
+
+    public long getAverageTimeToApply() {
+        long count = _appliedCount.get();
+        return count == 0 ? 0 : _totalTimeToApply.get() / count;
+    }
+
+    public long getMaxTimeToApply() {
+        return _maxTimeToApply;
+    }
+
 }
@@ -37,6 +37,7 @@ public class SecurityManagerMBeanImpl extends StandardMBean implements SecurityG
     //keep track of last scheduled, last update sent and last seqno sent per vm. Make it available over JMX
     Map<Long, Date> _scheduleTimestamps = new ConcurrentHashMap<Long, Date>(4000, 100, 64);
     Map<Long, Date> _updateTimestamps = new ConcurrentHashMap<Long, Date>(4000, 100, 64);
+    Map<Long, Date> _skipTimestamps = new ConcurrentHashMap<Long, Date>(4000, 100, 64);
 
     protected SecurityManagerMBeanImpl(SecurityGroupManagerImpl2 securityGroupManager) {
         super(SecurityGroupManagerMBean.class, false);
@@ -48,6 +49,11 @@ public class SecurityManagerMBeanImpl extends StandardMBean implements SecurityG
         return this._sgMgr.getQueueSize();
     }
 
+    @Override
+    public Map<Long, Integer> getQueueSizePerHost() {
+        return _sgMgr.getWorkQueue().getQueueSizePerHost();
+    }
+
     @Override
     public void logUpdateDetails(Long vmId, Long seqno) {
         if (_monitoringEnabled) {
@@ -56,6 +62,13 @@ public class SecurityManagerMBeanImpl extends StandardMBean implements SecurityG
 
     }
 
+    @Override
+    public void logSkippedDetails(Long vmId, Long seqno) {
+        if (_monitoringEnabled) {
+            _skipTimestamps.put(vmId, new Date());
+        }
+    }
+
     @Override
     public void logScheduledDetails(Set<Long> vmIds) {
         if (_monitoringEnabled) {
@@ -71,6 +84,7 @@ public class SecurityManagerMBeanImpl extends StandardMBean implements SecurityG
         if (!enable) {
             _updateTimestamps.clear();
             _scheduleTimestamps.clear();
+            _skipTimestamps.clear();
         }
     }
 
@@ -84,6 +98,11 @@ public class SecurityManagerMBeanImpl extends StandardMBean implements SecurityG
         return _updateTimestamps;
     }
 
+    @Override
+    public Map<Long, Date> getLastUpdateSkippedTimestamps() {
+        return _skipTimestamps;
+    }
+
     @Override
     public List<Long> getVmsInQueue() {
         return _sgMgr.getWorkQueue().getVmsInQueue();
@@ -146,4 +165,59 @@ public class SecurityManagerMBeanImpl extends StandardMBean implements SecurityG
     public void clearSchedulerQueueVeryDangerous() {
         _sgMgr.clearWorkQueue();
     }
+
+    @Override
+    public long getCoalescedWorkCount() {
+        return _sgMgr.getWorkQueue().getCoalescedCount();
+    }
+
+    @Override
+    public long getFullRulesetUpdateCount() {
+        return _sgMgr.getRulesetTracker().getFullUpdateCount();
+    }
+
+    @Override
+    public long getDeltaRulesetUpdateCount() {
+        return _sgMgr.getRulesetTracker().getDeltaUpdateCount();
+    }
+
+    @Override
+    public long getSkippedRulesetUpdateCount() {
+        return _sgMgr.getRulesetTracker().getSkippedUpdateCount();
+    }
+
+    @Override
+    public long getCidrsSent() {
+        return _sgMgr.getRulesetTracker().getCidrsSent();
+    }
+
+    @Override
+    public long getCidrsSaved() {
+        return _sgMgr.getRulesetTracker().getCidrsSaved();
+    }
+
+    @Override
+    public int getTrackedVmCount() {
+        return _sgMgr.getRulesetTracker().getTrackedVmCount();
+    }
+
+    @Override
+    public int getDistinctRulesetCount() {
+        return _sgMgr.getRulesetTracker().getDistinctRulesetCount();
+    }
+
+    @Override
+    public long getAppliedRulesetCount() {
+        return _sgMgr.getWorkTracker().getAppliedCount();
+    }
+
+    @Override
+    public long getAverageTimeToApply() {
+        return _sgMgr.getWorkTracker().getAverageTimeToApply();
+    }
+
+    @Override
+    public long getMaxTimeToApply() {
+        return _sgMgr.getWorkTracker().getMaxTimeToApply();
+    }
 }
@@ -85,6 +85,8 @@ public class Criteria {
     public static final String VPC_ID = "vpcId";
     public static final String AFFINITY_GROUP_ID = "affinitygroupid";
     public static final String SERVICE_OFFERING_ID = "serviceofferingid";
+    public static final String PAGE_TOKEN = "pageToken";
+    public static final String SKIP_COUNT = "skipCount";
 
     public Criteria(String orderBy, Boolean ascending, Long offset, Long limit) {
         this.offset = offset;
@@ -479,6 +479,7 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
                                 continue;
 
                             Set<Long> vmIdSet = vmDiskStatsById.keySet();
+                            List<VmDiskStatisticsVO> updatedVmDiskStats = new ArrayList<VmDiskStatisticsVO>();
                             for (Long vmId : vmIdSet) {
                                 List<VmDiskStatsEntry> vmDiskStats = vmDiskStatsById.get(vmId);
                                 if (vmDiskStats == null)
@@ -562,9 +563,10 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
                                         vmDiskStat_lock.setAggIORead(vmDiskStat_lock.getNetIORead() + vmDiskStat_lock.getCurrentIORead());
                                     }
 
-                                    _vmDiskStatsDao.update(vmDiskStat_lock.getId(), vmDiskStat_lock);
+                                    updatedVmDiskStats.add(vmDiskStat_lock);
                                 }
                             }
+                            _vmDiskStatsDao.updateBatch(updatedVmDiskStats);
                         }
                     }
                 });
@@ -97,6 +97,12 @@ public interface StorageManager extends StorageService {
 
     boolean storagePoolHasEnoughSpace(List<Volume> volume, StoragePool pool);
 
+    /**
+     * Checks if the pool has space for the volumes on top of the volumes
+     * already planned on it, which are not allocated there yet.
+     */
+    boolean storagePoolHasEnoughSpace(List<Volume> volumes, List<Volume> plannedVolumes, StoragePool pool);
+
     boolean registerHostListener(String providerUuid, HypervisorHostListener listener);
 
     void connectHostToSharedPool(long hostId, long poolId) throws StorageUnavailableException;
@@ -1526,6 +1526,11 @@ public class StorageManagerImpl extends ManagerBase implements StorageManager, C
 
     @Override
     public boolean storagePoolHasEnoughSpace(List<Volume> volumes, StoragePool pool) {
+        return storagePoolHasEnoughSpace(volumes, new ArrayList<Volume>(), pool);
+    }
+
+    @Override
+    public boolean storagePoolHasEnoughSpace(List<Volume> volumes, List<Volume> plannedVolumes, StoragePool pool) {
         if (volumes == null || volumes.isEmpty()) {
             return false;
         }
@@ -1549,6 +1554,11 @@ public class StorageManagerImpl extends ManagerBase implements StorageManager, C
                 totalAskingSize = totalAskingSize + getVolumeSizeIncludingHvSsReserve(volume, pool);
             }
         }
+        for (Volume volume : plannedVolumes) {
+            if (volume.getState() != Volume.State.Ready) {
+                totalAskingSize = totalAskingSize + getVolumeSizeIncludingHvSsReserve(volume, pool);
+            }
+        }
 
         long totalOverProvCapacity;
         if (pool.getPoolType() == StoragePoolType.NetworkFilesystem || pool.getPoolType() == StoragePoolType.VMFS) {
@@ -0,0 +1,178 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.storage.snapshot;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * SnapshotScheduleWheel is a hashed timing wheel holding the snapshot
+ * schedules a management server owns.  A schedule lands in the slot of the
+ * tick it is due in, so advancing the wheel only looks at the slots of the
+ * ticks that went by instead of at every schedule.  Time is whatever the
+ * caller passes in, which lets the test clock drive the wheel as well.
+ */
+public class SnapshotScheduleWheel {
+
+    public static class Entry {
+        final long scheduleId;
+        final long volumeId;
+        final long dueTime;
+        final long tick;
+
+        Entry(long scheduleId, long volumeId, long dueTime, long tick) {
+            this.scheduleId = scheduleId;
+            this.volumeId = volumeId;
+            this.dueTime = dueTime;
+            this.tick = tick;
+        }
+
+        public long getScheduleId() {
+            return scheduleId;
+        }
+
+        public long getVolumeId() {
+            return volumeId;
+        }
+
+        public long getDueTime() {
+            return dueTime;
+        }
+    }
+
+    private static final Comparator<Entry> BY_DUE_TIME = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            if (a.dueTime != b.dueTime) {
+                return a.dueTime < b.dueTime ? -1 : 1;
+            }
+            return a.scheduleId < b.scheduleId ? -1 : (a.scheduleId == b.scheduleId ? 0 : 1);
+        }
+    };
+
+    private final long _tickLength;
+    private final List<Map<Long, Entry>> _slots;
+    private final Map<Long, Entry> _entries = new HashMap<Long, Entry>();
+    private long _currentTick;
+
+    /**
+     * @param tickLength length of a tick in milliseconds.
+     * @param slotCount number of slots on the wheel.
+     * @param now time the wheel starts at.
+     */
+    public SnapshotScheduleWheel(long tickLength, int slotCount, long now) {
+        _tickLength = Math.max(tickLength, 1);
+        _slots = new ArrayList<Map<Long, Entry>>(slotCount);
+        for (int i = 0; i < Math.max(slotCount, 1); i++) {
+            _slots.add(new HashMap<Long, Entry>());
+        }
+        _currentTick = now / _tickLength;
+    }
+
+    /**
+     * @return where in a window of the given length the snapshots of a volume
+     *         start.  A volume keeps its place in the window, so its
+     *         snapshots stay one interval apart.
+     */
+    public static long getSpreadOffset(long volumeId, long window) {
+        if (window <= 0) {
+            return 0;
+        }
+        // multiplicative hashing scatters consecutive volume ids over the window
+        long hash = (volumeId * 0x9E3779B97F4A7C15L) >>> 1;
+        return hash % window;
+    }
+
+    private Map<Long, Entry> getSlot(long tick) {
+        return _slots.get((int)(tick % _slots.size()));
+    }
+
+    /**
+     * Puts a schedule on the wheel, replacing the entry it already had.
+     * Schedules due in the past go off on the next advance.
+     */
+    public synchronized void schedule(long scheduleId, long volumeId, long dueTime) {
+        cancel(scheduleId);
+        Entry entry = new Entry(scheduleId, volumeId, dueTime, Math.max(dueTime / _tickLength, _currentTick + 1));
+        _entries.put(scheduleId, entry);
+        getSlot(entry.tick).put(scheduleId, entry);
+    }
+
+    public synchronized boolean cancel(long scheduleId) {
+        Entry entry = _entries.remove(scheduleId);
+        if (entry == null) {
+            return false;
+        }
+        getSlot(entry.tick).remove(scheduleId);
+        return true;
+    }
+
+    public synchronized boolean contains(long scheduleId) {
+        return _entries.containsKey(scheduleId);
+    }
+
+    /**
+     * Moves the wheel up to now.
+     *
+     * @return the schedules that came due, in the order they are due.
+     */
+    public synchronized List<Entry> advance(long now) {
+        long targetTick = now / _tickLength;
+        if (targetTick <= _currentTick) {
+            return Collections.emptyList();
+        }
+
+        List<Entry> due = new ArrayList<Entry>();
+        // once every slot has been visited there is nothing left to find
+        long lastTick = Math.min(targetTick, _currentTick + _slots.size());
+        for (long tick = _currentTick + 1; tick <= lastTick; tick++) {
+            Iterator<Entry> it = getSlot(tick).values().iterator();
+            while (it.hasNext()) {
+                Entry entry = it.next();
+                if (entry.tick <= targetTick) {
+                    it.remove();
+                    _entries.remove(entry.scheduleId);
+                    due.add(entry);
+                }
+            }
+        }
+        _currentTick = targetTick;
+
+        Collections.sort(due, BY_DUE_TIME);
+        return due;
+    }
+
+    public synchronized int size() {
+        return _entries.size();
+    }
+
+    public synchronized List<Long> getScheduleIds() {
+        return new ArrayList<Long>(_entries.keySet());
+    }
+
+    public synchronized void clear() {
+        for (Map<Long, Entry> slot : _slots) {
+            slot.clear();
+        }
+        _entries.clear();
+    }
+}
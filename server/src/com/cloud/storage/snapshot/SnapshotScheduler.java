@@ -18,6 +18,8 @@ package com.cloud.storage.snapshot;
 
 import java.util.Date;
 
+import org.apache.cloudstack.framework.config.ConfigKey;
+
 import com.cloud.storage.SnapshotPolicyVO;
 import com.cloud.utils.component.Manager;
 import com.cloud.utils.concurrency.Scheduler;
@@ -26,6 +28,26 @@ import com.cloud.utils.concurrency.Scheduler;
  */
 public interface SnapshotScheduler extends Manager, Scheduler {
 
+    static final ConfigKey<Integer> SnapshotSchedulerTick = new ConfigKey<Integer>(Integer.class, "snapshot.scheduler.tick", "Snapshots", "60",
+        "The time interval in seconds between two runs of the snapshot scheduler; scheduled snapshots are started at this granularity.", false,
+        ConfigKey.Scope.Global, null);
+    static final ConfigKey<Integer> SnapshotSpreadHourly = new ConfigKey<Integer>(Integer.class, "snapshot.spread.window.hourly", "Snapshots", "0",
+        "Window in seconds over which the snapshots of hourly policies due at the same time are spread out, 0 to start them all at once.", true,
+        ConfigKey.Scope.Global, null);
+    static final ConfigKey<Integer> SnapshotSpreadDaily = new ConfigKey<Integer>(Integer.class, "snapshot.spread.window.daily", "Snapshots", "0",
+        "Window in seconds over which the snapshots of daily policies due at the same time are spread out, 0 to start them all at once.", true,
+        ConfigKey.Scope.Global, null);
+    static final ConfigKey<Integer> SnapshotSpreadWeekly = new ConfigKey<Integer>(Integer.class, "snapshot.spread.window.weekly", "Snapshots", "0",
+        "Window in seconds over which the snapshots of weekly policies due at the same time are spread out, 0 to start them all at once.", true,
+        ConfigKey.Scope.Global, null);
+    static final ConfigKey<Integer> SnapshotSpreadMonthly = new ConfigKey<Integer>(Integer.class, "snapshot.spread.window.monthly", "Snapshots", "0",
+        "Window in seconds over which the snapshots of monthly policies due at the same time are spread out, 0 to start them all at once.", true,
+        ConfigKey.Scope.Global, null);
+    static final ConfigKey<Integer> SnapshotMaxConcurrentPerPool = new ConfigKey<Integer>(Integer.class, "snapshot.max.concurrent.per.pool", "Snapshots", "0",
+        "Maximum number of scheduled snapshots each management server runs at the same time for the volumes of a primary storage pool, 0 for no limit. "
+            + "The limit is counted per management server, so a pool may see up to this many times the number of management servers.", true,
+        ConfigKey.Scope.StoragePool, null);
+
     /**
      * Schedule the next snapshot job for this policy instance.
      *
@@ -16,12 +16,16 @@
 // under the License.
 package com.cloud.storage.snapshot;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.ejb.Local;
 import javax.inject.Inject;
@@ -32,21 +36,30 @@ import org.springframework.stereotype.Component;
 
 import org.apache.cloudstack.api.ApiConstants;
 import org.apache.cloudstack.api.command.user.snapshot.CreateSnapshotCmd;
+import org.apache.cloudstack.framework.config.ConfigKey;
+import org.apache.cloudstack.framework.config.Configurable;
 import org.apache.cloudstack.framework.config.dao.ConfigurationDao;
 import org.apache.cloudstack.framework.jobs.AsyncJobDispatcher;
 import org.apache.cloudstack.framework.jobs.AsyncJobManager;
 import org.apache.cloudstack.framework.jobs.dao.AsyncJobDao;
 import org.apache.cloudstack.framework.jobs.impl.AsyncJobVO;
+import org.apache.cloudstack.jobs.JobInfo;
 import org.apache.cloudstack.managed.context.ManagedContextTimerTask;
+import org.apache.cloudstack.utils.identity.ManagementServerNode;
 
 import com.cloud.api.ApiDispatcher;
 import com.cloud.api.ApiGsonHelper;
+import com.cloud.cluster.ClusterManager;
+import com.cloud.cluster.ClusterManagerListener;
+import com.cloud.cluster.ClusterMessageListener;
+import com.cloud.cluster.ManagementServerHost;
+import com.cloud.cluster.ManagementServerHostVO;
+import com.cloud.cluster.dao.ManagementServerHostDao;
 import com.cloud.event.ActionEventUtils;
 import com.cloud.event.EventTypes;
 import com.cloud.storage.Snapshot;
 import com.cloud.storage.SnapshotPolicyVO;
 import com.cloud.storage.SnapshotScheduleVO;
-import com.cloud.storage.SnapshotVO;
 import com.cloud.storage.VolumeVO;
 import com.cloud.storage.dao.SnapshotDao;
 import com.cloud.storage.dao.SnapshotPolicyDao;
@@ -60,14 +73,25 @@ import com.cloud.utils.component.ComponentContext;
 import com.cloud.utils.component.ManagerBase;
 import com.cloud.utils.concurrency.TestClock;
 import com.cloud.utils.db.DB;
-import com.cloud.utils.db.GlobalLock;
-import com.cloud.utils.db.SearchCriteria;
 
+/**
+ * SnapshotSchedulerImpl holds the snapshot schedules of the volumes this
+ * management server owns on a SnapshotScheduleWheel.  Volumes are split
+ * among the management servers that are up, so a schedule is only ever
+ * started by one of them and the schedules no longer have to be scanned
+ * for under a global lock.  Snapshots due at the same time are spread out
+ * over the window configured for the interval of their policy, and the
+ * number of scheduled snapshots running on a primary storage pool is capped.
+ */
 @Component
 @Local(value = {SnapshotScheduler.class})
-public class SnapshotSchedulerImpl extends ManagerBase implements SnapshotScheduler {
+public class SnapshotSchedulerImpl extends ManagerBase implements SnapshotScheduler, Configurable, ClusterManagerListener, ClusterMessageListener {
     private static final Logger s_logger = Logger.getLogger(SnapshotSchedulerImpl.class);
 
+    // a schedule queued on a management server that does not own its volume is published to the owner as "<schedule id>"
+    protected static final String SCHEDULE_SUBJECT = "snapshot-schedule";
+    private static final int WHEEL_SLOTS = 512;
+
     @Inject
     protected AsyncJobDao _asyncJobDao;
     @Inject
@@ -82,15 +106,38 @@ public class SnapshotSchedulerImpl extends ManagerBase implements SnapshotSchedu
     protected VolumeDao _volsDao;
     @Inject
     protected ConfigurationDao _configDao;
+    @Inject
+    protected ClusterManager _clusterMgr;
+    @Inject
+    protected ManagementServerHostDao _msHostDao;
 
     protected AsyncJobDispatcher _asyncDispatcher;
 
-    private static final int ACQUIRE_GLOBAL_LOCK_TIMEOUT_FOR_COOPERATION = 5;    // 5 seconds
     private int _snapshotPollInterval;
+    private int _schedulerTick;
     private Timer _testClockTimer;
     private Date _currentTimestamp;
     private TestClock _testTimerTask;
 
+    private SnapshotScheduleWheel _wheel;
+    // schedules whose snapshot job was started by this management server, by schedule id
+    private final Map<Long, ExecutingSnapshot> _executing = new ConcurrentHashMap<Long, ExecutingSnapshot>();
+    private long _msId;
+    private volatile List<Long> _msIds = Collections.emptyList();
+    private volatile boolean _membershipChanged = true;
+    private long _lastReconcile;
+    private final AtomicLong _deferredCount = new AtomicLong();
+
+    protected static class ExecutingSnapshot {
+        final long jobId;
+        final Long poolId;
+
+        ExecutingSnapshot(long jobId, Long poolId) {
+            this.jobId = jobId;
+            this.poolId = poolId;
+        }
+    }
+
     public AsyncJobDispatcher getAsyncJobDispatcher() {
         return _asyncDispatcher;
     }
@@ -122,159 +169,261 @@ public class SnapshotSchedulerImpl extends ManagerBase implements SnapshotSchedu
     public void poll(Date currentTimestamp) {
         // We don't maintain the time. The timer task does.
         _currentTimestamp = currentTimestamp;
+        long now = currentTimestamp.getTime();
+
+        if (_membershipChanged) {
+            _membershipChanged = false;
+            loadOwnedSchedules();
+            _lastReconcile = now;
+        } else if (now - _lastReconcile >= _snapshotPollInterval * 1000L) {
+            reconcileSchedules();
+            _lastReconcile = now;
+        }
 
-        GlobalLock scanLock = GlobalLock.getInternLock("snapshot.poll");
-        try {
-            if (scanLock.lock(ACQUIRE_GLOBAL_LOCK_TIMEOUT_FOR_COOPERATION)) {
-                try {
-                    checkStatusOfCurrentlyExecutingSnapshots();
-                } finally {
-                    scanLock.unlock();
+        checkStatusOfCurrentlyExecutingSnapshots();
+        scheduleSnapshots(_wheel.advance(now));
+    }
+
+    protected void refreshManagementServers() {
+        List<Long> msIds = new ArrayList<Long>();
+        for (ManagementServerHostVO ms : _msHostDao.listBy(ManagementServerHost.State.Up)) {
+            msIds.add(ms.getMsid());
+        }
+        if (!msIds.contains(_msId)) {
+            msIds.add(_msId);
+        }
+        Collections.sort(msIds);
+        _msIds = msIds;
+    }
+
+    /**
+     * Volumes are split among the management servers that are up by volume
+     * id, so all the policies of a volume are scheduled by the same one.
+     */
+    protected boolean isOwner(long volumeId) {
+        List<Long> msIds = _msIds;
+        if (msIds.isEmpty()) {
+            return true;
+        }
+        return msIds.get((int)(volumeId % msIds.size())) == _msId;
+    }
+
+    /**
+     * Rebuilds the wheel from the database after the set of management
+     * servers changed, taking over the schedules of the volumes this
+     * management server owns now, including the ones whose snapshot is
+     * still running.
+     */
+    protected void loadOwnedSchedules() {
+        refreshManagementServers();
+        _wheel.clear();
+        for (SnapshotScheduleVO schedule : _snapshotScheduleDao.listAll()) {
+            if (!isOwner(schedule.getVolumeId())) {
+                _executing.remove(schedule.getId());
+            } else if (schedule.getAsyncJobId() != null) {
+                if (!_executing.containsKey(schedule.getId())) {
+                    VolumeVO volume = _volsDao.findById(schedule.getVolumeId());
+                    _executing.put(schedule.getId(), new ExecutingSnapshot(schedule.getAsyncJobId(), volume != null ? volume.getPoolId() : null));
                 }
+            } else {
+                queueSchedule(schedule);
             }
-        } finally {
-            scanLock.releaseRef();
         }
+        s_logger.info("Snapshot scheduler holds " + _wheel.size() + " schedules and " + _executing.size() + " running snapshots for " + _msIds.size() +
+            " management servers");
+    }
 
-        scanLock = GlobalLock.getInternLock("snapshot.poll");
-        try {
-            if (scanLock.lock(ACQUIRE_GLOBAL_LOCK_TIMEOUT_FOR_COOPERATION)) {
-                try {
-                    scheduleSnapshots();
-                } finally {
-                    scanLock.unlock();
-                }
+    /**
+     * Picks up the schedules coming due that were queued on another
+     * management server while the message telling about them was lost.
+     */
+    protected void reconcileSchedules() {
+        Date horizon = new Date(_currentTimestamp.getTime() + _snapshotPollInterval * 1000L);
+        for (SnapshotScheduleVO schedule : _snapshotScheduleDao.getSchedulesToExecute(horizon)) {
+            if (!_wheel.contains(schedule.getId()) && isOwner(schedule.getVolumeId())) {
+                queueSchedule(schedule);
             }
-        } finally {
-            scanLock.releaseRef();
+        }
+    }
+
+    protected void queueSchedule(SnapshotScheduleVO schedule) {
+        if (schedule.getScheduledTimestamp() == null) {
+            return;
+        }
+        _executing.remove(schedule.getId());
+        long dueTime = schedule.getScheduledTimestamp().getTime();
+        SnapshotPolicyVO policy = _snapshotPolicyDao.findById(schedule.getPolicyId());
+        if (policy != null) {
+            dueTime += SnapshotScheduleWheel.getSpreadOffset(schedule.getVolumeId(), getSpreadWindow(policy) * 1000L);
+        }
+        _wheel.schedule(schedule.getId(), schedule.getVolumeId(), dueTime);
+    }
+
+    protected int getSpreadWindow(SnapshotPolicyVO policy) {
+        IntervalType type = DateUtil.getIntervalType(policy.getInterval());
+        if (type == null) {
+            return 0;
+        }
+        switch (type) {
+            case HOURLY:
+                return SnapshotSpreadHourly.value();
+            case DAILY:
+                return SnapshotSpreadDaily.value();
+            case WEEKLY:
+                return SnapshotSpreadWeekly.value();
+            case MONTHLY:
+                return SnapshotSpreadMonthly.value();
+            default:
+                return 0;
         }
     }
 
     private void checkStatusOfCurrentlyExecutingSnapshots() {
-        SearchCriteria<SnapshotScheduleVO> sc = _snapshotScheduleDao.createSearchCriteria();
-        sc.addAnd("asyncJobId", SearchCriteria.Op.NNULL);
-        List<SnapshotScheduleVO> snapshotSchedules = _snapshotScheduleDao.search(sc, null);
-        for (SnapshotScheduleVO snapshotSchedule : snapshotSchedules) {
-            Long asyncJobId = snapshotSchedule.getAsyncJobId();
-            AsyncJobVO asyncJob = _asyncJobDao.findById(asyncJobId);
-            switch (asyncJob.getStatus()) {
-                case SUCCEEDED:
-                    // The snapshot has been successfully backed up.
-                    // The snapshot state has also been cleaned up.
-                    // We can schedule the next job for this snapshot.
-                    // Remove the existing entry in the snapshot_schedule table.
-                    scheduleNextSnapshotJob(snapshotSchedule);
-                    break;
-                case FAILED:
-                    // Check the snapshot status.
-                    Long snapshotId = snapshotSchedule.getSnapshotId();
-                    if (snapshotId == null) {
-                        // createSnapshotAsync exited, successfully or unsuccessfully,
-                        // even before creating a snapshot record
-                        // No cleanup needs to be done.
-                        // Schedule the next snapshot.
-                        scheduleNextSnapshotJob(snapshotSchedule);
-                    } else {
-                        SnapshotVO snapshot = _snapshotDao.findById(snapshotId);
-                        if (snapshot == null || snapshot.getRemoved() != null) {
-                            // This snapshot has been deleted successfully from the primary storage
-                            // Again no cleanup needs to be done.
-                            // Schedule the next snapshot.
-                            // There's very little probability that the code reaches this point.
-                            // The snapshotId is a foreign key for the snapshot_schedule table
-                            // set to ON DELETE CASCADE. So if the snapshot entry is deleted, the snapshot_schedule entry will be too.
-                            // But what if it has only been marked as removed?
-                            scheduleNextSnapshotJob(snapshotSchedule);
-                        } else {
-                            // The management server executing this snapshot job appears to have crashed
-                            // while creating the snapshot on primary storage/or backing it up.
-                            // We have no idea whether the snapshot was successfully taken on the primary or not.
-                            // Schedule the next snapshot job.
-                            // The ValidatePreviousSnapshotCommand will take appropriate action on this snapshot
-                            // If the snapshot was taken successfully on primary, it will retry backing it up.
-                            // and cleanup the previous snapshot
-                            // Set the userId to that of system.
-                            //_snapshotManager.validateSnapshot(1L, snapshot);
-                            // In all cases, schedule the next snapshot job
-                            scheduleNextSnapshotJob(snapshotSchedule);
-                        }
-                    }
+        for (Map.Entry<Long, ExecutingSnapshot> entry : _executing.entrySet()) {
+            long jobId = entry.getValue().jobId;
+            AsyncJobVO asyncJob = _asyncJobDao.findById(jobId);
+            if (asyncJob != null && asyncJob.getStatus() == JobInfo.Status.IN_PROGRESS) {
+                // There is no way of knowing from here whether the job is still
+                // being worked on or the management server running it crashed.
+                // Hopefully, this can be resolved at the backend when the current snapshot gets executed.
+                continue;
+            }
 
-                    break;
-                case IN_PROGRESS:
-                    // There is no way of knowing from here whether
-                    // 1) Another management server is processing this snapshot job
-                    // 2) The management server has crashed and this snapshot is lying
-                    // around in an inconsistent state.
-                    // Hopefully, this can be resolved at the backend when the current snapshot gets executed.
-                    // But if it remains in this state, the current snapshot will not get executed.
-                    // And it will remain in stasis.
-                    break;
+            _executing.remove(entry.getKey());
+            SnapshotScheduleVO snapshotSchedule = _snapshotScheduleDao.findById(entry.getKey());
+            if (snapshotSchedule == null || snapshotSchedule.getAsyncJobId() == null || snapshotSchedule.getAsyncJobId() != jobId) {
+                // the schedule was removed or moved on in the meantime
+                continue;
             }
+            // Whether the snapshot succeeded or failed, schedule the next one.
+            // If the job failed after taking the snapshot on primary storage,
+            // the ValidatePreviousSnapshotCommand of the next snapshot takes
+            // care of it.
+            scheduleNextSnapshotJob(snapshotSchedule);
         }
     }
 
+    // Only counts the snapshots this management server started, so the
+    // per pool limit applies to each management server on its own
+    private Map<Long, Integer> getExecutingCountPerPool() {
+        Map<Long, Integer> counts = new HashMap<Long, Integer>();
+        for (ExecutingSnapshot snapshot : _executing.values()) {
+            if (snapshot.poolId != null) {
+                Integer count = counts.get(snapshot.poolId);
+                counts.put(snapshot.poolId, count == null ? 1 : count + 1);
+            }
+        }
+        return counts;
+    }
+
     @DB
-    protected void scheduleSnapshots() {
+    protected void scheduleSnapshots(List<SnapshotScheduleWheel.Entry> dueSchedules) {
+        if (dueSchedules.isEmpty()) {
+            return;
+        }
         String displayTime = DateUtil.displayDateInTimezone(DateUtil.GMT_TIMEZONE, _currentTimestamp);
-        s_logger.debug("Snapshot scheduler.poll is being called at " + displayTime);
+        s_logger.debug("Got " + dueSchedules.size() + " snapshots to be executed at " + displayTime);
+
+        Map<Long, Integer> executingPerPool = getExecutingCountPerPool();
+        int deferred = 0;
+        for (SnapshotScheduleWheel.Entry due : dueSchedules) {
+            long snapshotScheId = due.getScheduleId();
+            long volumeId = due.getVolumeId();
+            SnapshotScheduleVO snapshotToBeExecuted = _snapshotScheduleDao.findById(snapshotScheId);
+            if (snapshotToBeExecuted == null || snapshotToBeExecuted.getAsyncJobId() != null) {
+                // removed, or started by the management server that owned the volume before
+                continue;
+            }
+            if (snapshotToBeExecuted.getScheduledTimestamp().after(_currentTimestamp)) {
+                // the schedule moved since it was queued
+                queueSchedule(snapshotToBeExecuted);
+                continue;
+            }
+            if (_snapshotPolicyDao.findById(snapshotToBeExecuted.getPolicyId()) == null) {
+                _snapshotScheduleDao.remove(snapshotScheId);
+                continue;
+            }
+            VolumeVO volume = _volsDao.findById(volumeId);
+            if (volume == null || volume.getPoolId() == null) {
+                // this volume is not attached, look at it again on the next reconcile
+                continue;
+            }
 
-        List<SnapshotScheduleVO> snapshotsToBeExecuted = _snapshotScheduleDao.getSchedulesToExecute(_currentTimestamp);
-        s_logger.debug("Got " + snapshotsToBeExecuted.size() + " snapshots to be executed at " + displayTime);
+            Long poolId = volume.getPoolId();
+            Integer executing = executingPerPool.get(poolId);
+            int maxConcurrent = SnapshotMaxConcurrentPerPool.valueIn(poolId);
+            if (maxConcurrent > 0 && executing != null && executing >= maxConcurrent) {
+                // keeps its place in line and is looked at again on the next tick
+                _wheel.schedule(snapshotScheId, volumeId, due.getDueTime());
+                deferred++;
+                continue;
+            }
 
-        for (SnapshotScheduleVO snapshotToBeExecuted : snapshotsToBeExecuted) {
-            SnapshotScheduleVO tmpSnapshotScheduleVO = null;
-            long snapshotScheId = snapshotToBeExecuted.getId();
-            long policyId = snapshotToBeExecuted.getPolicyId();
-            long volumeId = snapshotToBeExecuted.getVolumeId();
-            try {
-                VolumeVO volume = _volsDao.findById(volumeId);
-                if (volume.getPoolId() == null) {
-                    // this volume is not attached
-                    continue;
-                }
-                if (_snapshotPolicyDao.findById(policyId) == null) {
-                    _snapshotScheduleDao.remove(snapshotToBeExecuted.getId());
-                }
-                if (s_logger.isDebugEnabled()) {
-                    Date scheduledTimestamp = snapshotToBeExecuted.getScheduledTimestamp();
-                    displayTime = DateUtil.displayDateInTimezone(DateUtil.GMT_TIMEZONE, scheduledTimestamp);
-                    s_logger.debug("Scheduling 1 snapshot for volume " + volumeId + " for schedule id: " + snapshotToBeExecuted.getId() + " at " + displayTime);
-                }
+            Long jobId = submitSnapshotJob(snapshotToBeExecuted, volume);
+            if (jobId != null) {
+                _executing.put(snapshotScheId, new ExecutingSnapshot(jobId, poolId));
+                executingPerPool.put(poolId, executing == null ? 1 : executing + 1);
+            }
+        }
 
-                tmpSnapshotScheduleVO = _snapshotScheduleDao.acquireInLockTable(snapshotScheId);
-                Long eventId =
-                    ActionEventUtils.onScheduledActionEvent(User.UID_SYSTEM, volume.getAccountId(), EventTypes.EVENT_SNAPSHOT_CREATE, "creating snapshot for volume Id:" +
-                        volumeId, 0);
-
-                Map<String, String> params = new HashMap<String, String>();
-                params.put(ApiConstants.VOLUME_ID, "" + volumeId);
-                params.put(ApiConstants.POLICY_ID, "" + policyId);
-                params.put("ctxUserId", "1");
-                params.put("ctxAccountId", "" + volume.getAccountId());
-                params.put("ctxStartEventId", String.valueOf(eventId));
-
-                CreateSnapshotCmd cmd = new CreateSnapshotCmd();
-                ComponentContext.inject(cmd);
-                ApiDispatcher.getInstance().dispatchCreateCmd(cmd, params);
-                params.put("id", "" + cmd.getEntityId());
-                params.put("ctxStartEventId", "1");
-
-                AsyncJobVO job = new AsyncJobVO("", User.UID_SYSTEM, volume.getAccountId(), CreateSnapshotCmd.class.getName(),
-                        ApiGsonHelper.getBuilder().create().toJson(params), cmd.getEntityId(),
-                        cmd.getInstanceType() != null ? cmd.getInstanceType().toString() : null);
-                job.setDispatcher(_asyncDispatcher.getName());
-
-                long jobId = _asyncMgr.submitAsyncJob(job);
-
-                tmpSnapshotScheduleVO.setAsyncJobId(jobId);
-                _snapshotScheduleDao.update(snapshotScheId, tmpSnapshotScheduleVO);
-            } catch (Exception e) {
-                s_logger.warn("Scheduling snapshot failed due to " + e.toString());
-            } finally {
-                if (tmpSnapshotScheduleVO != null) {
-                    _snapshotScheduleDao.releaseFromLockTable(snapshotScheId);
-                }
+        if (deferred > 0) {
+            _deferredCount.addAndGet(deferred);
+            s_logger.debug("Deferred " + deferred + " snapshots at " + displayTime + " because their primary storage has too many snapshots running");
+        }
+    }
+
+    /**
+     * @return id of the snapshot job, null if the snapshot was not started.
+     */
+    private Long submitSnapshotJob(SnapshotScheduleVO snapshotToBeExecuted, VolumeVO volume) {
+        SnapshotScheduleVO tmpSnapshotScheduleVO = null;
+        long snapshotScheId = snapshotToBeExecuted.getId();
+        long policyId = snapshotToBeExecuted.getPolicyId();
+        long volumeId = volume.getId();
+        try {
+            if (s_logger.isDebugEnabled()) {
+                Date scheduledTimestamp = snapshotToBeExecuted.getScheduledTimestamp();
+                String displayTime = DateUtil.displayDateInTimezone(DateUtil.GMT_TIMEZONE, scheduledTimestamp);
+                s_logger.debug("Scheduling 1 snapshot for volume " + volumeId + " for schedule id: " + snapshotScheId + " at " + displayTime);
+            }
+
+            tmpSnapshotScheduleVO = _snapshotScheduleDao.acquireInLockTable(snapshotScheId);
+            if (tmpSnapshotScheduleVO == null || tmpSnapshotScheduleVO.getAsyncJobId() != null) {
+                return null;
+            }
+            Long eventId =
+                ActionEventUtils.onScheduledActionEvent(User.UID_SYSTEM, volume.getAccountId(), EventTypes.EVENT_SNAPSHOT_CREATE, "creating snapshot for volume Id:" +
+                    volumeId, 0);
+
+            Map<String, String> params = new HashMap<String, String>();
+            params.put(ApiConstants.VOLUME_ID, "" + volumeId);
+            params.put(ApiConstants.POLICY_ID, "" + policyId);
+            params.put("ctxUserId", "1");
+            params.put("ctxAccountId", "" + volume.getAccountId());
+            params.put("ctxStartEventId", String.valueOf(eventId));
+
+            CreateSnapshotCmd cmd = new CreateSnapshotCmd();
+            ComponentContext.inject(cmd);
+            ApiDispatcher.getInstance().dispatchCreateCmd(cmd, params);
+            params.put("id", "" + cmd.getEntityId());
+            params.put("ctxStartEventId", "1");
+
+            AsyncJobVO job = new AsyncJobVO("", User.UID_SYSTEM, volume.getAccountId(), CreateSnapshotCmd.class.getName(),
+                    ApiGsonHelper.getBuilder().create().toJson(params), cmd.getEntityId(),
+                    cmd.getInstanceType() != null ? cmd.getInstanceType().toString() : null);
+            job.setDispatcher(_asyncDispatcher.getName());
+
+            long jobId = _asyncMgr.submitAsyncJob(job);
+
+            tmpSnapshotScheduleVO.setAsyncJobId(jobId);
+            _snapshotScheduleDao.update(snapshotScheId, tmpSnapshotScheduleVO);
+            return jobId;
+        } catch (Exception e) {
+            s_logger.warn("Scheduling snapshot failed due to " + e.toString());
+            return null;
+        } finally {
+            if (tmpSnapshotScheduleVO != null) {
+                _snapshotScheduleDao.releaseFromLockTable(snapshotScheId);
             }
         }
     }
@@ -309,7 +458,7 @@ public class SnapshotSchedulerImpl extends ManagerBase implements SnapshotSchedu
         SnapshotScheduleVO spstSchedVO = _snapshotScheduleDao.findOneByVolumePolicy(policy.getVolumeId(), policy.getId());
         if (spstSchedVO == null) {
             spstSchedVO = new SnapshotScheduleVO(policy.getVolumeId(), policyId, nextSnapshotTimestamp);
-            _snapshotScheduleDao.persist(spstSchedVO);
+            spstSchedVO = _snapshotScheduleDao.persist(spstSchedVO);
         } else {
             try {
                 spstSchedVO = _snapshotScheduleDao.acquireInLockTable(spstSchedVO.getId());
@@ -324,9 +473,25 @@ public class SnapshotSchedulerImpl extends ManagerBase implements SnapshotSchedu
                 }
             }
         }
+
+        if (spstSchedVO != null) {
+            if (isOwner(spstSchedVO.getVolumeId())) {
+                queueSchedule(spstSchedVO);
+            } else {
+                publishSchedule(spstSchedVO.getId());
+            }
+        }
         return nextSnapshotTimestamp;
     }
 
+    protected void publishSchedule(long scheduleId) {
+        try {
+            _clusterMgr.publishMessage(SCHEDULE_SUBJECT, Long.toString(scheduleId));
+        } catch (Exception e) {
+            s_logger.warn("Unable to publish snapshot schedule " + scheduleId + " to the other management servers, its owner finds it on its next reconcile", e);
+        }
+    }
+
     @Override
     @DB
     public boolean removeSchedule(Long volumeId, Long policyId) {
@@ -335,6 +500,8 @@ public class SnapshotSchedulerImpl extends ManagerBase implements SnapshotSchedu
         boolean success = true;
         if (schedule != null) {
             success = _snapshotScheduleDao.remove(schedule.getId());
+            // the owner, if it is another management server, drops it when it comes due
+            _wheel.cancel(schedule.getId());
         }
         if (!success) {
             s_logger.debug("Error while deleting Snapshot schedule with Id: " + schedule.getId());
@@ -342,10 +509,63 @@ public class SnapshotSchedulerImpl extends ManagerBase implements SnapshotSchedu
         return success;
     }
 
+    @Override
+    public void onClusterMessage(String sourcePeer, String subject, String message) {
+        long scheduleId;
+        try {
+            scheduleId = Long.parseLong(message);
+        } catch (NumberFormatException e) {
+            s_logger.warn("Ignoring unknown snapshot schedule message from " + sourcePeer + ": " + message);
+            return;
+        }
+        SnapshotScheduleVO schedule = _snapshotScheduleDao.findById(scheduleId);
+        if (schedule != null && schedule.getAsyncJobId() == null && isOwner(schedule.getVolumeId())) {
+            queueSchedule(schedule);
+        }
+    }
+
+    @Override
+    public void onManagementNodeJoined(List<? extends ManagementServerHost> nodeList, long selfNodeId) {
+        _membershipChanged = true;
+    }
+
+    @Override
+    public void onManagementNodeLeft(List<? extends ManagementServerHost> nodeList, long selfNodeId) {
+        _membershipChanged = true;
+    }
+
+    @Override
+    public void onManagementNodeIsolated() {
+    }
+
+    public int getQueuedScheduleCount() {
+        return _wheel.size();
+    }
+
+    public int getExecutingSnapshotCount() {
+        return _executing.size();
+    }
+
+    public long getDeferredSnapshotCount() {
+        return _deferredCount.get();
+    }
+
+    @Override
+    public String getConfigComponentName() {
+        return SnapshotScheduler.class.getSimpleName();
+    }
+
+    @Override
+    public ConfigKey<?>[] getConfigKeys() {
+        return new ConfigKey<?>[] {SnapshotSchedulerTick, SnapshotSpreadHourly, SnapshotSpreadDaily, SnapshotSpreadWeekly, SnapshotSpreadMonthly,
+            SnapshotMaxConcurrentPerPool};
+    }
+
     @Override
     public boolean configure(String name, Map<String, Object> params) throws ConfigurationException {
 
         _snapshotPollInterval = NumbersUtil.parseInt(_configDao.getValue("snapshot.poll.interval"), 300);
+        _schedulerTick = Math.max(SnapshotSchedulerTick.value(), 1);
         boolean snapshotsRecurringTest = Boolean.parseBoolean(_configDao.getValue("snapshot.recurring.test"));
         if (snapshotsRecurringTest) {
             // look for some test values in the configuration table so that snapshots can be taken more frequently (QA test code)
@@ -359,6 +579,11 @@ public class SnapshotSchedulerImpl extends ManagerBase implements SnapshotSchedu
             _testTimerTask = new TestClock(this, minutesPerHour, hoursPerDay, daysPerWeek, daysPerMonth, weeksPerMonth, monthsPerYear);
         }
         _currentTimestamp = new Date();
+        _wheel = new SnapshotScheduleWheel(_schedulerTick * 1000L, WHEEL_SLOTS, _currentTimestamp.getTime());
+        _msId = ManagementServerNode.getManagementServerId();
+
+        _clusterMgr.registerListener(this);
+        _clusterMgr.registerMessageListener(SCHEDULE_SUBJECT, this);
 
         s_logger.info("Snapshot Scheduler is configured.");
 
@@ -368,10 +593,11 @@ public class SnapshotSchedulerImpl extends ManagerBase implements SnapshotSchedu
     @Override
     @DB
     public boolean start() {
-        // reschedule all policies after management restart
+        refreshManagementServers();
+        // reschedule the policies of the volumes this management server owns after management restart
         List<SnapshotPolicyVO> policyInstances = _snapshotPolicyDao.listAll();
         for (SnapshotPolicyVO policyInstance : policyInstances) {
-            if (policyInstance.getId() != Snapshot.MANUAL_POLICY_ID) {
+            if (policyInstance.getId() != Snapshot.MANUAL_POLICY_ID && isOwner(policyInstance.getVolumeId())) {
                 scheduleNextSnapshotJob(policyInstance);
             }
         }
@@ -393,7 +619,7 @@ public class SnapshotSchedulerImpl extends ManagerBase implements SnapshotSchedu
                 }
             };
             _testClockTimer = new Timer("SnapshotPollTask");
-            _testClockTimer.schedule(timerTask, _snapshotPollInterval * 1000L, _snapshotPollInterval * 1000L);
+            _testClockTimer.schedule(timerTask, _schedulerTick * 1000L, _schedulerTick * 1000L);
         }
 
         return true;
@@ -401,6 +627,8 @@ public class SnapshotSchedulerImpl extends ManagerBase implements SnapshotSchedu
 
     @Override
     public boolean stop() {
+        _clusterMgr.unregisterMessageListener(SCHEDULE_SUBJECT, this);
+        _clusterMgr.unregisterListener(this);
         return true;
     }
 }
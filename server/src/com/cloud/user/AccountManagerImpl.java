@@ -56,6 +56,7 @@ import org.apache.cloudstack.region.gslb.GlobalLoadBalancerRuleDao;
 import org.apache.commons.codec.binary.Base64;
 import org.apache.log4j.Logger;
 
+import com.cloud.api.ApiCredentialCache;
 import com.cloud.api.ApiDBUtils;
 import com.cloud.api.query.vo.ControlledViewEntity;
 import com.cloud.configuration.Config;
@@ -163,6 +164,8 @@ public class AccountManagerImpl extends ManagerBase implements AccountManager, M
     @Inject
     private AccountDao _accountDao;
     @Inject
+    private ApiCredentialCache _credentialCache;
+    @Inject
     ConfigurationDao _configDao;
     @Inject
     private ResourceCountDao _resourceCountDao;
@@ -503,6 +506,9 @@ public class AccountManagerImpl extends ManagerBase implements AccountManager, M
                     _userAccountDao.update(id, user);
                 }
             });
+            if (toDisable) {
+                _credentialCache.invalidateUser(id);
+            }
         } catch (Exception e) {
             s_logger.error("Failed to update login attempts for user with id " + id);
         }
@@ -511,7 +517,9 @@ public class AccountManagerImpl extends ManagerBase implements AccountManager, M
     private boolean doSetUserStatus(long userId, State state) {
         UserVO userForUpdate = _userDao.createForUpdate();
         userForUpdate.setState(state);
-        return _userDao.update(Long.valueOf(userId), userForUpdate);
+        boolean success = _userDao.update(Long.valueOf(userId), userForUpdate);
+        _credentialCache.invalidateUser(userId);
+        return success;
     }
 
     @Override
@@ -521,6 +529,7 @@ public class AccountManagerImpl extends ManagerBase implements AccountManager, M
         acctForUpdate.setState(State.enabled);
         acctForUpdate.setNeedsCleanup(false);
         success = _accountDao.update(Long.valueOf(accountId), acctForUpdate);
+        _credentialCache.invalidateAccount(accountId);
         return success;
     }
 
@@ -534,6 +543,7 @@ public class AccountManagerImpl extends ManagerBase implements AccountManager, M
                 AccountVO acctForUpdate = _accountDao.createForUpdate();
                 acctForUpdate.setState(State.locked);
                 success = _accountDao.update(Long.valueOf(accountId), acctForUpdate);
+                _credentialCache.invalidateAccount(accountId);
             } else {
                 if (s_logger.isInfoEnabled()) {
                     s_logger.info("Attempting to lock a non-enabled account, current state is " + account.getState() + " (accountId: " + accountId + "), locking failed.");
@@ -554,6 +564,7 @@ public class AccountManagerImpl extends ManagerBase implements AccountManager, M
             s_logger.error("Unable to delete account " + accountId);
             return false;
         }
+        _credentialCache.invalidateAccount(accountId);
 
         if (s_logger.isDebugEnabled()) {
             s_logger.debug("Removed account " + accountId);
@@ -814,6 +825,7 @@ public class AccountManagerImpl extends ManagerBase implements AccountManager, M
             AccountVO acctForUpdate = _accountDao.createForUpdate();
             acctForUpdate.setState(State.disabled);
             success = _accountDao.update(Long.valueOf(accountId), acctForUpdate);
+            _credentialCache.invalidateAccount(accountId);
 
             if (success) {
                 boolean disableAccountResult = false;
@@ -1105,6 +1117,7 @@ public class AccountManagerImpl extends ManagerBase implements AccountManager, M
             }
 
             _userDao.update(id, user);
+            _credentialCache.invalidateUser(id);
         } catch (Throwable th) {
             s_logger.error("error updating user", th);
             throw new CloudRuntimeException("Unable to update user " + id);
@@ -1487,6 +1500,7 @@ public class AccountManagerImpl extends ManagerBase implements AccountManager, M
         });
 
         if (success) {
+            _credentialCache.invalidateAccount(account.getId());
             CallContext.current().putContextParameter(Account.class, account.getUuid());
             return _accountDao.findById(account.getId());
         } else {
@@ -1519,7 +1533,9 @@ public class AccountManagerImpl extends ManagerBase implements AccountManager, M
 
         checkAccess(CallContext.current().getCallingAccount(), null, true, account);
         CallContext.current().putContextParameter(User.class, user.getUuid());
-        return _userDao.remove(id);
+        boolean success = _userDao.remove(id);
+        _credentialCache.invalidateUser(id);
+        return success;
     }
 
     protected class AccountCleanupTask extends ManagedContextRunnable {
@@ -2066,6 +2082,7 @@ public class AccountManagerImpl extends ManagerBase implements AccountManager, M
                 keys[1] = createUserSecretKey(userId);
             }
         });
+        _credentialCache.invalidateUser(userId);
 
         return keys;
     }
@@ -18,7 +18,9 @@
  */
 package com.cloud.api;
 
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 
 import org.junit.After;
 import org.junit.Assert;
@@ -30,6 +32,10 @@ import org.mockito.Mockito;
 import org.mockito.runners.MockitoJUnitRunner;
 
 import org.apache.cloudstack.api.BaseCmd;
+import org.apache.cloudstack.api.BaseResponse;
+import org.apache.cloudstack.api.EntityReference;
+import org.apache.cloudstack.api.Identity;
+import org.apache.cloudstack.api.InternalIdentity;
 import org.apache.cloudstack.api.Parameter;
 import org.apache.cloudstack.api.ServerApiException;
 import org.apache.cloudstack.context.CallContext;
@@ -42,6 +48,7 @@ import com.cloud.exception.ResourceUnavailableException;
 import com.cloud.user.Account;
 import com.cloud.user.AccountManager;
 import com.cloud.user.User;
+import com.cloud.utils.db.EntityManager;
 
 @RunWith(MockitoJUnitRunner.class)
 public class ApiDispatcherTest {
@@ -49,6 +56,16 @@ public class ApiDispatcherTest {
     @Mock
     AccountManager accountManager;
 
+    @Mock
+    EntityManager entityManager;
+
+    public interface TestEntity extends Identity, InternalIdentity {
+    }
+
+    @EntityReference(value = TestEntity.class)
+    public static class TestEntityResponse extends BaseResponse {
+    }
+
     public static class TestCmd extends BaseCmd {
 
         @Parameter(name = "strparam1")
@@ -60,6 +77,9 @@ public class ApiDispatcherTest {
         @Parameter(name = "boolparam1", type = CommandType.BOOLEAN)
         boolean boolparam1;
 
+        @Parameter(name = "ids", type = CommandType.LIST, collectionType = CommandType.UUID, entityType = TestEntityResponse.class, since = "4.3")
+        List<Long> ids;
+
         @Override
         public void execute() throws ResourceUnavailableException, InsufficientCapacityException, ServerApiException, ConcurrentOperationException,
             ResourceAllocationException, NetworkRuleConflictException {
@@ -83,6 +103,7 @@ public class ApiDispatcherTest {
         CallContext.register(Mockito.mock(User.class), Mockito.mock(Account.class));
         new ApiDispatcher().init();
         ApiDispatcher.getInstance()._accountMgr = accountManager;
+        ApiDispatcher.getInstance()._entityMgr = entityManager;
     }
 
     @After
@@ -103,4 +124,26 @@ public class ApiDispatcherTest {
         Assert.assertEquals(100, cmd.intparam1);
     }
 
+    private TestEntity mockEntity(String uuid, long id) {
+        TestEntity entity = Mockito.mock(TestEntity.class);
+        Mockito.when(entity.getUuid()).thenReturn(uuid);
+        Mockito.when(entity.getId()).thenReturn(id);
+        return entity;
+    }
+
+    @Test
+    public void processParametersBatchesUuids() {
+        String uuid1 = "0f2d4a1c-7c1e-4b7e-9c55-0a5a7b1e2c01";
+        String uuid2 = "0f2d4a1c-7c1e-4b7e-9c55-0a5a7b1e2c02";
+        Mockito.doReturn(Arrays.asList(mockEntity(uuid1, 1L), mockEntity(uuid2, 2L)))
+            .when(entityManager)
+            .listByUuidsIncludingRemoved(Mockito.eq(TestEntity.class), Mockito.anyCollectionOf(String.class));
+
+        HashMap<String, String> params = new HashMap<String, String>();
+        params.put("ids", uuid2 + "," + uuid1);
+        TestCmd cmd = new TestCmd();
+        ApiDispatcher.processParameters(cmd, params);
+        Assert.assertEquals(Arrays.asList(2L, 1L), cmd.ids);
+        Mockito.verify(entityManager, Mockito.never()).findByUuidIncludingRemoved(Mockito.eq(TestEntity.class), Mockito.anyString());
+    }
 }
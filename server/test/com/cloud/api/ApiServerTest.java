@@ -0,0 +1,99 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.api;
+
+import java.net.URLEncoder;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.cloud.user.Account;
+import com.cloud.user.AccountVO;
+import com.cloud.user.UserVO;
+
+public class ApiServerTest {
+
+    private static String expectedUnsignedRequest(String[] sortedNames, Map<String, Object[]> params) throws Exception {
+        String unsignedRequest = null;
+        for (String paramName : sortedNames) {
+            if ("signature".equalsIgnoreCase(paramName)) {
+                continue;
+            }
+            String paramValue = ((String[])params.get(paramName))[0];
+            String pair = paramName + "=" + URLEncoder.encode(paramValue, "UTF-8").replaceAll("\\+", "%20");
+            unsignedRequest = unsignedRequest == null ? pair : unsignedRequest + "&" + pair;
+        }
+        return unsignedRequest.toLowerCase();
+    }
+
+    @Test
+    public void buildUnsignedRequestMatchesUrlEncoder() throws Exception {
+        Map<String, Object[]> params = new HashMap<String, Object[]>();
+        params.put("command", new String[] {"deployVirtualMachine"});
+        params.put("apiKey", new String[] {"Ab-c_D.e*F"});
+        params.put("displayName", new String[] {"my vm + name/with&odd=chars~!'()"});
+        params.put("userData", new String[] {"caf\u00e9 \u65e5\u672c \ud83d\ude00"});
+        params.put("signature", new String[] {"ignored"});
+        params.put("response", new String[] {"json"});
+
+        String[] names = params.keySet().toArray(new String[params.size()]);
+        Arrays.sort(names);
+
+        Assert.assertEquals(expectedUnsignedRequest(names, params), ApiServer.buildUnsignedRequest(names, params));
+    }
+
+    @Test
+    public void buildUnsignedRequestEncodesEmptyValues() throws Exception {
+        Map<String, Object[]> params = new HashMap<String, Object[]>();
+        params.put("command", new String[] {"listZones"});
+        params.put("name", new String[] {""});
+
+        String[] names = params.keySet().toArray(new String[params.size()]);
+        Arrays.sort(names);
+
+        Assert.assertEquals("command=listzones&name=", ApiServer.buildUnsignedRequest(names, params));
+    }
+
+    @Test
+    public void credentialsDetectChangedUserAndAccount() throws Exception {
+        UserVO user = new UserVO(2);
+        user.setAccountId(3);
+        user.setApiKey("key");
+        user.setSecretKey("secret");
+        user.setState(Account.State.enabled);
+        AccountVO account = new AccountVO(3);
+        account.setState(Account.State.enabled);
+
+        ApiCredentialCache.Credentials credentials = new ApiCredentialCache.Credentials("key", user, account, Long.MAX_VALUE);
+        Assert.assertTrue(credentials.matches(user, account));
+        Assert.assertFalse(credentials.matches(null, account));
+
+        account.setState(Account.State.disabled);
+        Assert.assertFalse(credentials.matches(user, account));
+        account.setState(Account.State.enabled);
+
+        user.setSecretKey("rotated");
+        Assert.assertFalse(credentials.matches(user, account));
+        user.setSecretKey("secret");
+
+        user.setApiKey("other");
+        Assert.assertFalse(credentials.matches(user, account));
+    }
+}
@@ -0,0 +1,80 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.api.response;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import org.apache.cloudstack.api.BaseCmd;
+import org.apache.cloudstack.api.BaseResponse;
+import org.apache.cloudstack.api.response.ListResponse;
+
+import com.google.gson.annotations.SerializedName;
+
+public class ApiResponseSerializerTest extends TestCase {
+
+    public static class TestResponse extends BaseResponse {
+        @SerializedName("name")
+        private String name;
+
+        public TestResponse(String name) {
+            this.name = name;
+            setObjectName("test");
+        }
+    }
+
+    private ListResponse<TestResponse> createListResponse(int count) {
+        List<TestResponse> responses = new ArrayList<TestResponse>();
+        for (int i = 0; i < count; i++) {
+            responses.add(new TestResponse("test-" + i + "<&>"));
+        }
+        ListResponse<TestResponse> response = new ListResponse<TestResponse>();
+        response.setResponses(responses);
+        response.setResponseName("listtestsresponse");
+        return response;
+    }
+
+    @Test
+    public void testUnescape() {
+        assertEquals("<b>a & b</b>", ApiResponseSerializer.unescape("\\u003cb\\u003ea \\u0026 b\\u003c/b\\u003e"));
+        assertEquals("\\u00zz", ApiResponseSerializer.unescape("\\u00zz"));
+        assertEquals("end \\u00", ApiResponseSerializer.unescape("end \\u00"));
+    }
+
+    @Test
+    public void testSerializeJSONList() throws Exception {
+        ListResponse<TestResponse> response = createListResponse(3);
+
+        StringWriter out = new StringWriter();
+        ApiResponseSerializer.serialize(response, BaseCmd.RESPONSE_TYPE_JSON, out);
+
+        String json = ApiResponseSerializer.toSerializedString(response, BaseCmd.RESPONSE_TYPE_JSON);
+        assertEquals(json, out.toString());
+        assertEquals("{ \"listtestsresponse\" : { \"count\":3 ,\"test\" : [  {\"name\":\"test-0<&>\"}, {\"name\":\"test-1<&>\"}, {\"name\":\"test-2<&>\"} ] } }",
+            json);
+    }
+
+    @Test
+    public void testSerializeJSONEmptyList() throws Exception {
+        assertEquals("{ \"listtestsresponse\" : { } }", ApiResponseSerializer.toSerializedString(createListResponse(0), BaseCmd.RESPONSE_TYPE_JSON));
+    }
+}
@@ -21,6 +21,7 @@ import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Matchers.isA;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import org.junit.Assert;
@@ -29,6 +30,8 @@ import org.junit.Test;
 import com.cloud.capacity.dao.CapacityDao;
 import com.cloud.dc.ClusterDetailsDao;
 import com.cloud.dc.ClusterDetailsVO;
+import com.cloud.host.HostVO;
+import com.cloud.host.dao.HostDao;
 import com.cloud.service.ServiceOfferingVO;
 import com.cloud.service.dao.ServiceOfferingDao;
 import com.cloud.vm.VirtualMachine;
@@ -44,6 +47,8 @@ public class CapacityManagerTest {
     private VirtualMachine vm = mock(VirtualMachine.class);
     private ClusterDetailsVO clusterDetailCpu = mock(ClusterDetailsVO.class);
     private ClusterDetailsVO clusterDetailRam = mock(ClusterDetailsVO.class);
+    HostDao HDao = mock(HostDao.class);
+    private HostVO host = mock(HostVO.class);
 
     public CapacityManagerImpl setUp() {
         CapacityManagerImpl capMgr = new CapacityManagerImpl();
@@ -76,4 +81,56 @@ public class CapacityManagerTest {
         Assert.assertTrue(hasCapacity);
 
     }
+
+    @Test
+    public void plannedCapacityTest() {
+        capMgr = setUp();
+        capMgr._hostDao = HDao;
+        when(HDao.findById(anyLong())).thenReturn(host);
+        when(host.getClusterId()).thenReturn(3l);
+        when(ClusterDetailsDao.findDetail(3l, "cpuOvercommitRatio")).thenReturn(clusterDetailCpu);
+        when(ClusterDetailsDao.findDetail(3l, "memoryOvercommitRatio")).thenReturn(clusterDetailRam);
+        when(clusterDetailCpu.getValue()).thenReturn("1");
+        when(clusterDetailRam.getValue()).thenReturn("1");
+        when(CDao.findByHostIdType(anyLong(), eq(Capacity.CAPACITY_TYPE_CPU))).thenReturn(cvoCpu);
+        when(CDao.findByHostIdType(anyLong(), eq(Capacity.CAPACITY_TYPE_MEMORY))).thenReturn(cvoRam);
+        when(cvoCpu.getId()).thenReturn(1l);
+        when(cvoRam.getId()).thenReturn(2l);
+        when(CDao.lockRow(1l, true)).thenReturn(cvoCpu);
+        when(CDao.lockRow(2l, true)).thenReturn(cvoRam);
+        when(cvoCpu.getUsedCapacity()).thenReturn(500l);
+        when(cvoCpu.getTotalCapacity()).thenReturn(2000l);
+        when(cvoRam.getUsedCapacity()).thenReturn(0l);
+        when(cvoRam.getTotalCapacity()).thenReturn((long)1024 * 1024 * 1024);
+        when(cvoCpu.getReservedCapacity()).thenReturn(0l);
+        when(cvoRam.getReservedCapacity()).thenReturn(0l);
+
+        // the held capacity goes to the reserved capacity of the host
+        Assert.assertTrue(capMgr.holdPlannedCapacity(1l, 1500, 1024));
+        verify(cvoCpu).setReservedCapacity(1500l);
+        verify(cvoRam).setReservedCapacity(1024l);
+
+        // a vm planned on the host but not started yet takes the rest of its cpu
+        when(cvoCpu.getReservedCapacity()).thenReturn(1500l);
+        when(cvoRam.getReservedCapacity()).thenReturn(1024l);
+        Assert.assertFalse(capMgr.holdPlannedCapacity(1l, 500, 1024));
+        Assert.assertFalse(capMgr.checkIfHostHasCapacity(1l, 500, 1024, false, 1, 1, true));
+    }
+
+    @Test
+    public void mayHaveCapacityWithoutIndexTest() {
+        capMgr = setUp();
+        when(CDao.findByHostIdType(anyLong(), eq(Capacity.CAPACITY_TYPE_CPU))).thenReturn(cvoCpu);
+        when(CDao.findByHostIdType(anyLong(), eq(Capacity.CAPACITY_TYPE_MEMORY))).thenReturn(cvoRam);
+        when(cvoCpu.getUsedCapacity()).thenReturn(1500l);
+        when(cvoCpu.getTotalCapacity()).thenReturn(2000l);
+        when(cvoRam.getUsedCapacity()).thenReturn(0l);
+        when(cvoRam.getTotalCapacity()).thenReturn((long)1024 * 1024 * 1024);
+        when(cvoCpu.getReservedCapacity()).thenReturn(0l);
+        when(cvoRam.getReservedCapacity()).thenReturn(0l);
+
+        // the index is not loaded, the hosts are screened on the database rows
+        Assert.assertTrue(capMgr.checkIfHostMayHaveCapacity(1l, 500, 1024, 1, 1, true));
+        Assert.assertFalse(capMgr.checkIfHostMayHaveCapacity(1l, 1000, 1024, 1, 1, true));
+    }
 }
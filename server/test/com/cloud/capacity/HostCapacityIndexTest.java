@@ -0,0 +1,120 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.capacity;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cloud.utils.Pair;
+
+public class HostCapacityIndexTest {
+    private HostCapacityIndex index;
+    private List<CapacityVO> rows;
+    private Map<Long, double[]> ratios;
+
+    private static CapacityVO row(long hostId, long podId, long clusterId, long used, long total, long reserved, short type) {
+        CapacityVO capacity = new CapacityVO(hostId, 1L, podId, clusterId, used, total, type);
+        capacity.setReservedCapacity(reserved);
+        return capacity;
+    }
+
+    @Before
+    public void setUp() {
+        index = new HostCapacityIndex();
+        rows = new ArrayList<CapacityVO>();
+        // cluster 10 in pod 1 is almost full, cluster 20 in pod 2 is empty
+        rows.add(row(1, 1, 10, 3500, 4000, 0, Capacity.CAPACITY_TYPE_CPU));
+        rows.add(row(1, 1, 10, 7000, 8192, 0, Capacity.CAPACITY_TYPE_MEMORY));
+        rows.add(row(2, 2, 20, 0, 4000, 0, Capacity.CAPACITY_TYPE_CPU));
+        rows.add(row(2, 2, 20, 0, 8192, 0, Capacity.CAPACITY_TYPE_MEMORY));
+        ratios = new HashMap<Long, double[]>();
+        ratios.put(10L, new double[] {1, 1});
+        ratios.put(20L, new double[] {1, 1});
+    }
+
+    @Test
+    public void testListAndOrderClusters() {
+        Assert.assertFalse(index.isLoaded());
+        index.reconcile(index.beginReconcile(), rows, ratios);
+        Assert.assertTrue(index.isLoaded());
+
+        Assert.assertEquals(Arrays.asList(20L), index.listClustersByHostCapacities(1L, 1000, 2048, true));
+        Assert.assertEquals(2, index.listClustersByHostCapacities(1L, 500, 1024, true).size());
+        Assert.assertEquals(Arrays.asList(10L), index.listClustersByHostCapacities(1L, 500, 1024, false));
+
+        Pair<List<Long>, Map<Long, Double>> ordered = index.orderClustersByAggregateCapacity(1L, Capacity.CAPACITY_TYPE_CPU, true);
+        Assert.assertEquals(Arrays.asList(20L, 10L), ordered.first());
+        Assert.assertEquals(0.875, ordered.second().get(10L), 0.0001);
+        Assert.assertNull(index.orderClustersByAggregateCapacity(1L, Capacity.CAPACITY_TYPE_STORAGE, true));
+    }
+
+    @Test
+    public void testOvercommitRatioAndReservedCapacity() {
+        ratios.put(10L, new double[] {2, 1});
+        index.reconcile(index.beginReconcile(), rows, ratios);
+        Assert.assertEquals(2, index.listClustersByHostCapacities(1L, 1000, 1024, true).size());
+
+        // reserved capacity counts as free, as it does in the database queries
+        index.update(row(2, 2, 20, 4000, 4000, 1000, Capacity.CAPACITY_TYPE_CPU));
+        Assert.assertTrue(index.listPodsByHostCapacities(1L, 1000, 1024).contains(2L));
+    }
+
+    @Test
+    public void testWriteThroughAndRemove() {
+        index.reconcile(index.beginReconcile(), rows, ratios);
+        index.update(row(2, 2, 20, 3900, 4000, 0, Capacity.CAPACITY_TYPE_CPU));
+        Assert.assertEquals(3900, index.getUsage(2L, Capacity.CAPACITY_TYPE_CPU).getUsed());
+        Assert.assertTrue(index.listPodsByHostCapacities(1L, 1000, 1024).isEmpty());
+
+        index.removeHost(2L);
+        Assert.assertNull(index.getUsage(2L, Capacity.CAPACITY_TYPE_CPU));
+        Assert.assertEquals(Arrays.asList(1L), index.orderPodsByAggregateCapacity(1L, Capacity.CAPACITY_TYPE_MEMORY).first());
+    }
+
+    @Test
+    public void testReconcileKeepsNewerWrites() {
+        index.reconcile(index.beginReconcile(), rows, ratios);
+
+        long startVersion = index.beginReconcile();
+        // written through while the rows were being read from the database
+        index.update(row(2, 2, 20, 1000, 4000, 0, Capacity.CAPACITY_TYPE_CPU));
+        int drift = index.reconcile(startVersion, rows, ratios);
+        Assert.assertEquals(0, drift);
+        Assert.assertEquals(1000, index.getUsage(2L, Capacity.CAPACITY_TYPE_CPU).getUsed());
+
+        // a later reconciliation replaces it with the database content
+        drift = index.reconcile(index.beginReconcile(), rows, ratios);
+        Assert.assertEquals(1, drift);
+        Assert.assertEquals(0, index.getUsage(2L, Capacity.CAPACITY_TYPE_CPU).getUsed());
+    }
+
+    @Test
+    public void testReconcileDropsRemovedHosts() {
+        index.reconcile(index.beginReconcile(), rows, ratios);
+        int drift = index.reconcile(index.beginReconcile(), rows.subList(0, 2), ratios);
+        Assert.assertEquals(1, drift);
+        Assert.assertEquals(1, index.size());
+        Assert.assertNull(index.getUsage(2L, Capacity.CAPACITY_TYPE_MEMORY));
+    }
+}
@@ -0,0 +1,67 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.ha;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.cloud.ha.HighAvailabilityManager.WorkType;
+import com.cloud.vm.VirtualMachine;
+
+public class HaWorkQueueTest {
+
+    @Test
+    public void testPriority() throws Exception {
+        HaWorkQueue queue = new HaWorkQueue();
+        long now = System.currentTimeMillis();
+        queue.offer(1, now, HaWorkQueue.getPriority(WorkType.Destroy, VirtualMachine.Type.User));
+        queue.offer(2, now, HaWorkQueue.getPriority(WorkType.HA, VirtualMachine.Type.User));
+        queue.offer(3, now, HaWorkQueue.getPriority(WorkType.HA, VirtualMachine.Type.DomainRouter));
+        queue.offer(4, now, HaWorkQueue.getPriority(WorkType.Stop, VirtualMachine.Type.DomainRouter));
+        // already queued
+        queue.offer(2, now, 0);
+        Assert.assertEquals(4, queue.size());
+
+        Assert.assertEquals(Long.valueOf(3), queue.take(0));
+        Assert.assertEquals(Long.valueOf(2), queue.take(0));
+        Assert.assertEquals(Long.valueOf(4), queue.take(0));
+        Assert.assertEquals(Long.valueOf(1), queue.take(0));
+        Assert.assertNull(queue.take(0));
+        Assert.assertEquals(4, queue.getDispatchedCount());
+    }
+
+    @Test
+    public void testDelayedWork() throws Exception {
+        HaWorkQueue queue = new HaWorkQueue();
+        long now = System.currentTimeMillis();
+        queue.offer(1, now + 200, 0);
+        queue.offer(2, now, 30);
+
+        Assert.assertEquals(Long.valueOf(2), queue.take(0));
+        Assert.assertNull(queue.take(0));
+        Assert.assertEquals(1, queue.size());
+
+        Long workId = null;
+        long deadline = System.currentTimeMillis() + 5000;
+        while (workId == null && System.currentTimeMillis() < deadline) {
+            workId = queue.take(1000);
+        }
+        Assert.assertEquals(Long.valueOf(1), workId);
+        Assert.assertTrue(System.currentTimeMillis() >= now + 200);
+        Assert.assertEquals(0, queue.size());
+    }
+}
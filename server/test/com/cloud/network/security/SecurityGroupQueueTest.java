@@ -17,8 +17,10 @@
 package com.cloud.network.security;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import junit.framework.TestCase;
@@ -216,4 +218,67 @@ public class SecurityGroupQueueTest extends TestCase {
         _testDequeueOneJob(10, 1, 10);
     }
 
+    public void testWorkForHost() throws InterruptedException {
+        LocalSecurityGroupWorkQueue hostQueue = new LocalSecurityGroupWorkQueue();
+        Map<Long, Long> vmHostIds = new HashMap<Long, Long>();
+        for (long vmId = 1; vmId <= 30; vmId++) {
+            vmHostIds.put(vmId, vmId % 3);
+        }
+        assertEquals(30, hostQueue.submitWorkForVms(vmHostIds, false));
+        assertEquals(3, hostQueue.getQueueSizePerHost().size());
+        assertEquals(10, hostQueue.getQueueSizePerHost().get(1L).intValue());
+
+        List<SecurityGroupWork> work = hostQueue.getWorkForHost(100);
+        assertEquals(10, work.size());
+        long hostId = ((LocalSecurityGroupWorkQueue.LocalSecurityGroupWork)work.get(0)).getHostId();
+        for (SecurityGroupWork w : work) {
+            assertEquals(hostId, w.getInstanceId() % 3);
+        }
+        assertEquals(20, hostQueue.size());
+        assertEquals(2, hostQueue.getQueueSizePerHost().size());
+
+        work = hostQueue.getWorkForHost(4);
+        assertEquals(4, work.size());
+        assertEquals(16, hostQueue.size());
+    }
+
+    public void testPriorityWorkGoesFirst() throws InterruptedException {
+        LocalSecurityGroupWorkQueue hostQueue = new LocalSecurityGroupWorkQueue();
+        Map<Long, Long> background = new HashMap<Long, Long>();
+        background.put(1L, 10L);
+        background.put(2L, 10L);
+        background.put(3L, 20L);
+        hostQueue.submitWorkForVms(background, false);
+
+        Map<Long, Long> started = new HashMap<Long, Long>();
+        started.put(4L, 30L);
+        // already queued vms are coalesced, but become urgent
+        started.put(3L, 20L);
+        assertEquals(1, hostQueue.submitWorkForVms(started, true));
+        assertEquals(1, hostQueue.getCoalescedCount());
+
+        List<SecurityGroupWork> work = hostQueue.getWorkForHost(100);
+        assertEquals(1, work.size());
+        assertTrue(((LocalSecurityGroupWorkQueue.LocalSecurityGroupWork)work.get(0)).isPriority());
+        work.addAll(hostQueue.getWorkForHost(100));
+        assertEquals(2, work.size());
+        assertEquals(7L, work.get(0).getInstanceId() + work.get(1).getInstanceId());
+
+        work = hostQueue.getWorkForHost(100);
+        assertEquals(2, work.size());
+        assertEquals(0, hostQueue.size());
+    }
+
+    public void testMovedVmChangesHost() throws InterruptedException {
+        LocalSecurityGroupWorkQueue hostQueue = new LocalSecurityGroupWorkQueue();
+        Map<Long, Long> vmHostIds = new HashMap<Long, Long>();
+        vmHostIds.put(1L, 10L);
+        hostQueue.submitWorkForVms(vmHostIds, false);
+        vmHostIds.put(1L, 20L);
+        assertEquals(0, hostQueue.submitWorkForVms(vmHostIds, false));
+        assertEquals(1, hostQueue.getQueueSizePerHost().size());
+        assertEquals(1, hostQueue.getQueueSizePerHost().get(20L).intValue());
+        assertEquals(1, hostQueue.getWorkForHost(10).size());
+        assertEquals(0, hostQueue.size());
+    }
 }
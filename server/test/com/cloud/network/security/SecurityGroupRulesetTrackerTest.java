@@ -0,0 +1,123 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.network.security;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+import com.cloud.network.security.SecurityGroupManagerImpl.CidrComparator;
+import com.cloud.network.security.SecurityGroupManagerImpl.PortAndProto;
+import com.cloud.network.security.SecurityGroupRulesetTracker.RulesetDelta;
+
+public class SecurityGroupRulesetTrackerTest {
+    private static final PortAndProto SSH = new PortAndProto("tcp", 22, 22);
+    private static final PortAndProto HTTP = new PortAndProto("tcp", 80, 80);
+
+    private static Map<PortAndProto, Set<String>> rules(PortAndProto portAndProto, String... cidrs) {
+        Map<PortAndProto, Set<String>> rules = new TreeMap<PortAndProto, Set<String>>();
+        Set<String> set = new TreeSet<String>(new CidrComparator());
+        for (String cidr : cidrs) {
+            set.add(cidr);
+        }
+        rules.put(portAndProto, set);
+        return rules;
+    }
+
+    private static Map<PortAndProto, Set<String>> none() {
+        return new TreeMap<PortAndProto, Set<String>>();
+    }
+
+    @Test
+    public void testUnchangedRulesetIsSkipped() {
+        SecurityGroupRulesetTracker tracker = new SecurityGroupRulesetTracker();
+        assertFalse(tracker.isUnchanged(1L, 10L, "sig1", "nic"));
+
+        tracker.recordSent(1L, 10L, 5L, "sig1", "nic", rules(SSH, "10.1.1.1/32"), none());
+        assertTrue(tracker.isUnchanged(1L, 10L, "sig1", "nic"));
+        assertFalse(tracker.isUnchanged(1L, 10L, "sig2", "nic"));
+        assertFalse(tracker.isUnchanged(1L, 10L, "sig1", "nic2"));
+        // migrated vms get the full ruleset
+        assertFalse(tracker.isUnchanged(1L, 11L, "sig1", "nic"));
+    }
+
+    @Test
+    public void testDelta() {
+        SecurityGroupRulesetTracker tracker = new SecurityGroupRulesetTracker();
+        tracker.recordSent(1L, 10L, 5L, "sig1", "nic", rules(SSH, "10.1.1.1/32", "10.1.1.2/32"), rules(HTTP, "0.0.0.0/0"));
+
+        RulesetDelta delta = tracker.getDelta(1L, 10L, "nic", rules(SSH, "10.1.1.2/32", "10.1.1.3/32"), rules(HTTP, "0.0.0.0/0"));
+        assertNotNull(delta);
+        assertEquals("sig1", delta.getBaseSignature());
+        assertEquals(2, delta.getNumCidrs());
+        assertTrue(delta.getAddedIngress().get(SSH).contains("10.1.1.3/32"));
+        assertTrue(delta.getRevokedIngress().get(SSH).contains("10.1.1.1/32"));
+        assertTrue(delta.getAddedEgress().isEmpty());
+        assertTrue(delta.getRevokedEgress().isEmpty());
+
+        assertNull(tracker.getDelta(1L, 11L, "nic", none(), none()));
+        assertNull(tracker.getDelta(1L, 10L, "nic2", none(), none()));
+        assertNull(tracker.getDelta(2L, 10L, "nic", none(), none()));
+    }
+
+    @Test
+    public void testFailedAnswerForgetsVm() {
+        SecurityGroupRulesetTracker tracker = new SecurityGroupRulesetTracker();
+        tracker.recordSent(1L, 10L, 5L, "sig1", "nic", rules(SSH, "10.1.1.1/32"), none());
+        assertFalse(tracker.isInSync(1L, 5L));
+
+        tracker.recordAnswer(1L, 5L, true);
+        assertTrue(tracker.isInSync(1L, 5L));
+        assertFalse(tracker.isInSync(1L, 4L));
+
+        tracker.recordAnswer(1L, 5L, false);
+        assertFalse(tracker.isInSync(1L, 5L));
+        assertFalse(tracker.isUnchanged(1L, 10L, "sig1", "nic"));
+    }
+
+    @Test
+    public void testIdenticalRulesetsAreShared() {
+        SecurityGroupRulesetTracker tracker = new SecurityGroupRulesetTracker();
+        for (long vmId = 1; vmId <= 100; vmId++) {
+            tracker.recordSent(vmId, vmId % 4, 1L, "sig1", "nic" + vmId, rules(SSH, "10.1.1.1/32"), none());
+        }
+        assertEquals(100, tracker.getTrackedVmCount());
+        assertEquals(1, tracker.getDistinctRulesetCount());
+
+        tracker.recordSent(1L, 1L, 2L, "sig2", "nic1", rules(SSH, "10.1.1.2/32"), none());
+        assertEquals(2, tracker.getDistinctRulesetCount());
+
+        tracker.forgetHost(1L);
+        assertEquals(75, tracker.getTrackedVmCount());
+        assertEquals(1, tracker.getDistinctRulesetCount());
+
+        for (long vmId = 1; vmId <= 100; vmId++) {
+            tracker.forget(vmId);
+        }
+        assertEquals(0, tracker.getTrackedVmCount());
+        assertEquals(0, tracker.getDistinctRulesetCount());
+    }
+}
@@ -0,0 +1,97 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.storage.snapshot;
+
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SnapshotScheduleWheelTest {
+
+    @Test
+    public void testAdvance() throws Exception {
+        SnapshotScheduleWheel wheel = new SnapshotScheduleWheel(1000, 8, 0);
+        wheel.schedule(1, 10, 2500);
+        wheel.schedule(2, 20, 2100);
+        wheel.schedule(3, 30, 5000);
+        // due in a later round of the wheel
+        wheel.schedule(4, 40, 9000);
+        Assert.assertEquals(4, wheel.size());
+
+        Assert.assertTrue(wheel.advance(1999).isEmpty());
+
+        List<SnapshotScheduleWheel.Entry> due = wheel.advance(2999);
+        Assert.assertEquals(2, due.size());
+        Assert.assertEquals(2, due.get(0).getScheduleId());
+        Assert.assertEquals(1, due.get(1).getScheduleId());
+
+        due = wheel.advance(8999);
+        Assert.assertEquals(1, due.size());
+        Assert.assertEquals(3, due.get(0).getScheduleId());
+
+        due = wheel.advance(9000);
+        Assert.assertEquals(1, due.size());
+        Assert.assertEquals(4, due.get(0).getScheduleId());
+        Assert.assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testRescheduleAndCancel() throws Exception {
+        SnapshotScheduleWheel wheel = new SnapshotScheduleWheel(1000, 8, 0);
+        wheel.schedule(1, 10, 2000);
+        wheel.schedule(1, 10, 4000);
+        wheel.schedule(2, 20, 3000);
+        Assert.assertEquals(2, wheel.size());
+        Assert.assertTrue(wheel.cancel(2));
+        Assert.assertFalse(wheel.cancel(2));
+
+        Assert.assertTrue(wheel.advance(3000).isEmpty());
+        Assert.assertEquals(1, wheel.advance(4000).size());
+
+        // schedules due in the past go off on the next tick
+        wheel.schedule(3, 30, 1000);
+        Assert.assertTrue(wheel.advance(4999).isEmpty());
+        Assert.assertEquals(1, wheel.advance(5000).size());
+    }
+
+    @Test
+    public void testAdvancePastWholeWheel() throws Exception {
+        SnapshotScheduleWheel wheel = new SnapshotScheduleWheel(1000, 4, 0);
+        for (long i = 1; i <= 20; i++) {
+            wheel.schedule(i, i, i * 1000);
+        }
+        Assert.assertEquals(20, wheel.advance(100000).size());
+        Assert.assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testSpreadOffset() throws Exception {
+        Assert.assertEquals(0, SnapshotScheduleWheel.getSpreadOffset(5, 0));
+        long window = 600 * 1000L;
+        long[] counts = new long[10];
+        for (long volumeId = 1; volumeId <= 1000; volumeId++) {
+            long offset = SnapshotScheduleWheel.getSpreadOffset(volumeId, window);
+            Assert.assertTrue(offset >= 0 && offset < window);
+            Assert.assertEquals(offset, SnapshotScheduleWheel.getSpreadOffset(volumeId, window));
+            counts[(int)(offset * 10 / window)]++;
+        }
+        for (long count : counts) {
+            Assert.assertTrue(count > 50);
+        }
+    }
+}
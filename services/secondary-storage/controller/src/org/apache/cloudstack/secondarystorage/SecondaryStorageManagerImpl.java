@@ -1030,6 +1030,13 @@ public class SecondaryStorageManagerImpl extends ManagerBase implements Secondar
         buf.append(" sslcopy=").append(Boolean.toString(_useSSlCopy));
         buf.append(" role=").append(vm.getRole().toString());
         buf.append(" mtu=").append(_secStorageVmMtuSize);
+        buf.append(" download.connections.per.template=").append(
+            NumbersUtil.parseInt(_configDao.getValue(Config.SecStorageDownloadConnectionsPerTemplate.key()), 4));
+        buf.append(" download.max.connections=").append(NumbersUtil.parseInt(_configDao.getValue(Config.SecStorageDownloadMaxConnections.key()), 16));
+        buf.append(" download.throttling.rate=").append(NumbersUtil.parseInt(_configDao.getValue(Config.SecStorageDownloadThrottlingRate.key()), 0));
+        buf.append(" s3.multipart.part.size=").append(NumbersUtil.parseInt(_configDao.getValue(Config.SecStorageS3MultipartPartSize.key()), 16));
+        buf.append(" s3.transfer.concurrency=").append(NumbersUtil.parseInt(_configDao.getValue(Config.SecStorageS3TransferConcurrency.key()), 4));
+        buf.append(" s3.transfer.threads=").append(NumbersUtil.parseInt(_configDao.getValue(Config.SecStorageS3TransferThreads.key()), 16));
 
         boolean externalDhcp = false;
         String externalDhcpStr = _configDao.getValue("direct.attach.network.externalIpAllocator.enabled");
@@ -869,6 +869,9 @@ public class NfsSecondaryStorageResource extends ServerResourceBase implements S
             } else {
                 putFile(s3, srcFile, bucket, key);
             }
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Uploaded " + srcFile.length() + " bytes to S3, transfers so far: " + S3Utils.getTransferStatistics());
+            }
 
             DataTO retObj = null;
             if (destData.getObjectType() == DataObjectType.TEMPLATE) {
@@ -1882,6 +1885,11 @@ public class NfsSecondaryStorageResource extends ServerResourceBase implements S
         _storage = (StorageLayer)params.get(StorageLayer.InstanceConfigKey);
         configureStorageLayerClass(params);
 
+        long s3PartSizeMb = NumbersUtil.parseLong((String)params.get("s3.multipart.part.size"), S3Utils.DEFAULT_PART_SIZE / 1024 / 1024);
+        int s3Concurrency = NumbersUtil.parseInt((String)params.get("s3.transfer.concurrency"), S3Utils.DEFAULT_TRANSFER_CONCURRENCY);
+        int s3Threads = NumbersUtil.parseInt((String)params.get("s3.transfer.threads"), S3Utils.DEFAULT_TRANSFER_THREADS);
+        S3Utils.configureTransfers(s3PartSizeMb * 1024 * 1024, s3Concurrency, s3Threads);
+
         if (_inSystemVM) {
             _storage.mkdirs(_parent);
         }
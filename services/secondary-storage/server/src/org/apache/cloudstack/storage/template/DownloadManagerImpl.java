@@ -59,6 +59,7 @@ import com.cloud.storage.Storage.ImageFormat;
 import com.cloud.storage.StorageLayer;
 import com.cloud.storage.VMTemplateHostVO;
 import com.cloud.storage.VMTemplateStorageResourceAssoc;
+import com.cloud.storage.template.DownloadThrottle;
 import com.cloud.storage.template.HttpTemplateDownloader;
 import com.cloud.storage.template.IsoProcessor;
 import com.cloud.storage.template.LocalTemplateDownloader;
@@ -218,6 +219,8 @@ public class DownloadManagerImpl extends ManagerBase implements DownloadManager
     private String createVolScr;
 
     private ExecutorService threadPool;
+    // shared by the downloads running on threadPool
+    private DownloadThrottle downloadThrottle;
 
     private final Map<String, DownloadJob> jobs = new ConcurrentHashMap<String, DownloadJob>();
     private String listTmpltScr;
@@ -349,7 +352,11 @@ public class DownloadManagerImpl extends ManagerBase implements DownloadManager
         ResourceType resourceType = dnld.getResourceType();
 
         File originalTemplate = new File(td.getDownloadLocalPath());
-        String checkSum = computeCheckSum(originalTemplate);
+        // http downloads compute it while writing the file, saving a second read of it
+        String checkSum = td instanceof HttpTemplateDownloader ? ((HttpTemplateDownloader)td).getChecksum() : null;
+        if (checkSum == null) {
+            checkSum = computeCheckSum(originalTemplate);
+        }
         if (checkSum == null) {
             s_logger.warn("Something wrong happened when try to calculate the checksum of downloaded template!");
         }
@@ -526,7 +533,10 @@ public class DownloadManagerImpl extends ManagerBase implements DownloadManager
                     TemplateDownloader td;
                     if ((uri != null) && (uri.getScheme() != null)) {
                         if (uri.getScheme().equalsIgnoreCase("http") || uri.getScheme().equalsIgnoreCase("https")) {
-                            td = new HttpTemplateDownloader(_storage, url, tmpDir, new Completion(jobId), maxTemplateSizeInBytes, user, password, proxy, resourceType);
+                            HttpTemplateDownloader httpDownloader =
+                                new HttpTemplateDownloader(_storage, url, tmpDir, new Completion(jobId), maxTemplateSizeInBytes, user, password, proxy, resourceType);
+                            httpDownloader.setDownloadThrottle(downloadThrottle);
+                            td = httpDownloader;
                         } else if (uri.getScheme().equalsIgnoreCase("file")) {
                             td = new LocalTemplateDownloader(_storage, url, tmpDir, maxTemplateSizeInBytes, new Completion(jobId));
                         } else if (uri.getScheme().equalsIgnoreCase("scp")) {
@@ -941,6 +951,14 @@ public class DownloadManagerImpl extends ManagerBase implements DownloadManager
         value = (String)params.get("install.numthreads");
         final int numInstallThreads = NumbersUtil.parseInt(value, 10);
 
+        // extra connections a download fetches ranges over, and the budget of them and of bandwidth shared by all downloads
+        int connectionsPerDownload = NumbersUtil.parseInt((String)params.get("download.connections.per.template"), 4);
+        int maxConnections = NumbersUtil.parseInt((String)params.get("download.max.connections"), 16);
+        long rateMbps = NumbersUtil.parseLong((String)params.get("download.throttling.rate"), 0);
+        downloadThrottle = new DownloadThrottle(connectionsPerDownload, maxConnections, rateMbps * 1024 * 1024 / 8);
+        s_logger.info("Downloads use up to " + connectionsPerDownload + " more connections each, " + maxConnections + " in total, at " +
+            (rateMbps > 0 ? rateMbps + " Mbps" : "unlimited rate"));
+
         String scriptsDir = (String)params.get("template.scripts.dir");
         if (scriptsDir == null) {
             scriptsDir = "scripts/storage/secondary";
@@ -21,6 +21,7 @@ DROP TABLE IF EXISTS `cloud_usage`.`usage_vm_instance`;
 DROP TABLE IF EXISTS `cloud_usage`.`usage_ip_address`;
 DROP TABLE IF EXISTS `cloud_usage`.`usage_network`;
 DROP TABLE IF EXISTS `cloud_usage`.`usage_job`;
+DROP TABLE IF EXISTS `cloud_usage`.`usage_job_partition`;
 DROP TABLE IF EXISTS `cloud_usage`.`account`;
 DROP TABLE IF EXISTS `cloud_usage`.`user_statistics`;
 DROP TABLE IF EXISTS `cloud_usage`.`usage_volume`;
@@ -126,6 +127,24 @@ CREATE TABLE  `cloud_usage`.`usage_job` (
 
 ALTER TABLE `cloud_usage`.`usage_job` ADD INDEX `i_usage_job__end_millis`(`end_millis`);
 
+CREATE TABLE  `cloud_usage`.`usage_job_partition` (
+  `id` bigint unsigned NOT NULL auto_increment,
+  `job_id` bigint unsigned NOT NULL COMMENT 'usage job the partition belongs to',
+  `partition_id` int unsigned NOT NULL COMMENT 'accounts whose id modulo partitions equals partition_id belong to the partition',
+  `partitions` int unsigned NOT NULL COMMENT 'number of partitions the accounts are split into',
+  `start_millis` bigint unsigned NOT NULL default '0' COMMENT 'start time in milliseconds of the aggregation range used by the job',
+  `end_millis` bigint unsigned NOT NULL default '0' COMMENT 'end time in milliseconds of the aggregation range used by the job',
+  `resume_millis` bigint unsigned NOT NULL default '0' COMMENT 'end time in milliseconds up to which a failed job already parsed the partition',
+  `host` varchar(255) COMMENT 'usage server that claimed the partition',
+  `pid` int(5),
+  `heartbeat` DATETIME COMMENT 'last time the usage server renewed its claim',
+  `processed` DATETIME COMMENT 'time the usage records of the partition were committed',
+  `failed` int(1) unsigned NOT NULL default '0',
+  PRIMARY KEY  (`id`),
+  UNIQUE KEY `uc_usage_job_partition__job_id__partition_id` (`job_id`, `partition_id`),
+  INDEX `i_usage_job_partition__end_millis`(`end_millis`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8;
+
 CREATE TABLE  `cloud_usage`.`account` (
   `id` bigint unsigned NOT NULL,
   `account_name` varchar(100) COMMENT 'an account name set by the creator of the account, defaults to username for single accounts',
@@ -540,5 +540,26 @@ ALTER TABLE `cloud`.`remote_access_vpn` ADD COLUMN `display` tinyint(1) NOT NULL
 ALTER TABLE `cloud`.`s2s_vpn_connection` ADD COLUMN `display` tinyint(1) NOT NULL DEFAULT '1' COMMENT 'True if the entry can be displayed to the end user';
 ALTER TABLE `cloud`.`s2s_vpn_gateway` ADD COLUMN `display` tinyint(1) NOT NULL DEFAULT '1' COMMENT 'True if the entry can be displayed to the end user';
 
+ALTER TABLE `cloud`.`vm_reservation` ADD COLUMN `reserved_cpu` bigint unsigned NOT NULL DEFAULT 0 COMMENT 'cpu held in the reserved capacity of the host until the vm starts';
+ALTER TABLE `cloud`.`vm_reservation` ADD COLUMN `reserved_ram` bigint unsigned NOT NULL DEFAULT 0 COMMENT 'memory held in the reserved capacity of the host until the vm starts';
+
 INSERT IGNORE INTO `cloud`.`guest_os` (id, uuid, category_id, display_name) VALUES (225, UUID(), 9, 'FreeBSD 10 (32-bit)');
 INSERT IGNORE INTO `cloud`.`guest_os` (id, uuid, category_id, display_name) VALUES (226, UUID(), 9, 'FreeBSD 10 (64-bit)');
+
+CREATE TABLE IF NOT EXISTS `cloud_usage`.`usage_job_partition` (
+  `id` bigint unsigned NOT NULL auto_increment,
+  `job_id` bigint unsigned NOT NULL COMMENT 'usage job the partition belongs to',
+  `partition_id` int unsigned NOT NULL COMMENT 'accounts whose id modulo partitions equals partition_id belong to the partition',
+  `partitions` int unsigned NOT NULL COMMENT 'number of partitions the accounts are split into',
+  `start_millis` bigint unsigned NOT NULL default '0' COMMENT 'start time in milliseconds of the aggregation range used by the job',
+  `end_millis` bigint unsigned NOT NULL default '0' COMMENT 'end time in milliseconds of the aggregation range used by the job',
+  `resume_millis` bigint unsigned NOT NULL default '0' COMMENT 'end time in milliseconds up to which a failed job already parsed the partition',
+  `host` varchar(255) COMMENT 'usage server that claimed the partition',
+  `pid` int(5),
+  `heartbeat` DATETIME COMMENT 'last time the usage server renewed its claim',
+  `processed` DATETIME COMMENT 'time the usage records of the partition were committed',
+  `failed` int(1) unsigned NOT NULL default '0',
+  PRIMARY KEY  (`id`),
+  UNIQUE KEY `uc_usage_job_partition__job_id__partition_id` (`job_id`, `partition_id`),
+  INDEX `i_usage_job_partition__end_millis`(`end_millis`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8;
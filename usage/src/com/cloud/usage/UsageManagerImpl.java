@@ -20,14 +20,19 @@ import java.net.InetAddress;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
 import javax.ejb.Local;
@@ -50,6 +55,7 @@ import com.cloud.event.dao.UsageEventDetailsDao;
 import com.cloud.usage.dao.UsageDao;
 import com.cloud.usage.dao.UsageIPAddressDao;
 import com.cloud.usage.dao.UsageJobDao;
+import com.cloud.usage.dao.UsageJobPartitionDao;
 import com.cloud.usage.dao.UsageLoadBalancerPolicyDao;
 import com.cloud.usage.dao.UsageNetworkDao;
 import com.cloud.usage.dao.UsageNetworkOfferingDao;
@@ -87,6 +93,7 @@ import com.cloud.utils.db.Filter;
 import com.cloud.utils.db.GlobalLock;
 import com.cloud.utils.db.SearchCriteria;
 import com.cloud.utils.db.TransactionLegacy;
+import com.cloud.utils.exception.CloudRuntimeException;
 
 @Component
 @Local(value = {UsageManager.class})
@@ -101,6 +108,10 @@ public class UsageManagerImpl extends ManagerBase implements UsageManager, Runna
     private static final int DAILY_TIME = 60 * 24;
     private static final int THREE_DAYS_IN_MINUTES = 60 * 24 * 3;
     private static final int USAGE_AGGREGATION_RANGE_MIN = 10;
+    private static final int PARTITION_CLAIM_INTERVAL = 10 * 1000;
+    private static final int PARTITION_CLAIM_TIMEOUT = 5 * 60 * 1000;
+    private static final int PARTITION_CHECK_INTERVAL = 1000;
+    private static final int ACCOUNT_PAGE_SIZE = 500;
 
     @Inject
     private AccountDao _accountDao;
@@ -131,6 +142,8 @@ public class UsageManagerImpl extends ManagerBase implements UsageManager, Runna
     @Inject
     private UsageJobDao _usageJobDao;
     @Inject
+    private UsageJobPartitionDao _usageJobPartitionDao;
+    @Inject
     private VmDiskStatisticsDao _vmDiskStatsDao;
     @Inject
     private UsageVmDiskDao _usageVmDiskDao;
@@ -149,6 +162,8 @@ public class UsageManagerImpl extends ManagerBase implements UsageManager, Runna
     private final Calendar _jobExecTime = Calendar.getInstance();
     private int _aggregationDuration = 0;
     private int _sanityCheckInterval = 0;
+    private int _parseWorkers = 4;
+    private int _partitions = 16;
     String _hostname = null;
     int _pid = 0;
     TimeZone _usageTimezone = TimeZone.getTimeZone("GMT");;
@@ -159,6 +174,11 @@ public class UsageManagerImpl extends ManagerBase implements UsageManager, Runna
     private final ScheduledExecutorService _executor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("Usage-Job"));
     private final ScheduledExecutorService _heartbeatExecutor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("Usage-HB"));
     private final ScheduledExecutorService _sanityExecutor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("Usage-Sanity"));
+    private final ScheduledExecutorService _partitionExecutor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("Usage-Partition"));
+    private ExecutorService _parseExecutor = null;
+    private Semaphore _parseWorkerPermits = null;
+    // partitions this usage server claimed and is parsing
+    private final Set<Long> _claimedPartitions = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
     private Future _scheduledFuture = null;
     private Future _heartbeat = null;
     private Future _sanity = null;
@@ -205,6 +225,16 @@ public class UsageManagerImpl extends ManagerBase implements UsageManager, Runna
         if (sanityCheckInterval != null) {
             _sanityCheckInterval = Integer.parseInt(sanityCheckInterval);
         }
+        String parseWorkers = configs.get("usage.stats.job.parse.workers");
+        if (parseWorkers != null) {
+            _parseWorkers = Math.max(Integer.parseInt(parseWorkers), 1);
+        }
+        String partitions = configs.get("usage.stats.job.partitions");
+        if (partitions != null) {
+            _partitions = Math.max(Integer.parseInt(partitions), 1);
+        }
+        _parseExecutor = Executors.newFixedThreadPool(_parseWorkers, new NamedThreadFactory("Usage-Parser"));
+        _parseWorkerPermits = new Semaphore(_parseWorkers);
 
         if (aggreagationTimeZone != null && !aggreagationTimeZone.isEmpty()) {
             _usageTimezone = TimeZone.getTimeZone(aggreagationTimeZone);
@@ -280,6 +310,9 @@ public class UsageManagerImpl extends ManagerBase implements UsageManager, Runna
             _sanity = _sanityExecutor.scheduleAtFixedRate(new SanityCheck(), 1, _sanityCheckInterval, TimeUnit.DAYS);
         }
 
+        // every usage server parses the account partitions of the running job that nobody else claimed
+        _partitionExecutor.scheduleWithFixedDelay(new PartitionClaimer(), PARTITION_CLAIM_INTERVAL, PARTITION_CLAIM_INTERVAL, TimeUnit.MILLISECONDS);
+
         TransactionLegacy usageTxn = TransactionLegacy.open(TransactionLegacy.USAGE_DB);
         try {
             if (_heartbeatLock.lock(3)) { // 3 second timeout
@@ -309,6 +342,8 @@ public class UsageManagerImpl extends ManagerBase implements UsageManager, Runna
         if (_sanity != null) {
             _sanity.cancel(true);
         }
+        _partitionExecutor.shutdownNow();
+        _parseExecutor.shutdownNow();
         return true;
     }
 
@@ -711,103 +746,21 @@ public class UsageManagerImpl extends ManagerBase implements UsageManager, Runna
                     s_logger.debug("created vm disk stats helper entries for " + numAcctsProcessed + " accts");
                 }
 
-                // commit the helper records, then start a new transaction
+                // commit the helper records, the accounts are parsed in transactions of their own
                 usageTxn.commit();
-                usageTxn.start();
-
-                boolean parsed = false;
-                numAcctsProcessed = 0;
-
-                Date currentStartDate = startDate;
-                Date currentEndDate = endDate;
-                Date tempDate = endDate;
-
-                Calendar aggregateCal = Calendar.getInstance(_usageTimezone);
-
-                while ((tempDate.after(startDate)) && ((tempDate.getTime() - startDate.getTime()) > 60000)) {
-                    currentEndDate = tempDate;
-                    aggregateCal.setTime(tempDate);
-                    aggregateCal.add(Calendar.MINUTE, -_aggregationDuration);
-                    tempDate = aggregateCal.getTime();
-                }
-
-                while (!currentEndDate.after(endDate) || (currentEndDate.getTime() - endDate.getTime() < 60000)) {
-                    Long offset = Long.valueOf(0);
-                    Long limit = Long.valueOf(500);
-
-                    do {
-                        Filter filter = new Filter(AccountVO.class, "id", true, offset, limit);
-                        accounts = _accountDao.listAll(filter);
-                        if ((accounts != null) && !accounts.isEmpty()) {
-                            for (AccountVO account : accounts) {
-                                parsed = parseHelperTables(account, currentStartDate, currentEndDate);
-                                numAcctsProcessed++;
-                            }
-                        }
-                        offset = new Long(offset.longValue() + limit.longValue());
-                    } while ((accounts != null) && !accounts.isEmpty());
 
-                    if (s_logger.isDebugEnabled()) {
-                        s_logger.debug("processed VM/Network Usage for " + numAcctsProcessed + " ACTIVE accts");
-                    }
-                    numAcctsProcessed = 0;
-
-                    // reset offset
-                    offset = Long.valueOf(0);
-
-                    do {
-                        Filter filter = new Filter(AccountVO.class, "id", true, offset, limit);
-
-                        accounts = _accountDao.findRecentlyDeletedAccounts(null, recentlyDeletedDate, filter);
-
-                        if ((accounts != null) && !accounts.isEmpty()) {
-                            for (AccountVO account : accounts) {
-                                parsed = parseHelperTables(account, currentStartDate, currentEndDate);
-                                List<Long> publicTemplates = _usageDao.listPublicTemplatesByAccount(account.getId());
-                                for (Long templateId : publicTemplates) {
-                                    //mark public templates owned by deleted accounts as deleted
-                                    List<UsageStorageVO> storageVOs = _usageStorageDao.listById(account.getId(), templateId, StorageTypes.TEMPLATE);
-                                    if (storageVOs.size() > 1) {
-                                        s_logger.warn("More that one usage entry for storage: " + templateId + " assigned to account: " + account.getId() +
-                                            "; marking them all as deleted...");
-                                    }
-                                    for (UsageStorageVO storageVO : storageVOs) {
-                                        if (s_logger.isDebugEnabled()) {
-                                            s_logger.debug("deleting template: " + storageVO.getId() + " from account: " + storageVO.getAccountId());
-                                        }
-                                        storageVO.setDeleted(account.getRemoved());
-                                        _usageStorageDao.update(storageVO);
-                                    }
-                                }
-                                numAcctsProcessed++;
-                            }
-                        }
-                        offset = new Long(offset.longValue() + limit.longValue());
-                    } while ((accounts != null) && !accounts.isEmpty());
-
-                    currentStartDate = new Date(currentEndDate.getTime() + 1);
-                    aggregateCal.setTime(currentEndDate);
-                    aggregateCal.add(Calendar.MINUTE, _aggregationDuration);
-                    currentEndDate = aggregateCal.getTime();
-                }
-
-                if (s_logger.isDebugEnabled()) {
-                    s_logger.debug("processed Usage for " + numAcctsProcessed + " RECENTLY DELETED accts");
-                }
-
-                // FIXME: we don't break the above loop if something fails to parse, so it gets reset every account,
-                //        do we want to break out of processing accounts and rollback if there are errors?
-                if (!parsed) {
-                    usageTxn.rollback();
-                } else {
-                    success = true;
-                }
+                success = parseAccounts(job, startDate, endDate, lastSuccess);
             } catch (Exception ex) {
                 s_logger.error("Exception in usage manager", ex);
                 usageTxn.rollback();
             } finally {
+                usageTxn.start();
+
                 // everything seemed to work...set endDate as the last success date
                 _usageJobDao.updateJobSuccess(job.getId(), startDateMillis, endDateMillis, System.currentTimeMillis() - timeStart, success);
+                if (success) {
+                    _usageJobPartitionDao.removeUpTo(endDateMillis);
+                }
 
                 // create a new job if this is a recurring job
                 if (job.getJobType() == UsageJobVO.JOB_TYPE_RECURRING) {
@@ -832,6 +785,255 @@ public class UsageManagerImpl extends ManagerBase implements UsageManager, Runna
         }
     }
 
+    /**
+     * Parses the usage of all accounts between startDate and endDate.  The accounts are split by id into partitions
+     * that the workers of every usage server claim and parse, each partition in a transaction of its own that also
+     * marks it processed.  When the job fails, the partitions it committed are parsed by the next job only from where
+     * they stopped, so nothing is parsed twice.
+     */
+    private boolean parseAccounts(UsageJobVO job, Date startDate, Date endDate, long lastSuccess) throws InterruptedException {
+        // partitions of older jobs that are still being parsed must not commit once the ranges to resume from are read
+        _usageJobPartitionDao.failUnprocessed(job.getId());
+
+        int partitions = _partitions;
+        Map<Integer, Long> resumeMillis = new HashMap<Integer, Long>();
+        for (UsageJobPartitionVO processed : _usageJobPartitionDao.listProcessedAfter(lastSuccess)) {
+            partitions = processed.getPartitions();
+            Long resume = resumeMillis.get(processed.getPartitionId());
+            if ((resume == null) || (resume.longValue() < processed.getEndMillis())) {
+                resumeMillis.put(processed.getPartitionId(), processed.getEndMillis());
+            }
+        }
+        if (partitions != _partitions) {
+            s_logger.info("Parsing usage in the " + partitions + " partitions of the failed job until a job succeeds");
+        }
+
+        for (int i = 0; i < partitions; i++) {
+            Long resume = resumeMillis.get(i);
+            _usageJobPartitionDao.persist(new UsageJobPartitionVO(job.getId(), i, partitions, startDate.getTime(), endDate.getTime(), resume == null ? 0
+                : resume.longValue()));
+        }
+        _partitionExecutor.execute(new PartitionClaimer());
+
+        try {
+            while (true) {
+                int processed = 0;
+                List<UsageJobPartitionVO> jobPartitions = _usageJobPartitionDao.listByJob(job.getId());
+                for (UsageJobPartitionVO partition : jobPartitions) {
+                    if (partition.isFailed()) {
+                        s_logger.error("Unable to parse usage of account partition " + partition.getPartitionId() + " of job " + job.getId() + " on " +
+                            partition.getHost());
+                        return false;
+                    }
+                    if (partition.getProcessed() != null) {
+                        processed++;
+                    }
+                }
+                if (processed == jobPartitions.size()) {
+                    return true;
+                }
+                Thread.sleep(PARTITION_CHECK_INTERVAL);
+            }
+        } finally {
+            // nothing the job gave up on commits after it ended
+            _usageJobPartitionDao.failUnprocessed(job.getId());
+        }
+    }
+
+    /**
+     * PartitionClaimer renews the claims of the partitions this usage server is parsing and claims as many
+     * unclaimed partitions as it has idle workers.
+     */
+    private class PartitionClaimer extends ManagedContextRunnable {
+        @Override
+        protected void runInContext() {
+            TransactionLegacy usageTxn = TransactionLegacy.open(TransactionLegacy.USAGE_DB);
+            try {
+                if (!_claimedPartitions.isEmpty()) {
+                    _usageJobPartitionDao.heartbeat(new ArrayList<Long>(_claimedPartitions), _hostname, _pid);
+                }
+
+                while (_parseWorkerPermits.tryAcquire()) {
+                    UsageJobPartitionVO partition = null;
+                    try {
+                        partition = _usageJobPartitionDao.claimPartition(_hostname, _pid, new Date(System.currentTimeMillis() - PARTITION_CLAIM_TIMEOUT));
+                        if (partition != null) {
+                            _claimedPartitions.add(partition.getId());
+                            _parseExecutor.execute(new PartitionParser(partition));
+                        }
+                    } finally {
+                        if (partition == null) {
+                            _parseWorkerPermits.release();
+                        }
+                    }
+                    if (partition == null) {
+                        break;
+                    }
+                }
+            } catch (Exception e) {
+                s_logger.error("Unable to claim usage job partitions", e);
+            } finally {
+                usageTxn.close();
+            }
+        }
+    }
+
+    /**
+     * PartitionParser parses the usage of the accounts of one partition over the aggregation ranges of its job.
+     */
+    private class PartitionParser extends ManagedContextRunnable {
+        private final UsageJobPartitionVO _partition;
+
+        PartitionParser(UsageJobPartitionVO partition) {
+            _partition = partition;
+        }
+
+        @Override
+        protected void runInContext() {
+            boolean committed = false;
+            try {
+                TransactionLegacy txn = TransactionLegacy.open(TransactionLegacy.USAGE_DB);
+                try {
+                    txn.start();
+                    UsageRecordBatch.begin();
+                    parse();
+                    UsageRecordBatch.flush(_usageDao);
+
+                    if (_usageJobPartitionDao.markProcessed(_partition.getId(), _hostname, _pid)) {
+                        txn.commit();
+                        committed = true;
+                    } else {
+                        s_logger.warn("Lost the claim on account partition " + _partition.getPartitionId() + " of usage job " + _partition.getJobId() +
+                            ", discarding its usage");
+                        txn.rollback();
+                    }
+                } catch (Exception e) {
+                    s_logger.error("Unable to parse usage of account partition " + _partition.getPartitionId() + " of job " + _partition.getJobId(), e);
+                    txn.rollback();
+                } finally {
+                    UsageRecordBatch.end();
+                    txn.close();
+                }
+
+                if (!committed) {
+                    TransactionLegacy failTxn = TransactionLegacy.open(TransactionLegacy.USAGE_DB);
+                    try {
+                        _usageJobPartitionDao.markFailed(_partition.getId(), _hostname, _pid);
+                    } finally {
+                        failTxn.close();
+                    }
+                }
+            } finally {
+                _claimedPartitions.remove(_partition.getId());
+                _parseWorkerPermits.release();
+                // there may be more partitions waiting for a worker
+                if (!_partitionExecutor.isShutdown()) {
+                    _partitionExecutor.execute(new PartitionClaimer());
+                }
+            }
+        }
+
+        private void parse() {
+            Date startDate = new Date(_partition.getStartMillis());
+            Date endDate = new Date(_partition.getEndMillis());
+            long resumeMillis = _partition.getResumeMillis();
+
+            Calendar recentlyDeletedCal = Calendar.getInstance(_usageTimezone);
+            recentlyDeletedCal.setTime(startDate);
+            recentlyDeletedCal.add(Calendar.MINUTE, -1 * THREE_DAYS_IN_MINUTES);
+            Date recentlyDeletedDate = recentlyDeletedCal.getTime();
+
+            List<AccountVO> activeAccounts = listPartitionAccounts(null);
+            List<AccountVO> deletedAccounts = listPartitionAccounts(recentlyDeletedDate);
+
+            Date currentEndDate = endDate;
+            Date tempDate = endDate;
+            Calendar aggregateCal = Calendar.getInstance(_usageTimezone);
+            while ((tempDate.after(startDate)) && ((tempDate.getTime() - startDate.getTime()) > 60000)) {
+                currentEndDate = tempDate;
+                aggregateCal.setTime(tempDate);
+                aggregateCal.add(Calendar.MINUTE, -_aggregationDuration);
+                tempDate = aggregateCal.getTime();
+            }
+            Date currentStartDate = startDate;
+
+            while (!currentEndDate.after(endDate) || (currentEndDate.getTime() - endDate.getTime() < 60000)) {
+                // a failed job already committed the usage of this partition up to resumeMillis
+                if (currentEndDate.getTime() > resumeMillis) {
+                    Date rangeStartDate = currentStartDate.getTime() > resumeMillis ? currentStartDate : new Date(resumeMillis + 1);
+                    parseRange(activeAccounts, deletedAccounts, rangeStartDate, currentEndDate);
+                }
+
+                currentStartDate = new Date(currentEndDate.getTime() + 1);
+                aggregateCal.setTime(currentEndDate);
+                aggregateCal.add(Calendar.MINUTE, _aggregationDuration);
+                currentEndDate = aggregateCal.getTime();
+            }
+        }
+
+        /**
+         * Pages through the accounts of the partition by id, so that every page costs the same.
+         * @param earliestRemovedDate null for the active accounts, else the accounts removed since then.
+         */
+        private List<AccountVO> listPartitionAccounts(Date earliestRemovedDate) {
+            List<AccountVO> partitionAccounts = new ArrayList<AccountVO>();
+            List<AccountVO> accounts = null;
+            long lastAccountId = 0;
+            do {
+                accounts = _accountDao.listPartitionAccounts(_partition.getPartitions(), _partition.getPartitionId(), lastAccountId, earliestRemovedDate,
+                    ACCOUNT_PAGE_SIZE);
+                if (!accounts.isEmpty()) {
+                    partitionAccounts.addAll(accounts);
+                    lastAccountId = accounts.get(accounts.size() - 1).getId();
+                }
+            } while (accounts.size() == ACCOUNT_PAGE_SIZE);
+            return partitionAccounts;
+        }
+
+        private void parseRange(List<AccountVO> activeAccounts, List<AccountVO> deletedAccounts, Date currentStartDate, Date currentEndDate) {
+            for (AccountVO account : activeAccounts) {
+                checkInterrupted();
+                parseHelperTables(account, currentStartDate, currentEndDate);
+            }
+
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("processed VM/Network Usage for " + activeAccounts.size() + " ACTIVE accts of partition " + _partition.getPartitionId());
+            }
+
+            for (AccountVO account : deletedAccounts) {
+                checkInterrupted();
+                parseHelperTables(account, currentStartDate, currentEndDate);
+                List<Long> publicTemplates = _usageDao.listPublicTemplatesByAccount(account.getId());
+                for (Long templateId : publicTemplates) {
+                    //mark public templates owned by deleted accounts as deleted
+                    List<UsageStorageVO> storageVOs = _usageStorageDao.listById(account.getId(), templateId, StorageTypes.TEMPLATE);
+                    if (storageVOs.size() > 1) {
+                        s_logger.warn("More that one usage entry for storage: " + templateId + " assigned to account: " + account.getId() +
+                            "; marking them all as deleted...");
+                    }
+                    for (UsageStorageVO storageVO : storageVOs) {
+                        if (s_logger.isDebugEnabled()) {
+                            s_logger.debug("deleting template: " + storageVO.getId() + " from account: " + storageVO.getAccountId());
+                        }
+                        storageVO.setDeleted(account.getRemoved());
+                        _usageStorageDao.update(storageVO);
+                    }
+                }
+            }
+
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("processed Usage for " + deletedAccounts.size() + " RECENTLY DELETED accts of partition " + _partition.getPartitionId());
+            }
+        }
+
+        private void checkInterrupted() {
+            // the usage server is stopping, nothing of the partition is committed
+            if (Thread.currentThread().isInterrupted()) {
+                throw new CloudRuntimeException("Interrupted while parsing account partition " + _partition.getPartitionId());
+            }
+        }
+    }
+
     private boolean parseHelperTables(AccountVO account, Date currentStartDate, Date currentEndDate) {
         boolean parsed = false;
 
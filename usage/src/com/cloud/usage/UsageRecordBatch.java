@@ -0,0 +1,69 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.usage;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.cloud.usage.dao.UsageDao;
+
+/**
+ * UsageRecordBatch collects the usage records the parsers create on the
+ * current thread and inserts them with batched statements.  Outside of a
+ * batch, records are persisted right away as they always were.
+ */
+public class UsageRecordBatch {
+    private static final int BATCH_SIZE = 1000;
+    private static final ThreadLocal<List<UsageVO>> s_records = new ThreadLocal<List<UsageVO>>();
+
+    /**
+     * Starts collecting the usage records of the current thread.
+     */
+    public static void begin() {
+        s_records.set(new ArrayList<UsageVO>(BATCH_SIZE));
+    }
+
+    public static void add(UsageDao usageDao, UsageVO usageRecord) {
+        List<UsageVO> records = s_records.get();
+        if (records == null) {
+            usageDao.persist(usageRecord);
+            return;
+        }
+        records.add(usageRecord);
+        if (records.size() >= BATCH_SIZE) {
+            flush(usageDao);
+        }
+    }
+
+    /**
+     * Inserts the records collected so far in the transaction of the current thread.
+     */
+    public static void flush(UsageDao usageDao) {
+        List<UsageVO> records = s_records.get();
+        if (records != null && !records.isEmpty()) {
+            usageDao.saveUsageRecords(records);
+            records.clear();
+        }
+    }
+
+    /**
+     * Stops collecting, records that were not flushed are dropped.
+     */
+    public static void end() {
+        s_records.remove();
+    }
+}
@@ -31,6 +31,7 @@ import org.springframework.stereotype.Component;
 import org.apache.cloudstack.usage.UsageTypes;
 
 import com.cloud.usage.UsageIPAddressVO;
+import com.cloud.usage.UsageRecordBatch;
 import com.cloud.usage.UsageVO;
 import com.cloud.usage.dao.UsageDao;
 import com.cloud.usage.dao.UsageIPAddressDao;
@@ -155,7 +156,7 @@ public class IPAddressUsageParser {
         UsageVO usageRecord =
             new UsageVO(zoneId, account.getAccountId(), account.getDomainId(), usageDesc, usageDisplay + " Hrs", UsageTypes.IP_ADDRESS, new Double(usage), ipId,
                 (isSystem ? 1 : 0), (isSourceNat ? "SourceNat" : ""), startDate, endDate);
-        s_usageDao.persist(usageRecord);
+        UsageRecordBatch.add(s_usageDao, usageRecord);
     }
 
     private static class IpInfo {
@@ -31,6 +31,7 @@ import org.springframework.stereotype.Component;
 import org.apache.cloudstack.usage.UsageTypes;
 
 import com.cloud.usage.UsageLoadBalancerPolicyVO;
+import com.cloud.usage.UsageRecordBatch;
 import com.cloud.usage.UsageVO;
 import com.cloud.usage.dao.UsageDao;
 import com.cloud.usage.dao.UsageLoadBalancerPolicyDao;
@@ -152,7 +153,7 @@ public class LoadBalancerUsageParser {
         UsageVO usageRecord =
             new UsageVO(zoneId, account.getId(), account.getDomainId(), usageDesc, usageDisplay + " Hrs", type, new Double(usage), null, null, null, null, lbId, null,
                 startDate, endDate);
-        s_usageDao.persist(usageRecord);
+        UsageRecordBatch.add(s_usageDao, usageRecord);
     }
 
     private static class LBInfo {
@@ -36,6 +36,7 @@ import com.cloud.usage.dao.UsageDao;
 import com.cloud.usage.dao.UsageNetworkDao;
 import com.cloud.user.AccountVO;
 import com.cloud.utils.db.SearchCriteria;
+import com.cloud.utils.db.SearchStreamCallback;
 
 @Component
 public class NetworkUsageParser {
@@ -69,29 +70,31 @@ public class NetworkUsageParser {
         SearchCriteria<UsageNetworkVO> sc = s_usageNetworkDao.createSearchCriteria();
         sc.addAnd("accountId", SearchCriteria.Op.EQ, account.getId());
         sc.addAnd("eventTimeMillis", SearchCriteria.Op.BETWEEN, startDate.getTime(), endDate.getTime());
-        List<UsageNetworkVO> usageNetworkVOs = s_usageNetworkDao.search(sc, null);
-
-        Map<String, NetworkInfo> networkUsageByZone = new HashMap<String, NetworkInfo>();
+        final Map<String, NetworkInfo> networkUsageByZone = new HashMap<String, NetworkInfo>();
+
+        // Calculate the total bytes since last parsing, streaming the rows as there can be many of them
+        s_usageNetworkDao.searchStream(sc, null, new SearchStreamCallback<UsageNetworkVO>() {
+            @Override
+            public boolean onEntity(UsageNetworkVO usageNetwork) {
+                long zoneId = usageNetwork.getZoneId();
+                String key = "" + zoneId;
+                if (usageNetwork.getHostId() != 0) {
+                    key += "-Host" + usageNetwork.getHostId();
+                }
+                NetworkInfo networkInfo = networkUsageByZone.get(key);
 
-        // Calculate the total bytes since last parsing
-        for (UsageNetworkVO usageNetwork : usageNetworkVOs) {
-            long zoneId = usageNetwork.getZoneId();
-            String key = "" + zoneId;
-            if (usageNetwork.getHostId() != 0) {
-                key += "-Host" + usageNetwork.getHostId();
-            }
-            NetworkInfo networkInfo = networkUsageByZone.get(key);
+                long bytesSent = usageNetwork.getBytesSent();
+                long bytesReceived = usageNetwork.getBytesReceived();
+                if (networkInfo != null) {
+                    bytesSent += networkInfo.getBytesSent();
+                    bytesReceived += networkInfo.getBytesRcvd();
+                }
 
-            long bytesSent = usageNetwork.getBytesSent();
-            long bytesReceived = usageNetwork.getBytesReceived();
-            if (networkInfo != null) {
-                bytesSent += networkInfo.getBytesSent();
-                bytesReceived += networkInfo.getBytesRcvd();
+                networkUsageByZone.put(key, new NetworkInfo(zoneId, usageNetwork.getHostId(), usageNetwork.getHostType(), usageNetwork.getNetworkId(), bytesSent,
+                    bytesReceived));
+                return true;
             }
-
-            networkUsageByZone.put(key, new NetworkInfo(zoneId, usageNetwork.getHostId(), usageNetwork.getHostType(), usageNetwork.getNetworkId(), bytesSent,
-                bytesReceived));
-        }
+        });
 
         List<UsageVO> usageRecords = new ArrayList<UsageVO>();
         for (String key : networkUsageByZone.keySet()) {
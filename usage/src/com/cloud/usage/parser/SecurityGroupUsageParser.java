@@ -30,6 +30,7 @@ import org.springframework.stereotype.Component;
 
 import org.apache.cloudstack.usage.UsageTypes;
 
+import com.cloud.usage.UsageRecordBatch;
 import com.cloud.usage.UsageSecurityGroupVO;
 import com.cloud.usage.UsageVO;
 import com.cloud.usage.dao.UsageDao;
@@ -152,7 +153,7 @@ public class SecurityGroupUsageParser {
         UsageVO usageRecord =
             new UsageVO(zoneId, account.getId(), account.getDomainId(), usageDesc, usageDisplay + " Hrs", type, new Double(usage), vmId, null, null, null, sgId, null,
                 startDate, endDate);
-        s_usageDao.persist(usageRecord);
+        UsageRecordBatch.add(s_usageDao, usageRecord);
     }
 
     private static class SGInfo {
@@ -30,6 +30,7 @@ import org.springframework.stereotype.Component;
 
 import org.apache.cloudstack.usage.UsageTypes;
 
+import com.cloud.usage.UsageRecordBatch;
 import com.cloud.usage.UsageVMSnapshotVO;
 import com.cloud.usage.UsageVO;
 import com.cloud.usage.dao.UsageDao;
@@ -148,7 +149,7 @@ public class VMSnapshotUsageParser {
         UsageVO usageRecord =
             new UsageVO(zoneId, account.getId(), account.getDomainId(), usageDesc, usageDisplay + " Hrs", type, new Double(usage), vmId, null, doId, null, volId, size,
                 startDate, endDate);
-        s_usageDao.persist(usageRecord);
+        UsageRecordBatch.add(s_usageDao, usageRecord);
     }
 
 }
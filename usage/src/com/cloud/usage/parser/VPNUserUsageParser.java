@@ -30,6 +30,7 @@ import org.springframework.stereotype.Component;
 
 import org.apache.cloudstack.usage.UsageTypes;
 
+import com.cloud.usage.UsageRecordBatch;
 import com.cloud.usage.UsageVO;
 import com.cloud.usage.UsageVPNUserVO;
 import com.cloud.usage.dao.UsageDao;
@@ -147,7 +148,7 @@ public class VPNUserUsageParser {
         UsageVO usageRecord =
             new UsageVO(zoneId, account.getId(), account.getDomainId(), usageDesc, usageDisplay + " Hrs", type, new Double(usage), null, null, null, null, userId, null,
                 startDate, endDate);
-        s_usageDao.persist(usageRecord);
+        UsageRecordBatch.add(s_usageDao, usageRecord);
     }
 
     private static class VUInfo {
@@ -36,6 +36,7 @@ import com.cloud.usage.dao.UsageDao;
 import com.cloud.usage.dao.UsageVmDiskDao;
 import com.cloud.user.AccountVO;
 import com.cloud.utils.db.SearchCriteria;
+import com.cloud.utils.db.SearchStreamCallback;
 
 @Component
 public class VmDiskUsageParser {
@@ -69,32 +70,34 @@ public class VmDiskUsageParser {
         SearchCriteria<UsageVmDiskVO> sc = s_usageVmDiskDao.createSearchCriteria();
         sc.addAnd("accountId", SearchCriteria.Op.EQ, account.getId());
         sc.addAnd("eventTimeMillis", SearchCriteria.Op.BETWEEN, startDate.getTime(), endDate.getTime());
-        List<UsageVmDiskVO> usageVmDiskVOs = s_usageVmDiskDao.search(sc, null);
-
-        Map<String, VmDiskInfo> vmDiskUsageByZone = new HashMap<String, VmDiskInfo>();
-
-        // Calculate the bytes since last parsing
-        for (UsageVmDiskVO usageVmDisk : usageVmDiskVOs) {
-            long zoneId = usageVmDisk.getZoneId();
-            String key = "" + zoneId;
-            if (usageVmDisk.getVmId() != 0) {
-                key += "-Vm-" + usageVmDisk.getVmId() + "-Disk-" + usageVmDisk.getVolumeId();
-            }
-            VmDiskInfo vmDiskInfo = vmDiskUsageByZone.get(key);
+        final Map<String, VmDiskInfo> vmDiskUsageByZone = new HashMap<String, VmDiskInfo>();
+
+        // Calculate the bytes since last parsing, streaming the rows as there can be many of them
+        s_usageVmDiskDao.searchStream(sc, null, new SearchStreamCallback<UsageVmDiskVO>() {
+            @Override
+            public boolean onEntity(UsageVmDiskVO usageVmDisk) {
+                long zoneId = usageVmDisk.getZoneId();
+                String key = "" + zoneId;
+                if (usageVmDisk.getVmId() != 0) {
+                    key += "-Vm-" + usageVmDisk.getVmId() + "-Disk-" + usageVmDisk.getVolumeId();
+                }
+                VmDiskInfo vmDiskInfo = vmDiskUsageByZone.get(key);
+
+                long ioRead = usageVmDisk.getIORead();
+                long ioWrite = usageVmDisk.getIOWrite();
+                long bytesRead = usageVmDisk.getBytesRead();
+                long bytesWrite = usageVmDisk.getBytesWrite();
+                if (vmDiskInfo != null) {
+                    ioRead += vmDiskInfo.getIORead();
+                    ioWrite += vmDiskInfo.getIOWrite();
+                    bytesRead += vmDiskInfo.getBytesRead();
+                    bytesWrite += vmDiskInfo.getBytesWrite();
+                }
 
-            long ioRead = usageVmDisk.getIORead();
-            long ioWrite = usageVmDisk.getIOWrite();
-            long bytesRead = usageVmDisk.getBytesRead();
-            long bytesWrite = usageVmDisk.getBytesWrite();
-            if (vmDiskInfo != null) {
-                ioRead += vmDiskInfo.getIORead();
-                ioWrite += vmDiskInfo.getIOWrite();
-                bytesRead += vmDiskInfo.getBytesRead();
-                bytesWrite += vmDiskInfo.getBytesWrite();
+                vmDiskUsageByZone.put(key, new VmDiskInfo(zoneId, usageVmDisk.getVmId(), usageVmDisk.getVolumeId(), ioRead, ioWrite, bytesRead, bytesWrite));
+                return true;
             }
-
-            vmDiskUsageByZone.put(key, new VmDiskInfo(zoneId, usageVmDisk.getVmId(), usageVmDisk.getVolumeId(), ioRead, ioWrite, bytesRead, bytesWrite));
-        }
+        });
 
         List<UsageVO> usageRecords = new ArrayList<UsageVO>();
         for (String key : vmDiskUsageByZone.keySet()) {
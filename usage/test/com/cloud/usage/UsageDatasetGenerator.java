@@ -0,0 +1,182 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.usage;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Random;
+import java.util.TimeZone;
+
+import org.apache.cloudstack.usage.UsageTypes;
+
+/**
+ * UsageDatasetGenerator writes a synthetic data set for the usage tables as
+ * sql, to benchmark the usage job against a realistic number of accounts.
+ * Every account gets running and allocated vms, volumes and public ips that
+ * come and go over the given number of days.  The same arguments always
+ * generate the same data.
+ *
+ * Usage: UsageDatasetGenerator <accounts> <vms per account> <days> [first account id] [output file]
+ *
+ * Load the result with mysql into a cloud_usage database that does not have
+ * accounts with those ids yet.
+ */
+public class UsageDatasetGenerator {
+    private static final int ROWS_PER_INSERT = 500;
+    private static final long HOUR = 60 * 60 * 1000L;
+
+    private final SimpleDateFormat _dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+    private final Random _random = new Random(42);
+    private final PrintWriter _out;
+    private final int _accounts;
+    private final int _vmsPerAccount;
+    private final long _firstAccountId;
+    private final long _start;
+    private final long _end;
+
+    public UsageDatasetGenerator(Writer out, int accounts, int vmsPerAccount, int days, long firstAccountId) {
+        _out = new PrintWriter(out);
+        _accounts = accounts;
+        _vmsPerAccount = vmsPerAccount;
+        _firstAccountId = firstAccountId;
+        _dateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+        _end = (System.currentTimeMillis() / HOUR) * HOUR;
+        _start = _end - days * 24 * HOUR;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.err.println("Usage: UsageDatasetGenerator <accounts> <vms per account> <days> [first account id] [output file]");
+            System.exit(1);
+        }
+        int accounts = Integer.parseInt(args[0]);
+        int vmsPerAccount = Integer.parseInt(args[1]);
+        int days = Integer.parseInt(args[2]);
+        long firstAccountId = args.length > 3 ? Long.parseLong(args[3]) : 100000L;
+        Writer out = args.length > 4 ? new FileWriter(args[4]) : new PrintWriter(System.out);
+        try {
+            new UsageDatasetGenerator(out, accounts, vmsPerAccount, days, firstAccountId).generate();
+        } finally {
+            out.close();
+        }
+    }
+
+    public void generate() {
+        _out.println("USE cloud_usage;");
+        _out.println("SET autocommit=0;");
+
+        Inserts accounts = new Inserts("INSERT INTO account (id, account_name, uuid, type, domain_id, state) VALUES");
+        Inserts vms = new Inserts("INSERT INTO usage_vm_instance (usage_type, zone_id, account_id, vm_instance_id, vm_name, service_offering_id, template_id, " +
+            "hypervisor_type, start_date, end_date) VALUES");
+        Inserts volumes = new Inserts("INSERT INTO usage_volume (id, zone_id, account_id, domain_id, disk_offering_id, template_id, size, created, deleted) VALUES");
+        Inserts ips = new Inserts("INSERT INTO usage_ip_address (id, account_id, domain_id, zone_id, public_ip_address, is_source_nat, is_system, assigned, released) VALUES");
+
+        long resourceId = _firstAccountId * 100;
+        for (int i = 0; i < _accounts; i++) {
+            long accountId = _firstAccountId + i;
+            long domainId = 1 + (i % 10);
+            accounts.add(accountId + ", 'bench-" + accountId + "', 'bench-" + accountId + "', 0, " + domainId + ", 'enabled'");
+
+            for (int j = 0; j < _vmsPerAccount; j++) {
+                long vmId = resourceId++;
+                long zoneId = 1 + _random.nextInt(2);
+                long created = randomTime();
+                Long destroyed = _random.nextInt(4) == 0 ? randomTimeAfter(created) : null;
+                String name = "'i-" + accountId + "-" + vmId + "-VM'";
+                String offering = (1 + _random.nextInt(5)) + ", " + (1 + _random.nextInt(10)) + ", 'KVM'";
+
+                vms.add(UsageTypes.ALLOCATED_VM + ", " + zoneId + ", " + accountId + ", " + vmId + ", " + name + ", " + offering + ", " + date(created) + ", " +
+                    date(destroyed));
+                // the vm was stopped for a while at most once
+                long stopped = randomTimeAfter(created);
+                if (destroyed != null && stopped > destroyed) {
+                    stopped = destroyed;
+                }
+                long started = randomTimeAfter(stopped);
+                vms.add(UsageTypes.RUNNING_VM + ", " + zoneId + ", " + accountId + ", " + vmId + ", " + name + ", " + offering + ", " + date(created) + ", " +
+                    date(stopped));
+                if (destroyed == null || started < destroyed) {
+                    vms.add(UsageTypes.RUNNING_VM + ", " + zoneId + ", " + accountId + ", " + vmId + ", " + name + ", " + offering + ", " + date(started) + ", " +
+                        date(destroyed));
+                }
+
+                long volumeId = resourceId++;
+                volumes.add(volumeId + ", " + zoneId + ", " + accountId + ", " + domainId + ", NULL, " + (1 + _random.nextInt(10)) + ", " +
+                    ((1L + _random.nextInt(100)) << 30) + ", " + date(created) + ", " + date(destroyed));
+                if (_random.nextBoolean()) {
+                    long dataCreated = randomTimeAfter(created);
+                    volumes.add((resourceId++) + ", " + zoneId + ", " + accountId + ", " + domainId + ", " + (1 + _random.nextInt(5)) + ", NULL, " +
+                        ((1L + _random.nextInt(500)) << 30) + ", " + date(dataCreated) + ", " + date(destroyed));
+                }
+
+                long ipId = resourceId++;
+                ips.add(ipId + ", " + accountId + ", " + domainId + ", " + zoneId + ", '10." + ((ipId >> 16) & 0xFF) + "." + ((ipId >> 8) & 0xFF) + "." +
+                    (ipId & 0xFF) + "', " + (j == 0 ? 1 : 0) + ", 0, " + date(created) + ", " + date(destroyed));
+            }
+        }
+
+        accounts.flush();
+        vms.flush();
+        volumes.flush();
+        ips.flush();
+        _out.println("COMMIT;");
+        _out.flush();
+    }
+
+    private long randomTime() {
+        return _start + (long)(_random.nextDouble() * (_end - _start));
+    }
+
+    private long randomTimeAfter(long time) {
+        return time + (long)(_random.nextDouble() * (_end - time));
+    }
+
+    private String date(Long time) {
+        return time == null ? "NULL" : "'" + _dateFormat.format(new Date(time)) + "'";
+    }
+
+    private class Inserts {
+        private final String _insert;
+        private final StringBuilder _rows = new StringBuilder();
+        private int _count;
+
+        Inserts(String insert) {
+            _insert = insert;
+        }
+
+        void add(String row) {
+            _rows.append(_count == 0 ? "\n(" : ",\n(").append(row).append(')');
+            if (++_count >= ROWS_PER_INSERT) {
+                flush();
+            }
+        }
+
+        void flush() {
+            if (_count > 0) {
+                _out.print(_insert);
+                _out.print(_rows);
+                _out.println(";");
+                _rows.setLength(0);
+                _count = 0;
+            }
+        }
+    }
+}
@@ -38,6 +38,7 @@ import com.cloud.usage.UsageManagerTestConfiguration.Library;
 import com.cloud.usage.dao.UsageDaoImpl;
 import com.cloud.usage.dao.UsageIPAddressDaoImpl;
 import com.cloud.usage.dao.UsageJobDaoImpl;
+import com.cloud.usage.dao.UsageJobPartitionDaoImpl;
 import com.cloud.usage.dao.UsageLoadBalancerPolicyDaoImpl;
 import com.cloud.usage.dao.UsageNetworkDaoImpl;
 import com.cloud.usage.dao.UsageNetworkOfferingDaoImpl;
@@ -63,7 +64,7 @@ import com.cloud.user.dao.AccountDaoImpl;
 import com.cloud.user.dao.UserStatisticsDaoImpl;
 
 @Configuration
-@ComponentScan(basePackageClasses = {AccountDaoImpl.class, UsageDaoImpl.class, UsageJobDaoImpl.class, UsageVMInstanceDaoImpl.class, UsageIPAddressDaoImpl.class,
+@ComponentScan(basePackageClasses = {AccountDaoImpl.class, UsageDaoImpl.class, UsageJobDaoImpl.class, UsageJobPartitionDaoImpl.class, UsageVMInstanceDaoImpl.class, UsageIPAddressDaoImpl.class,
     UsageNetworkDaoImpl.class, UsageVolumeDaoImpl.class, UsageStorageDaoImpl.class, UsageLoadBalancerPolicyDaoImpl.class,
     UsagePortForwardingRuleDaoImpl.class, UsageNetworkOfferingDaoImpl.class, UsageVPNUserDaoImpl.class, UsageVmDiskDaoImpl.class,
     UsageSecurityGroupDaoImpl.class, ConfigurationDaoImpl.class, UsageManagerImpl.class, VMInstanceUsageParser.class, IPAddressUsageParser.class,
@@ -35,15 +35,32 @@ import static org.apache.commons.lang.StringUtils.isNotBlank;
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileInputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 import java.util.UUID;
-
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.lang.ArrayUtils;
 import org.apache.log4j.Logger;
 
@@ -54,16 +71,22 @@ import com.amazonaws.auth.AWSCredentials;
 import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
 import com.amazonaws.services.s3.model.Bucket;
 import com.amazonaws.services.s3.model.CannedAccessControlList;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
 import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
 import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
 import com.amazonaws.services.s3.model.PutObjectRequest;
 import com.amazonaws.services.s3.model.S3Object;
 import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.services.s3.model.UploadPartRequest;
 import com.amazonaws.services.s3.transfer.TransferManager;
 import com.amazonaws.services.s3.transfer.Upload;
 
+import com.cloud.utils.concurrency.NamedThreadFactory;
 import com.cloud.utils.exception.CloudRuntimeException;
 
 public final class S3Utils {
@@ -75,12 +98,122 @@ public final class S3Utils {
     private static final int MIN_BUCKET_NAME_LENGTH = 3;
     private static final int MAX_BUCKET_NAME_LENGTH = 63;
 
+    // S3 rejects multipart uploads with parts smaller than 5MB, but the last one
+    private static final long MIN_PART_SIZE = 5L * 1024 * 1024;
+    public static final long DEFAULT_PART_SIZE = 16L * 1024 * 1024;
+    public static final int DEFAULT_TRANSFER_CONCURRENCY = 4;
+    public static final int DEFAULT_TRANSFER_THREADS = 16;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final Pattern MD5_ETAG = Pattern.compile("[0-9a-fA-F]{32}");
+
+    // Clients are thread safe and hold a connection pool each, so one is kept
+    // per set of client options.  Neither clients nor transfer managers are
+    // ever dropped: a transfer manager shuts its thread pool down when it is
+    // finalized, and the pool is shared by all of them.
+    private static final ConcurrentMap<ClientKey, AmazonS3> CLIENTS = new ConcurrentHashMap<ClientKey, AmazonS3>();
+    private static final ConcurrentMap<AmazonS3, TransferManager> TRANSFER_MANAGERS = new ConcurrentHashMap<AmazonS3, TransferManager>();
+
+    // Runs the parts of all transfers.  Only the threads that start a transfer
+    // wait for parts, never the transfer threads themselves.
+    private static final ThreadPoolExecutor TRANSFER_EXECUTOR = new ThreadPoolExecutor(DEFAULT_TRANSFER_THREADS, DEFAULT_TRANSFER_THREADS, 60, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("S3Transfer"));
+
+    private static final TransferStatistics STATISTICS = new TransferStatistics();
+
+    private static volatile long partSize = DEFAULT_PART_SIZE;
+    private static volatile int transferConcurrency = DEFAULT_TRANSFER_CONCURRENCY;
+
+    static {
+        TRANSFER_EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
     private S3Utils() {
         super();
     }
 
+    /**
+     * Sets how files are split for multipart transfers.  Clients already in
+     * use keep their connection pool size.
+     *
+     * @param partSize size of the parts of multipart uploads and ranged
+     *        downloads, at least 5MB.
+     * @param concurrency number of parts of a transfer in flight at once.
+     * @param threads number of transfer threads shared by all transfers.
+     */
+    public static void configureTransfers(final long partSize, final int concurrency, final int threads) {
+
+        S3Utils.partSize = Math.max(partSize, MIN_PART_SIZE);
+        S3Utils.transferConcurrency = Math.max(concurrency, 1);
+
+        final int poolSize = Math.max(threads, 1);
+        if (poolSize > TRANSFER_EXECUTOR.getMaximumPoolSize()) {
+            TRANSFER_EXECUTOR.setMaximumPoolSize(poolSize);
+            TRANSFER_EXECUTOR.setCorePoolSize(poolSize);
+        } else {
+            TRANSFER_EXECUTOR.setCorePoolSize(poolSize);
+            TRANSFER_EXECUTOR.setMaximumPoolSize(poolSize);
+        }
+
+        for (final TransferManager transferManager : TRANSFER_MANAGERS.values()) {
+            transferManager.getConfiguration().setMinimumUploadPartSize(S3Utils.partSize);
+        }
+
+        LOGGER.info(format("S3 transfers use %1$s byte parts, %2$s parts in flight per transfer and %3$s threads", S3Utils.partSize,
+            S3Utils.transferConcurrency, poolSize));
+
+    }
+
+    public static long getPartSize() {
+        return partSize;
+    }
+
+    public static int getTransferConcurrency() {
+        return transferConcurrency;
+    }
+
+    public static TransferStatistics getTransferStatistics() {
+        return STATISTICS;
+    }
+
     public static AmazonS3 acquireClient(final ClientOptions clientOptions) {
 
+        final ClientKey clientKey = new ClientKey(clientOptions);
+
+        AmazonS3 client = CLIENTS.get(clientKey);
+        if (client == null) {
+            client = createClient(clientOptions);
+            final AmazonS3 existing = CLIENTS.putIfAbsent(clientKey, client);
+            if (existing != null) {
+                client = existing;
+            }
+        }
+
+        return client;
+
+    }
+
+    private static TransferManager acquireTransferManager(final ClientOptions clientOptions) {
+
+        final AmazonS3 client = acquireClient(clientOptions);
+
+        TransferManager transferManager = TRANSFER_MANAGERS.get(client);
+        if (transferManager == null) {
+            synchronized (TRANSFER_MANAGERS) {
+                transferManager = TRANSFER_MANAGERS.get(client);
+                if (transferManager == null) {
+                    transferManager = new TransferManager(client, TRANSFER_EXECUTOR);
+                    transferManager.getConfiguration().setMinimumUploadPartSize(partSize);
+                    TRANSFER_MANAGERS.put(client, transferManager);
+                }
+            }
+        }
+
+        return transferManager;
+
+    }
+
+    private static AmazonS3 createClient(final ClientOptions clientOptions) {
+
         final AWSCredentials credentials = new BasicAWSCredentials(clientOptions.getAccessKey(), clientOptions.getSecretKey());
 
         final ClientConfiguration configuration = new ClientConfiguration();
@@ -101,9 +234,13 @@ public final class S3Utils {
             configuration.setSocketTimeout(clientOptions.getSocketTimeout());
         }
 
+        // every transfer thread and every thread waiting on a transfer may hold a connection
+        configuration.setMaxConnections(Math.max(configuration.getMaxConnections(), 2 * TRANSFER_EXECUTOR.getMaximumPoolSize()));
+
         if (LOGGER.isDebugEnabled()) {
-            LOGGER.debug(format("Creating S3 client with configuration: [protocol: %1$s, connectionTimeOut: " + "%2$s, maxErrorRetry: %3$s, socketTimeout: %4$s]",
-                configuration.getProtocol(), configuration.getConnectionTimeout(), configuration.getMaxErrorRetry(), configuration.getSocketTimeout()));
+            LOGGER.debug(format("Creating S3 client with configuration: [protocol: %1$s, connectionTimeOut: " + "%2$s, maxErrorRetry: %3$s, socketTimeout: %4$s, "
+                + "maxConnections: %5$s]", configuration.getProtocol(), configuration.getConnectionTimeout(), configuration.getMaxErrorRetry(),
+                configuration.getSocketTimeout(), configuration.getMaxConnections()));
         }
 
         final AmazonS3Client client = new AmazonS3Client(credentials, configuration);
@@ -173,9 +310,8 @@ public final class S3Utils {
         if (LOGGER.isDebugEnabled()) {
             LOGGER.debug(format("Multipart sending file %1$s as S3 object %2$s in " + "bucket %3$s", sourceFile.getName(), key, bucketName));
         }
-        TransferManager tm = new TransferManager(S3Utils.acquireClient(clientOptions));
-        Upload upload = tm.upload(bucketName, key, sourceFile);
-        upload.waitForCompletion();
+
+        upload(singletonList(new FileUpload(acquireClient(clientOptions), bucketName, key, sourceFile, partSize)));
     }
 
     // multi-part upload object
@@ -190,8 +326,7 @@ public final class S3Utils {
         if (LOGGER.isDebugEnabled()) {
             LOGGER.debug(format("Multipart sending stream as S3 object %1$s in " + "bucket %2$s", key, bucketName));
         }
-        TransferManager tm = new TransferManager(S3Utils.acquireClient(clientOptions));
-        Upload upload = tm.upload(bucketName, key, sourceStream, null);
+        Upload upload = acquireTransferManager(clientOptions).upload(bucketName, key, sourceStream, null);
         upload.waitForCompletion();
     }
 
@@ -204,10 +339,16 @@ public final class S3Utils {
         if (LOGGER.isDebugEnabled()) {
             LOGGER.debug("Multipart sending object to S3 using PutObjectRequest");
         }
-        TransferManager tm = new TransferManager(S3Utils.acquireClient(clientOptions));
-        Upload upload = tm.upload(req);
+        final long start = currentTimeMillis();
+        Upload upload = acquireTransferManager(clientOptions).upload(req);
         upload.waitForCompletion();
 
+        if (req.getFile() != null) {
+            STATISTICS.recordUpload(req.getFile().length(), currentTimeMillis() - start);
+        } else if (req.getMetadata() != null && req.getMetadata().getContentLength() > 0) {
+            STATISTICS.recordUpload(req.getMetadata().getContentLength(), currentTimeMillis() - start);
+        }
+
     }
 
     public static void setObjectAcl(final ClientOptions clientOptions, final String bucketName, final String key, final CannedAccessControlList acl) {
@@ -244,7 +385,6 @@ public final class S3Utils {
 
     }
 
-    @SuppressWarnings("unchecked")
     public static File getFile(final ClientOptions clientOptions, final String bucketName, final String key, final File targetDirectory,
         final FileNamingStrategy namingStrategy) {
 
@@ -256,48 +396,10 @@ public final class S3Utils {
 
         final AmazonS3 connection = acquireClient(clientOptions);
 
-        File tempFile = null;
-        try {
-
-            tempFile = createTempFile(join("-", targetDirectory.getName(), currentTimeMillis(), "part"), "tmp", targetDirectory);
-            tempFile.deleteOnExit();
-
-            if (LOGGER.isDebugEnabled()) {
-                LOGGER.debug(format("Downloading object %1$s from bucket %2$s to temp file %3$s", key, bucketName, tempFile.getName()));
-            }
-
-            try {
-                connection.getObject(new GetObjectRequest(bucketName, key), tempFile);
-            } catch (AmazonClientException ex) {
-                // hack to handle different ETAG format generated from RiakCS for multi-part uploaded object
-                String msg = ex.getMessage();
-                if (!msg.contains("verify integrity")) {
-                    throw ex;
-                }
-            }
-
-            final File targetFile = new File(targetDirectory, namingStrategy.determineFileName(key));
-            tempFile.renameTo(targetFile);
-
-            return targetFile;
-
-        } catch (FileNotFoundException e) {
-
-            throw new CloudRuntimeException(format("Failed open file %1$s in order to get object %2$s from bucket %3$s.", targetDirectory.getAbsoluteFile(), bucketName,
-                key), e);
-
-        } catch (IOException e) {
+        final ObjectMetadata metadata = connection.getObjectMetadata(bucketName, key);
 
-            throw new CloudRuntimeException(format("Unable to allocate temporary file in directory %1$s to download %2$s:%3$s from S3",
-                targetDirectory.getAbsolutePath(), bucketName, key), e);
-
-        } finally {
-
-            if (tempFile != null) {
-                tempFile.delete();
-            }
-
-        }
+        return download(singletonList(new FileDownload(connection, bucketName, key, metadata.getContentLength(), metadata.getETag(), targetDirectory,
+            namingStrategy))).get(0);
 
     }
 
@@ -313,15 +415,60 @@ public final class S3Utils {
 
         // List the objects in the source directory on S3
         final List<S3ObjectSummary> objectSummaries = listDirectory(bucketName, sourcePath, connection);
-        final List<File> files = new ArrayList<File>();
+        final List<FileDownload> downloads = new ArrayList<FileDownload>();
 
         for (final S3ObjectSummary objectSummary : objectSummaries) {
 
-            files.add(getFile(clientOptions, bucketName, objectSummary.getKey(), targetDirectory, namingStrategy));
+            downloads.add(new FileDownload(connection, bucketName, objectSummary.getKey(), objectSummary.getSize(), objectSummary.getETag(), targetDirectory,
+                namingStrategy));
 
         }
 
-        return unmodifiableList(files);
+        return unmodifiableList(download(downloads));
+
+    }
+
+    // Downloads the objects together, their parts sharing the transfer concurrency
+    private static List<File> download(final List<FileDownload> downloads) {
+
+        if (downloads.isEmpty()) {
+            return emptyList();
+        }
+
+        final long start = currentTimeMillis();
+
+        try {
+
+            final List<Callable<Long>> parts = new ArrayList<Callable<Long>>();
+            for (final FileDownload download : downloads) {
+                parts.addAll(download.start(partSize));
+            }
+
+            final long bytes = transfer(parts);
+
+            final List<File> files = new ArrayList<File>(downloads.size());
+            for (final FileDownload download : downloads) {
+                files.add(download.finish());
+            }
+
+            STATISTICS.recordDownload(bytes, currentTimeMillis() - start);
+            logThroughput("Received", bytes, currentTimeMillis() - start, downloads.get(0).getBucketName(), downloads.size() == 1 ? downloads.get(0).getKey()
+                : downloads.size() + " objects");
+
+            return files;
+
+        } catch (InterruptedException e) {
+
+            Thread.currentThread().interrupt();
+            throw new CloudRuntimeException("Interrupted while downloading from S3", e);
+
+        } finally {
+
+            for (final FileDownload download : downloads) {
+                download.cleanUp();
+            }
+
+        }
 
     }
 
@@ -377,14 +524,105 @@ public final class S3Utils {
 
         // Send the files to S3 using the passed ObjectNaming strategy to
         // determine the key ...
+        final List<FileUpload> uploads = new ArrayList<FileUpload>(files.length);
         for (final File file : files) {
             final String key = namingStrategy.determineKey(file);
             if (LOGGER.isDebugEnabled()) {
                 LOGGER.debug(format("Putting file %1$s into bucket %2$s with key %3$s.", file.getAbsolutePath(), bucketName, key));
             }
-            client.putObject(bucketName, key, file);
+            uploads.add(new FileUpload(client, bucketName, key, file, partSize));
+        }
+
+        try {
+            upload(uploads);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CloudRuntimeException(format("Interrupted while putting directory %1$s in S3 bucket %2$s", directory.getAbsolutePath(), bucketName), e);
+        }
+
+    }
+
+    // Uploads the files together, their parts sharing the transfer concurrency
+    private static void upload(final List<FileUpload> uploads) throws InterruptedException {
+
+        final long start = currentTimeMillis();
+
+        try {
+
+            final List<Callable<Long>> parts = new ArrayList<Callable<Long>>();
+            for (final FileUpload upload : uploads) {
+                parts.addAll(upload.start());
+            }
+
+            final long bytes = transfer(parts);
+
+            for (final FileUpload upload : uploads) {
+                upload.complete();
+            }
+
+            STATISTICS.recordUpload(bytes, currentTimeMillis() - start);
+            logThroughput("Sent", bytes, currentTimeMillis() - start, uploads.get(0).getBucketName(), uploads.size() == 1 ? uploads.get(0).getKey()
+                : uploads.size() + " objects");
+
+        } catch (RuntimeException e) {
+            abort(uploads);
+            throw e;
+        } catch (InterruptedException e) {
+            abort(uploads);
+            throw e;
+        }
+
+    }
+
+    private static void abort(final List<FileUpload> uploads) {
+        for (final FileUpload upload : uploads) {
+            upload.abort();
+        }
+    }
+
+    /**
+     * Runs the parts on the transfer threads, no more than the transfer
+     * concurrency at once, and waits for all of them.  The first part to fail
+     * cancels the others.
+     *
+     * @return the sum of the results of the parts, the bytes transferred.
+     */
+    private static long transfer(final List<Callable<Long>> parts) throws InterruptedException {
+
+        final CompletionService<Long> completionService = new ExecutorCompletionService<Long>(TRANSFER_EXECUTOR);
+        final List<Future<Long>> futures = new ArrayList<Future<Long>>(parts.size());
+        final int concurrency = transferConcurrency;
+
+        long bytes = 0;
+        int next = 0;
+        try {
+            for (int done = 0; done < parts.size(); done++) {
+                while (next < parts.size() && next - done < concurrency) {
+                    futures.add(completionService.submit(parts.get(next++)));
+                }
+                bytes += completionService.take().get();
+            }
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            }
+            throw new CloudRuntimeException("S3 transfer failed: " + cause.getMessage(), cause);
+        } finally {
+            for (final Future<Long> future : futures) {
+                future.cancel(true);
+            }
         }
 
+        return bytes;
+
+    }
+
+    private static void logThroughput(final String action, final long bytes, final long millis, final String bucketName, final String what) {
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug(format("%1$s %2$s bytes for %3$s in bucket %4$s in %5$s ms (%6$s KB/s)", action, bytes, what, bucketName, millis,
+                bytes * 1000 / 1024 / Math.max(millis, 1)));
+        }
     }
 
     public static void deleteObject(final ClientOptions clientOptions, final String bucketName, final String key) {
@@ -542,6 +780,431 @@ public final class S3Utils {
         return emptyList();
     }
 
+    // Identifies the clients that can be shared: the same credentials, end point and connection settings
+    private static final class ClientKey {
+
+        private final List<Object> values;
+
+        ClientKey(final ClientOptions clientOptions) {
+            values = Arrays.<Object> asList(clientOptions.getAccessKey(), clientOptions.getSecretKey(), clientOptions.getEndPoint(), clientOptions.isHttps(),
+                clientOptions.getConnectionTimeout(), clientOptions.getMaxErrorRetry(), clientOptions.getSocketTimeout());
+        }
+
+        @Override
+        public boolean equals(final Object thatObject) {
+            return thatObject instanceof ClientKey && values.equals(((ClientKey)thatObject).values);
+        }
+
+        @Override
+        public int hashCode() {
+            return values.hashCode();
+        }
+
+    }
+
+    // Sends a file in one request, or in parts when it is larger than a part
+    private static final class FileUpload {
+
+        private final AmazonS3 client;
+        private final String bucketName;
+        private final String key;
+        private final File file;
+        private final long partSize;
+        private String uploadId;
+        private PartETag[] partETags;
+
+        FileUpload(final AmazonS3 client, final String bucketName, final String key, final File file, final long partSize) {
+            this.client = client;
+            this.bucketName = bucketName;
+            this.key = key;
+            this.file = file;
+            this.partSize = partSize;
+        }
+
+        String getBucketName() {
+            return bucketName;
+        }
+
+        String getKey() {
+            return key;
+        }
+
+        List<Callable<Long>> start() {
+
+            final long length = file.length();
+
+            if (length <= partSize) {
+                return singletonList((Callable<Long>)new Callable<Long>() {
+                    @Override
+                    public Long call() {
+                        client.putObject(bucketName, key, file);
+                        return length;
+                    }
+                });
+            }
+
+            uploadId = client.initiateMultipartUpload(new InitiateMultipartUploadRequest(bucketName, key)).getUploadId();
+
+            partETags = new PartETag[(int)((length + partSize - 1) / partSize)];
+            final List<Callable<Long>> parts = new ArrayList<Callable<Long>>(partETags.length);
+            for (int index = 0; index < partETags.length; index++) {
+                final long offset = index * partSize;
+                parts.add(part(index, offset, Math.min(partSize, length - offset)));
+            }
+
+            return parts;
+
+        }
+
+        private Callable<Long> part(final int index, final long offset, final long size) {
+            return new Callable<Long>() {
+                @Override
+                public Long call() {
+                    final UploadPartRequest request = new UploadPartRequest().withBucketName(bucketName).withKey(key).withUploadId(uploadId)
+                        .withPartNumber(index + 1).withFile(file).withFileOffset(offset).withPartSize(size);
+                    partETags[index] = client.uploadPart(request).getPartETag();
+                    return size;
+                }
+            };
+        }
+
+        void complete() {
+            if (uploadId != null) {
+                client.completeMultipartUpload(new CompleteMultipartUploadRequest(bucketName, key, uploadId, Arrays.asList(partETags)));
+                uploadId = null;
+            }
+        }
+
+        // S3 keeps, and charges for, the parts of an upload until it is completed or aborted
+        void abort() {
+
+            if (uploadId == null) {
+                return;
+            }
+
+            try {
+                client.abortMultipartUpload(new AbortMultipartUploadRequest(bucketName, key, uploadId));
+            } catch (AmazonClientException e) {
+                LOGGER.warn(format("Unable to abort the multipart upload of %1$s to bucket %2$s", key, bucketName), e);
+            }
+            uploadId = null;
+
+        }
+
+    }
+
+    // Fetches an object to a temporary file in one request, or in ranges when
+    // it is larger than a part, and moves it in place once complete.  Every
+    // range must match the ETag seen when listing the object, so the parts
+    // cannot come from different versions of it.
+    private static final class FileDownload {
+
+        private final AmazonS3 client;
+        private final String bucketName;
+        private final String key;
+        private final long size;
+        private final String etag;
+        private final File targetDirectory;
+        private final File targetFile;
+        private File tempFile;
+        private boolean ranged;
+        // ranges writing to the temp file, guarded by this
+        private int writers;
+        private boolean closed;
+
+        FileDownload(final AmazonS3 client, final String bucketName, final String key, final long size, final String etag, final File targetDirectory,
+            final FileNamingStrategy namingStrategy) {
+            this.client = client;
+            this.bucketName = bucketName;
+            this.key = key;
+            this.size = size;
+            this.etag = etag == null ? null : etag.replace("\"", "");
+            this.targetDirectory = targetDirectory;
+            this.targetFile = new File(targetDirectory, namingStrategy.determineFileName(key));
+        }
+
+        String getBucketName() {
+            return bucketName;
+        }
+
+        String getKey() {
+            return key;
+        }
+
+        List<Callable<Long>> start(final long partSize) {
+
+            try {
+
+                tempFile = createTempFile(join("-", targetDirectory.getName(), currentTimeMillis(), "part"), "tmp", targetDirectory);
+                tempFile.deleteOnExit();
+
+                if (LOGGER.isDebugEnabled()) {
+                    LOGGER.debug(format("Downloading object %1$s from bucket %2$s to temp file %3$s", key, bucketName, tempFile.getName()));
+                }
+
+                if (size <= partSize) {
+                    return singletonList(whole());
+                }
+
+                final RandomAccessFile file = new RandomAccessFile(tempFile, "rw");
+                try {
+                    file.setLength(size);
+                } finally {
+                    file.close();
+                }
+
+                ranged = true;
+                final List<Callable<Long>> ranges = new ArrayList<Callable<Long>>();
+                for (long offset = 0; offset < size; offset += partSize) {
+                    ranges.add(range(offset, Math.min(offset + partSize, size) - 1));
+                }
+                return ranges;
+
+            } catch (FileNotFoundException e) {
+
+                throw new CloudRuntimeException(format("Failed open file %1$s in order to get object %2$s from bucket %3$s.", targetDirectory.getAbsoluteFile(),
+                    bucketName, key), e);
+
+            } catch (IOException e) {
+
+                throw new CloudRuntimeException(format("Unable to allocate temporary file in directory %1$s to download %2$s:%3$s from S3",
+                    targetDirectory.getAbsolutePath(), bucketName, key), e);
+
+            }
+
+        }
+
+        private Callable<Long> whole() {
+            return new Callable<Long>() {
+                @Override
+                public Long call() throws IOException {
+                    if (!enter()) {
+                        throw new InterruptedIOException(format("Download of %1$s:%2$s was cancelled", bucketName, key));
+                    }
+                    try {
+                        client.getObject(new GetObjectRequest(bucketName, key), tempFile);
+                    } catch (AmazonClientException ex) {
+                        // hack to handle different ETAG format generated from RiakCS for multi-part uploaded object
+                        String msg = ex.getMessage();
+                        if (!msg.contains("verify integrity")) {
+                            throw ex;
+                        }
+                    } finally {
+                        exit();
+                    }
+                    return tempFile.length();
+                }
+            };
+        }
+
+        private Callable<Long> range(final long first, final long last) {
+            return new Callable<Long>() {
+                @Override
+                public Long call() throws IOException {
+
+                    if (!enter()) {
+                        throw new InterruptedIOException(format("Download of %1$s:%2$s was cancelled", bucketName, key));
+                    }
+
+                    try {
+
+                        final GetObjectRequest request = new GetObjectRequest(bucketName, key);
+                        request.setRange(first, last);
+                        if (isNotBlank(etag)) {
+                            request.withMatchingETagConstraint(etag);
+                        }
+
+                        // null when the ETag constraint was not met
+                        final S3Object object = client.getObject(request);
+                        if (object == null) {
+                            throw new IOException(format("Object %1$s:%2$s changed while it was being downloaded", bucketName, key));
+                        }
+
+                        final InputStream in = object.getObjectContent();
+                        final RandomAccessFile out = new RandomAccessFile(tempFile, "rw");
+                        try {
+                            out.seek(first);
+                            final byte[] buffer = new byte[READ_BUFFER_SIZE];
+                            long remaining = last - first + 1;
+                            while (remaining > 0) {
+                                if (Thread.currentThread().isInterrupted()) {
+                                    throw new InterruptedIOException(format("Download of %1$s:%2$s was cancelled", bucketName, key));
+                                }
+                                final int bytes = in.read(buffer, 0, (int)Math.min(buffer.length, remaining));
+                                if (bytes < 0) {
+                                    throw new IOException(format("Connection closed with %1$s bytes of the range at %2$s of %3$s:%4$s left to read", remaining,
+                                        first, bucketName, key));
+                                }
+                                out.write(buffer, 0, bytes);
+                                remaining -= bytes;
+                            }
+                        } finally {
+                            in.close();
+                            out.close();
+                        }
+
+                        return last - first + 1;
+
+                    } finally {
+                        exit();
+                    }
+
+                }
+            };
+        }
+
+        private synchronized boolean enter() {
+            if (closed) {
+                return false;
+            }
+            writers++;
+            return true;
+        }
+
+        private synchronized void exit() {
+            writers--;
+            notifyAll();
+        }
+
+        File finish() {
+            if (ranged) {
+                verify();
+            }
+            tempFile.renameTo(targetFile);
+            return targetFile;
+        }
+
+        // The ETag of an object uploaded in one request is the MD5 of its
+        // content.  Multipart ETags carry a "-<parts>" suffix, and some
+        // stores (RiakCS) use other formats, so only plain MD5s are checked.
+        // Whole downloads are already checked by the client.
+        private void verify() {
+
+            if (etag == null || !MD5_ETAG.matcher(etag).matches()) {
+                return;
+            }
+
+            try {
+
+                final InputStream in = new FileInputStream(tempFile);
+                final String md5;
+                try {
+                    md5 = DigestUtils.md5Hex(in);
+                } finally {
+                    in.close();
+                }
+
+                if (!md5.equalsIgnoreCase(etag)) {
+                    throw new CloudRuntimeException(format("Downloaded object %1$s:%2$s has MD5 %3$s, but its ETag is %4$s", bucketName, key, md5, etag));
+                }
+
+            } catch (IOException e) {
+                throw new CloudRuntimeException(format("Unable to verify the download of %1$s:%2$s", bucketName, key), e);
+            }
+
+        }
+
+        // Waits for ranges still running after their futures were cancelled,
+        // so none of them writes to the temp file once it is deleted
+        void cleanUp() {
+            boolean interrupted = false;
+            synchronized (this) {
+                closed = true;
+                while (writers > 0) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (tempFile != null) {
+                tempFile.delete();
+            }
+        }
+
+    }
+
+    /**
+     * Bytes moved by the transfers of this process, and the time spent on
+     * them.  Throughputs are averages over the transfers, which may overlap.
+     */
+    public static final class TransferStatistics {
+
+        private final AtomicLong uploads = new AtomicLong();
+        private final AtomicLong bytesUploaded = new AtomicLong();
+        private final AtomicLong uploadTime = new AtomicLong();
+        private final AtomicLong downloads = new AtomicLong();
+        private final AtomicLong bytesDownloaded = new AtomicLong();
+        private final AtomicLong downloadTime = new AtomicLong();
+
+        void recordUpload(final long bytes, final long millis) {
+            uploads.incrementAndGet();
+            bytesUploaded.addAndGet(bytes);
+            uploadTime.addAndGet(millis);
+        }
+
+        void recordDownload(final long bytes, final long millis) {
+            downloads.incrementAndGet();
+            bytesDownloaded.addAndGet(bytes);
+            downloadTime.addAndGet(millis);
+        }
+
+        public long getUploadCount() {
+            return uploads.get();
+        }
+
+        public long getBytesUploaded() {
+            return bytesUploaded.get();
+        }
+
+        /**
+         * @return time spent uploading in milliseconds.
+         */
+        public long getUploadTime() {
+            return uploadTime.get();
+        }
+
+        /**
+         * @return bytes per second while uploading.
+         */
+        public long getUploadThroughput() {
+            return bytesUploaded.get() * 1000 / Math.max(uploadTime.get(), 1);
+        }
+
+        public long getDownloadCount() {
+            return downloads.get();
+        }
+
+        public long getBytesDownloaded() {
+            return bytesDownloaded.get();
+        }
+
+        /**
+         * @return time spent downloading in milliseconds.
+         */
+        public long getDownloadTime() {
+            return downloadTime.get();
+        }
+
+        /**
+         * @return bytes per second while downloading.
+         */
+        public long getDownloadThroughput() {
+            return bytesDownloaded.get() * 1000 / Math.max(downloadTime.get(), 1);
+        }
+
+        @Override
+        public String toString() {
+            return format("[uploads: %1$s, bytesUploaded: %2$s, uploadThroughput: %3$s B/s, downloads: %4$s, bytesDownloaded: %5$s, downloadThroughput: %6$s B/s]",
+                getUploadCount(), getBytesUploaded(), getUploadThroughput(), getDownloadCount(), getBytesDownloaded(), getDownloadThroughput());
+        }
+
+    }
+
     public interface ClientOptions {
 
         String getAccessKey();
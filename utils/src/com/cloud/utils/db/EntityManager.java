@@ -20,6 +20,7 @@
 package com.cloud.utils.db;
 
 import java.io.Serializable;
+import java.util.Collection;
 import java.util.List;
 
 /**
@@ -55,6 +56,15 @@ public interface EntityManager {
      */
     public <T> T findByUuidIncludingRemoved(Class<T> entityType, String uuid);
 
+    /**
+     * Finds the entities with the given uuid strings in one query, including removed entries
+     * @param <T> entity class
+     * @param entityType type of entity you're looking for.
+     * @param uuids the unique ids
+     * @return the entities found, in no particular order.
+     */
+    public <T> List<? extends T> listByUuidsIncludingRemoved(Class<T> entityType, Collection<String> uuids);
+
     /**
      * Finds an entity by external id which is always String
      * @param <T> entity class
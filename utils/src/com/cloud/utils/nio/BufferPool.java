@@ -0,0 +1,135 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.utils.nio;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * BufferPool recycles direct buffers in power of two size classes.  A buffer
+ * acquired from the pool must be released back to it by the same caller once
+ * nothing refers to it anymore.  Requests larger than the biggest size class
+ * get a heap buffer that is not pooled.
+ */
+public class BufferPool {
+    private final int _minSize;
+    private final int _maxSize;
+    private final int _maxBuffersPerClass;
+    private final List<ConcurrentLinkedQueue<ByteBuffer>> _classes;
+    private final List<AtomicInteger> _classCounts;
+    private final AtomicLong _allocatedCount = new AtomicLong();
+    private final AtomicLong _reusedCount = new AtomicLong();
+
+    /**
+     * @param minSize size of the smallest class; rounded up to a power of two.
+     * @param maxSize size of the largest class; rounded up to a power of two.
+     * @param maxBuffersPerClass number of idle buffers kept in each class.
+     */
+    public BufferPool(int minSize, int maxSize, int maxBuffersPerClass) {
+        _minSize = roundUp(minSize);
+        _maxSize = roundUp(Math.max(minSize, maxSize));
+        _maxBuffersPerClass = maxBuffersPerClass;
+
+        _classes = new ArrayList<ConcurrentLinkedQueue<ByteBuffer>>();
+        _classCounts = new ArrayList<AtomicInteger>();
+        for (int size = _minSize; size <= _maxSize; size <<= 1) {
+            _classes.add(new ConcurrentLinkedQueue<ByteBuffer>());
+            _classCounts.add(new AtomicInteger());
+        }
+    }
+
+    private static int roundUp(int size) {
+        int rounded = Integer.highestOneBit(Math.max(size, 1));
+        return rounded < size ? rounded << 1 : rounded;
+    }
+
+    private int getClassIndex(int capacity) {
+        if (capacity > _maxSize) {
+            return -1;
+        }
+        return Integer.numberOfTrailingZeros(roundUp(Math.max(capacity, _minSize))) - Integer.numberOfTrailingZeros(_minSize);
+    }
+
+    /**
+     * @param size minimum capacity needed.
+     * @return a cleared buffer with at least size bytes of capacity.
+     */
+    public ByteBuffer acquire(int size) {
+        int index = getClassIndex(size);
+        if (index < 0) {
+            return ByteBuffer.allocate(size);
+        }
+
+        ByteBuffer buffer = _classes.get(index).poll();
+        if (buffer == null) {
+            _allocatedCount.incrementAndGet();
+            return ByteBuffer.allocateDirect(_minSize << index);
+        }
+
+        _classCounts.get(index).decrementAndGet();
+        _reusedCount.incrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Returns the buffer to the pool.  Buffers that were not acquired from a
+     * pool are ignored, so it is safe to release whatever acquire() returned.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect()) {
+            return;
+        }
+
+        int capacity = buffer.capacity();
+        int index = getClassIndex(capacity);
+        if (index < 0 || (_minSize << index) != capacity) {
+            return;
+        }
+
+        AtomicInteger count = _classCounts.get(index);
+        if (count.incrementAndGet() > _maxBuffersPerClass) {
+            count.decrementAndGet();
+            return;
+        }
+        buffer.clear();
+        _classes.get(index).offer(buffer);
+    }
+
+    public long getAllocatedCount() {
+        return _allocatedCount.get();
+    }
+
+    public long getReusedCount() {
+        return _reusedCount.get();
+    }
+
+    public int getIdleCount() {
+        int idle = 0;
+        for (AtomicInteger count : _classCounts) {
+            idle += count.get();
+        }
+        return idle;
+    }
+}
@@ -52,12 +52,16 @@ import com.cloud.utils.PropertiesUtil;
 public class Link {
     private static final Logger s_logger = Logger.getLogger(Link.class);
 
+    // queued after the last buffers to write when the link should close
+    private static final ByteBuffer[] CLOSE_REQUEST = new ByteBuffer[0];
+
     private final InetSocketAddress _addr;
     private final NioConnection _connection;
     private SelectionKey _key;
     private final ConcurrentLinkedQueue<ByteBuffer[]> _writeQueue;
     private ByteBuffer _readBuffer;
     private ByteBuffer _plaintextBuffer;
+    private int _plaintextLength;
     private Object _attach;
     private boolean _readHeader;
     private boolean _gotFollowingPacket;
@@ -140,55 +144,48 @@ public class Link {
 
     private static void doWrite(SocketChannel ch, ByteBuffer[] buffers, SSLEngine sslEngine) throws IOException {
         SSLSession sslSession = sslEngine.getSession();
-        ByteBuffer pkgBuf = ByteBuffer.allocate(sslSession.getPacketBufferSize() + 40);
+        BufferPool pool = NioConnection.getBufferPool();
+        // The header is written in front of each SSL packet in the same buffer so both go out in one write.
+        ByteBuffer pkgBuf = pool.acquire(sslSession.getPacketBufferSize() + 40 + 4);
         SSLEngineResult engResult;
 
-        ByteBuffer headBuf = ByteBuffer.allocate(4);
-
-        int totalLen = 0;
-        for (ByteBuffer buffer : buffers) {
-            totalLen += buffer.limit();
-        }
-
-        int processedLen = 0;
-        while (processedLen < totalLen) {
-            headBuf.clear();
-            pkgBuf.clear();
-            engResult = sslEngine.wrap(buffers, pkgBuf);
-            if (engResult.getHandshakeStatus() != HandshakeStatus.FINISHED && engResult.getHandshakeStatus() != HandshakeStatus.NOT_HANDSHAKING &&
-                engResult.getStatus() != SSLEngineResult.Status.OK) {
-                throw new IOException("SSL: SSLEngine return bad result! " + engResult);
-            }
-
-            processedLen = 0;
+        try {
+            int totalLen = 0;
             for (ByteBuffer buffer : buffers) {
-                processedLen += buffer.position();
+                totalLen += buffer.limit();
             }
 
-            int dataRemaining = pkgBuf.position();
-            int header = dataRemaining;
-            int headRemaining = 4;
-            pkgBuf.flip();
-            if (processedLen < totalLen) {
-                header = header | HEADER_FLAG_FOLLOWING;
-            }
-            headBuf.putInt(header);
-            headBuf.flip();
+            int processedLen = 0;
+            while (processedLen < totalLen) {
+                pkgBuf.clear();
+                pkgBuf.position(4);
+                engResult = sslEngine.wrap(buffers, pkgBuf);
+                if (engResult.getHandshakeStatus() != HandshakeStatus.FINISHED && engResult.getHandshakeStatus() != HandshakeStatus.NOT_HANDSHAKING &&
+                    engResult.getStatus() != SSLEngineResult.Status.OK) {
+                    throw new IOException("SSL: SSLEngine return bad result! " + engResult);
+                }
 
-            while (headRemaining > 0) {
-                if (s_logger.isTraceEnabled()) {
-                    s_logger.trace("Writing Header " + headRemaining);
+                processedLen = 0;
+                for (ByteBuffer buffer : buffers) {
+                    processedLen += buffer.position();
                 }
-                long count = ch.write(headBuf);
-                headRemaining -= count;
-            }
-            while (dataRemaining > 0) {
-                if (s_logger.isTraceEnabled()) {
-                    s_logger.trace("Writing Data " + dataRemaining);
+
+                int header = pkgBuf.position() - 4;
+                if (processedLen < totalLen) {
+                    header = header | HEADER_FLAG_FOLLOWING;
+                }
+                pkgBuf.putInt(0, header);
+                pkgBuf.flip();
+
+                while (pkgBuf.hasRemaining()) {
+                    if (s_logger.isTraceEnabled()) {
+                        s_logger.trace("Writing Data " + pkgBuf.remaining());
+                    }
+                    ch.write(pkgBuf);
                 }
-                long count = ch.write(pkgBuf);
-                dataRemaining -= count;
             }
+        } finally {
+            pool.release(pkgBuf);
         }
     }
 
@@ -210,6 +207,7 @@ public class Link {
     /* SSL has limitation of 16k, we may need to split packets. 18000 is 16k + some extra SSL informations */
     protected static final int MAX_SIZE_PER_PACKET = 18000;
     protected static final int HEADER_FLAG_FOLLOWING = 0x10000;
+    protected static final int MAX_RETAINED_PLAINTEXT_SIZE = 256 * 1024;
 
     public byte[] read(SocketChannel ch) throws IOException {
         if (_readHeader) {   // Start of a packet
@@ -237,7 +235,7 @@ public class Link {
             }
 
             if (!_gotFollowingPacket) {
-                _plaintextBuffer = ByteBuffer.allocate(2000);
+                _plaintextLength = 0;
             }
 
             if ((header & HEADER_FLAG_FOLLOWING) != 0) {
@@ -253,7 +251,8 @@ public class Link {
                 if (s_logger.isTraceEnabled()) {
                     s_logger.trace("Resizing the byte buffer from " + _readBuffer.capacity());
                 }
-                _readBuffer = ByteBuffer.allocate(readSize);
+                // Grow to the largest packet at once so the buffer is never reallocated again.
+                _readBuffer = ByteBuffer.allocate(MAX_SIZE_PER_PACKET);
             }
             _readBuffer.limit(readSize);
         }
@@ -271,16 +270,29 @@ public class Link {
 
         _readBuffer.flip();
 
-        ByteBuffer appBuf;
-
         SSLSession sslSession = _sslEngine.getSession();
         SSLEngineResult engResult;
+        int appBufferSize = sslSession.getApplicationBufferSize() + 40;
         int remaining = 0;
 
+        if (_plaintextBuffer == null) {
+            _plaintextBuffer = ByteBuffer.allocate(appBufferSize);
+        }
+        _plaintextBuffer.limit(_plaintextBuffer.capacity());
+        _plaintextBuffer.position(_plaintextLength);
+
         while (_readBuffer.hasRemaining()) {
             remaining = _readBuffer.remaining();
-            appBuf = ByteBuffer.allocate(sslSession.getApplicationBufferSize() + 40);
-            engResult = _sslEngine.unwrap(_readBuffer, appBuf);
+            if (_plaintextBuffer.remaining() < appBufferSize) {
+                // We need to expand _plaintextBuffer for more data
+                ByteBuffer newBuffer = ByteBuffer.allocate(Math.max(_plaintextBuffer.capacity() * 2, _plaintextBuffer.position() + appBufferSize));
+                _plaintextBuffer.flip();
+                newBuffer.put(_plaintextBuffer);
+                _plaintextBuffer = newBuffer;
+            }
+            int unwrapped = _plaintextBuffer.position();
+            // Unwrap straight into the message buffer instead of copying through a buffer per packet.
+            engResult = _sslEngine.unwrap(_readBuffer, _plaintextBuffer);
             if (engResult.getHandshakeStatus() != HandshakeStatus.FINISHED && engResult.getHandshakeStatus() != HandshakeStatus.NOT_HANDSHAKING &&
                 engResult.getStatus() != SSLEngineResult.Status.OK) {
                 throw new IOException("SSL: SSLEngine return bad result! " + engResult);
@@ -289,19 +301,11 @@ public class Link {
                 throw new IOException("SSL: Unable to unwrap received data! still remaining " + remaining + "bytes!");
             }
 
-            appBuf.flip();
-            if (_plaintextBuffer.remaining() < appBuf.limit()) {
-                // We need to expand _plaintextBuffer for more data
-                ByteBuffer newBuffer = ByteBuffer.allocate(_plaintextBuffer.capacity() + appBuf.limit() * 5);
-                _plaintextBuffer.flip();
-                newBuffer.put(_plaintextBuffer);
-                _plaintextBuffer = newBuffer;
-            }
-            _plaintextBuffer.put(appBuf);
             if (s_logger.isTraceEnabled()) {
-                s_logger.trace("Done with packet: " + appBuf.limit());
+                s_logger.trace("Done with packet: " + (_plaintextBuffer.position() - unwrapped));
             }
         }
+        _plaintextLength = _plaintextBuffer.position();
 
         _readBuffer.clear();
         _readHeader = true;
@@ -310,6 +314,11 @@ public class Link {
             _plaintextBuffer.flip();
             byte[] result = new byte[_plaintextBuffer.limit()];
             _plaintextBuffer.get(result);
+            _plaintextLength = 0;
+            if (_plaintextBuffer.capacity() > MAX_RETAINED_PLAINTEXT_SIZE) {
+                // Don't hold on to the buffer of an unusually large message.
+                _plaintextBuffer = null;
+            }
             return result;
         } else {
             if (s_logger.isTraceEnabled()) {
@@ -328,24 +337,17 @@ public class Link {
     }
 
     public void send(ByteBuffer[] data, boolean close) throws ClosedChannelException {
-        ByteBuffer[] item = new ByteBuffer[data.length + 1];
-        int remaining = 0;
-        for (int i = 0; i < data.length; i++) {
-            remaining += data[i].remaining();
-            item[i + 1] = data[i];
-        }
-
-        item[0] = ByteBuffer.allocate(4);
-        item[0].putInt(remaining);
-        item[0].flip();
-
         if (s_logger.isTraceEnabled()) {
+            int remaining = 0;
+            for (ByteBuffer buffer : data) {
+                remaining += buffer.remaining();
+            }
             s_logger.trace("Sending packet of length " + remaining);
         }
 
-        _writeQueue.add(item);
+        _writeQueue.add(data);
         if (close) {
-            _writeQueue.add(new ByteBuffer[0]);
+            _writeQueue.add(CLOSE_REQUEST);
         }
         synchronized (this) {
             if (_key == null) {
@@ -368,17 +370,14 @@ public class Link {
     public boolean write(SocketChannel ch) throws IOException {
         ByteBuffer[] data = null;
         while ((data = _writeQueue.poll()) != null) {
-            if (data.length == 0) {
+            if (data == CLOSE_REQUEST) {
                 if (s_logger.isTraceEnabled()) {
                     s_logger.trace("Closing connection requested");
                 }
                 return true;
             }
 
-            ByteBuffer[] raw_data = new ByteBuffer[data.length - 1];
-            System.arraycopy(data, 1, raw_data, 0, data.length - 1);
-
-            doWrite(ch, raw_data, _sslEngine);
+            doWrite(ch, data, _sslEngine);
         }
         return false;
     }
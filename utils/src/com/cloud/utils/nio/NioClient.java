@@ -35,6 +35,8 @@ public class NioClient extends NioConnection {
 
     protected String _host;
     protected String _bindAddress;
+    // milliseconds to wait for the connection to be accepted, 0 waits for as long as the os does
+    protected int _connectTimeout;
 
     public NioClient(String name, String host, int port, int workers, HandlerFactory factory) {
         super(name, port, workers, factory);
@@ -45,6 +47,10 @@ public class NioClient extends NioConnection {
         _bindAddress = ipAddress;
     }
 
+    public void setConnectTimeout(int connectTimeout) {
+        _connectTimeout = connectTimeout;
+    }
+
     @Override
     protected void init() throws IOException {
         _selector = Selector.open();
@@ -64,9 +70,16 @@ public class NioClient extends NioConnection {
             }
 
             addr = new InetSocketAddress(_host, _port);
-            sch.connect(addr);
+            if (_connectTimeout > 0) {
+                sch.socket().connect(addr, _connectTimeout);
+            } else {
+                sch.connect(addr);
+            }
         } catch (IOException e) {
             _selector.close();
+            if (sch != null) {
+                sch.close();
+            }
             throw e;
         }
 
@@ -52,6 +52,9 @@ import com.cloud.utils.concurrency.NamedThreadFactory;
 public abstract class NioConnection implements Runnable {
     private static final Logger s_logger = Logger.getLogger(NioConnection.class);;
 
+    // shared by every server and client in the process for the buffers the links write through
+    private static final BufferPool s_bufferPool = new BufferPool(4096, 65536, 64);
+
     protected Selector _selector;
     protected Thread _thread;
     protected boolean _isRunning;
@@ -72,6 +75,10 @@ public abstract class NioConnection implements Runnable {
         _executor = new ThreadPoolExecutor(workers, 5 * workers, 1, TimeUnit.DAYS, new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory(name + "-Handler"));
     }
 
+    public static BufferPool getBufferPool() {
+        return s_bufferPool;
+    }
+
     public void start() {
         _todos = new ArrayList<ChangeRequest>();
 
@@ -0,0 +1,505 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.AmazonClientException;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import com.cloud.utils.S3Utils.ClientOptions;
+import com.cloud.utils.S3Utils.FileNamingStrategy;
+import com.cloud.utils.S3Utils.ObjectNamingStrategy;
+import com.cloud.utils.exception.CloudRuntimeException;
+
+public class S3UtilsTest {
+
+    // not a DNS name, so the client addresses the bucket in the path
+    private static final String BUCKET = "CloudStackTest";
+    private static final int PART_SIZE = 5 * 1024 * 1024;
+    private static final int CONCURRENCY = 3;
+
+    private final S3StandIn s3 = new S3StandIn();
+    private HttpServer server;
+    private TestClientOptions clientOptions;
+    private File directory;
+    private File downloadDirectory;
+
+    @Before
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", s3);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        clientOptions = new TestClientOptions("http://127.0.0.1:" + server.getAddress().getPort());
+
+        directory = createDirectory("upload");
+        downloadDirectory = createDirectory("download");
+
+        S3Utils.configureTransfers(PART_SIZE, CONCURRENCY, 4);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop(0);
+        S3Utils.configureTransfers(S3Utils.DEFAULT_PART_SIZE, S3Utils.DEFAULT_TRANSFER_CONCURRENCY, S3Utils.DEFAULT_TRANSFER_THREADS);
+        deleteDirectory(directory);
+        deleteDirectory(downloadDirectory);
+    }
+
+    @Test
+    public void testLargeFileInParts() throws Exception {
+        final byte[] content = randomContent(2 * PART_SIZE + 123);
+        final File file = createFile("large.vhd", content);
+
+        S3Utils.mputFile(clientOptions, file, BUCKET, "template/large.vhd");
+
+        Assert.assertTrue(Arrays.equals(content, s3.objects.get("template/large.vhd")));
+        Assert.assertEquals(3, s3.parts.get());
+        Assert.assertTrue(s3.uploads.isEmpty());
+
+        final File downloaded = S3Utils.getFile(clientOptions, BUCKET, "template/large.vhd", downloadDirectory, new LastPathElement());
+
+        Assert.assertEquals("large.vhd", downloaded.getName());
+        Assert.assertTrue(Arrays.equals(content, readFile(downloaded)));
+        Assert.assertEquals(3, s3.ranges.get());
+        Assert.assertTrue(s3.maxInFlight.get() <= CONCURRENCY);
+    }
+
+    @Test
+    public void testSmallFileInOneRequest() throws Exception {
+        final byte[] content = randomContent(4096);
+        final File file = createFile("small.vhd", content);
+
+        S3Utils.mputFile(clientOptions, file, BUCKET, "template/small.vhd");
+        final File downloaded = S3Utils.getFile(clientOptions, BUCKET, "template/small.vhd", downloadDirectory, new LastPathElement());
+
+        Assert.assertTrue(Arrays.equals(content, readFile(downloaded)));
+        Assert.assertEquals(0, s3.parts.get());
+        Assert.assertEquals(0, s3.ranges.get());
+    }
+
+    @Test
+    public void testDirectory() throws Exception {
+        final byte[] large = randomContent(PART_SIZE + 1);
+        final byte[] small = randomContent(1000);
+        createFile("disk.vhd", large);
+        createFile("template.properties", small);
+
+        S3Utils.putDirectory(clientOptions, BUCKET, directory, new FilenameFilter() {
+            @Override
+            public boolean accept(final File dir, final String name) {
+                return true;
+            }
+        }, new ObjectNamingStrategy() {
+            @Override
+            public String determineKey(final File file) {
+                return "snapshots/1/" + file.getName();
+            }
+        });
+
+        Assert.assertEquals(2, s3.parts.get());
+
+        final List<File> files = S3Utils.getDirectory(clientOptions, BUCKET, "snapshots/1", downloadDirectory, new LastPathElement());
+
+        Assert.assertEquals(2, files.size());
+        Assert.assertTrue(Arrays.equals(large, readFile(new File(downloadDirectory, "disk.vhd"))));
+        Assert.assertTrue(Arrays.equals(small, readFile(new File(downloadDirectory, "template.properties"))));
+        Assert.assertEquals(2, s3.ranges.get());
+    }
+
+    @Test
+    public void testObjectChangedDuringDownload() throws Exception {
+        final File file = createFile("large.vhd", randomContent(2 * PART_SIZE + 1));
+        S3Utils.putFile(clientOptions, file, BUCKET, "template/large.vhd");
+        s3.replacement = randomContent(2 * PART_SIZE + 2);
+
+        try {
+            S3Utils.getFile(clientOptions, BUCKET, "template/large.vhd", downloadDirectory, new LastPathElement());
+            Assert.fail("Expected the download to fail");
+        } catch (CloudRuntimeException e) {
+            Assert.assertTrue(e.getMessage().contains("changed"));
+        }
+
+        Assert.assertEquals(0, downloadDirectory.list().length);
+    }
+
+    @Test
+    public void testCorruptDownloadIsRejected() throws Exception {
+        final File file = createFile("large.vhd", randomContent(2 * PART_SIZE + 1));
+        S3Utils.putFile(clientOptions, file, BUCKET, "template/large.vhd");
+        s3.corruptRanges = true;
+
+        try {
+            S3Utils.getFile(clientOptions, BUCKET, "template/large.vhd", downloadDirectory, new LastPathElement());
+            Assert.fail("Expected the download to fail");
+        } catch (CloudRuntimeException e) {
+            Assert.assertTrue(e.getMessage().contains("MD5"));
+        }
+
+        Assert.assertEquals(0, downloadDirectory.list().length);
+    }
+
+    @Test
+    public void testFailedUploadIsAborted() throws Exception {
+        final File file = createFile("large.vhd", randomContent(2 * PART_SIZE));
+        s3.failPart = 2;
+
+        try {
+            S3Utils.mputFile(clientOptions, file, BUCKET, "template/large.vhd");
+            Assert.fail("Expected the upload to fail");
+        } catch (AmazonClientException e) {
+            // expected
+        }
+
+        Assert.assertFalse(s3.objects.containsKey("template/large.vhd"));
+        Assert.assertTrue(s3.uploads.isEmpty());
+        Assert.assertEquals(1, s3.aborts.get());
+    }
+
+    @Test
+    public void testClientsAreShared() {
+        Assert.assertSame(S3Utils.acquireClient(clientOptions), S3Utils.acquireClient(new TestClientOptions(clientOptions.getEndPoint())));
+        Assert.assertNotSame(S3Utils.acquireClient(clientOptions), S3Utils.acquireClient(new TestClientOptions("http://127.0.0.1:1")));
+    }
+
+    @Test
+    public void testTransferStatistics() throws Exception {
+        final S3Utils.TransferStatistics statistics = S3Utils.getTransferStatistics();
+        final long uploaded = statistics.getBytesUploaded();
+        final long downloaded = statistics.getBytesDownloaded();
+        final File file = createFile("large.vhd", randomContent(PART_SIZE + 10));
+
+        S3Utils.mputFile(clientOptions, file, BUCKET, "template/large.vhd");
+        S3Utils.getFile(clientOptions, BUCKET, "template/large.vhd", downloadDirectory, new LastPathElement());
+
+        Assert.assertEquals(PART_SIZE + 10, statistics.getBytesUploaded() - uploaded);
+        Assert.assertEquals(PART_SIZE + 10, statistics.getBytesDownloaded() - downloaded);
+    }
+
+    private static byte[] randomContent(final int size) {
+        final byte[] content = new byte[size];
+        new Random(size).nextBytes(content);
+        return content;
+    }
+
+    private static File createDirectory(final String name) throws IOException {
+        final File dir = File.createTempFile("s3utils", name);
+        dir.delete();
+        dir.mkdir();
+        return dir;
+    }
+
+    private static void deleteDirectory(final File dir) {
+        final File[] files = dir.listFiles();
+        if (files != null) {
+            for (final File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private File createFile(final String name, final byte[] content) throws IOException {
+        final File file = new File(directory, name);
+        final OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static byte[] readFile(final File file) throws IOException {
+        final byte[] content = new byte[(int)file.length()];
+        final RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            in.readFully(content);
+        } finally {
+            in.close();
+        }
+        return content;
+    }
+
+    private static final class LastPathElement implements FileNamingStrategy {
+        @Override
+        public String determineFileName(final String key) {
+            return key.substring(key.lastIndexOf(S3Utils.SEPARATOR) + 1);
+        }
+    }
+
+    private static final class TestClientOptions implements ClientOptions {
+
+        private final String endPoint;
+
+        TestClientOptions(final String endPoint) {
+            this.endPoint = endPoint;
+        }
+
+        @Override
+        public String getAccessKey() {
+            return "access";
+        }
+
+        @Override
+        public String getSecretKey() {
+            return "secret";
+        }
+
+        @Override
+        public String getEndPoint() {
+            return endPoint;
+        }
+
+        @Override
+        public Boolean isHttps() {
+            return false;
+        }
+
+        @Override
+        public Integer getConnectionTimeout() {
+            return null;
+        }
+
+        @Override
+        public Integer getMaxErrorRetry() {
+            return 0;
+        }
+
+        @Override
+        public Integer getSocketTimeout() {
+            return null;
+        }
+
+    }
+
+    // A local stand-in for the parts of the S3 REST API that S3Utils uses
+    private static final class S3StandIn implements HttpHandler {
+
+        final Map<String, byte[]> objects = new ConcurrentHashMap<String, byte[]>();
+        final Map<String, SortedMap<Integer, byte[]>> uploads = new ConcurrentHashMap<String, SortedMap<Integer, byte[]>>();
+        final AtomicInteger parts = new AtomicInteger();
+        final AtomicInteger ranges = new AtomicInteger();
+        final AtomicInteger aborts = new AtomicInteger();
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+        volatile int failPart = 0;
+        volatile byte[] replacement;
+        volatile boolean corruptRanges;
+
+        @Override
+        public void handle(final HttpExchange exchange) throws IOException {
+            final int running = inFlight.incrementAndGet();
+            if (running > maxInFlight.get()) {
+                maxInFlight.set(running);
+            }
+            try {
+                serve(exchange);
+            } finally {
+                inFlight.decrementAndGet();
+                exchange.close();
+            }
+        }
+
+        private void serve(final HttpExchange exchange) throws IOException {
+            final String path = exchange.getRequestURI().getPath().substring(1);
+            final String key = path.contains("/") ? path.substring(path.indexOf('/') + 1) : "";
+            final Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+            final String method = exchange.getRequestMethod();
+            final byte[] body = read(exchange.getRequestBody());
+
+            if ("POST".equals(method) && query.containsKey("uploads")) {
+                final String uploadId = "upload-" + System.nanoTime();
+                uploads.put(uploadId, new TreeMap<Integer, byte[]>());
+                respond(exchange, 200, "<InitiateMultipartUploadResult><Bucket>" + BUCKET + "</Bucket><Key>" + key + "</Key><UploadId>" + uploadId
+                    + "</UploadId></InitiateMultipartUploadResult>");
+            } else if ("PUT".equals(method) && query.containsKey("uploadId")) {
+                final int partNumber = Integer.parseInt(query.get("partNumber"));
+                if (partNumber == failPart) {
+                    respond(exchange, 400, "<Error><Code>InvalidPart</Code><Message>Part rejected</Message></Error>");
+                    return;
+                }
+                uploads.get(query.get("uploadId")).put(partNumber, body);
+                parts.incrementAndGet();
+                exchange.getResponseHeaders().add("ETag", "\"" + md5(body) + "\"");
+                respond(exchange, 200, null);
+            } else if ("POST".equals(method) && query.containsKey("uploadId")) {
+                final ByteArrayOutputStream object = new ByteArrayOutputStream();
+                for (final byte[] part : uploads.remove(query.get("uploadId")).values()) {
+                    object.write(part);
+                }
+                objects.put(key, object.toByteArray());
+                respond(exchange, 200, "<CompleteMultipartUploadResult><Location>" + key + "</Location><Bucket>" + BUCKET + "</Bucket><Key>" + key
+                    + "</Key><ETag>\"" + md5(object.toByteArray()) + "-1\"</ETag></CompleteMultipartUploadResult>");
+            } else if ("DELETE".equals(method) && query.containsKey("uploadId")) {
+                uploads.remove(query.get("uploadId"));
+                aborts.incrementAndGet();
+                respond(exchange, 204, null);
+            } else if ("PUT".equals(method)) {
+                objects.put(key, body);
+                exchange.getResponseHeaders().add("ETag", "\"" + md5(body) + "\"");
+                respond(exchange, 200, null);
+            } else if ("GET".equals(method) && key.isEmpty()) {
+                list(exchange, query.get("prefix"));
+            } else if ("GET".equals(method) || "HEAD".equals(method)) {
+                get(exchange, key, "HEAD".equals(method));
+            } else {
+                respond(exchange, 405, null);
+            }
+        }
+
+        private void list(final HttpExchange exchange, final String prefix) throws IOException {
+            final StringBuilder xml = new StringBuilder("<ListBucketResult xmlns=\"http://s3.amazonaws.com/doc/2006-03-01/\"><Name>" + BUCKET + "</Name><Prefix>"
+                + prefix + "</Prefix><Marker></Marker><MaxKeys>1000</MaxKeys><IsTruncated>false</IsTruncated>");
+            for (final Map.Entry<String, byte[]> object : new TreeMap<String, byte[]>(objects).entrySet()) {
+                if (object.getKey().startsWith(prefix)) {
+                    xml.append("<Contents><Key>").append(object.getKey()).append("</Key><LastModified>2014-01-01T00:00:00.000Z</LastModified><ETag>\"")
+                        .append(md5(object.getValue())).append("\"</ETag><Size>").append(object.getValue().length)
+                        .append("</Size><StorageClass>STANDARD</StorageClass></Contents>");
+                }
+            }
+            respond(exchange, 200, xml.append("</ListBucketResult>").toString());
+        }
+
+        private void get(final HttpExchange exchange, final String key, final boolean headOnly) throws IOException {
+            final byte[] object = objects.get(key);
+            if (object == null) {
+                respond(exchange, 404, headOnly ? null : "<Error><Code>NoSuchKey</Code><Message>No such key</Message></Error>");
+                return;
+            }
+
+            final String ifMatch = exchange.getRequestHeaders().getFirst("If-Match");
+            if (ifMatch != null && !ifMatch.replace("\"", "").equals(md5(object))) {
+                respond(exchange, 412, "<Error><Code>PreconditionFailed</Code><Message>ETag mismatch</Message></Error>");
+                return;
+            }
+
+            int first = 0;
+            int last = object.length - 1;
+            int code = 200;
+            final String range = exchange.getRequestHeaders().getFirst("Range");
+            if (range != null) {
+                final String[] bounds = range.substring("bytes=".length()).split("-");
+                first = Integer.parseInt(bounds[0]);
+                last = Math.min(Integer.parseInt(bounds[1]), last);
+                code = 206;
+                ranges.incrementAndGet();
+                exchange.getResponseHeaders().add("Content-Range", "bytes " + first + "-" + last + "/" + object.length);
+            }
+
+            exchange.getResponseHeaders().add("ETag", "\"" + md5(object) + "\"");
+            exchange.getResponseHeaders().add("Last-Modified", "Wed, 01 Jan 2014 00:00:00 GMT");
+            exchange.getResponseHeaders().add("Content-Type", "application/octet-stream");
+            if (headOnly) {
+                if (replacement != null) {
+                    objects.put(key, replacement);
+                    replacement = null;
+                }
+                exchange.getResponseHeaders().add("Content-Length", String.valueOf(object.length));
+                exchange.sendResponseHeaders(code, -1);
+                return;
+            }
+            final byte[] content = Arrays.copyOfRange(object, first, last + 1);
+            if (range != null && corruptRanges) {
+                content[0]++;
+            }
+            exchange.sendResponseHeaders(code, content.length);
+            exchange.getResponseBody().write(content);
+        }
+
+        private static void respond(final HttpExchange exchange, final int code, final String xml) throws IOException {
+            if (xml == null) {
+                exchange.sendResponseHeaders(code, -1);
+                return;
+            }
+            final byte[] content = xml.getBytes("UTF-8");
+            exchange.getResponseHeaders().add("Content-Type", "application/xml");
+            exchange.sendResponseHeaders(code, content.length);
+            exchange.getResponseBody().write(content);
+        }
+
+        private static Map<String, String> parseQuery(final String query) throws IOException {
+            final Map<String, String> parameters = new TreeMap<String, String>();
+            if (query != null) {
+                for (final String parameter : query.split("&")) {
+                    final int equals = parameter.indexOf('=');
+                    if (equals < 0) {
+                        parameters.put(parameter, "");
+                    } else {
+                        parameters.put(parameter.substring(0, equals), URLDecoder.decode(parameter.substring(equals + 1), "UTF-8"));
+                    }
+                }
+            }
+            return parameters;
+        }
+
+        private static byte[] read(final InputStream in) throws IOException {
+            final ByteArrayOutputStream content = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[64 * 1024];
+            int bytes;
+            while ((bytes = in.read(buffer)) >= 0) {
+                content.write(buffer, 0, bytes);
+            }
+            return content.toByteArray();
+        }
+
+        private static String md5(final byte[] content) {
+            try {
+                final byte[] digest = MessageDigest.getInstance("MD5").digest(content);
+                final StringBuilder hex = new StringBuilder();
+                for (final byte b : digest) {
+                    hex.append(String.format("%02x", b));
+                }
+                return hex.toString();
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+    }
+
+}
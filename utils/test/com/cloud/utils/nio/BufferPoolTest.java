@@ -0,0 +1,67 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.utils.nio;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BufferPoolTest {
+    @Test
+    public void testSizeClasses() {
+        BufferPool pool = new BufferPool(4096, 65536, 4);
+        Assert.assertEquals(4096, pool.acquire(1).capacity());
+        Assert.assertEquals(4096, pool.acquire(4096).capacity());
+        Assert.assertEquals(8192, pool.acquire(4097).capacity());
+        Assert.assertEquals(32768, pool.acquire(18000 + 44).capacity());
+
+        ByteBuffer large = pool.acquire(65537);
+        Assert.assertFalse(large.isDirect());
+        Assert.assertEquals(65537, large.capacity());
+    }
+
+    @Test
+    public void testReuse() {
+        BufferPool pool = new BufferPool(4096, 65536, 4);
+        ByteBuffer buffer = pool.acquire(5000);
+        buffer.putInt(1);
+        pool.release(buffer);
+        Assert.assertEquals(1, pool.getIdleCount());
+
+        ByteBuffer reused = pool.acquire(6000);
+        Assert.assertSame(buffer, reused);
+        Assert.assertEquals(0, reused.position());
+        Assert.assertEquals(1, pool.getAllocatedCount());
+        Assert.assertEquals(1, pool.getReusedCount());
+    }
+
+    @Test
+    public void testReleaseIgnoresForeignBuffers() {
+        BufferPool pool = new BufferPool(4096, 65536, 1);
+        pool.release(ByteBuffer.allocate(4096));
+        pool.release(ByteBuffer.allocateDirect(5000));
+        Assert.assertEquals(0, pool.getIdleCount());
+
+        pool.release(pool.acquire(4096));
+        pool.release(ByteBuffer.allocateDirect(4096));
+        Assert.assertEquals(1, pool.getIdleCount());
+    }
+}